@@ -0,0 +1,105 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares decrypting and verifying a history page on one thread with the batch pool.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BatchCryptoBenchmark {
+    private static final String TAG = "BatchCryptoBenchmark";
+    private static final int PAGE_SIZE = 200;
+    private static final int SIGNED_PAGE_SIZE = 32;
+    private static final int ITERATIONS = 10;
+    private static final byte[] HEADER = "page header".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void decryptPageScalesWithCores() throws GeneralSecurityException {
+        SecureRandom random = new SecureRandom();
+        List<byte[][]> page = new ArrayList<>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            byte[] messageKey = new byte[SymmetricRatchet.MESSAGE_KEY_LENGTH];
+            random.nextBytes(messageKey);
+            byte[] plaintext = new byte[512 + random.nextInt(4096)];
+            random.nextBytes(plaintext);
+            page.add(new byte[][]{messageKey, SymmetricRatchet.encrypt(messageKey, HEADER, plaintext), plaintext});
+        }
+
+        BatchCrypto serial = new BatchCrypto(1);
+        BatchCrypto parallel = BatchCrypto.getDefault();
+        BatchCrypto.Task<byte[][], byte[]> decrypt = item ->
+                SymmetricRatchet.decrypt(item[0], HEADER, item[1], 0, item[1].length);
+
+        List<byte[]> results = parallel.runAll(page, decrypt);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertArrayEquals("Results must come back in page order", page.get(i)[2], results.get(i));
+        }
+
+        long serialNanos = medianNanos(() -> serial.runAll(page, decrypt));
+        long parallelNanos = medianNanos(() -> parallel.runAll(page, decrypt));
+        Log.i(TAG, "Decrypt " + PAGE_SIZE + " messages median: serial=" + micros(serialNanos)
+                + "us, parallel(" + parallel.getParallelism() + ")=" + micros(parallelNanos) + "us");
+    }
+
+    @Test
+    public void verifyPageScalesWithCoresAndMemoizes() {
+        PQCProvider.DilithiumKeyPair keyPair = PQCProvider.generateDilithiumKeyPair();
+        assertNotNull(keyPair);
+        List<BatchCrypto.SignedMessage> page = new ArrayList<>(SIGNED_PAGE_SIZE);
+        for (int i = 0; i < SIGNED_PAGE_SIZE; i++) {
+            byte[] message = ("signed message " + i).getBytes(StandardCharsets.UTF_8);
+            page.add(new BatchCrypto.SignedMessage(keyPair.getPublicKey(), message,
+                    PQCProvider.sign(keyPair.getPrivateKey(), message)));
+        }
+
+        long serialNanos = timeNanos(() -> assertAllValid(new BatchCrypto(1).verifyAll(page)));
+        BatchCrypto parallel = new BatchCrypto(Runtime.getRuntime().availableProcessors());
+        long parallelNanos = timeNanos(() -> assertAllValid(parallel.verifyAll(page)));
+        long memoizedNanos = timeNanos(() -> assertAllValid(parallel.verifyAll(page)));
+        Log.i(TAG, "Verify " + SIGNED_PAGE_SIZE + " signatures: serial=" + micros(serialNanos)
+                + "us, parallel(" + parallel.getParallelism() + ")=" + micros(parallelNanos)
+                + "us, memoized=" + micros(memoizedNanos) + "us");
+
+        byte[] tampered = "forged".getBytes(StandardCharsets.UTF_8);
+        assertFalse(parallel.verify(keyPair.getPublicKey(), tampered, page.get(0).signature));
+    }
+
+    private static void assertAllValid(boolean[] valid) {
+        for (int i = 0; i < valid.length; i++) {
+            assertTrue("Signature " + i + " must verify", valid[i]);
+        }
+    }
+
+    private static long medianNanos(Runnable operation) {
+        long[] samples = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            samples[i] = timeNanos(operation);
+        }
+        Arrays.sort(samples);
+        return samples[ITERATIONS / 2];
+    }
+
+    private static long timeNanos(Runnable operation) {
+        long start = System.nanoTime();
+        operation.run();
+        return System.nanoTime() - start;
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1_000;
+    }
+}
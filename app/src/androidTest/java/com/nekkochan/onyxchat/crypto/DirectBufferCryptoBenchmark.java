@@ -0,0 +1,180 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.os.Debug;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Allocation benchmark comparing the byte[]/{@link PQCProvider.EncryptedData} AES path with the
+ * direct buffer path when decrypting a history page, plus a check that both paths interoperate.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DirectBufferCryptoBenchmark {
+    private static final String TAG = "DirectBufferCryptoBenchmark";
+    private static final int PAGE_SIZE = 200;
+    private static final int MESSAGE_LENGTH = 512;
+    private static final int WARMUP_ROUNDS = 2;
+
+    private final BufferPool pool = BufferPool.getDefault();
+    private byte[] key;
+    private ByteBuffer directKey;
+    private byte[][] plaintexts;
+    private PQCProvider.EncryptedData[] legacyPage;
+    private String[] wirePage;
+
+    @Before
+    public void setUp() {
+        SecureRandom random = new SecureRandom();
+        key = new byte[32];
+        random.nextBytes(key);
+        directKey = ByteBuffer.allocateDirect(key.length);
+        directKey.put(key).flip();
+
+        plaintexts = new byte[PAGE_SIZE][];
+        legacyPage = new PQCProvider.EncryptedData[PAGE_SIZE];
+        wirePage = new String[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            plaintexts[i] = new byte[MESSAGE_LENGTH];
+            random.nextBytes(plaintexts[i]);
+            legacyPage[i] = PQCProvider.encryptWithAES(plaintexts[i], key);
+
+            ByteBuffer plaintext = pool.acquire(MESSAGE_LENGTH);
+            ByteBuffer sealed = pool.acquire(PQCProvider.sealedSize(MESSAGE_LENGTH));
+            plaintext.put(plaintexts[i]).flip();
+            assertTrue(PQCProvider.seal(plaintext, directKey, sealed) > 0);
+            sealed.flip();
+            wirePage[i] = WireCodec.encode(sealed, new StringBuilder()).toString();
+            pool.release(plaintext);
+            pool.release(sealed);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Arrays.fill(key, (byte) 0);
+        BufferPool.wipe(directKey);
+    }
+
+    @Test
+    public void directBufferDecryptAllocatesLess() {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            decryptLegacyPage();
+            decryptDirectPage();
+        }
+
+        long[] legacy = countAllocations(this::decryptLegacyPage);
+        long[] direct = countAllocations(this::decryptDirectPage);
+
+        Log.i(TAG, "Per decrypt: legacy=" + legacy[0] / (double) PAGE_SIZE + " objects/"
+                + legacy[1] / PAGE_SIZE + " bytes, direct=" + direct[0] / (double) PAGE_SIZE
+                + " objects/" + direct[1] / PAGE_SIZE + " bytes");
+        assertTrue("Direct path should allocate fewer bytes", direct[1] < legacy[1]);
+        assertTrue("Direct path should allocate fewer objects", direct[0] < legacy[0]);
+    }
+
+    @Test
+    public void directBufferEncryptAllocatesLess() {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            encryptLegacyPage();
+            encryptDirectPage();
+        }
+
+        long[] legacy = countAllocations(this::encryptLegacyPage);
+        long[] direct = countAllocations(this::encryptDirectPage);
+
+        Log.i(TAG, "Per encrypt: legacy=" + legacy[0] / (double) PAGE_SIZE + " objects/"
+                + legacy[1] / PAGE_SIZE + " bytes, direct=" + direct[0] / (double) PAGE_SIZE
+                + " objects/" + direct[1] / PAGE_SIZE + " bytes");
+        assertTrue("Direct path should allocate fewer bytes", direct[1] < legacy[1]);
+    }
+
+    @Test
+    public void inPlaceRoundTripMatchesByteArrayPath() {
+        ByteBuffer iv = ByteBuffer.allocateDirect(PQCProvider.AES_IV_SIZE);
+        byte[] legacyIv = Base64.decode(legacyPage[0].getIv(), Base64.NO_WRAP);
+        byte[] legacyCiphertext = Base64.decode(legacyPage[0].getCiphertext(),
+                Base64.NO_WRAP);
+        iv.put(legacyIv).flip();
+
+        ByteBuffer buffer = pool.acquire(legacyCiphertext.length);
+        buffer.put(legacyCiphertext).flip();
+        assertEquals(MESSAGE_LENGTH, PQCProvider.decryptInPlace(buffer, directKey, iv));
+        byte[] decrypted = new byte[buffer.remaining()];
+        buffer.get(decrypted);
+        assertArrayEquals(plaintexts[0], decrypted);
+
+        buffer.clear();
+        buffer.put(plaintexts[0]).flip();
+        assertEquals(MESSAGE_LENGTH + PQCProvider.AES_TAG_SIZE, PQCProvider.encryptInPlace(buffer, directKey, iv));
+        byte[] ciphertext = new byte[buffer.remaining()];
+        buffer.get(ciphertext);
+        assertArrayEquals(plaintexts[0], PQCProvider.decryptWithAES(
+                new PQCProvider.EncryptedData(legacyIv, ciphertext), key));
+        pool.release(buffer);
+    }
+
+    private void decryptLegacyPage() {
+        for (PQCProvider.EncryptedData data : legacyPage) {
+            assertNotNull(PQCProvider.decryptWithAES(data, key));
+        }
+    }
+
+    private void decryptDirectPage() {
+        ByteBuffer sealed = pool.acquire(PQCProvider.sealedSize(MESSAGE_LENGTH));
+        ByteBuffer plaintext = pool.acquire(MESSAGE_LENGTH);
+        for (String wire : wirePage) {
+            sealed.clear();
+            plaintext.clear();
+            WireCodec.decode(wire, 0, sealed);
+            sealed.flip();
+            assertEquals(MESSAGE_LENGTH, PQCProvider.open(sealed, directKey, plaintext));
+        }
+        pool.release(sealed);
+        pool.release(plaintext);
+    }
+
+    private void encryptLegacyPage() {
+        for (byte[] plaintext : plaintexts) {
+            assertNotNull(PQCProvider.encryptWithAES(plaintext, key));
+        }
+    }
+
+    private void encryptDirectPage() {
+        ByteBuffer plaintext = pool.acquire(MESSAGE_LENGTH);
+        ByteBuffer sealed = pool.acquire(PQCProvider.sealedSize(MESSAGE_LENGTH));
+        for (byte[] message : plaintexts) {
+            plaintext.clear();
+            sealed.clear();
+            plaintext.put(message).flip();
+            assertTrue(PQCProvider.seal(plaintext, directKey, sealed) > 0);
+        }
+        pool.release(plaintext);
+        pool.release(sealed);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long[] countAllocations(Runnable work) {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            work.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return new long[]{Debug.getThreadAllocCount(), Debug.getThreadAllocSize()};
+    }
+}
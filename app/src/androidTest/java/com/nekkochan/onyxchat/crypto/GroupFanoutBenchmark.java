@@ -0,0 +1,119 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares sending one message to a 200-member group with per-member pairwise encryption
+ * and with a sender key, and measures the one-off cost of distributing a sender key.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GroupFanoutBenchmark {
+    private static final String TAG = "GroupFanoutBenchmark";
+    private static final int GROUP_SIZE = 200;
+    private static final int ITERATIONS = 10;
+    private static final String GROUP = "group-benchmark";
+    private static final byte[] HEADER = "session header".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGE = new byte[512];
+    private static final byte[] SENDER_KEY_JSON = new byte[120];
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    @Test
+    public void senderKeyCostIsIndependentOfGroupSize() throws Exception {
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(MESSAGE);
+        PQCProvider.DilithiumKeyPair identity = PQCProvider.generateDilithiumKeyPair();
+        assertNotNull(identity);
+
+        // One pairwise chain per other member, and one sender chain for the whole group
+        byte[][] pairwiseChains = new byte[GROUP_SIZE - 1][SymmetricRatchet.CHAIN_KEY_LENGTH];
+        for (byte[] chain : pairwiseChains) {
+            random.nextBytes(chain);
+        }
+        byte[] senderChain = new byte[SymmetricRatchet.CHAIN_KEY_LENGTH];
+        random.nextBytes(senderChain);
+
+        long[] pairwiseBytes = new long[1];
+        Operation pairwise = () -> {
+            long bytes = 0;
+            for (int i = 0; i < pairwiseChains.length; i++) {
+                byte[] messageKey = SymmetricRatchet.messageKey(pairwiseChains[i]);
+                bytes += SymmetricRatchet.encrypt(messageKey, HEADER, MESSAGE).length + HEADER.length;
+                pairwiseChains[i] = SymmetricRatchet.nextChainKey(pairwiseChains[i]);
+            }
+            pairwiseBytes[0] = bytes;
+        };
+
+        byte[][] senderChainHolder = {senderChain};
+        int[] counter = {0};
+        byte[][] lastEnvelope = new byte[1][];
+        Operation senderKey = () -> {
+            byte[] messageKey = SymmetricRatchet.messageKey(senderChainHolder[0]);
+            SenderKeyMessage message = SenderKeyMessage.encrypt(GROUP, 1, counter[0]++, messageKey, MESSAGE);
+            lastEnvelope[0] = message.withSignature(PQCProvider.sign(identity.getPrivateKey(),
+                    message.signedData(GROUP))).serialize();
+            senderChainHolder[0] = SymmetricRatchet.nextChainKey(senderChainHolder[0]);
+        };
+
+        long pairwiseNanos = medianNanos(pairwise);
+        long senderKeyNanos = medianNanos(senderKey);
+
+        // Receiving side: every member verifies and decrypts the same envelope once
+        byte[] memberChain = senderChain;
+        for (int i = 0; i < counter[0] - 1; i++) {
+            memberChain = SymmetricRatchet.nextChainKey(memberChain);
+        }
+        byte[] messageKey = SymmetricRatchet.messageKey(memberChain);
+        Operation receive = () -> {
+            SenderKeyMessage message = SenderKeyMessage.parse(lastEnvelope[0]);
+            assertTrue(PQCProvider.verify(identity.getPublicKey(), message.signedData(GROUP), message.signature));
+            assertArrayEquals(MESSAGE, message.decrypt(GROUP, messageKey));
+        };
+        long receiveNanos = medianNanos(receive);
+
+        // One-off cost when the membership changes: the chain key over every pairwise session
+        Operation distribute = () -> {
+            for (int i = 0; i < pairwiseChains.length; i++) {
+                SymmetricRatchet.encrypt(SymmetricRatchet.messageKey(pairwiseChains[i]), HEADER, SENDER_KEY_JSON);
+                pairwiseChains[i] = SymmetricRatchet.nextChainKey(pairwiseChains[i]);
+            }
+        };
+        long distributeNanos = medianNanos(distribute);
+
+        Log.i(TAG, "Send to " + GROUP_SIZE + " members median: pairwise=" + micros(pairwiseNanos) + "us ("
+                + pairwiseBytes[0] + " bytes uploaded), senderKey=" + micros(senderKeyNanos) + "us ("
+                + lastEnvelope[0].length + " bytes uploaded)");
+        Log.i(TAG, "Per member receive median: " + micros(receiveNanos) + "us; sender key distribution to "
+                + (GROUP_SIZE - 1) + " members median: " + micros(distributeNanos) + "us");
+        assertTrue("Sender key upload must not grow with the group",
+                lastEnvelope[0].length < pairwiseBytes[0] / 10);
+    }
+
+    private static long medianNanos(Operation operation) throws Exception {
+        long[] samples = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[ITERATIONS / 2];
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1_000;
+    }
+}
@@ -0,0 +1,85 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput comparison of the PQC backends available on the device. Interoperability is
+ * covered by {@link PqcBackendInteropTest}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PqcBackendBenchmark {
+    private static final String TAG = "PqcBackendBenchmark";
+    private static final int ITERATIONS = 20;
+    private static final byte[] MESSAGE = "OnyxChat backend benchmark".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void compareBackendThroughput() throws GeneralSecurityException {
+        List<PqcBackend> backends = workingBackends();
+        assertFalse("At least one backend must pass its self-test", backends.isEmpty());
+
+        for (PqcBackend backend : backends) {
+            PQCProvider.KyberKeyPair kyberKeyPair = backend.generateKyberKeyPair(PQCProvider.KYBER_768);
+            PQCProvider.KyberEncapsulationResult encapsulation = backend.encapsulate(kyberKeyPair.getPublicKey());
+            PQCProvider.DilithiumKeyPair dilithiumKeyPair = backend.generateDilithiumKeyPair(PQCProvider.DILITHIUM_3);
+            byte[] signature = backend.sign(dilithiumKeyPair.getPrivateKey(), MESSAGE);
+
+            long kyberKeygen = medianNanos(() -> backend.generateKyberKeyPair(PQCProvider.KYBER_768));
+            long encaps = medianNanos(() -> backend.encapsulate(kyberKeyPair.getPublicKey()));
+            long decaps = medianNanos(() -> backend.decapsulate(kyberKeyPair.getPrivateKey(),
+                    encapsulation.getCiphertext()));
+            long dilithiumKeygen = medianNanos(() -> backend.generateDilithiumKeyPair(PQCProvider.DILITHIUM_3));
+            long sign = medianNanos(() -> backend.sign(dilithiumKeyPair.getPrivateKey(), MESSAGE));
+            long verify = medianNanos(() -> backend.verify(dilithiumKeyPair.getPublicKey(), MESSAGE, signature));
+
+            Log.i(TAG, backend.getName() + " median: kyber768 keygen=" + micros(kyberKeygen)
+                    + "us, encaps=" + micros(encaps) + "us, decaps=" + micros(decaps)
+                    + "us; dilithium3 keygen=" + micros(dilithiumKeygen) + "us, sign=" + micros(sign)
+                    + "us, verify=" + micros(verify) + "us");
+        }
+        Log.i(TAG, "Selected backend: " + PQCProvider.getBackend().getName());
+    }
+
+    private static List<PqcBackend> workingBackends() {
+        List<PqcBackend> backends = new ArrayList<>();
+        for (PqcBackend backend : new PqcBackend[]{new NativePqcBackend(), new BouncyCastlePqcBackend()}) {
+            if (backend.isAvailable() && PQCProvider.selfTest(backend)) {
+                backends.add(backend);
+            } else {
+                Log.w(TAG, "Skipping " + backend.getName() + " backend: unavailable or failed its self-test");
+            }
+        }
+        return backends;
+    }
+
+    private static long medianNanos(Operation operation) throws GeneralSecurityException {
+        long[] samples = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[ITERATIONS / 2];
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1_000;
+    }
+
+    private interface Operation {
+        void run() throws GeneralSecurityException;
+    }
+}
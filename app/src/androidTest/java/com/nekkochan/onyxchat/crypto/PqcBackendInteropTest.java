@@ -0,0 +1,76 @@
+package com.nekkochan.onyxchat.crypto;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cross-backend tests: keys, ciphertexts and signatures produced by the native backend must
+ * be accepted by the BouncyCastle backend and the other way round, for every variant.
+ * Instrumented because the native library is only packaged for the device ABIs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PqcBackendInteropTest {
+    private static final byte[] MESSAGE = "OnyxChat interop message".getBytes(StandardCharsets.UTF_8);
+
+    private final PqcBackend nativeBackend = new NativePqcBackend();
+    private final PqcBackend bouncyCastle = new BouncyCastlePqcBackend();
+
+    @Test
+    public void nativeLibraryIsPackaged() {
+        assertTrue("The pqc-native library must load on the device", nativeBackend.isAvailable());
+    }
+
+    @Test
+    public void kyberCiphertextsDecapsulateAcrossBackends() throws GeneralSecurityException {
+        assertTrue(nativeBackend.isAvailable());
+        for (int variant = PQCProvider.KYBER_512; variant <= PQCProvider.KYBER_1024; variant++) {
+            assertKemInteroperates(nativeBackend, bouncyCastle, variant);
+            assertKemInteroperates(bouncyCastle, nativeBackend, variant);
+        }
+    }
+
+    @Test
+    public void dilithiumSignaturesVerifyAcrossBackends() throws GeneralSecurityException {
+        assertTrue(nativeBackend.isAvailable());
+        for (int variant = PQCProvider.DILITHIUM_2; variant <= PQCProvider.DILITHIUM_5; variant++) {
+            assertSignaturesInteroperate(nativeBackend, bouncyCastle, variant);
+            assertSignaturesInteroperate(bouncyCastle, nativeBackend, variant);
+        }
+    }
+
+    /**
+     * {@code owner} generates the key pair and decapsulates what {@code peer} encapsulated
+     */
+    private static void assertKemInteroperates(PqcBackend owner, PqcBackend peer, int variant)
+            throws GeneralSecurityException {
+        PQCProvider.KyberKeyPair keyPair = owner.generateKyberKeyPair(variant);
+        PQCProvider.KyberEncapsulationResult encapsulation = peer.encapsulate(keyPair.getPublicKey());
+        assertArrayEquals(owner.getName() + " must decapsulate " + peer.getName()
+                        + " ciphertexts for variant " + variant,
+                encapsulation.getSharedSecret(),
+                owner.decapsulate(keyPair.getPrivateKey(), encapsulation.getCiphertext()));
+    }
+
+    /**
+     * {@code owner} signs and {@code peer} verifies, including a tampered message
+     */
+    private static void assertSignaturesInteroperate(PqcBackend owner, PqcBackend peer, int variant)
+            throws GeneralSecurityException {
+        PQCProvider.DilithiumKeyPair keyPair = owner.generateDilithiumKeyPair(variant);
+        byte[] signature = owner.sign(keyPair.getPrivateKey(), MESSAGE);
+        assertTrue(peer.getName() + " must verify " + owner.getName() + " signatures for variant " + variant,
+                peer.verify(keyPair.getPublicKey(), MESSAGE, signature));
+
+        byte[] tampered = MESSAGE.clone();
+        tampered[0] ^= 1;
+        assertFalse(peer.getName() + " must reject a tampered message signed by " + owner.getName(),
+                peer.verify(keyPair.getPublicKey(), tampered, signature));
+    }
+}
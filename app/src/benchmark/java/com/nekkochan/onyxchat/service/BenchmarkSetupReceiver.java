@@ -0,0 +1,53 @@
+package com.nekkochan.onyxchat.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import com.nekkochan.onyxchat.util.UserSessionManager;
+
+/**
+ * Benchmark-only receiver that points the app at a stand-in server and seeds a
+ * logged-in session, so macrobenchmarks can start straight into MainActivity.
+ * Only packaged in the {@code benchmark} build type.
+ * <p>
+ * Usage: {@code am broadcast -n com.nekkochan.onyxchat/.service.BenchmarkSetupReceiver
+ * --es server_url http://localhost:PORT/}
+ */
+public class BenchmarkSetupReceiver extends BroadcastReceiver {
+    private static final String TAG = "BenchmarkSetupReceiver";
+
+    public static final String EXTRA_SERVER_URL = "server_url";
+    public static final String EXTRA_USER_ID = "user_id";
+
+    private static final String DEFAULT_USER_ID = "benchmark-user";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String serverUrl = intent.getStringExtra(EXTRA_SERVER_URL);
+        if (serverUrl == null || serverUrl.isEmpty()) {
+            Log.e(TAG, "No server URL supplied");
+            return;
+        }
+        String userId = intent.getStringExtra(EXTRA_USER_ID);
+        if (userId == null || userId.isEmpty()) {
+            userId = DEFAULT_USER_ID;
+        }
+
+        String chatUrl = serverUrl.replaceFirst("^http", "ws");
+        if (!chatUrl.endsWith("/")) {
+            chatUrl += "/";
+        }
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString("server_url", serverUrl)
+                .putString("chat_server_url", chatUrl + "ws/")
+                .commit();
+
+        new UserSessionManager(context).createLoginSession(
+                "benchmark", userId, "benchmark-token", "benchmark-refresh-token");
+        Log.d(TAG, "Configured stand-in server " + serverUrl + " for " + userId);
+    }
+}
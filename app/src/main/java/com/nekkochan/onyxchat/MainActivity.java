@@ -21,6 +21,7 @@ import androidx.lifecycle.ViewModelProvider;
 
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 import com.nekkochan.onyxchat.service.ChatNotificationService;
+import com.nekkochan.onyxchat.startup.AppStartup;
 import com.nekkochan.onyxchat.ui.ConversationListFragment;
 import com.nekkochan.onyxchat.ui.ContactsFragment;
 import com.nekkochan.onyxchat.ui.ProfileFragment;
@@ -122,6 +123,18 @@ public class MainActivity extends AppCompatActivity implements BottomNavigationV
     protected void onResume() {
         super.onResume();
         
+        // The chat service is built off the main thread during startup; connect once it is ready
+        AppStartup.getInstance().runWhenReady(AppStartup.TASK_CHAT_SERVICE, this::resumeChat);
+    }
+    
+    /**
+     * Make sure the notification service runs and the chat connection is up
+     */
+    private void resumeChat() {
+        if (isFinishing() || isDestroyed()) {
+            return;
+        }
+        
         // Start notification service to ensure it's running
         Intent serviceIntent = new Intent(this, ChatNotificationService.class);
         serviceIntent.setAction(ChatNotificationService.ACTION_START_SERVICE);
@@ -270,6 +283,12 @@ public class MainActivity extends AppCompatActivity implements BottomNavigationV
      * Start the chat notification service
      */
     private void startChatNotificationService() {
+        // The service binds to ChatService in onCreate, so wait until startup has built it
+        if (!AppStartup.getInstance().isReady(AppStartup.TASK_CHAT_SERVICE)) {
+            AppStartup.getInstance().runWhenReady(AppStartup.TASK_CHAT_SERVICE, this::startChatNotificationService);
+            return;
+        }
+        
         Log.d(TAG, "Ensuring chat notification service is running");
         
         Intent serviceIntent = new Intent(this, ChatNotificationService.class);
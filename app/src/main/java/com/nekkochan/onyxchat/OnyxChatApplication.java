@@ -3,7 +3,15 @@ package com.nekkochan.onyxchat;
 import android.app.Application;
 import android.util.Log;
 
+import com.nekkochan.onyxchat.crypto.SessionManager;
+import com.nekkochan.onyxchat.data.AppDatabase;
+import com.nekkochan.onyxchat.data.SafeHelperFactory;
+import com.nekkochan.onyxchat.network.ChatService;
+import com.nekkochan.onyxchat.service.MessageRetentionWorker;
+import com.nekkochan.onyxchat.service.PreKeyRefillWorker;
+import com.nekkochan.onyxchat.startup.AppStartup;
 import com.nekkochan.onyxchat.utils.EmojiUtils;
+import com.nekkochan.onyxchat.utils.MediaUtils;
 import com.nekkochan.onyxchat.utils.NotificationUtil;
 
 /**
@@ -12,19 +20,52 @@ import com.nekkochan.onyxchat.utils.NotificationUtil;
  */
 public class OnyxChatApplication extends Application {
     private static final String TAG = "OnyxChatApplication";
-    
+
     @Override
     public void onCreate() {
         super.onCreate();
-        
-        // Initialize emoji support
-        Log.d(TAG, "Initializing emoji support");
-        EmojiUtils.init(this);
-        
-        // Initialize notification channels
-        Log.d(TAG, "Creating notification channels");
-        NotificationUtil.createNotificationChannels(this);
-        
-        // Initialize other components as needed
+
+        Log.d(TAG, "Registering startup initializers");
+        AppStartup startup = AppStartup.getInstance();
+
+        // Notification channels must exist before any service posts a notification
+        startup.register(AppStartup.TASK_NOTIFICATION_CHANNELS, true, false,
+                NotificationUtil::createNotificationChannels);
+
+        // Load the SQLCipher native libraries and open the encrypted database off the main thread
+        startup.register(AppStartup.TASK_SQLCIPHER, false, false,
+                SafeHelperFactory::initSQLCipher);
+        startup.register(AppStartup.TASK_DATABASE, false, false,
+                context -> AppDatabase.getInstance(context).getOpenHelper().getWritableDatabase(),
+                AppStartup.TASK_SQLCIPHER);
+
+        // Build the WebSocket and OkHttp clients in parallel with the database
+        startup.register(AppStartup.TASK_CHAT_SERVICE, false, false,
+                ChatService::getInstance);
+
+        // Emoji support is only needed once a chat is opened
+        startup.register(AppStartup.TASK_EMOJI, false, true,
+                EmojiUtils::init);
+
+        // Sweep expired and soft-deleted messages; the worker reschedules itself
+        startup.register(AppStartup.TASK_RETENTION, false, true,
+                MessageRetentionWorker::schedule,
+                AppStartup.TASK_DATABASE);
+
+        // Publish end-to-end identity keys; Dilithium and Kyber key generation stays off the first frame
+        startup.register(AppStartup.TASK_CRYPTO_IDENTITY, false, true,
+                SessionManager::initialize,
+                AppStartup.TASK_DATABASE);
+
+        // Keep one-time prekeys on the server; generation waits for the device to be idle and charging
+        startup.register(AppStartup.TASK_PREKEYS, false, true,
+                PreKeyRefillWorker::schedule,
+                AppStartup.TASK_CRYPTO_IDENTITY);
+
+        // Find the best FFmpeg video encoder ahead of the first video attachment
+        startup.register(AppStartup.TASK_VIDEO_ENCODER, false, true,
+                context -> MediaUtils.getVideoEncoder());
+
+        startup.start(this);
     }
-} 
\ No newline at end of file
+}
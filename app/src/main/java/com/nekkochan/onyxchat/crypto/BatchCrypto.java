@@ -0,0 +1,207 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker pool for CPU-bound crypto over batches, such as a page of conversation history.
+ * <p>
+ * A batch is split into one contiguous chunk per core and results come back in input order.
+ * Small batches run on the calling thread. Dilithium verification results are memoized,
+ * so a sender key and signature seen again skip the lattice arithmetic.
+ */
+public final class BatchCrypto {
+    private static final String TAG = "BatchCrypto";
+
+    // Batches smaller than this run on the calling thread; handing off costs more than it saves
+    private static final int MIN_PARALLEL_BATCH = 4;
+    // Verification results remembered, keyed by a digest of key, message and signature
+    private static final int VERIFIED_CACHE_SIZE = 256;
+
+    private static volatile BatchCrypto DEFAULT;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final Map<ByteBuffer, Boolean> verified = Collections.synchronizedMap(
+            new LinkedHashMap<ByteBuffer, Boolean>(VERIFIED_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                    return size() > VERIFIED_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Create a pool with its own threads
+     * @param parallelism Number of worker threads
+     */
+    public BatchCrypto(int parallelism) {
+        this.parallelism = Math.max(parallelism, 1);
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(this.parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "batch-crypto-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the shared pool, sized to the number of cores
+     * @return The default instance
+     */
+    public static BatchCrypto getDefault() {
+        if (DEFAULT == null) {
+            synchronized (BatchCrypto.class) {
+                if (DEFAULT == null) {
+                    DEFAULT = new BatchCrypto(Runtime.getRuntime().availableProcessors());
+                }
+            }
+        }
+        return DEFAULT;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Verify a Dilithium signature, reusing the result of an earlier identical check
+     * @param publicKey The signer's public key
+     * @param message The signed message
+     * @param signature The signature
+     * @return true if the signature is valid
+     */
+    public boolean verify(byte[] publicKey, byte[] message, byte[] signature) {
+        if (publicKey == null || message == null || signature == null) {
+            return false;
+        }
+        ByteBuffer key = verificationKey(publicKey, message, signature);
+        Boolean cached = key != null ? verified.get(key) : null;
+        if (cached != null) {
+            return cached;
+        }
+        boolean valid = PQCProvider.verify(publicKey, message, signature);
+        if (key != null) {
+            verified.put(key, valid);
+        }
+        return valid;
+    }
+
+    /**
+     * Verify a batch of Dilithium signatures across the pool
+     * @param signed The signed messages
+     * @return One result per message, in input order
+     */
+    public boolean[] verifyAll(@NonNull List<SignedMessage> signed) {
+        List<Boolean> results = runAll(signed,
+                item -> verify(item.publicKey, item.message, item.signature));
+        boolean[] valid = new boolean[results.size()];
+        for (int i = 0; i < valid.length; i++) {
+            valid[i] = Boolean.TRUE.equals(results.get(i));
+        }
+        return valid;
+    }
+
+    /**
+     * Run a task over every input across the pool
+     * @return One result per input, in input order, with null where the task failed
+     */
+    <I, O> List<O> runAll(List<I> inputs, Task<I, O> task) {
+        int count = inputs.size();
+        Object[] results = new Object[count];
+        int chunks = Math.min(parallelism, count / MIN_PARALLEL_BATCH);
+        if (chunks <= 1) {
+            runChunk(inputs, 0, count, task, results);
+            return toList(results);
+        }
+
+        int chunkSize = (count + chunks - 1) / chunks;
+        List<Callable<Void>> work = new ArrayList<>(chunks);
+        for (int start = 0; start < count; start += chunkSize) {
+            int from = start;
+            int to = Math.min(start + chunkSize, count);
+            work.add(() -> {
+                runChunk(inputs, from, to, task, results);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(work)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while waiting for a crypto batch");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Crypto batch failed", e);
+        }
+        return toList(results);
+    }
+
+    private static <I, O> void runChunk(List<I> inputs, int from, int to, Task<I, O> task, Object[] results) {
+        for (int i = from; i < to; i++) {
+            try {
+                results[i] = task.run(inputs.get(i));
+            } catch (GeneralSecurityException e) {
+                // A bad item fails on its own; the rest of the batch goes on
+                results[i] = null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <O> List<O> toList(Object[] results) {
+        return (List<O>) Arrays.asList(results);
+    }
+
+    private static ByteBuffer verificationKey(byte[] publicKey, byte[] message, byte[] signature) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // Length prefixes keep the three fields from running into each other
+            digest.update(ByteBuffer.allocate(12)
+                    .putInt(publicKey.length).putInt(message.length).putInt(signature.length).array());
+            digest.update(publicKey);
+            digest.update(message);
+            digest.update(signature);
+            return ByteBuffer.wrap(digest.digest());
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Cannot hash verification input", e);
+            return null;
+        }
+    }
+
+    interface Task<I, O> {
+        O run(I input) throws GeneralSecurityException;
+    }
+
+    /**
+     * A message with its Dilithium signature and the signer's public key
+     */
+    public static final class SignedMessage {
+        final byte[] publicKey;
+        final byte[] message;
+        final byte[] signature;
+
+        public SignedMessage(byte[] publicKey, byte[] message, byte[] signature) {
+            this.publicKey = publicKey;
+            this.message = message;
+            this.signature = signature;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.nekkochan.onyxchat.crypto;
+
+import androidx.annotation.NonNull;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.SecretWithEncapsulation;
+import org.bouncycastle.pqc.crypto.crystals.dilithium.DilithiumKeyGenerationParameters;
+import org.bouncycastle.pqc.crypto.crystals.dilithium.DilithiumKeyPairGenerator;
+import org.bouncycastle.pqc.crypto.crystals.dilithium.DilithiumParameters;
+import org.bouncycastle.pqc.crypto.crystals.dilithium.DilithiumPrivateKeyParameters;
+import org.bouncycastle.pqc.crypto.crystals.dilithium.DilithiumPublicKeyParameters;
+import org.bouncycastle.pqc.crypto.crystals.dilithium.DilithiumSigner;
+import org.bouncycastle.pqc.crypto.crystals.kyber.KyberKEMExtractor;
+import org.bouncycastle.pqc.crypto.crystals.kyber.KyberKEMGenerator;
+import org.bouncycastle.pqc.crypto.crystals.kyber.KyberKeyGenerationParameters;
+import org.bouncycastle.pqc.crypto.crystals.kyber.KyberKeyPairGenerator;
+import org.bouncycastle.pqc.crypto.crystals.kyber.KyberParameters;
+import org.bouncycastle.pqc.crypto.crystals.kyber.KyberPrivateKeyParameters;
+import org.bouncycastle.pqc.crypto.crystals.kyber.KyberPublicKeyParameters;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Pure-Java {@link PqcBackend} using the BouncyCastle lightweight Kyber and Dilithium API.
+ * <p>
+ * Has no Android or JNI dependencies, so it also runs in local unit tests on a plain JVM.
+ */
+public final class BouncyCastlePqcBackend implements PqcBackend {
+    // Raw key lengths per variant, indexed by variant - 1
+    private static final int[] KYBER_PUBLIC_KEY_LENGTHS = {800, 1184, 1568};
+    private static final int[] KYBER_PRIVATE_KEY_LENGTHS = {1632, 2400, 3168};
+    private static final int[] DILITHIUM_PUBLIC_KEY_LENGTHS = {1312, 1952, 2592};
+    // Dilithium round 3.1 encodings with a 64-byte tr
+    private static final int[] DILITHIUM_PRIVATE_KEY_LENGTHS = {2560, 4032, 4896};
+    private static final KyberParameters[] KYBER_PARAMETERS = {
+            KyberParameters.kyber512, KyberParameters.kyber768, KyberParameters.kyber1024};
+    private static final DilithiumParameters[] DILITHIUM_PARAMETERS = {
+            DilithiumParameters.dilithium2, DilithiumParameters.dilithium3, DilithiumParameters.dilithium5};
+
+    private final SecureRandom random;
+
+    public BouncyCastlePqcBackend() {
+        this(new SecureRandom());
+    }
+
+    /**
+     * Create a backend with a specific randomness source, e.g. a deterministic one for known-answer tests
+     * @param random The randomness source for key generation, encapsulation and signing
+     */
+    public BouncyCastlePqcBackend(@NonNull SecureRandom random) {
+        this.random = random;
+    }
+
+    @Override
+    public String getName() {
+        return "bouncycastle";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public PQCProvider.KyberKeyPair generateKyberKeyPair(int variant) throws GeneralSecurityException {
+        KyberKeyPairGenerator generator = new KyberKeyPairGenerator();
+        generator.init(new KyberKeyGenerationParameters(random, kyberParameters(variant)));
+        AsymmetricCipherKeyPair keyPair = generator.generateKeyPair();
+        return new PQCProvider.KyberKeyPair(
+                ((KyberPublicKeyParameters) keyPair.getPublic()).getEncoded(),
+                ((KyberPrivateKeyParameters) keyPair.getPrivate()).getEncoded());
+    }
+
+    @Override
+    public PQCProvider.KyberEncapsulationResult encapsulate(byte[] publicKey) throws GeneralSecurityException {
+        KyberParameters parameters = kyberParameters(indexOf(KYBER_PUBLIC_KEY_LENGTHS, publicKey, "Kyber public key") + 1);
+        try {
+            SecretWithEncapsulation result = new KyberKEMGenerator(random)
+                    .generateEncapsulated(new KyberPublicKeyParameters(parameters, publicKey));
+            return new PQCProvider.KyberEncapsulationResult(result.getEncapsulation(), result.getSecret());
+        } catch (RuntimeException e) {
+            throw new GeneralSecurityException("Kyber encapsulation failed", e);
+        }
+    }
+
+    @Override
+    public byte[] decapsulate(byte[] privateKey, byte[] ciphertext) throws GeneralSecurityException {
+        KyberParameters parameters = kyberParameters(indexOf(KYBER_PRIVATE_KEY_LENGTHS, privateKey, "Kyber private key") + 1);
+        try {
+            KyberKEMExtractor extractor = new KyberKEMExtractor(new KyberPrivateKeyParameters(parameters, privateKey));
+            if (ciphertext == null || ciphertext.length != extractor.getEncapsulationLength()) {
+                throw new GeneralSecurityException("Invalid Kyber ciphertext length");
+            }
+            return extractor.extractSecret(ciphertext);
+        } catch (RuntimeException e) {
+            throw new GeneralSecurityException("Kyber decapsulation failed", e);
+        }
+    }
+
+    @Override
+    public PQCProvider.DilithiumKeyPair generateDilithiumKeyPair(int variant) throws GeneralSecurityException {
+        DilithiumKeyPairGenerator generator = new DilithiumKeyPairGenerator();
+        generator.init(new DilithiumKeyGenerationParameters(random, dilithiumParameters(variant)));
+        AsymmetricCipherKeyPair keyPair = generator.generateKeyPair();
+        return new PQCProvider.DilithiumKeyPair(
+                ((DilithiumPublicKeyParameters) keyPair.getPublic()).getEncoded(),
+                ((DilithiumPrivateKeyParameters) keyPair.getPrivate()).getEncoded());
+    }
+
+    @Override
+    public byte[] sign(byte[] privateKey, byte[] message) throws GeneralSecurityException {
+        DilithiumParameters parameters = dilithiumParameters(
+                indexOf(DILITHIUM_PRIVATE_KEY_LENGTHS, privateKey, "Dilithium private key") + 1);
+        try {
+            DilithiumSigner signer = new DilithiumSigner();
+            signer.init(true, new DilithiumPrivateKeyParameters(parameters, privateKey, null));
+            return signer.generateSignature(message);
+        } catch (RuntimeException e) {
+            throw new GeneralSecurityException("Dilithium signing failed", e);
+        }
+    }
+
+    @Override
+    public boolean verify(byte[] publicKey, byte[] message, byte[] signature) throws GeneralSecurityException {
+        DilithiumParameters parameters = dilithiumParameters(
+                indexOf(DILITHIUM_PUBLIC_KEY_LENGTHS, publicKey, "Dilithium public key") + 1);
+        try {
+            DilithiumSigner verifier = new DilithiumSigner();
+            verifier.init(false, new DilithiumPublicKeyParameters(parameters, publicKey));
+            return verifier.verifySignature(message, signature);
+        } catch (RuntimeException e) {
+            // Malformed signatures are rejected rather than reported as errors
+            return false;
+        }
+    }
+
+    private static KyberParameters kyberParameters(int variant) throws GeneralSecurityException {
+        if (variant < PQCProvider.KYBER_512 || variant > PQCProvider.KYBER_1024) {
+            throw new GeneralSecurityException("Invalid Kyber variant: " + variant);
+        }
+        return KYBER_PARAMETERS[variant - 1];
+    }
+
+    private static DilithiumParameters dilithiumParameters(int variant) throws GeneralSecurityException {
+        if (variant < PQCProvider.DILITHIUM_2 || variant > PQCProvider.DILITHIUM_5) {
+            throw new GeneralSecurityException("Invalid Dilithium variant: " + variant);
+        }
+        return DILITHIUM_PARAMETERS[variant - 1];
+    }
+
+    private static int indexOf(int[] lengths, byte[] key, String name) throws GeneralSecurityException {
+        if (key != null) {
+            for (int i = 0; i < lengths.length; i++) {
+                if (lengths[i] == key.length) {
+                    return i;
+                }
+            }
+        }
+        throw new GeneralSecurityException("Invalid " + name + " length");
+    }
+}
@@ -0,0 +1,112 @@
+package com.nekkochan.onyxchat.crypto;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct {@link ByteBuffer}s for the direct buffer crypto path.
+ * <p>
+ * Buffers are bucketed by power-of-two capacity from {@link #MIN_CAPACITY} to
+ * {@link #MAX_CAPACITY}; larger requests are allocated on demand and not retained.
+ * Released buffers are zeroed before they go back into the pool because they
+ * usually held plaintext or key material.
+ */
+public final class BufferPool {
+    static final int MIN_CAPACITY = 256;
+    static final int MAX_CAPACITY = 1024 * 1024;
+    private static final int MAX_PER_BUCKET = 16;
+
+    private static final BufferPool DEFAULT = new BufferPool();
+
+    private final ArrayDeque<ByteBuffer>[] buckets;
+
+    @SuppressWarnings("unchecked")
+    BufferPool() {
+        int count = Integer.numberOfTrailingZeros(MAX_CAPACITY) - Integer.numberOfTrailingZeros(MIN_CAPACITY) + 1;
+        buckets = new ArrayDeque[count];
+        for (int i = 0; i < count; i++) {
+            buckets[i] = new ArrayDeque<>(MAX_PER_BUCKET);
+        }
+    }
+
+    /**
+     * Get the shared pool
+     * @return The default pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Take a cleared direct buffer from the pool, allocating one if the bucket is empty
+     * @param minCapacity The minimum capacity required
+     * @return A direct buffer with position 0 and limit equal to its capacity
+     */
+    @NonNull
+    public ByteBuffer acquire(int minCapacity) {
+        int bucket = bucketFor(minCapacity);
+        if (bucket < 0) {
+            return ByteBuffer.allocateDirect(minCapacity);
+        }
+        ArrayDeque<ByteBuffer> queue = buckets[bucket];
+        ByteBuffer buffer;
+        synchronized (queue) {
+            buffer = queue.pollFirst();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(MIN_CAPACITY << bucket);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Zero a buffer and return it to the pool. Buffers that were not handed out
+     * by {@link #acquire(int)} or whose bucket is full are dropped.
+     * @param buffer The buffer to release
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        int bucket = bucketFor(capacity);
+        if (bucket < 0 || (MIN_CAPACITY << bucket) != capacity) {
+            return;
+        }
+        wipe(buffer);
+        ArrayDeque<ByteBuffer> queue = buckets[bucket];
+        synchronized (queue) {
+            if (queue.size() < MAX_PER_BUCKET) {
+                queue.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Overwrite the whole buffer with zeros and clear it
+     * @param buffer The buffer to wipe
+     */
+    static void wipe(ByteBuffer buffer) {
+        // Absolute writes are bounded by the limit, not the capacity
+        buffer.clear();
+        int capacity = buffer.capacity();
+        int i = 0;
+        for (; i + 8 <= capacity; i += 8) {
+            buffer.putLong(i, 0L);
+        }
+        for (; i < capacity; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    private static int bucketFor(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            return -1;
+        }
+        int size = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    }
+}
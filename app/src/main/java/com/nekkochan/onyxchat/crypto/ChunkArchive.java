@@ -0,0 +1,584 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted, content-addressed chunk store for on-device backups.
+ * <p>
+ * Files are cut into {@link #CHUNK_SIZE} chunks. A chunk is named by an HMAC of its plaintext
+ * and sealed with AES-256-GCM under a random nonce, with its name as associated data, so a chunk
+ * cannot be swapped for another one. A chunk that is already in the archive is not written
+ * again, which makes every backup after the first one incremental. Chunk boundaries are aligned
+ * to SQLite pages, so the pages a database changed since the last backup map to new chunks and
+ * the rest are shared.
+ * <p>
+ * A backup is recorded as an encrypted snapshot listing the chunks of every file. Writing and
+ * reading stream a bounded group of chunks at a time, and the group is hashed and sealed across
+ * the {@link BatchCrypto} pool.
+ * <pre>
+ *   root/salt                         random HKDF salt, plaintext
+ *   root/chunks/ab/abcdef...          version, nonce, sealed chunk
+ *   root/snapshots/&lt;createdAt&gt;.snap   version, nonce, sealed snapshot
+ * </pre>
+ */
+public final class ChunkArchive {
+    private static final String TAG = "ChunkArchive";
+
+    public static final int KEY_SIZE = 32;
+    // A multiple of every SQLite page size
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    // Chunks hashed and sealed per group; bounds memory to GROUP_CHUNKS * CHUNK_SIZE
+    private static final int GROUP_CHUNKS = 32;
+    private static final byte VERSION = 1;
+    private static final int FORMAT = 1;
+    private static final int SALT_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_BITS = 128;
+    private static final int ID_SIZE = 32;
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
+    private static final byte[] INFO_IDS = "OnyxChat backup chunk ids".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INFO_CHUNKS = "OnyxChat backup chunks".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INFO_SNAPSHOTS = "OnyxChat backup snapshots".getBytes(StandardCharsets.UTF_8);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException("AES-GCM not available", e);
+        }
+    });
+
+    private final File chunkDir;
+    private final File snapshotDir;
+    private final SecretKeySpec chunkKey;
+    private final SecretKeySpec snapshotKey;
+    private final ThreadLocal<Mac> idMac;
+    private final BatchCrypto batchCrypto;
+
+    private long chunksWritten;
+    private long chunksReused;
+    private long bytesWritten;
+
+    /**
+     * Open an archive, creating it if the directory is empty
+     * @param root Archive directory
+     * @param masterKey 32-byte backup key
+     * @throws IOException If the directory cannot be created or read
+     */
+    public ChunkArchive(@NonNull File root, @NonNull byte[] masterKey) throws IOException, GeneralSecurityException {
+        this(root, masterKey, BatchCrypto.getDefault());
+    }
+
+    ChunkArchive(File root, byte[] masterKey, BatchCrypto batchCrypto) throws IOException, GeneralSecurityException {
+        if (masterKey.length != KEY_SIZE) {
+            throw new IllegalArgumentException("Backup key must be " + KEY_SIZE + " bytes");
+        }
+        chunkDir = new File(root, "chunks");
+        snapshotDir = new File(root, "snapshots");
+        if (!chunkDir.isDirectory() && !chunkDir.mkdirs() || !snapshotDir.isDirectory() && !snapshotDir.mkdirs()) {
+            throw new IOException("Cannot create backup archive in " + root);
+        }
+        byte[] salt = readOrCreateSalt(new File(root, "salt"));
+        byte[] prk = Hkdf.extract(salt, masterKey);
+        byte[] idKey = Hkdf.expand(prk, INFO_IDS, KEY_SIZE);
+        chunkKey = new SecretKeySpec(Hkdf.expand(prk, INFO_CHUNKS, KEY_SIZE), "AES");
+        snapshotKey = new SecretKeySpec(Hkdf.expand(prk, INFO_SNAPSHOTS, KEY_SIZE), "AES");
+        Arrays.fill(prk, (byte) 0);
+        idMac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(idKey, "HmacSHA256"));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 not available", e);
+            }
+        });
+        this.batchCrypto = batchCrypto;
+    }
+
+    /**
+     * Store a file's contents, writing only chunks the archive does not have yet
+     * @param path Name the file is restored under, relative to its backup root
+     * @param in Contents, read to the end but not closed
+     * @param lastModified Modification time used to skip unchanged files next time
+     * @return The entry to add to the snapshot
+     */
+    public Entry writeEntry(@NonNull String path, @NonNull InputStream in, long lastModified) throws IOException {
+        List<String> chunkIds = new ArrayList<>();
+        Set<String> sealedInGroup = new HashSet<>();
+        List<PendingChunk> group = new ArrayList<>(GROUP_CHUNKS);
+        for (int i = 0; i < GROUP_CHUNKS; i++) {
+            group.add(new PendingChunk());
+        }
+        long size = 0;
+        try {
+            while (true) {
+                int filled = 0;
+                while (filled < GROUP_CHUNKS) {
+                    PendingChunk chunk = group.get(filled);
+                    chunk.length = readFully(in, chunk.data);
+                    if (chunk.length == 0) {
+                        break;
+                    }
+                    filled++;
+                    size += chunk.length;
+                    if (chunk.length < CHUNK_SIZE) {
+                        break;
+                    }
+                }
+                if (filled == 0) {
+                    break;
+                }
+                List<SealedChunk> sealed = batchCrypto.runAll(group.subList(0, filled), this::seal);
+                sealedInGroup.clear();
+                for (int i = 0; i < filled; i++) {
+                    SealedChunk result = sealed.get(i);
+                    if (result == null) {
+                        throw new IOException("Could not seal chunk " + chunkIds.size() + " of " + path);
+                    }
+                    if (result.sealed != null && sealedInGroup.add(result.id)) {
+                        writeAtomically(chunkFile(result.id), result.sealed);
+                        chunksWritten++;
+                        bytesWritten += result.sealed.length;
+                    } else {
+                        chunksReused++;
+                    }
+                    chunkIds.add(result.id);
+                }
+                if (group.get(filled - 1).length < CHUNK_SIZE) {
+                    break;
+                }
+            }
+        } finally {
+            for (PendingChunk chunk : group) {
+                Arrays.fill(chunk.data, (byte) 0);
+            }
+        }
+        return new Entry(path, size, lastModified, chunkIds);
+    }
+
+    /**
+     * Write a stored file's contents one chunk at a time
+     * @param entry Entry from a snapshot
+     * @param out Stream receiving the contents; not closed
+     * @throws IOException If a chunk is missing or fails authentication
+     */
+    public void readEntry(@NonNull Entry entry, @NonNull OutputStream out) throws IOException {
+        long remaining = entry.size;
+        for (String id : entry.chunkIds) {
+            byte[] plaintext = open(chunkKey, readFile(chunkFile(id)), chunkAad(id), "chunk " + id);
+            if (plaintext.length > remaining) {
+                throw new IOException("Chunk " + id + " is longer than " + entry.path);
+            }
+            out.write(plaintext);
+            remaining -= plaintext.length;
+            Arrays.fill(plaintext, (byte) 0);
+        }
+        if (remaining != 0) {
+            throw new IOException("Chunks of " + entry.path + " are shorter than its size");
+        }
+    }
+
+    /**
+     * Record a backup. Written last, so an interrupted backup leaves no snapshot behind.
+     * @param snapshot Entries and properties of the backup
+     */
+    public void writeSnapshot(@NonNull Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(FORMAT);
+        out.writeLong(snapshot.createdAt);
+        out.writeInt(snapshot.properties.size());
+        for (Map.Entry<String, String> property : snapshot.properties.entrySet()) {
+            out.writeUTF(property.getKey());
+            out.writeUTF(property.getValue());
+        }
+        out.writeInt(snapshot.entries.size());
+        for (Entry entry : snapshot.entries) {
+            out.writeUTF(entry.path);
+            out.writeLong(entry.size);
+            out.writeLong(entry.lastModified);
+            out.writeInt(entry.chunkIds.size());
+            for (String id : entry.chunkIds) {
+                out.write(fromHex(id));
+            }
+        }
+        out.flush();
+        byte[] plaintext = buffer.toByteArray();
+        try {
+            writeAtomically(snapshotFile(snapshot.createdAt),
+                    seal(snapshotKey, plaintext, plaintext.length, snapshotAad(snapshot.createdAt)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not seal snapshot", e);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * Read a recorded backup
+     * @param createdAt Snapshot time from {@link #listSnapshots()}
+     * @return The snapshot
+     * @throws IOException If the snapshot is missing, corrupt or sealed with another key
+     */
+    public Snapshot readSnapshot(long createdAt) throws IOException {
+        byte[] plaintext = open(snapshotKey, readFile(snapshotFile(createdAt)), snapshotAad(createdAt),
+                "snapshot " + createdAt);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext))) {
+            if (in.readInt() != FORMAT || in.readLong() != createdAt) {
+                throw new IOException("Unsupported snapshot " + createdAt);
+            }
+            Map<String, String> properties = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                properties.put(in.readUTF(), in.readUTF());
+            }
+            int entryCount = in.readInt();
+            List<Entry> entries = new ArrayList<>(entryCount);
+            byte[] id = new byte[ID_SIZE];
+            for (int i = 0; i < entryCount; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                int chunkCount = in.readInt();
+                List<String> chunkIds = new ArrayList<>(chunkCount);
+                for (int c = 0; c < chunkCount; c++) {
+                    in.readFully(id);
+                    chunkIds.add(toHex(id));
+                }
+                entries.add(new Entry(path, size, lastModified, chunkIds));
+            }
+            return new Snapshot(createdAt, properties, entries);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * List recorded backups
+     * @return Snapshot times, oldest first
+     */
+    public List<Long> listSnapshots() {
+        List<Long> snapshots = new ArrayList<>();
+        File[] files = snapshotDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SNAPSHOT_SUFFIX)) {
+                    try {
+                        snapshots.add(Long.parseLong(name.substring(0, name.length() - SNAPSHOT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Ignoring unexpected file " + name);
+                    }
+                }
+            }
+        }
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    /**
+     * Get the most recent backup
+     * @return The newest snapshot, or null if there is none
+     */
+    @Nullable
+    public Snapshot latestSnapshot() throws IOException {
+        List<Long> snapshots = listSnapshots();
+        return snapshots.isEmpty() ? null : readSnapshot(snapshots.get(snapshots.size() - 1));
+    }
+
+    /**
+     * Delete all but the newest snapshots and every chunk none of the kept ones uses
+     * @param keep Number of snapshots to keep, at least 1
+     * @return Number of chunks deleted
+     */
+    public int prune(int keep) throws IOException {
+        List<Long> snapshots = listSnapshots();
+        Set<String> live = new HashSet<>();
+        for (int i = Math.max(0, snapshots.size() - Math.max(keep, 1)); i < snapshots.size(); i++) {
+            for (Entry entry : readSnapshot(snapshots.get(i)).entries) {
+                live.addAll(entry.chunkIds);
+            }
+        }
+        for (int i = 0; i < snapshots.size() - Math.max(keep, 1); i++) {
+            if (!snapshotFile(snapshots.get(i)).delete()) {
+                Log.w(TAG, "Could not delete snapshot " + snapshots.get(i));
+            }
+        }
+        int deleted = 0;
+        File[] shards = chunkDir.listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] chunks = shard.listFiles();
+                if (chunks == null) {
+                    continue;
+                }
+                for (File chunk : chunks) {
+                    if (!live.contains(chunk.getName()) && chunk.delete()) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    public long getChunksWritten() {
+        return chunksWritten;
+    }
+
+    public long getChunksReused() {
+        return chunksReused;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private SealedChunk seal(PendingChunk chunk) throws GeneralSecurityException {
+        Mac mac = idMac.get();
+        mac.update(chunk.data, 0, chunk.length);
+        String id = toHex(mac.doFinal());
+        if (chunkFile(id).exists()) {
+            return new SealedChunk(id, null);
+        }
+        return new SealedChunk(id, seal(chunkKey, chunk.data, chunk.length, chunkAad(id)));
+    }
+
+    private static byte[] seal(SecretKeySpec key, byte[] plaintext, int length, byte[] aad)
+            throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(aad);
+        byte[] sealed = new byte[1 + NONCE_SIZE + cipher.getOutputSize(length)];
+        sealed[0] = VERSION;
+        System.arraycopy(nonce, 0, sealed, 1, NONCE_SIZE);
+        cipher.doFinal(plaintext, 0, length, sealed, 1 + NONCE_SIZE);
+        return sealed;
+    }
+
+    private static byte[] open(SecretKeySpec key, byte[] sealed, byte[] aad, String what) throws IOException {
+        if (sealed.length < 1 + NONCE_SIZE || sealed[0] != VERSION) {
+            throw new IOException("Unsupported " + what);
+        }
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 1, NONCE_SIZE));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(sealed, 1 + NONCE_SIZE, sealed.length - 1 - NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Backup " + what + " failed authentication", e);
+        }
+    }
+
+    private File chunkFile(String id) {
+        return new File(new File(chunkDir, id.substring(0, 2)), id);
+    }
+
+    private File snapshotFile(long createdAt) {
+        return new File(snapshotDir, createdAt + SNAPSHOT_SUFFIX);
+    }
+
+    private static byte[] chunkAad(String id) {
+        return ("chunk:" + id).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] snapshotAad(long createdAt) {
+        return ("snapshot:" + createdAt).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] readOrCreateSalt(File file) throws IOException {
+        if (file.exists()) {
+            byte[] salt = readFile(file);
+            if (salt.length != SALT_SIZE) {
+                throw new IOException("Corrupt backup archive salt");
+            }
+            return salt;
+        }
+        byte[] salt = new byte[SALT_SIZE];
+        RANDOM.nextBytes(salt);
+        writeAtomically(file, salt);
+        return salt;
+    }
+
+    private static void writeAtomically(File file, byte[] data) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File temp = new File(parent, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        long length = file.length();
+        if (!file.isFile() || length > Integer.MAX_VALUE) {
+            throw new IOException("Missing backup file " + file.getName());
+        }
+        byte[] data = new byte[(int) length];
+        try (InputStream in = new FileInputStream(file)) {
+            if (readFully(in, data) != data.length) {
+                throw new IOException("Backup file " + file.getName() + " changed while reading");
+            }
+        }
+        return data;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int count = in.read(buffer, total, buffer.length - total);
+            if (count == -1) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static final class PendingChunk {
+        final byte[] data = new byte[CHUNK_SIZE];
+        int length;
+    }
+
+    private static final class SealedChunk {
+        final String id;
+        // Null when the archive already has the chunk
+        final byte[] sealed;
+
+        SealedChunk(String id, byte[] sealed) {
+            this.id = id;
+            this.sealed = sealed;
+        }
+    }
+
+    /**
+     * A stored file: its size, modification time and chunks in order
+     */
+    public static final class Entry {
+        final String path;
+        final long size;
+        final long lastModified;
+        final List<String> chunkIds;
+
+        Entry(String path, long size, long lastModified, List<String> chunkIds) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.chunkIds = Collections.unmodifiableList(chunkIds);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * One backup: the entries it contains and properties such as the schema version
+     */
+    public static final class Snapshot {
+        final long createdAt;
+        final Map<String, String> properties;
+        final List<Entry> entries;
+
+        public Snapshot(long createdAt, @NonNull Map<String, String> properties, @NonNull List<Entry> entries) {
+            this.createdAt = createdAt;
+            this.properties = Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+            this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Find an entry by path
+         * @return The entry, or null if the snapshot does not contain the path
+         */
+        @Nullable
+        public Entry findEntry(@NonNull String path) {
+            for (Entry entry : entries) {
+                if (entry.path.equals(path)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+}
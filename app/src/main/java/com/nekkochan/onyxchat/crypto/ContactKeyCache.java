@@ -0,0 +1,232 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.nekkochan.onyxchat.data.AppDatabase;
+import com.nekkochan.onyxchat.data.ContactKey;
+import com.nekkochan.onyxchat.data.ContactKeyDao;
+import com.nekkochan.onyxchat.network.ApiClient;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory LRU of decoded contact key bundles, backed by the {@code contact_keys} table.
+ * <p>
+ * A bundle's signed prekey signature is verified and its fingerprint computed once, when the
+ * bundle is first fetched; later lookups return the decoded keys directly. Entries are dropped
+ * when the server announces a key change and refreshed after {@link #MAX_AGE_MS} in case an
+ * announcement was missed. The most recent conversations are loaded at startup.
+ */
+public final class ContactKeyCache {
+    private static final String TAG = "ContactKeyCache";
+
+    // Decoded bundles kept in memory
+    private static final int MAX_ENTRIES = 64;
+    // Bundles loaded at startup
+    private static final int WARM_UP_COUNT = 20;
+    // Bundles older than this are fetched again before a new session uses them
+    static final long MAX_AGE_MS = TimeUnit.HOURS.toMillis(24);
+
+    private static volatile ContactKeyCache INSTANCE;
+
+    private final ContactKeyDao contactKeyDao;
+    private final ApiClient apiClient;
+    private final Map<String, ContactKeys> entries = new LinkedHashMap<String, ContactKeys>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ContactKeys> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private ContactKeyCache(Context context) {
+        Context appContext = context.getApplicationContext();
+        contactKeyDao = AppDatabase.getInstance(appContext).contactKeyDao();
+        apiClient = ApiClient.getInstance(appContext);
+    }
+
+    /**
+     * Get the contact key cache
+     * @param context Any context
+     * @return The singleton instance
+     */
+    public static ContactKeyCache getInstance(@NonNull Context context) {
+        if (INSTANCE == null) {
+            synchronized (ContactKeyCache.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new ContactKeyCache(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Get a contact's verified keys, from memory, the database or the server in that order.
+     * Blocks and may hit the network, so call it from a background thread.
+     * @param ownerId Server user ID of the local user
+     * @param contactId Server user ID of the contact
+     * @param maxAgeMs Refetch bundles fetched longer ago than this
+     * @return The contact's keys
+     * @throws GeneralSecurityException If the fetched bundle's signature is invalid
+     * @throws IOException If the bundle has to be fetched and the request fails
+     */
+    public ContactKeys getKeys(@NonNull String ownerId, @NonNull String contactId, long maxAgeMs)
+            throws GeneralSecurityException, IOException {
+        String cacheKey = cacheKey(ownerId, contactId);
+        long now = System.currentTimeMillis();
+        ContactKeys keys;
+        synchronized (entries) {
+            keys = entries.get(cacheKey);
+        }
+        if (keys == null) {
+            ContactKey stored = contactKeyDao.getContactKey(ownerId, contactId);
+            if (stored != null && stored.getVerifiedAt() > 0) {
+                keys = remember(cacheKey, new ContactKeys(stored));
+            }
+        }
+        if (keys != null && now - keys.fetchedAt <= maxAgeMs) {
+            return keys;
+        }
+        return fetch(ownerId, contactId, keys);
+    }
+
+    /**
+     * Drop a contact's keys after the server announced new ones. Always drops: the
+     * announcement may change only the identity key, which the signed prekey ID does not reflect.
+     * @param ownerId Server user ID of the local user
+     * @param contactId Server user ID of the contact
+     */
+    public void invalidate(@NonNull String ownerId, @NonNull String contactId) {
+        synchronized (entries) {
+            entries.remove(cacheKey(ownerId, contactId));
+        }
+        contactKeyDao.delete(ownerId, contactId);
+        Log.d(TAG, "Dropped cached keys for " + contactId);
+    }
+
+    /**
+     * Load the keys of the most recent conversations into memory. Startup initializer work.
+     * @param ownerId Server user ID of the local user
+     */
+    public void warmUp(@NonNull String ownerId) {
+        List<ContactKey> recent = contactKeyDao.getRecentContactKeys(ownerId, WARM_UP_COUNT);
+        int loaded = 0;
+        for (ContactKey stored : recent) {
+            if (stored.getVerifiedAt() > 0) {
+                remember(cacheKey(ownerId, stored.getContactId()), new ContactKeys(stored));
+                loaded++;
+            }
+        }
+        Log.d(TAG, "Warmed contact key cache with " + loaded + " bundles");
+    }
+
+    private ContactKeys fetch(String ownerId, String contactId, ContactKeys previous)
+            throws GeneralSecurityException, IOException {
+        ApiClient.KeyBundle bundle = apiClient.getKeyBundle(contactId);
+        ContactKey stored = new ContactKey();
+        stored.setOwnerId(ownerId);
+        stored.setContactId(contactId);
+        stored.setIdentityKey(decode(bundle.identityKey));
+        stored.setSignedPrekeyId(bundle.signedPrekeyId);
+        stored.setSignedPrekey(decode(bundle.signedPrekey));
+        stored.setSignedPrekeySignature(decode(bundle.signedPrekeySignature));
+        stored.setFetchedAt(System.currentTimeMillis());
+
+        if (previous != null && previous.signedPrekeyId == stored.getSignedPrekeyId()
+                && Arrays.equals(previous.identityKey, stored.getIdentityKey())
+                && Arrays.equals(previous.signedPrekey, stored.getSignedPrekey())) {
+            // Unchanged bundle: keep the earlier verification and fingerprint
+            stored.setFingerprint(previous.fingerprint);
+            stored.setVerifiedAt(previous.verifiedAt);
+        } else {
+            if (!BatchCrypto.getDefault().verify(stored.getIdentityKey(), stored.getSignedPrekey(),
+                    stored.getSignedPrekeySignature())) {
+                throw new GeneralSecurityException("Invalid signed prekey signature for " + contactId);
+            }
+            stored.setFingerprint(fingerprint(stored.getIdentityKey()));
+            stored.setVerifiedAt(stored.getFetchedAt());
+            if (previous != null && !previous.fingerprint.equals(stored.getFingerprint())) {
+                Log.w(TAG, "Identity key of " + contactId + " changed from " + previous.fingerprint
+                        + " to " + stored.getFingerprint());
+            }
+        }
+
+        contactKeyDao.insert(stored);
+        return remember(cacheKey(ownerId, contactId), new ContactKeys(stored));
+    }
+
+    private ContactKeys remember(String cacheKey, ContactKeys keys) {
+        synchronized (entries) {
+            entries.put(cacheKey, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Fingerprint shown for manual comparison: SHA-256 of the identity key in hex
+     */
+    static String fingerprint(byte[] identityKey) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(identityKey);
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] decode(String data) throws GeneralSecurityException {
+        if (data == null) {
+            throw new GeneralSecurityException("Missing key material");
+        }
+        try {
+            return Base64.decode(data, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed key material", e);
+        }
+    }
+
+    private static String cacheKey(String ownerId, String contactId) {
+        return ownerId + ":" + contactId;
+    }
+
+    /**
+     * A contact's decoded and verified key bundle
+     */
+    public static final class ContactKeys {
+        final byte[] identityKey;
+        final int signedPrekeyId;
+        final byte[] signedPrekey;
+        final String fingerprint;
+        final long verifiedAt;
+        final long fetchedAt;
+
+        ContactKeys(ContactKey stored) {
+            identityKey = stored.getIdentityKey();
+            signedPrekeyId = stored.getSignedPrekeyId();
+            signedPrekey = stored.getSignedPrekey();
+            fingerprint = stored.getFingerprint();
+            verifiedAt = stored.getVerifiedAt();
+            fetchedAt = stored.getFetchedAt();
+        }
+
+        public int getSignedPrekeyId() {
+            return signedPrekeyId;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+    }
+}
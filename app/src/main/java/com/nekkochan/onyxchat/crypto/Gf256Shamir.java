@@ -0,0 +1,286 @@
+package com.nekkochan.onyxchat.crypto;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Shamir's Secret Sharing over GF(256) with the AES polynomial x^8 + x^4 + x^3 + x + 1,
+ * the field used by the native {@code pqc/shamir} module.
+ * <p>
+ * Every byte of the secret is the constant term of its own random polynomial of degree
+ * {@code threshold - 1}. A share is its x coordinate (1 to 255) followed by the polynomial
+ * values at x, one per secret byte, so shares are the same length as the secret plus one byte
+ * and are interchangeable with the ones {@link SecretSharing} produced before.
+ * <p>
+ * Multiplication by a fixed field element goes through a 256-entry row built from log/exp
+ * tables, so the inner loops are one table lookup and one XOR per byte. The streaming methods
+ * work a block at a time and reuse their buffers, so multi-megabyte secrets such as an
+ * encrypted backup key bundle can be split without holding them in memory.
+ */
+public final class Gf256Shamir {
+    public static final int MAX_SHARES = 255;
+
+    // Bytes processed per block by the streaming methods
+    static final int BLOCK_SIZE = 16 * 1024;
+
+    private static final int POLYNOMIAL = 0x11B;
+
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+
+    static {
+        // 0x03 generates the multiplicative group of this field
+        int value = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) value;
+            EXP[i + 255] = (byte) value;
+            LOG[value] = i;
+            int doubled = value << 1;
+            if ((doubled & 0x100) != 0) {
+                doubled ^= POLYNOMIAL;
+            }
+            value ^= doubled;
+        }
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private Gf256Shamir() {
+    }
+
+    /**
+     * Split a secret held in memory
+     * @param secret The secret to split
+     * @param totalShares Total number of shares to generate
+     * @param threshold Minimum number of shares required to reconstruct
+     * @return Shares in x order; share {@code i} has x coordinate {@code i + 1}
+     */
+    public static byte[][] split(@NonNull byte[] secret, int totalShares, int threshold) {
+        checkParameters(totalShares, threshold);
+        byte[][] shares = new byte[totalShares][secret.length + 1];
+        byte[][] rows = new byte[totalShares][];
+        for (int i = 0; i < totalShares; i++) {
+            shares[i][0] = (byte) (i + 1);
+            rows[i] = multiplicationRow(i + 1);
+        }
+        byte[] coefficients = new byte[Math.min(secret.length, BLOCK_SIZE) * (threshold - 1)];
+        for (int offset = 0; offset < secret.length; offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, secret.length - offset);
+            RANDOM.nextBytes(coefficients);
+            for (int i = 0; i < totalShares; i++) {
+                evaluate(secret, offset, length, coefficients, threshold, rows[i], shares[i], offset + 1);
+            }
+        }
+        Arrays.fill(coefficients, (byte) 0);
+        return shares;
+    }
+
+    /**
+     * Recover a secret held in memory
+     * @param shareIds x coordinate of each share
+     * @param shares Shares in the format produced by {@link #split(byte[], int, int)}
+     * @return The reconstructed secret
+     */
+    public static byte[] recover(@NonNull int[] shareIds, @NonNull byte[][] shares) {
+        byte[][] rows = lagrangeRows(shareIds, shares.length);
+        int length = shares[0].length - 1;
+        if (length < 0) {
+            throw new IllegalArgumentException("Shares must include their x coordinate");
+        }
+        byte[] secret = new byte[length];
+        for (int i = 0; i < shares.length; i++) {
+            if (shares[i].length != length + 1) {
+                throw new IllegalArgumentException("Shares have inconsistent sizes");
+            }
+            accumulate(shares[i], 1, secret, 0, length, rows[i]);
+        }
+        return secret;
+    }
+
+    /**
+     * Split a secret read from a stream. Each share stream receives its x coordinate followed
+     * by one byte per secret byte; none of the streams are closed.
+     * @param secret Stream with the secret, read to its end
+     * @param shares One stream per share; share {@code i} gets x coordinate {@code i + 1}
+     * @param threshold Minimum number of shares required to reconstruct
+     * @return Number of secret bytes split
+     */
+    public static long split(@NonNull InputStream secret, @NonNull OutputStream[] shares, int threshold)
+            throws IOException {
+        int totalShares = shares.length;
+        checkParameters(totalShares, threshold);
+        byte[][] rows = new byte[totalShares][];
+        for (int i = 0; i < totalShares; i++) {
+            rows[i] = multiplicationRow(i + 1);
+            shares[i].write(i + 1);
+        }
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] coefficients = new byte[BLOCK_SIZE * (threshold - 1)];
+        byte[] output = new byte[BLOCK_SIZE];
+        long total = 0;
+        try {
+            int length;
+            while ((length = readBlock(secret, block)) > 0) {
+                RANDOM.nextBytes(coefficients);
+                for (int i = 0; i < totalShares; i++) {
+                    evaluate(block, 0, length, coefficients, threshold, rows[i], output, 0);
+                    shares[i].write(output, 0, length);
+                }
+                total += length;
+            }
+        } finally {
+            Arrays.fill(block, (byte) 0);
+            Arrays.fill(coefficients, (byte) 0);
+        }
+        return total;
+    }
+
+    /**
+     * Recover a secret from share streams, each starting with its x coordinate.
+     * None of the streams are closed.
+     * @param shares At least as many share streams as the threshold used to split
+     * @param secret Stream receiving the reconstructed secret
+     * @return Number of secret bytes recovered
+     */
+    public static long recover(@NonNull InputStream[] shares, @NonNull OutputStream secret) throws IOException {
+        int[] shareIds = new int[shares.length];
+        for (int i = 0; i < shares.length; i++) {
+            shareIds[i] = shares[i].read();
+            if (shareIds[i] == -1) {
+                throw new EOFException("Share " + i + " is empty");
+            }
+        }
+        byte[][] rows = lagrangeRows(shareIds, shares.length);
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] output = new byte[BLOCK_SIZE];
+        long total = 0;
+        try {
+            while (true) {
+                int length = readBlock(shares[0], block);
+                Arrays.fill(output, 0, length, (byte) 0);
+                accumulate(block, 0, output, 0, length, rows[0]);
+                for (int i = 1; i < shares.length; i++) {
+                    if (readBlock(shares[i], block) != length) {
+                        throw new IOException("Shares have inconsistent sizes");
+                    }
+                    accumulate(block, 0, output, 0, length, rows[i]);
+                }
+                if (length == 0) {
+                    break;
+                }
+                secret.write(output, 0, length);
+                total += length;
+            }
+        } finally {
+            Arrays.fill(output, (byte) 0);
+        }
+        return total;
+    }
+
+    private static void checkParameters(int totalShares, int threshold) {
+        if (threshold > totalShares) {
+            throw new IllegalArgumentException("Threshold cannot be greater than total shares");
+        }
+        if (threshold < 2) {
+            throw new IllegalArgumentException("Threshold must be at least 2");
+        }
+        if (totalShares > MAX_SHARES) {
+            throw new IllegalArgumentException("Total shares cannot exceed " + MAX_SHARES);
+        }
+    }
+
+    /**
+     * Write the values at one x of the block's polynomials, using Horner's rule from the
+     * highest coefficient down to the secret byte
+     */
+    private static void evaluate(byte[] secret, int secretOffset, int length, byte[] coefficients,
+                                 int threshold, byte[] row, byte[] output, int outputOffset) {
+        int degree = threshold - 1;
+        int top = (degree - 1) * length;
+        System.arraycopy(coefficients, top, output, outputOffset, length);
+        for (int d = degree - 2; d >= 0; d--) {
+            int base = d * length;
+            for (int p = 0; p < length; p++) {
+                output[outputOffset + p] = (byte) (row[output[outputOffset + p] & 0xFF] ^ coefficients[base + p]);
+            }
+        }
+        for (int p = 0; p < length; p++) {
+            output[outputOffset + p] = (byte) (row[output[outputOffset + p] & 0xFF] ^ secret[secretOffset + p]);
+        }
+    }
+
+    /**
+     * XOR one share's contribution to the secret into the output
+     */
+    private static void accumulate(byte[] share, int shareOffset, byte[] output, int outputOffset,
+                                   int length, byte[] row) {
+        for (int p = 0; p < length; p++) {
+            output[outputOffset + p] ^= row[share[shareOffset + p] & 0xFF];
+        }
+    }
+
+    /**
+     * Multiplication rows for the Lagrange basis coefficients at x = 0. They depend only on
+     * which shares are present, so they are computed once rather than per byte.
+     */
+    private static byte[][] lagrangeRows(int[] shareIds, int shareCount) {
+        if (shareCount < 2) {
+            throw new IllegalArgumentException("At least 2 shares are required");
+        }
+        if (shareIds.length != shareCount) {
+            throw new IllegalArgumentException("Every share needs an ID");
+        }
+        boolean[] seen = new boolean[256];
+        for (int id : shareIds) {
+            if (id < 1 || id > MAX_SHARES) {
+                throw new IllegalArgumentException("Invalid share ID " + id);
+            }
+            if (seen[id]) {
+                throw new IllegalArgumentException("Duplicate share ID " + id);
+            }
+            seen[id] = true;
+        }
+        byte[][] rows = new byte[shareCount][];
+        for (int i = 0; i < shareCount; i++) {
+            // L_i(0) = prod x_j / (x_i - x_j); subtraction is XOR in this field
+            int logCoefficient = 0;
+            for (int j = 0; j < shareCount; j++) {
+                if (i != j) {
+                    logCoefficient += LOG[shareIds[j]] - LOG[shareIds[i] ^ shareIds[j]];
+                }
+            }
+            rows[i] = multiplicationRow(EXP[Math.floorMod(logCoefficient, 255)] & 0xFF);
+        }
+        return rows;
+    }
+
+    /**
+     * Products of every field element with a fixed non-zero element
+     */
+    private static byte[] multiplicationRow(int factor) {
+        byte[] row = new byte[256];
+        int logFactor = LOG[factor];
+        for (int a = 1; a < 256; a++) {
+            row[a] = EXP[LOG[a] + logFactor];
+        }
+        return row;
+    }
+
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int total = 0;
+        while (total < block.length) {
+            int count = in.read(block, total, block.length - total);
+            if (count == -1) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,92 @@
+package com.nekkochan.onyxchat.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HKDF with HMAC-SHA256 (RFC 5869).
+ * Mac instances are kept per thread so key derivation does not hit the provider lookup.
+ */
+public final class Hkdf {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    public static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    });
+
+    private Hkdf() {
+    }
+
+    /**
+     * Derive key material from input keying material
+     * @param salt Optional salt; an all-zero salt is used when null
+     * @param ikm Input keying material
+     * @param info Context and application specific information
+     * @param length Number of bytes to derive, at most 255 * 32
+     * @return The derived key material
+     */
+    public static byte[] derive(byte[] salt, byte[] ikm, byte[] info, int length) throws GeneralSecurityException {
+        return expand(extract(salt, ikm), info, length);
+    }
+
+    /**
+     * HKDF-Extract
+     * @param salt Optional salt; an all-zero salt is used when null
+     * @param ikm Input keying material
+     * @return The pseudorandom key
+     */
+    public static byte[] extract(byte[] salt, byte[] ikm) throws GeneralSecurityException {
+        return hmac(salt != null && salt.length > 0 ? salt : new byte[HASH_LENGTH], ikm);
+    }
+
+    /**
+     * HKDF-Expand
+     * @param prk Pseudorandom key of at least 32 bytes
+     * @param info Context and application specific information
+     * @param length Number of bytes to derive, at most 255 * 32
+     * @return The output keying material
+     */
+    public static byte[] expand(byte[] prk, byte[] info, int length) throws GeneralSecurityException {
+        if (length <= 0 || length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid HKDF output length: " + length);
+        }
+        Mac mac = MAC.get();
+        mac.init(new SecretKeySpec(prk, HMAC_ALGORITHM));
+
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (int counter = 1; offset < length; counter++) {
+            mac.update(block);
+            if (info != null) {
+                mac.update(info);
+            }
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int chunk = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, chunk);
+            offset += chunk;
+        }
+        return output;
+    }
+
+    /**
+     * HMAC-SHA256
+     * @param key The MAC key
+     * @param data The data to authenticate
+     * @return The 32-byte MAC
+     */
+    public static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = MAC.get();
+        mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+        return mac.doFinal(data);
+    }
+}
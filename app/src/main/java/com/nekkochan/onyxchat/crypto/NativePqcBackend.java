@@ -0,0 +1,69 @@
+package com.nekkochan.onyxchat.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * {@link PqcBackend} backed by the {@code pqc-native} JNI library
+ */
+public final class NativePqcBackend implements PqcBackend {
+
+    @Override
+    public String getName() {
+        return "native";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return PQCProvider.isNativeLibraryLoaded();
+    }
+
+    @Override
+    public PQCProvider.KyberKeyPair generateKyberKeyPair(int variant) throws GeneralSecurityException {
+        byte[][] keyPair = PQCProvider.nativeGenerateKyberKeyPair(variant);
+        if (keyPair == null || keyPair.length != 2) {
+            throw new GeneralSecurityException("Native Kyber key generation failed");
+        }
+        return new PQCProvider.KyberKeyPair(keyPair[0], keyPair[1]);
+    }
+
+    @Override
+    public PQCProvider.KyberEncapsulationResult encapsulate(byte[] publicKey) throws GeneralSecurityException {
+        byte[][] result = PQCProvider.nativeEncapsulateKey(publicKey);
+        if (result == null || result.length != 2) {
+            throw new GeneralSecurityException("Native Kyber encapsulation failed");
+        }
+        return new PQCProvider.KyberEncapsulationResult(result[0], result[1]);
+    }
+
+    @Override
+    public byte[] decapsulate(byte[] privateKey, byte[] ciphertext) throws GeneralSecurityException {
+        byte[] secret = PQCProvider.nativeDecapsulateKey(privateKey, ciphertext);
+        if (secret == null || secret.length == 0) {
+            throw new GeneralSecurityException("Native Kyber decapsulation failed");
+        }
+        return secret;
+    }
+
+    @Override
+    public PQCProvider.DilithiumKeyPair generateDilithiumKeyPair(int variant) throws GeneralSecurityException {
+        byte[][] keyPair = PQCProvider.nativeGenerateDilithiumKeyPair(variant);
+        if (keyPair == null || keyPair.length != 2) {
+            throw new GeneralSecurityException("Native Dilithium key generation failed");
+        }
+        return new PQCProvider.DilithiumKeyPair(keyPair[0], keyPair[1]);
+    }
+
+    @Override
+    public byte[] sign(byte[] privateKey, byte[] message) throws GeneralSecurityException {
+        byte[] signature = PQCProvider.nativeSignMessage(privateKey, message);
+        if (signature == null || signature.length == 0) {
+            throw new GeneralSecurityException("Native Dilithium signing failed");
+        }
+        return signature;
+    }
+
+    @Override
+    public boolean verify(byte[] publicKey, byte[] message, byte[] signature) {
+        return PQCProvider.nativeVerifySignature(publicKey, message, signature);
+    }
+}
@@ -3,15 +3,27 @@ package com.nekkochan.onyxchat.crypto;
 import android.util.Base64;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.nio.charset.StandardCharsets;
 
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 /**
- * Native implementation of Post-Quantum Cryptography operations using JNI.
- * This class provides an interface to the C++ implementation of Kyber and Dilithium algorithms.
+ * Post-Quantum Cryptography operations.
+ * Kyber and Dilithium calls are routed to a {@link PqcBackend}: the C++ implementation in
+ * {@code pqc-native} when it loads and passes a self-test, otherwise BouncyCastle.
+ * AES-GCM uses the platform's {@code AES/GCM/NoPadding} cipher.
  */
 public class PQCProvider {
     private static final String TAG = "PQCProvider";
@@ -29,16 +41,35 @@ public class PQCProvider {
     public static final int DILITHIUM_3 = 2;
     public static final int DILITHIUM_5 = 3;
 
+    // AES-GCM IV and tag sizes used by the direct buffer API
+    public static final int AES_IV_SIZE = 12;
+    public static final int AES_TAG_SIZE = 16;
+
     // Default algorithm and variant
     private static int kyberVariant = KYBER_768;
     private static int dilithiumVariant = DILITHIUM_3;
+
+    // Per-thread cipher and IV scratch space for the AES-GCM calls
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<byte[]> IV_SCRATCH = ThreadLocal.withInitial(() -> new byte[AES_IV_SIZE]);
+    private static final ThreadLocal<Cipher> AES_GCM = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException("AES-GCM not available", e);
+        }
+    });
     
+    private static boolean nativeLoaded;
+    private static volatile PqcBackend backend;
+
     // Load the native library
     static {
         try {
             System.loadLibrary("pqc-native");
             Log.d(TAG, "PQC native library loaded successfully");
             nativeInitialize();
+            nativeLoaded = true;
         } catch (UnsatisfiedLinkError e) {
             Log.e(TAG, "Failed to load PQC native library", e);
         }
@@ -71,17 +102,100 @@ public class PQCProvider {
         dilithiumVariant = variant;
     }
 
+    /**
+     * Check whether the pqc-native library was loaded
+     * @return true if the native methods can be called
+     */
+    static boolean isNativeLibraryLoaded() {
+        return nativeLoaded;
+    }
+
+    /**
+     * Get the backend used for Kyber and Dilithium, selecting one on first use
+     * @return The active backend
+     */
+    public static PqcBackend getBackend() {
+        PqcBackend current = backend;
+        if (current == null) {
+            synchronized (PQCProvider.class) {
+                current = backend;
+                if (current == null) {
+                    current = selectBackend(new NativePqcBackend(), new BouncyCastlePqcBackend());
+                    backend = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Use a specific backend for Kyber and Dilithium instead of the automatic choice
+     * @param pqcBackend The backend to use, or null to select one again on next use
+     */
+    public static void setBackend(PqcBackend pqcBackend) {
+        backend = pqcBackend;
+        if (pqcBackend != null) {
+            Log.i(TAG, "Using " + pqcBackend.getName() + " PQC backend");
+        }
+    }
+
+    /**
+     * Pick the first available backend that passes {@link #selfTest(PqcBackend)}, in order of preference.
+     * The last candidate is used if none pass.
+     * @param candidates Backends in order of preference
+     * @return The selected backend
+     */
+    static PqcBackend selectBackend(PqcBackend... candidates) {
+        for (PqcBackend candidate : candidates) {
+            if (!candidate.isAvailable()) {
+                Log.w(TAG, "PQC backend " + candidate.getName() + " is not available");
+            } else if (!selfTest(candidate)) {
+                Log.w(TAG, "PQC backend " + candidate.getName() + " failed its self-test");
+            } else {
+                Log.i(TAG, "Using " + candidate.getName() + " PQC backend");
+                return candidate;
+            }
+        }
+        PqcBackend fallback = candidates[candidates.length - 1];
+        Log.e(TAG, "No PQC backend passed its self-test, falling back to " + fallback.getName());
+        return fallback;
+    }
+
+    /**
+     * Check that a backend's KEM round-trips and that its signatures verify and reject tampering
+     * @param candidate The backend to test
+     * @return true if the backend behaves correctly
+     */
+    static boolean selfTest(PqcBackend candidate) {
+        try {
+            KyberKeyPair kyberKeyPair = candidate.generateKyberKeyPair(kyberVariant);
+            KyberEncapsulationResult encapsulation = candidate.encapsulate(kyberKeyPair.getPublicKey());
+            byte[] secret = candidate.decapsulate(kyberKeyPair.getPrivateKey(), encapsulation.getCiphertext());
+            if (!MessageDigest.isEqual(secret, encapsulation.getSharedSecret())) {
+                return false;
+            }
+
+            DilithiumKeyPair dilithiumKeyPair = candidate.generateDilithiumKeyPair(dilithiumVariant);
+            byte[] message = "OnyxChat PQC self-test".getBytes(StandardCharsets.UTF_8);
+            byte[] signature = candidate.sign(dilithiumKeyPair.getPrivateKey(), message);
+            if (!candidate.verify(dilithiumKeyPair.getPublicKey(), message, signature)) {
+                return false;
+            }
+            message[0] ^= 1;
+            return !candidate.verify(dilithiumKeyPair.getPublicKey(), message, signature);
+        } catch (Exception e) {
+            Log.e(TAG, "PQC backend " + candidate.getName() + " self-test failed", e);
+            return false;
+        }
+    }
+
     /**
      * Generate a Kyber key pair
      * @return KyberKeyPair containing public and private keys
      */
     public static KyberKeyPair generateKyberKeyPair() {
         try {
-            byte[][] keyPairArray = nativeGenerateKyberKeyPair(kyberVariant);
-            if (keyPairArray != null && keyPairArray.length == 2) {
-                return new KyberKeyPair(keyPairArray[0], keyPairArray[1]);
-            }
-            return null;
+            return getBackend().generateKyberKeyPair(kyberVariant);
         } catch (Exception e) {
             Log.e(TAG, "Error generating Kyber key pair", e);
             return null;
@@ -94,11 +208,7 @@ public class PQCProvider {
      */
     public static DilithiumKeyPair generateDilithiumKeyPair() {
         try {
-            byte[][] keyPairArray = nativeGenerateDilithiumKeyPair(dilithiumVariant);
-            if (keyPairArray != null && keyPairArray.length == 2) {
-                return new DilithiumKeyPair(keyPairArray[0], keyPairArray[1]);
-            }
-            return null;
+            return getBackend().generateDilithiumKeyPair(dilithiumVariant);
         } catch (Exception e) {
             Log.e(TAG, "Error generating Dilithium key pair", e);
             return null;
@@ -112,11 +222,7 @@ public class PQCProvider {
      */
     public static KyberEncapsulationResult encapsulateKey(byte[] publicKey) {
         try {
-            byte[][] resultArray = nativeEncapsulateKey(publicKey);
-            if (resultArray != null && resultArray.length == 2) {
-                return new KyberEncapsulationResult(resultArray[0], resultArray[1]);
-            }
-            return null;
+            return getBackend().encapsulate(publicKey);
         } catch (Exception e) {
             Log.e(TAG, "Error encapsulating key", e);
             return null;
@@ -131,7 +237,7 @@ public class PQCProvider {
      */
     public static byte[] decapsulateKey(byte[] privateKey, byte[] ciphertext) {
         try {
-            return nativeDecapsulateKey(privateKey, ciphertext);
+            return getBackend().decapsulate(privateKey, ciphertext);
         } catch (Exception e) {
             Log.e(TAG, "Error decapsulating key", e);
             return null;
@@ -146,7 +252,7 @@ public class PQCProvider {
      */
     public static byte[] sign(byte[] privateKey, byte[] message) {
         try {
-            return nativeSignMessage(privateKey, message);
+            return getBackend().sign(privateKey, message);
         } catch (Exception e) {
             Log.e(TAG, "Error signing message", e);
             return null;
@@ -162,7 +268,7 @@ public class PQCProvider {
      */
     public static boolean verify(byte[] publicKey, byte[] message, byte[] signature) {
         try {
-            return nativeVerifySignature(publicKey, message, signature);
+            return getBackend().verify(publicKey, message, signature);
         } catch (Exception e) {
             Log.e(TAG, "Error verifying signature", e);
             return false;
@@ -177,11 +283,10 @@ public class PQCProvider {
      */
     public static EncryptedData encryptWithAES(byte[] plaintext, byte[] key) {
         try {
-            byte[][] resultArray = nativeEncrypt(plaintext, key);
-            if (resultArray != null && resultArray.length == 2) {
-                return new EncryptedData(resultArray[0], resultArray[1]);
-            }
-            return null;
+            byte[] iv = new byte[AES_IV_SIZE];
+            RANDOM.get().nextBytes(iv);
+            Cipher cipher = aesGcm(Cipher.ENCRYPT_MODE, key, iv);
+            return new EncryptedData(iv, cipher.doFinal(plaintext));
         } catch (Exception e) {
             Log.e(TAG, "Error encrypting data", e);
             return null;
@@ -206,11 +311,9 @@ public class PQCProvider {
      */
     public static byte[] decryptWithAES(EncryptedData encryptedData, byte[] key) {
         try {
-            return nativeDecrypt(
-                Base64.decode(encryptedData.getIv(), Base64.NO_WRAP),
-                Base64.decode(encryptedData.getCiphertext(), Base64.NO_WRAP),
-                key
-            );
+            Cipher cipher = aesGcm(Cipher.DECRYPT_MODE, key,
+                    Base64.decode(encryptedData.getIv(), Base64.NO_WRAP));
+            return cipher.doFinal(Base64.decode(encryptedData.getCiphertext(), Base64.NO_WRAP));
         } catch (Exception e) {
             Log.e(TAG, "Error decrypting data", e);
             return null;
@@ -231,6 +334,202 @@ public class PQCProvider {
         return new String(decrypted, StandardCharsets.UTF_8);
     }
     
+    /**
+     * Encrypt with AES-GCM from one direct buffer into another without copying the payload into arrays.
+     * Reads the plaintext between its position and limit and writes ciphertext followed by
+     * the tag at the output position; both positions are advanced. The key is read between
+     * its position and limit, the IV is the {@link #AES_IV_SIZE} bytes at its position.
+     * @param plaintext Direct buffer holding the plaintext
+     * @param key Direct buffer holding the key
+     * @param iv Direct buffer holding the IV
+     * @param output Direct buffer with room for the plaintext plus {@link #AES_TAG_SIZE} bytes
+     * @return The number of bytes written, or -1 on failure
+     */
+    public static int encryptWithAES(ByteBuffer plaintext, ByteBuffer key, ByteBuffer iv, ByteBuffer output) {
+        if (!isDirect(plaintext, key, iv, output)
+                || output.remaining() < plaintext.remaining() + AES_TAG_SIZE) {
+            Log.e(TAG, "Encryption needs direct buffers with room for the tag");
+            return -1;
+        }
+        try {
+            return aesGcm(Cipher.ENCRYPT_MODE, key, iv).doFinal(plaintext, output);
+        } catch (Exception e) {
+            Log.e(TAG, "Error encrypting data", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Decrypt with AES-GCM from one direct buffer into another without copying the payload into arrays.
+     * Reads ciphertext followed by the tag between the input position and limit and writes
+     * the plaintext at the output position; both positions are advanced.
+     * @param ciphertext Direct buffer holding the ciphertext and tag
+     * @param key Direct buffer holding the key
+     * @param iv Direct buffer holding the IV
+     * @param output Direct buffer with room for the plaintext
+     * @return The number of bytes written, or -1 on failure
+     */
+    public static int decryptWithAES(ByteBuffer ciphertext, ByteBuffer key, ByteBuffer iv, ByteBuffer output) {
+        if (!isDirect(ciphertext, key, iv, output) || ciphertext.remaining() < AES_TAG_SIZE
+                || output.remaining() < ciphertext.remaining() - AES_TAG_SIZE) {
+            Log.e(TAG, "Decryption needs direct buffers and a complete tag");
+            return -1;
+        }
+        try {
+            return aesGcm(Cipher.DECRYPT_MODE, key, iv).doFinal(ciphertext, output);
+        } catch (Exception e) {
+            Log.e(TAG, "Error decrypting data", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Encrypt the bytes between a direct buffer's position and limit in place.
+     * The limit is extended by {@link #AES_TAG_SIZE} to cover the appended tag.
+     * @param buffer Direct buffer holding the plaintext, with room for the tag after its limit
+     * @param key Direct buffer holding the key
+     * @param iv Direct buffer holding the IV
+     * @return The ciphertext length including the tag, or -1 on failure
+     */
+    public static int encryptInPlace(ByteBuffer buffer, ByteBuffer key, ByteBuffer iv) {
+        if (!isDirect(buffer, key, iv) || buffer.capacity() - buffer.limit() < AES_TAG_SIZE) {
+            Log.e(TAG, "In-place encryption needs a direct buffer with room for the tag");
+            return -1;
+        }
+        try {
+            // The cipher copies overlapping input before writing, so two views of one buffer are safe
+            ByteBuffer output = buffer.duplicate();
+            output.limit(buffer.capacity());
+            int written = aesGcm(Cipher.ENCRYPT_MODE, key, iv).doFinal(buffer.duplicate(), output);
+            buffer.limit(buffer.position() + written);
+            return written;
+        } catch (Exception e) {
+            Log.e(TAG, "Error encrypting data", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Decrypt the ciphertext and tag between a direct buffer's position and limit in place.
+     * The limit is moved back to the end of the plaintext.
+     * @param buffer Direct buffer holding the ciphertext and tag
+     * @param key Direct buffer holding the key
+     * @param iv Direct buffer holding the IV
+     * @return The plaintext length, or -1 on failure
+     */
+    public static int decryptInPlace(ByteBuffer buffer, ByteBuffer key, ByteBuffer iv) {
+        if (!isDirect(buffer, key, iv) || buffer.remaining() < AES_TAG_SIZE) {
+            Log.e(TAG, "In-place decryption needs a direct buffer and a complete tag");
+            return -1;
+        }
+        try {
+            int written = aesGcm(Cipher.DECRYPT_MODE, key, iv).doFinal(buffer.duplicate(), buffer.duplicate());
+            buffer.limit(buffer.position() + written);
+            return written;
+        } catch (Exception e) {
+            Log.e(TAG, "Error decrypting data", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Encrypt into a single binary message: a fresh IV, the ciphertext and the tag.
+     * This is the binary counterpart of {@link EncryptedData}; encode it only at the wire boundary.
+     * @param plaintext Direct buffer holding the plaintext; its position is advanced to the limit
+     * @param key Direct buffer holding the key
+     * @param output Direct buffer with room for {@link #sealedSize(int)} bytes; its position is advanced
+     * @return The number of bytes written, or -1 on failure
+     */
+    public static int seal(ByteBuffer plaintext, ByteBuffer key, ByteBuffer output) {
+        if (!isDirect(plaintext, key, output) || output.remaining() < sealedSize(plaintext.remaining())) {
+            Log.e(TAG, "Sealing needs direct buffers with room for the IV and tag");
+            return -1;
+        }
+        int start = output.position();
+        byte[] iv = IV_SCRATCH.get();
+        RANDOM.get().nextBytes(iv);
+        output.put(iv);
+
+        try {
+            return AES_IV_SIZE + aesGcm(Cipher.ENCRYPT_MODE, key, iv).doFinal(plaintext, output);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sealing data", e);
+            output.position(start);
+            return -1;
+        }
+    }
+
+    /**
+     * Decrypt a message produced by {@link #seal(ByteBuffer, ByteBuffer, ByteBuffer)}
+     * @param sealed Direct buffer holding the IV, ciphertext and tag; its position is advanced to the limit
+     * @param key Direct buffer holding the key
+     * @param output Direct buffer with room for the plaintext; its position is advanced
+     * @return The number of bytes written, or -1 on failure
+     */
+    public static int open(ByteBuffer sealed, ByteBuffer key, ByteBuffer output) {
+        if (!isDirect(sealed, key, output) || sealed.remaining() < AES_IV_SIZE + AES_TAG_SIZE
+                || output.remaining() < sealed.remaining() - AES_IV_SIZE - AES_TAG_SIZE) {
+            Log.e(TAG, "Opening needs direct buffers and a complete sealed message");
+            return -1;
+        }
+        int start = sealed.position();
+        try {
+            byte[] iv = IV_SCRATCH.get();
+            sealed.get(iv);
+            return aesGcm(Cipher.DECRYPT_MODE, key, iv).doFinal(sealed, output);
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening data", e);
+            sealed.position(start);
+            return -1;
+        }
+    }
+
+    /**
+     * Get the size of a sealed message
+     * @param plaintextLength The plaintext length
+     * @return The number of bytes {@link #seal(ByteBuffer, ByteBuffer, ByteBuffer)} writes
+     */
+    public static int sealedSize(int plaintextLength) {
+        return AES_IV_SIZE + plaintextLength + AES_TAG_SIZE;
+    }
+
+    // Fixed arities so the checks do not allocate a varargs array on every call
+    private static boolean isDirect(ByteBuffer a, ByteBuffer b, ByteBuffer c) {
+        return a != null && a.isDirect() && b != null && b.isDirect() && c != null && c.isDirect();
+    }
+
+    private static boolean isDirect(ByteBuffer a, ByteBuffer b, ByteBuffer c, ByteBuffer d) {
+        return isDirect(a, b, c) && d != null && d.isDirect();
+    }
+
+    /**
+     * Initialize this thread's AES-GCM cipher
+     * @param key Direct buffer holding the key between its position and limit; the position is not moved
+     * @param iv Direct buffer holding the IV at its position; the position is not moved
+     */
+    private static Cipher aesGcm(int mode, ByteBuffer key, ByteBuffer iv) throws GeneralSecurityException {
+        byte[] ivBytes = IV_SCRATCH.get();
+        iv.duplicate().get(ivBytes);
+        return aesGcm(mode, key, ivBytes);
+    }
+
+    private static Cipher aesGcm(int mode, ByteBuffer key, byte[] iv) throws GeneralSecurityException {
+        // The key spec keeps its own copy, so this one is wiped straight away
+        byte[] keyBytes = new byte[key.remaining()];
+        key.duplicate().get(keyBytes);
+        try {
+            return aesGcm(mode, keyBytes, iv);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    private static Cipher aesGcm(int mode, byte[] key, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = AES_GCM.get();
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(AES_TAG_SIZE * 8, iv));
+        return cipher;
+    }
+
     /**
      * Encode a public key as a Base64 string
      * @param publicKey The public key to encode
@@ -267,15 +566,13 @@ public class PQCProvider {
         return Base64.decode(encodedKey, Base64.NO_WRAP);
     }
     
-    // Native method declarations
-    private static native byte[][] nativeGenerateKyberKeyPair(int variant);
-    private static native byte[][] nativeGenerateDilithiumKeyPair(int variant);
-    private static native byte[][] nativeEncapsulateKey(byte[] publicKey);
-    private static native byte[] nativeDecapsulateKey(byte[] privateKey, byte[] ciphertext);
-    private static native byte[] nativeSignMessage(byte[] privateKey, byte[] message);
-    private static native boolean nativeVerifySignature(byte[] publicKey, byte[] message, byte[] signature);
-    private static native byte[][] nativeEncrypt(byte[] plaintext, byte[] key);
-    private static native byte[] nativeDecrypt(byte[] iv, byte[] ciphertext, byte[] key);
+    // Native method declarations; the Kyber and Dilithium ones are used by NativePqcBackend
+    static native byte[][] nativeGenerateKyberKeyPair(int variant);
+    static native byte[][] nativeGenerateDilithiumKeyPair(int variant);
+    static native byte[][] nativeEncapsulateKey(byte[] publicKey);
+    static native byte[] nativeDecapsulateKey(byte[] privateKey, byte[] ciphertext);
+    static native byte[] nativeSignMessage(byte[] privateKey, byte[] message);
+    static native boolean nativeVerifySignature(byte[] publicKey, byte[] message, byte[] signature);
 
     /**
      * Class representing a Kyber key pair
@@ -0,0 +1,38 @@
+package com.nekkochan.onyxchat.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * An implementation of the Kyber and Dilithium primitives behind {@link PQCProvider}.
+ * <p>
+ * Keys, ciphertexts and signatures use the raw encodings from the Kyber and Dilithium
+ * specifications, so material produced by one backend can be used with another.
+ * Variants are the {@code PQCProvider.KYBER_*} and {@code PQCProvider.DILITHIUM_*} constants;
+ * operations on existing keys infer the variant from the key length.
+ */
+public interface PqcBackend {
+
+    /**
+     * Get a short name for logs and benchmarks
+     * @return The backend name
+     */
+    String getName();
+
+    /**
+     * Check whether the backend can run on this device
+     * @return true if the backend's code is loaded and usable
+     */
+    boolean isAvailable();
+
+    PQCProvider.KyberKeyPair generateKyberKeyPair(int variant) throws GeneralSecurityException;
+
+    PQCProvider.KyberEncapsulationResult encapsulate(byte[] publicKey) throws GeneralSecurityException;
+
+    byte[] decapsulate(byte[] privateKey, byte[] ciphertext) throws GeneralSecurityException;
+
+    PQCProvider.DilithiumKeyPair generateDilithiumKeyPair(int variant) throws GeneralSecurityException;
+
+    byte[] sign(byte[] privateKey, byte[] message) throws GeneralSecurityException;
+
+    boolean verify(byte[] publicKey, byte[] message, byte[] signature) throws GeneralSecurityException;
+}
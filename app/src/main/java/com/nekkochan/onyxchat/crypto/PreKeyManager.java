@@ -0,0 +1,157 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.nekkochan.onyxchat.data.AppDatabase;
+import com.nekkochan.onyxchat.data.LocalIdentityDao;
+import com.nekkochan.onyxchat.data.OneTimePreKeyRecord;
+import com.nekkochan.onyxchat.network.ApiClient;
+import com.nekkochan.onyxchat.util.UserSessionManager;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps a pool of one-time Kyber prekeys on the server.
+ * <p>
+ * Keys are generated ahead of time by {@link com.nekkochan.onyxchat.service.PreKeyRefillWorker},
+ * stored with their private halves in the encrypted database, and uploaded in batches.
+ * Session setup only ever consumes keys from the pool, so it never waits on key generation.
+ * The server reports the number of unused keys after every upload and pushes a
+ * {@code PREKEYS_LOW} event when claims bring it under {@link #LOW_WATERMARK}.
+ */
+public final class PreKeyManager {
+    private static final String TAG = "PreKeyManager";
+    private static final String PREFS_NAME = "prekey_pool";
+    private static final String KEY_NEXT_ID_PREFIX = "next_prekey_id_";
+
+    // Unused prekeys the server should hold after a refill
+    public static final int POOL_SIZE = 100;
+    // Prekeys generated and uploaded per request
+    public static final int UPLOAD_BATCH = 25;
+    // Matches the server's PREKEYS_LOW threshold
+    public static final int LOW_WATERMARK = 20;
+
+    private static volatile PreKeyManager INSTANCE;
+
+    private final LocalIdentityDao identityDao;
+    private final ApiClient apiClient;
+    private final UserSessionManager userSessionManager;
+    private final SharedPreferences prefs;
+
+    private PreKeyManager(Context context) {
+        Context appContext = context.getApplicationContext();
+        identityDao = AppDatabase.getInstance(appContext).localIdentityDao();
+        apiClient = ApiClient.getInstance(appContext);
+        userSessionManager = new UserSessionManager(appContext);
+        prefs = appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Get the prekey manager
+     * @param context Any context
+     * @return The singleton instance
+     */
+    public static PreKeyManager getInstance(@NonNull Context context) {
+        if (INSTANCE == null) {
+            synchronized (PreKeyManager.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new PreKeyManager(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Upload prekeys that were generated but not yet accepted by the server and generate new
+     * ones until the server holds {@link #POOL_SIZE}. Blocks; call from a worker.
+     * @param stopped Checked between batches; returning true ends the run early
+     * @return The number of unused prekeys the server last reported
+     * @throws GeneralSecurityException If not signed in or key generation fails
+     * @throws IOException If an upload fails
+     */
+    public synchronized int refill(@NonNull BooleanSupplier stopped)
+            throws GeneralSecurityException, IOException {
+        String ownerId = userSessionManager.getUserId();
+        if (ownerId == null || ownerId.isEmpty()) {
+            throw new GeneralSecurityException("Not signed in");
+        }
+
+        int unused = -1;
+        List<OneTimePreKeyRecord> pending;
+        while (!(pending = identityDao.getPendingPreKeys(ownerId, UPLOAD_BATCH)).isEmpty()) {
+            if (stopped.getAsBoolean()) {
+                return unused;
+            }
+            unused = upload(ownerId, pending);
+        }
+        if (unused < 0) {
+            unused = apiClient.getPreKeyCount();
+        }
+
+        while (unused < POOL_SIZE && !stopped.getAsBoolean()) {
+            List<OneTimePreKeyRecord> batch = generateBatch(ownerId, Math.min(UPLOAD_BATCH, POOL_SIZE - unused));
+            // Stored before the upload so an interrupted run resumes with the same keys
+            identityDao.insertPreKeys(batch);
+            unused = upload(ownerId, batch);
+        }
+        Log.d(TAG, "Server holds " + unused + " unused prekeys for " + ownerId);
+        return unused;
+    }
+
+    private int upload(String ownerId, List<OneTimePreKeyRecord> records) throws IOException {
+        List<ApiClient.PreKey> prekeys = new ArrayList<>(records.size());
+        List<Integer> prekeyIds = new ArrayList<>(records.size());
+        for (OneTimePreKeyRecord record : records) {
+            ApiClient.PreKey prekey = new ApiClient.PreKey();
+            prekey.prekeyId = record.getPrekeyId();
+            prekey.prekey = Base64.encodeToString(record.getPublicKey(), Base64.NO_WRAP);
+            prekeys.add(prekey);
+            prekeyIds.add(record.getPrekeyId());
+        }
+        int unused = apiClient.uploadPreKeys(prekeys);
+        identityDao.markPreKeysUploaded(ownerId, prekeyIds);
+        return unused;
+    }
+
+    private List<OneTimePreKeyRecord> generateBatch(String ownerId, int count) throws GeneralSecurityException {
+        int firstId = nextPreKeyId(ownerId, count);
+        long now = System.currentTimeMillis();
+        List<OneTimePreKeyRecord> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            PQCProvider.KyberKeyPair keyPair = PQCProvider.generateKyberKeyPair();
+            if (keyPair == null) {
+                throw new GeneralSecurityException("Failed to generate one-time prekey");
+            }
+            OneTimePreKeyRecord record = new OneTimePreKeyRecord();
+            record.setUserId(ownerId);
+            record.setPrekeyId(firstId + i);
+            record.setPublicKey(keyPair.getPublicKey());
+            record.setPrivateKey(keyPair.getPrivateKey());
+            record.setUploaded(false);
+            record.setCreatedAt(now);
+            batch.add(record);
+        }
+        return batch;
+    }
+
+    /**
+     * Reserve a range of prekey IDs. IDs only grow, so a consumed and deleted prekey's ID is
+     * never handed out again with a different key.
+     */
+    private int nextPreKeyId(String ownerId, int count) {
+        String key = KEY_NEXT_ID_PREFIX + ownerId;
+        int next = Math.max(prefs.getInt(key, 1), identityDao.getMaxPreKeyId(ownerId) + 1);
+        prefs.edit().putInt(key, next + count).apply();
+        return next;
+    }
+}
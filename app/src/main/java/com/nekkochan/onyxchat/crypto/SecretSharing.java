@@ -9,14 +9,16 @@ import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Native implementation of Shamir's Secret Sharing scheme for key recovery using JNI.
+ * Shamir's Secret Sharing scheme for key recovery.
  * This allows splitting a secret into multiple shares and reconstructing
  * the original secret with a threshold number of shares.
+ * The arithmetic runs in {@link Gf256Shamir}; the native implementation is kept as a
+ * reference for benchmarks and produces the same share format.
  */
 public class SecretSharing {
     private static final String TAG = "SecretSharing";
     
-    // Load the native library
+    // Load the native library for the reference implementation
     static {
         try {
             // The PQCProvider already loads the library, but we check here as well
@@ -37,22 +39,11 @@ public class SecretSharing {
      */
     public static Map<Integer, String> splitSecret(String secret, int totalShares, int threshold) {
         try {
-            // Validate parameters
-            if (threshold > totalShares) {
-                throw new IllegalArgumentException("Threshold cannot be greater than total shares");
-            }
-            if (threshold < 2) {
-                throw new IllegalArgumentException("Threshold must be at least 2");
-            }
-            if (totalShares > 255) {
-                throw new IllegalArgumentException("Total shares cannot exceed 255");
-            }
-            
             // Convert secret to bytes
             byte[] secretBytes = secret.getBytes(StandardCharsets.UTF_8);
             
-            // Call native implementation
-            byte[][] shares = nativeSplitSecret(secretBytes, totalShares, threshold);
+            // Parameters are validated by the engine
+            byte[][] shares = Gf256Shamir.split(secretBytes, totalShares, threshold);
             
             // Convert shares to Base64 strings for easier storage
             Map<Integer, String> encodedShares = new HashMap<>();
@@ -91,8 +82,7 @@ public class SecretSharing {
                 index++;
             }
             
-            // Call native implementation
-            byte[] recoveredSecretBytes = nativeRecoverSecret(shareIds, shareData);
+            byte[] recoveredSecretBytes = Gf256Shamir.recover(shareIds, shareData);
             
             // Convert recovered bytes back to string
             return new String(recoveredSecretBytes, StandardCharsets.UTF_8);
@@ -102,7 +92,7 @@ public class SecretSharing {
         }
     }
     
-    // Native method declarations
-    private static native byte[][] nativeSplitSecret(byte[] secret, int totalShares, int threshold);
-    private static native byte[] nativeRecoverSecret(int[] shareIds, byte[][] shares);
+    // Native reference implementation, used by the benchmarks
+    static native byte[][] nativeSplitSecret(byte[] secret, int totalShares, int threshold);
+    static native byte[] nativeRecoverSecret(int[] shareIds, byte[][] shares);
 }
\ No newline at end of file
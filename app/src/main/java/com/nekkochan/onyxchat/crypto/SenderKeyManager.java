@@ -0,0 +1,492 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.nekkochan.onyxchat.data.AppDatabase;
+import com.nekkochan.onyxchat.data.ChatGroup;
+import com.nekkochan.onyxchat.data.CryptoSessionDao;
+import com.nekkochan.onyxchat.data.GroupDao;
+import com.nekkochan.onyxchat.data.GroupMember;
+import com.nekkochan.onyxchat.data.LocalIdentity;
+import com.nekkochan.onyxchat.data.LocalIdentityDao;
+import com.nekkochan.onyxchat.data.SenderKey;
+import com.nekkochan.onyxchat.data.SkippedMessageKey;
+import com.nekkochan.onyxchat.network.ApiClient;
+import com.nekkochan.onyxchat.util.UserSessionManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sender-key engine for group conversations.
+ * <p>
+ * Each member owns one {@link SymmetricRatchet} chain per group. The chain key is sent once to
+ * every other member, encrypted over the pairwise {@link SessionManager} session, through
+ * {@code /api/groups/:groupId/sender-keys}. After that a group message is encrypted and signed
+ * once, whatever the group size, and the server fans the single envelope out to all members.
+ * A member's key is replaced whenever the membership changes, so a removed member cannot read
+ * later messages and a new member cannot read earlier ones.
+ * <p>
+ * Keys are distributed per account, like the pairwise sessions they travel over, and never to
+ * the sender itself. Another device signed in to the sender's account therefore has no copy
+ * of the sender's key and cannot read the sender's own group messages; group history is only
+ * readable in full on the device that sent it.
+ * <p>
+ * All methods block and may hit the network, so call them from a background thread.
+ */
+public final class SenderKeyManager {
+    private static final String TAG = "SenderKeyManager";
+
+    // Prefix of encrypted group message content: "gsk1:" followed by Base64 of a SenderKeyMessage
+    public static final String ENVELOPE_PREFIX = "gsk1:";
+
+    // Largest gap of missing messages a receiver derives keys for
+    private static final int MAX_SKIPPED_KEYS = 1000;
+    // Inactive keys kept per sender for messages still in flight under them
+    private static final int INACTIVE_KEYS_KEPT = 2;
+    // Skipped keys share the session table under this session ID prefix
+    private static final String SKIPPED_KEY_PREFIX = "sk:";
+
+    private static volatile SenderKeyManager INSTANCE;
+
+    private final AppDatabase database;
+    private final GroupDao groupDao;
+    private final CryptoSessionDao sessionDao;
+    private final LocalIdentityDao identityDao;
+    private final SessionManager sessionManager;
+    private final ContactKeyCache contactKeys;
+    private final BatchCrypto batchCrypto;
+    private final ApiClient apiClient;
+    private final UserSessionManager userSessionManager;
+    private final SecureRandom random = new SecureRandom();
+
+    // One lock per owner and chain: the own chain of a group, or one sender's chain in it
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    // Serialises fetching and storing distributed keys
+    private final Object pendingKeysLock = new Object();
+
+    private SenderKeyManager(Context context) {
+        Context appContext = context.getApplicationContext();
+        database = AppDatabase.getInstance(appContext);
+        groupDao = database.groupDao();
+        sessionDao = database.cryptoSessionDao();
+        identityDao = database.localIdentityDao();
+        sessionManager = SessionManager.getInstance(appContext);
+        contactKeys = ContactKeyCache.getInstance(appContext);
+        batchCrypto = BatchCrypto.getDefault();
+        apiClient = ApiClient.getInstance(appContext);
+        userSessionManager = new UserSessionManager(appContext);
+    }
+
+    /**
+     * Get the sender key manager
+     * @param context Any context
+     * @return The singleton instance
+     */
+    public static SenderKeyManager getInstance(@NonNull Context context) {
+        if (INSTANCE == null) {
+            synchronized (SenderKeyManager.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new SenderKeyManager(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Check whether message content is an encrypted group envelope
+     * @param content Message content
+     * @return true if the content was produced by {@link #encrypt(String, String)}
+     */
+    public static boolean isEnvelope(@Nullable String content) {
+        return content != null && content.startsWith(ENVELOPE_PREFIX);
+    }
+
+    /**
+     * Create a group on the server and cache it
+     * @param name Group name
+     * @param memberIds User IDs of the other members
+     * @return The cached group
+     * @throws GeneralSecurityException If not signed in
+     * @throws IOException If the request fails
+     */
+    public ChatGroup createGroup(@NonNull String name, @NonNull List<String> memberIds)
+            throws GeneralSecurityException, IOException {
+        String ownerId = requireOwnerId();
+        return storeGroup(ownerId, apiClient.createGroup(name, memberIds));
+    }
+
+    /**
+     * Handle a membership change announced by the server: refresh the member list, drop the keys
+     * of members who left and retire the own sender key so the next message distributes a new one
+     * @param groupId The group ID
+     * @throws GeneralSecurityException If not signed in
+     * @throws IOException If the group cannot be fetched
+     */
+    public void onMembersChanged(@NonNull String groupId) throws GeneralSecurityException, IOException {
+        String ownerId = requireOwnerId();
+        synchronized (lockFor(ownerId, groupId, ownerId)) {
+            ApiClient.GroupInfo group = apiClient.getGroup(groupId);
+            if (group == null) {
+                // We left or were removed
+                groupDao.deleteGroup(ownerId, groupId);
+                Log.d(TAG, "Removed from group " + groupId);
+                return;
+            }
+            storeGroup(ownerId, group);
+            groupDao.deleteSenderKeysOfFormerMembers(ownerId, groupId);
+            groupDao.deactivateSenderKeys(ownerId, groupId, ownerId);
+        }
+    }
+
+    /**
+     * Encrypt a group message, distributing a new sender key first if there is none
+     * @param groupId The group ID
+     * @param plaintext Message content
+     * @return The encrypted envelope, the same for every member
+     * @throws GeneralSecurityException If not a member, or the key distribution or encryption fails
+     * @throws IOException If the key has to be distributed and a request fails
+     */
+    public String encrypt(@NonNull String groupId, @NonNull String plaintext)
+            throws GeneralSecurityException, IOException {
+        String ownerId = requireOwnerId();
+        LocalIdentity identity = identityDao.getIdentity(ownerId);
+        if (identity == null) {
+            sessionManager.ensureIdentityPublished();
+            identity = identityDao.getIdentity(ownerId);
+        }
+
+        SenderKeyMessage message;
+        synchronized (lockFor(ownerId, groupId, ownerId)) {
+            SenderKey senderKey = groupDao.getActiveSenderKey(ownerId, groupId, ownerId);
+            if (senderKey == null) {
+                senderKey = distributeSenderKey(ownerId, groupId);
+            }
+
+            int counter = senderKey.getCounter();
+            byte[] chainKey = senderKey.getChainKey();
+            byte[] messageKey = SymmetricRatchet.messageKey(chainKey);
+
+            // Persist the advanced chain before the ciphertext leaves, so a key is never used twice
+            senderKey.setChainKey(SymmetricRatchet.nextChainKey(chainKey));
+            senderKey.setCounter(counter + 1);
+            senderKey.setUpdatedAt(System.currentTimeMillis());
+            groupDao.updateSenderKey(senderKey);
+            Arrays.fill(chainKey, (byte) 0);
+
+            try {
+                message = SenderKeyMessage.encrypt(groupId, senderKey.getKeyId(), counter, messageKey,
+                        plaintext.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                Arrays.fill(messageKey, (byte) 0);
+            }
+        }
+
+        // Signing does not touch the chain, so it runs outside the lock
+        byte[] signature = PQCProvider.sign(identity.getIdentityPrivateKey(), message.signedData(groupId));
+        if (signature == null) {
+            throw new GeneralSecurityException("Failed to sign group message");
+        }
+        return ENVELOPE_PREFIX + Base64.encodeToString(message.withSignature(signature).serialize(), Base64.NO_WRAP);
+    }
+
+    /**
+     * Decrypt a group message, fetching pending sender keys if the sender's key is not known yet
+     * @param groupId The group ID
+     * @param senderId Server user ID of the sender
+     * @param envelope Encrypted envelope from {@link #encrypt(String, String)}
+     * @return The message content
+     * @throws GeneralSecurityException If the message is forged, replayed or its key is unknown
+     * @throws IOException If keys have to be fetched and a request fails
+     */
+    public String decrypt(@NonNull String groupId, @NonNull String senderId, @NonNull String envelope)
+            throws GeneralSecurityException, IOException {
+        if (!isEnvelope(envelope)) {
+            throw new GeneralSecurityException("Not an encrypted group envelope");
+        }
+        SenderKeyMessage message;
+        try {
+            message = SenderKeyMessage.parse(Base64.decode(envelope.substring(ENVELOPE_PREFIX.length()),
+                    Base64.NO_WRAP));
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed group envelope", e);
+        }
+
+        String ownerId = requireOwnerId();
+        if (groupDao.getSenderKey(ownerId, groupId, senderId, message.keyId) == null) {
+            processPendingSenderKeys();
+        }
+
+        // Verified before the chain is touched, so a member cannot advance another member's chain
+        ContactKeyCache.ContactKeys keys = contactKeys.getKeys(ownerId, senderId, ContactKeyCache.MAX_AGE_MS);
+        if (!batchCrypto.verify(keys.identityKey, message.signedData(groupId), message.signature)) {
+            throw new GeneralSecurityException("Invalid signature on group message from " + senderId);
+        }
+
+        synchronized (lockFor(ownerId, groupId, senderId)) {
+            SenderKey senderKey = groupDao.getSenderKey(ownerId, groupId, senderId, message.keyId);
+            if (senderKey == null) {
+                throw new GeneralSecurityException("Unknown sender key " + message.keyId + " from " + senderId);
+            }
+            String skippedId = skippedKeyId(groupId, senderId, message.keyId);
+
+            if (message.counter < senderKey.getCounter()) {
+                SkippedMessageKey skippedKey = sessionDao.getSkippedKey(ownerId, skippedId, message.counter);
+                if (skippedKey == null) {
+                    throw new GeneralSecurityException("Duplicate or expired group message " + message.counter);
+                }
+                byte[] plaintext = message.decrypt(groupId, skippedKey.getMessageKey());
+                sessionDao.deleteSkippedKey(ownerId, skippedId, message.counter);
+                return new String(plaintext, StandardCharsets.UTF_8);
+            }
+            if (message.counter - senderKey.getCounter() > MAX_SKIPPED_KEYS) {
+                throw new GeneralSecurityException("Too many skipped messages from " + senderId);
+            }
+
+            // Walk the chain up to this message, keeping keys for the messages that have not arrived yet
+            long now = System.currentTimeMillis();
+            List<SkippedMessageKey> skipped = new ArrayList<>();
+            byte[] chainKey = senderKey.getChainKey();
+            for (int i = senderKey.getCounter(); i < message.counter; i++) {
+                SkippedMessageKey key = new SkippedMessageKey();
+                key.setOwnerId(ownerId);
+                key.setSessionId(skippedId);
+                key.setCounter(i);
+                key.setMessageKey(SymmetricRatchet.messageKey(chainKey));
+                key.setCreatedAt(now);
+                skipped.add(key);
+                chainKey = SymmetricRatchet.nextChainKey(chainKey);
+            }
+            byte[] messageKey = SymmetricRatchet.messageKey(chainKey);
+
+            // Only a message that authenticates may advance the chain
+            byte[] plaintext;
+            try {
+                plaintext = message.decrypt(groupId, messageKey);
+            } finally {
+                Arrays.fill(messageKey, (byte) 0);
+            }
+
+            senderKey.setChainKey(SymmetricRatchet.nextChainKey(chainKey));
+            senderKey.setCounter(message.counter + 1);
+            senderKey.setUpdatedAt(now);
+            database.runInTransaction(() -> {
+                if (!skipped.isEmpty()) {
+                    sessionDao.insertSkippedKeys(skipped);
+                }
+                groupDao.updateSenderKey(senderKey);
+            });
+            return new String(plaintext, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Fetch and store the sender keys other members distributed to us, then acknowledge them so
+     * the server deletes them. A key that cannot be stored stays on the server and is retried on
+     * the next fetch, so a lost response or a transient failure does not lose it.
+     * @return The number of keys stored
+     * @throws GeneralSecurityException If not signed in
+     * @throws IOException If the keys cannot be fetched
+     */
+    public int processPendingSenderKeys() throws GeneralSecurityException, IOException {
+        String ownerId = requireOwnerId();
+        // Each pairwise envelope can be opened only once, so two fetches must not race over it
+        synchronized (pendingKeysLock) {
+            int stored = 0;
+            List<String> acknowledged = new ArrayList<>();
+            for (ApiClient.SenderKeyDistribution distribution : apiClient.fetchSenderKeys()) {
+                try {
+                    if (storeSenderKey(ownerId, distribution)) {
+                        stored++;
+                    }
+                    acknowledged.add(distribution.id);
+                } catch (GeneralSecurityException | IOException | JSONException e) {
+                    Log.e(TAG, "Keeping sender key " + distribution.keyId + " from " + distribution.senderId
+                            + " for a retry", e);
+                }
+            }
+            if (!acknowledged.isEmpty()) {
+                try {
+                    apiClient.acknowledgeSenderKeys(acknowledged);
+                } catch (IOException e) {
+                    // Stored keys that come back are recognised and acknowledged next time
+                    Log.w(TAG, "Failed to acknowledge " + acknowledged.size() + " sender keys", e);
+                }
+            }
+            return stored;
+        }
+    }
+
+    /**
+     * Decrypt and store one distributed key
+     * @return false if an earlier fetch whose acknowledgement was lost already stored it
+     */
+    private boolean storeSenderKey(String ownerId, ApiClient.SenderKeyDistribution distribution)
+            throws GeneralSecurityException, IOException, JSONException {
+        String groupId = distribution.groupId;
+        String senderId = distribution.senderId;
+        if (groupDao.getSenderKey(ownerId, groupId, senderId, distribution.keyId) != null) {
+            // Storing it again would rewind its chain and make it active again
+            return false;
+        }
+        List<String> members = groupDao.getMemberIds(ownerId, groupId);
+        if (!members.contains(senderId)) {
+            // A group we were just added to, or a member we have not heard of yet
+            ApiClient.GroupInfo group = apiClient.getGroup(groupId);
+            if (group == null) {
+                throw new GeneralSecurityException("Not a member of group " + groupId);
+            }
+            storeGroup(ownerId, group);
+            members = groupDao.getMemberIds(ownerId, groupId);
+            if (!members.contains(senderId)) {
+                throw new GeneralSecurityException(senderId + " is not a member of group " + groupId);
+            }
+        }
+
+        JSONObject key = new JSONObject(sessionManager.decrypt(senderId, distribution.content));
+        if (!groupId.equals(key.getString("groupId")) || key.getInt("keyId") != distribution.keyId) {
+            throw new GeneralSecurityException("Sender key does not match its distribution");
+        }
+        byte[] chainKey;
+        try {
+            chainKey = Base64.decode(key.getString("chainKey"), Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed sender chain key", e);
+        }
+        if (chainKey == null || chainKey.length != SymmetricRatchet.CHAIN_KEY_LENGTH) {
+            throw new GeneralSecurityException("Invalid sender chain key");
+        }
+
+        long now = System.currentTimeMillis();
+        SenderKey senderKey = new SenderKey();
+        senderKey.setOwnerId(ownerId);
+        senderKey.setGroupId(groupId);
+        senderKey.setSenderId(senderId);
+        senderKey.setKeyId(distribution.keyId);
+        senderKey.setChainKey(chainKey);
+        senderKey.setCounter(key.getInt("counter"));
+        senderKey.setCreatedAt(now);
+        senderKey.setUpdatedAt(now);
+        synchronized (lockFor(ownerId, groupId, senderId)) {
+            groupDao.insertActiveSenderKey(senderKey);
+            groupDao.pruneInactiveSenderKeys(ownerId, groupId, senderId, INACTIVE_KEYS_KEPT);
+        }
+        return true;
+    }
+
+    /**
+     * Create a new own sender key and send it to every other member over the pairwise sessions.
+     * This is the only per-member cost of a group; it is stored only after the upload succeeded,
+     * so no message is ever sent under a key the members do not have.
+     */
+    private SenderKey distributeSenderKey(String ownerId, String groupId)
+            throws GeneralSecurityException, IOException {
+        List<String> members = groupDao.getMemberIds(ownerId, groupId);
+        if (!members.contains(ownerId)) {
+            ApiClient.GroupInfo group = apiClient.getGroup(groupId);
+            if (group == null) {
+                throw new GeneralSecurityException("Not a member of group " + groupId);
+            }
+            storeGroup(ownerId, group);
+            members = groupDao.getMemberIds(ownerId, groupId);
+        }
+
+        byte[] chainKey = new byte[SymmetricRatchet.CHAIN_KEY_LENGTH];
+        random.nextBytes(chainKey);
+        int keyId = random.nextInt(Integer.MAX_VALUE);
+        String keyJson;
+        try {
+            keyJson = new JSONObject()
+                    .put("groupId", groupId)
+                    .put("keyId", keyId)
+                    .put("chainKey", Base64.encodeToString(chainKey, Base64.NO_WRAP))
+                    .put("counter", 0)
+                    .toString();
+        } catch (JSONException e) {
+            throw new GeneralSecurityException("Failed to encode sender key", e);
+        }
+
+        long start = System.currentTimeMillis();
+        List<ApiClient.SenderKeyDistribution> distributions = new ArrayList<>();
+        for (String memberId : members) {
+            if (memberId.equals(ownerId)) {
+                continue;
+            }
+            ApiClient.SenderKeyDistribution distribution = new ApiClient.SenderKeyDistribution();
+            distribution.recipientId = memberId;
+            distribution.content = sessionManager.encrypt(memberId, keyJson);
+            distributions.add(distribution);
+        }
+        apiClient.uploadSenderKeys(groupId, keyId, distributions);
+        Log.d(TAG, "Distributed sender key for " + groupId + " to " + distributions.size() + " members in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        long now = System.currentTimeMillis();
+        SenderKey senderKey = new SenderKey();
+        senderKey.setOwnerId(ownerId);
+        senderKey.setGroupId(groupId);
+        senderKey.setSenderId(ownerId);
+        senderKey.setKeyId(keyId);
+        senderKey.setChainKey(chainKey);
+        senderKey.setCreatedAt(now);
+        senderKey.setUpdatedAt(now);
+        groupDao.insertActiveSenderKey(senderKey);
+        groupDao.pruneInactiveSenderKeys(ownerId, groupId, ownerId, INACTIVE_KEYS_KEPT);
+        return senderKey;
+    }
+
+    private ChatGroup storeGroup(String ownerId, ApiClient.GroupInfo info) {
+        ChatGroup group = new ChatGroup();
+        group.setOwnerId(ownerId);
+        group.setGroupId(info.id);
+        group.setName(info.name);
+        group.setCreatedBy(info.createdBy);
+        group.setUpdatedAt(System.currentTimeMillis());
+
+        List<GroupMember> members = new ArrayList<>();
+        if (info.members != null) {
+            for (ApiClient.GroupMemberInfo memberInfo : info.members) {
+                GroupMember member = new GroupMember();
+                member.setOwnerId(ownerId);
+                member.setGroupId(info.id);
+                member.setUserId(memberInfo.userId);
+                member.setRole(memberInfo.role);
+                members.add(member);
+            }
+        }
+        groupDao.replaceGroup(group, members);
+        return group;
+    }
+
+    private String requireOwnerId() throws GeneralSecurityException {
+        String ownerId = userSessionManager.getUserId();
+        if (ownerId == null || ownerId.isEmpty()) {
+            throw new GeneralSecurityException("Not signed in");
+        }
+        return ownerId;
+    }
+
+    private Object lockFor(String ownerId, String groupId, String senderId) {
+        return locks.computeIfAbsent(ownerId + "/" + groupId + "/" + senderId, key -> new Object());
+    }
+
+    private static String skippedKeyId(String groupId, String senderId, int keyId) {
+        return SKIPPED_KEY_PREFIX + groupId + "/" + senderId + "/" + keyId;
+    }
+}
@@ -0,0 +1,101 @@
+package com.nekkochan.onyxchat.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Wire format of a group message encrypted with a sender key.
+ * <p>
+ * Layout: {@code version | keyId (4) | counter (4) | ciphertext length (4) | ciphertext | signature}.
+ * The ciphertext is AES-GCM under the message key of the sender's chain at {@code counter},
+ * with the header and group ID as associated data. Every member holds the chain key, so the
+ * sender also signs the header and ciphertext with their Dilithium identity key; otherwise
+ * any member could forge messages in another member's name.
+ */
+final class SenderKeyMessage {
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 1 + 4 + 4;
+
+    final int keyId;
+    final int counter;
+    final byte[] header;
+    final byte[] ciphertext;
+    final byte[] signature;
+
+    private SenderKeyMessage(int keyId, int counter, byte[] header, byte[] ciphertext, byte[] signature) {
+        this.keyId = keyId;
+        this.counter = counter;
+        this.header = header;
+        this.ciphertext = ciphertext;
+        this.signature = signature;
+    }
+
+    /**
+     * Encrypt a message; the result still needs {@link #withSignature(byte[])}
+     */
+    static SenderKeyMessage encrypt(String groupId, int keyId, int counter, byte[] messageKey, byte[] plaintext)
+            throws GeneralSecurityException {
+        byte[] header = ByteBuffer.allocate(HEADER_LENGTH).put(VERSION).putInt(keyId).putInt(counter).array();
+        byte[] ciphertext = SymmetricRatchet.encrypt(messageKey, associatedData(groupId, header), plaintext);
+        return new SenderKeyMessage(keyId, counter, header, ciphertext, null);
+    }
+
+    SenderKeyMessage withSignature(byte[] signature) {
+        return new SenderKeyMessage(keyId, counter, header, ciphertext, signature);
+    }
+
+    /**
+     * The bytes the sender signs: the associated data followed by the ciphertext
+     */
+    byte[] signedData(String groupId) {
+        byte[] associatedData = associatedData(groupId, header);
+        byte[] signed = Arrays.copyOf(associatedData, associatedData.length + ciphertext.length);
+        System.arraycopy(ciphertext, 0, signed, associatedData.length, ciphertext.length);
+        return signed;
+    }
+
+    byte[] decrypt(String groupId, byte[] messageKey) throws GeneralSecurityException {
+        return SymmetricRatchet.decrypt(messageKey, associatedData(groupId, header), ciphertext, 0, ciphertext.length);
+    }
+
+    byte[] serialize() {
+        if (signature == null) {
+            throw new IllegalStateException("Message is not signed");
+        }
+        return ByteBuffer.allocate(HEADER_LENGTH + 4 + ciphertext.length + signature.length)
+                .put(header)
+                .putInt(ciphertext.length)
+                .put(ciphertext)
+                .put(signature)
+                .array();
+    }
+
+    static SenderKeyMessage parse(byte[] data) throws GeneralSecurityException {
+        if (data.length < HEADER_LENGTH + 4 || data[0] != VERSION) {
+            throw new GeneralSecurityException("Unsupported group message");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        byte[] header = new byte[HEADER_LENGTH];
+        buffer.get(header);
+        int keyId = ByteBuffer.wrap(header, 1, 4).getInt();
+        int counter = ByteBuffer.wrap(header, 5, 4).getInt();
+        int ciphertextLength = buffer.getInt();
+        if (counter < 0 || ciphertextLength <= 0 || ciphertextLength >= buffer.remaining()) {
+            throw new GeneralSecurityException("Malformed group message");
+        }
+        byte[] ciphertext = new byte[ciphertextLength];
+        buffer.get(ciphertext);
+        byte[] signature = new byte[buffer.remaining()];
+        buffer.get(signature);
+        return new SenderKeyMessage(keyId, counter, header, ciphertext, signature);
+    }
+
+    private static byte[] associatedData(String groupId, byte[] header) {
+        byte[] group = groupId.getBytes(StandardCharsets.UTF_8);
+        byte[] associatedData = Arrays.copyOf(header, header.length + group.length);
+        System.arraycopy(group, 0, associatedData, header.length, group.length);
+        return associatedData;
+    }
+}
@@ -0,0 +1,946 @@
+package com.nekkochan.onyxchat.crypto;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.nekkochan.onyxchat.data.AppDatabase;
+import com.nekkochan.onyxchat.data.CryptoSession;
+import com.nekkochan.onyxchat.data.CryptoSessionDao;
+import com.nekkochan.onyxchat.data.DecryptedMessage;
+import com.nekkochan.onyxchat.data.LocalIdentity;
+import com.nekkochan.onyxchat.data.LocalIdentityDao;
+import com.nekkochan.onyxchat.data.OneTimePreKeyRecord;
+import com.nekkochan.onyxchat.data.SkippedMessageKey;
+import com.nekkochan.onyxchat.network.ApiClient;
+import com.nekkochan.onyxchat.util.UserSessionManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * End-to-end session engine.
+ * <p>
+ * The first message to a contact runs a single Kyber handshake: the initiator takes the
+ * contact's verified key bundle from {@link ContactKeyCache}, encapsulates
+ * to it and to a one-time prekey claimed from {@code /api/crypto/prekeys}, signs the handshake
+ * and stores it with {@code /api/crypto/sessions}. The responder fetches that handshake the
+ * first time it sees the session's ID. Both sides derive a root key and one chain key per
+ * direction with HKDF; every message after that only advances a {@link SymmetricRatchet}.
+ * <p>
+ * Session state lives in the encrypted database and is cached in memory. All methods block
+ * and may hit the network, so call them from a background thread.
+ */
+public final class SessionManager {
+    private static final String TAG = "SessionManager";
+
+    // Prefix of encrypted message content: "pqs1:" followed by Base64 of header and ciphertext
+    public static final String ENVELOPE_PREFIX = "pqs1:";
+    private static final byte ENVELOPE_VERSION = 1;
+    private static final int SESSION_ID_LENGTH = 8;
+    private static final int HEADER_LENGTH = 1 + SESSION_ID_LENGTH + 4;
+
+    private static final int HANDSHAKE_VERSION = 1;
+    private static final byte[] SESSION_INFO = "OnyxChat session v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HANDSHAKE_CONTEXT = "OnyxChat handshake v1".getBytes(StandardCharsets.UTF_8);
+
+    // Largest gap of missing messages a receiver derives keys for
+    private static final int MAX_SKIPPED_KEYS = 1000;
+    // Inactive sessions kept per contact for messages still in flight on them
+    private static final int INACTIVE_SESSIONS_KEPT = 2;
+
+    private static volatile SessionManager INSTANCE;
+
+    private final AppDatabase database;
+    private final LocalIdentityDao identityDao;
+    private final CryptoSessionDao sessionDao;
+    private final ApiClient apiClient;
+    private final ContactKeyCache contactKeys;
+    private final UserSessionManager userSessionManager;
+    private final SecureRandom random = new SecureRandom();
+
+    // Active session per owner and contact; sessions are updated in place under the contact lock
+    private final Map<String, CryptoSession> activeSessions = new ConcurrentHashMap<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    private SessionManager(Context context) {
+        Context appContext = context.getApplicationContext();
+        database = AppDatabase.getInstance(appContext);
+        identityDao = database.localIdentityDao();
+        sessionDao = database.cryptoSessionDao();
+        apiClient = ApiClient.getInstance(appContext);
+        contactKeys = ContactKeyCache.getInstance(appContext);
+        userSessionManager = new UserSessionManager(appContext);
+    }
+
+    /**
+     * Get the session manager
+     * @param context Any context
+     * @return The singleton instance
+     */
+    public static SessionManager getInstance(@NonNull Context context) {
+        if (INSTANCE == null) {
+            synchronized (SessionManager.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new SessionManager(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Startup initializer: create the local identity and publish it if the server does not have it yet
+     * @param context Application context
+     */
+    public static void initialize(@NonNull Context context) {
+        SessionManager manager = getInstance(context);
+        if (!manager.userSessionManager.isLoggedIn()) {
+            return;
+        }
+        try {
+            manager.ensureIdentityPublished();
+        } catch (Exception e) {
+            // Retried on the next start or the first encrypted send
+            Log.e(TAG, "Failed to publish identity keys", e);
+        }
+        try {
+            manager.contactKeys.warmUp(manager.userSessionManager.getUserId());
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to warm contact key cache", e);
+        }
+    }
+
+    /**
+     * Check whether message content is an encrypted envelope
+     * @param content Message content
+     * @return true if the content was produced by {@link #encrypt(String, String)}
+     */
+    public static boolean isEnvelope(@Nullable String content) {
+        return content != null && content.startsWith(ENVELOPE_PREFIX);
+    }
+
+    /**
+     * Create the local identity key and signed prekey if needed and publish them
+     * @throws GeneralSecurityException If key generation or signing fails
+     * @throws IOException If the keys cannot be published
+     */
+    public void ensureIdentityPublished() throws GeneralSecurityException, IOException {
+        String ownerId = requireOwnerId();
+        LocalIdentity identity = getOrCreateIdentity(ownerId);
+        if (identity.isPublished()) {
+            return;
+        }
+
+        ApiClient.KeyBundle bundle = new ApiClient.KeyBundle();
+        bundle.identityKey = encode(identity.getIdentityPublicKey());
+        bundle.signedPrekey = encode(identity.getSignedPrekeyPublicKey());
+        bundle.signedPrekeySignature = encode(identity.getSignedPrekeySignature());
+        bundle.signedPrekeyId = identity.getSignedPrekeyId();
+        apiClient.registerKeys(bundle);
+        identityDao.markPublished(ownerId);
+        Log.d(TAG, "Published identity keys for " + ownerId);
+    }
+
+    /**
+     * Encrypt a message for a contact, running the handshake first if there is no session yet
+     * @param contactId Server user ID of the recipient
+     * @param plaintext Message content
+     * @return The encrypted envelope
+     * @throws GeneralSecurityException If the handshake or encryption fails
+     * @throws IOException If the handshake needs the server and the request fails
+     */
+    public String encrypt(@NonNull String contactId, @NonNull String plaintext)
+            throws GeneralSecurityException, IOException {
+        String ownerId = requireOwnerId();
+        synchronized (lockFor(ownerId, contactId)) {
+            CryptoSession session = getActiveSession(ownerId, contactId);
+            if (session == null) {
+                session = initiateSession(ownerId, contactId);
+            }
+
+            int counter = session.getSendCounter();
+            byte[] chainKey = session.getSendChainKey();
+            byte[] messageKey = SymmetricRatchet.messageKey(chainKey);
+            byte[] header = buildHeader(session.getSessionId(), counter);
+
+            // Persist the advanced chain before the ciphertext leaves, so a key is never used twice
+            session.setSendChainKey(SymmetricRatchet.nextChainKey(chainKey));
+            session.setSendCounter(counter + 1);
+            session.setUpdatedAt(System.currentTimeMillis());
+            sessionDao.update(session);
+            Arrays.fill(chainKey, (byte) 0);
+
+            try {
+                byte[] ciphertext = SymmetricRatchet.encrypt(messageKey, header,
+                        plaintext.getBytes(StandardCharsets.UTF_8));
+                ByteBuffer envelope = ByteBuffer.allocate(header.length + ciphertext.length);
+                envelope.put(header).put(ciphertext);
+                return ENVELOPE_PREFIX + Base64.encodeToString(envelope.array(), Base64.NO_WRAP);
+            } finally {
+                Arrays.fill(messageKey, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Decrypt a message from a contact, accepting the contact's handshake if the session is new
+     * @param contactId Server user ID of the sender
+     * @param envelope Encrypted envelope from {@link #encrypt(String, String)}
+     * @return The message content
+     * @throws GeneralSecurityException If the message is forged, replayed or its session is unknown
+     * @throws IOException If the handshake needs the server and the request fails
+     */
+    public String decrypt(@NonNull String contactId, @NonNull String envelope)
+            throws GeneralSecurityException, IOException {
+        ParsedEnvelope parsed = ParsedEnvelope.parse(envelope);
+        byte[] header = parsed.header;
+        byte[] data = parsed.data;
+        String sessionId = parsed.sessionId;
+        int counter = parsed.counter;
+
+        String ownerId = requireOwnerId();
+        synchronized (lockFor(ownerId, contactId)) {
+            CryptoSession session = getSession(ownerId, contactId, sessionId);
+            if (session == null) {
+                session = acceptSession(ownerId, contactId, sessionId);
+            }
+
+            if (counter < session.getReceiveCounter()) {
+                return decryptWithSkippedKey(ownerId, sessionId, counter, header, data);
+            }
+            if (counter - session.getReceiveCounter() > MAX_SKIPPED_KEYS) {
+                throw new GeneralSecurityException("Too many skipped messages in session " + sessionId);
+            }
+
+            // Walk the chain up to this message, keeping keys for the messages that have not arrived yet
+            long now = System.currentTimeMillis();
+            List<SkippedMessageKey> skipped = new ArrayList<>();
+            byte[] chainKey = session.getReceiveChainKey();
+            for (int i = session.getReceiveCounter(); i < counter; i++) {
+                SkippedMessageKey key = new SkippedMessageKey();
+                key.setOwnerId(ownerId);
+                key.setSessionId(sessionId);
+                key.setCounter(i);
+                key.setMessageKey(SymmetricRatchet.messageKey(chainKey));
+                key.setCreatedAt(now);
+                skipped.add(key);
+                chainKey = SymmetricRatchet.nextChainKey(chainKey);
+            }
+            byte[] messageKey = SymmetricRatchet.messageKey(chainKey);
+
+            // Only a message that authenticates may advance the chain
+            byte[] plaintext;
+            try {
+                plaintext = SymmetricRatchet.decrypt(messageKey, header, data, HEADER_LENGTH,
+                        data.length - HEADER_LENGTH);
+            } finally {
+                Arrays.fill(messageKey, (byte) 0);
+            }
+
+            session.setReceiveChainKey(SymmetricRatchet.nextChainKey(chainKey));
+            session.setReceiveCounter(counter + 1);
+            session.setUpdatedAt(now);
+            CryptoSession updated = session;
+            String text = new String(plaintext, StandardCharsets.UTF_8);
+            DecryptedMessage decrypted = decryptedMessage(ownerId, sessionId, counter, text, now);
+            database.runInTransaction(() -> {
+                if (!skipped.isEmpty()) {
+                    sessionDao.insertSkippedKeys(skipped);
+                }
+                sessionDao.update(updated);
+                sessionDao.insertDecryptedMessages(Collections.singletonList(decrypted));
+            });
+            return text;
+        }
+    }
+
+    private String decryptWithSkippedKey(String ownerId, String sessionId, int counter, byte[] header,
+                                         byte[] data) throws GeneralSecurityException {
+        SkippedMessageKey key = sessionDao.getSkippedKey(ownerId, sessionId, counter);
+        if (key == null) {
+            throw new GeneralSecurityException("Duplicate or expired message " + counter + " in session " + sessionId);
+        }
+        byte[] plaintext = SymmetricRatchet.decrypt(key.getMessageKey(), header, data, HEADER_LENGTH,
+                data.length - HEADER_LENGTH);
+        String text = new String(plaintext, StandardCharsets.UTF_8);
+        DecryptedMessage decrypted = decryptedMessage(ownerId, sessionId, counter, text, System.currentTimeMillis());
+        database.runInTransaction(() -> {
+            sessionDao.deleteSkippedKey(ownerId, sessionId, counter);
+            sessionDao.insertDecryptedMessages(Collections.singletonList(decrypted));
+        });
+        return text;
+    }
+
+    /**
+     * Decrypt a page of messages from a contact, e.g. conversation history.
+     * <p>
+     * Message keys depend on the chain step before them, so they are derived in order under the
+     * contact lock, but the AES-GCM work is spread over {@link BatchCrypto}'s pool. As with
+     * {@link #decrypt(String, String)}, a chain only advances past messages that authenticate,
+     * and their plaintext is stored with the new chain state. Messages decrypted before, which
+     * no longer have a key, are read back from that store instead.
+     * @param contactId Server user ID of the sender
+     * @param envelopes Encrypted envelopes in any order
+     * @return The message contents in the order of {@code envelopes}, with null for any that
+     *         could not be decrypted
+     * @throws GeneralSecurityException If not signed in
+     */
+    public List<String> decryptPage(@NonNull String contactId, @NonNull List<String> envelopes)
+            throws GeneralSecurityException {
+        String ownerId = requireOwnerId();
+        String[] results = new String[envelopes.size()];
+        Map<String, List<PageMessage>> bySession = new LinkedHashMap<>();
+        for (int i = 0; i < envelopes.size(); i++) {
+            try {
+                ParsedEnvelope parsed = ParsedEnvelope.parse(envelopes.get(i));
+                bySession.computeIfAbsent(parsed.sessionId, id -> new ArrayList<>()).add(new PageMessage(i, parsed));
+            } catch (GeneralSecurityException e) {
+                Log.w(TAG, "Skipping message " + i + " of page: " + e.getMessage());
+            }
+        }
+
+        synchronized (lockFor(ownerId, contactId)) {
+            List<PageChain> chains = new ArrayList<>(bySession.size());
+            List<PageMessage> keyed = new ArrayList<>(envelopes.size());
+            for (Map.Entry<String, List<PageMessage>> entry : bySession.entrySet()) {
+                List<PageMessage> pending = readDecrypted(ownerId, entry.getKey(), entry.getValue(), results);
+                if (pending.isEmpty()) {
+                    continue;
+                }
+                try {
+                    PageChain chain = deriveChain(ownerId, contactId, entry.getKey(), pending);
+                    chains.add(chain);
+                    for (PageMessage message : pending) {
+                        if (message.messageKey != null) {
+                            keyed.add(message);
+                        }
+                    }
+                } catch (GeneralSecurityException | IOException e) {
+                    Log.w(TAG, "Cannot decrypt page messages in session " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+
+            List<byte[]> plaintexts = BatchCrypto.getDefault().runAll(keyed,
+                    message -> SymmetricRatchet.decrypt(message.messageKey, message.envelope.header,
+                            message.envelope.data, HEADER_LENGTH, message.envelope.data.length - HEADER_LENGTH));
+            for (int i = 0; i < keyed.size(); i++) {
+                PageMessage message = keyed.get(i);
+                if (plaintexts.get(i) != null) {
+                    message.plaintext = new String(plaintexts.get(i), StandardCharsets.UTF_8);
+                    results[message.index] = message.plaintext;
+                }
+            }
+
+            for (PageChain chain : chains) {
+                commitChain(ownerId, chain);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Fill in the results of page messages whose plaintext was stored when they were first decrypted
+     * @return The messages of the session that still need a key
+     */
+    private List<PageMessage> readDecrypted(String ownerId, String sessionId, List<PageMessage> messages,
+                                            String[] results) {
+        List<Integer> counters = new ArrayList<>(messages.size());
+        for (PageMessage message : messages) {
+            counters.add(message.envelope.counter);
+        }
+        Map<Integer, String> stored = new HashMap<>();
+        for (DecryptedMessage decrypted : sessionDao.getDecryptedMessages(ownerId, sessionId, counters)) {
+            stored.put(decrypted.getCounter(), decrypted.getPlaintext());
+        }
+        if (stored.isEmpty()) {
+            return messages;
+        }
+        List<PageMessage> pending = new ArrayList<>(messages.size() - stored.size());
+        for (PageMessage message : messages) {
+            String plaintext = stored.get(message.envelope.counter);
+            if (plaintext != null) {
+                results[message.index] = plaintext;
+            } else {
+                pending.add(message);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Find the key of every message in one session of a page: stored skipped keys for
+     * earlier messages, and a walk of the receive chain for the rest
+     */
+    private PageChain deriveChain(String ownerId, String contactId, String sessionId, List<PageMessage> messages)
+            throws GeneralSecurityException, IOException {
+        CryptoSession session = getSession(ownerId, contactId, sessionId);
+        if (session == null) {
+            session = acceptSession(ownerId, contactId, sessionId);
+        }
+        int base = session.getReceiveCounter();
+        int last = base - 1;
+        for (PageMessage message : messages) {
+            int counter = message.envelope.counter;
+            if (counter < base) {
+                SkippedMessageKey key = sessionDao.getSkippedKey(ownerId, sessionId, counter);
+                if (key != null) {
+                    message.messageKey = key.getMessageKey();
+                    message.skipped = true;
+                }
+            } else if (counter - base <= MAX_SKIPPED_KEYS) {
+                last = Math.max(last, counter);
+            }
+        }
+
+        PageChain chain = new PageChain(session, messages, last - base + 1);
+        byte[] chainKey = session.getReceiveChainKey();
+        for (int i = 0; i < chain.messageKeys.length; i++) {
+            chain.messageKeys[i] = SymmetricRatchet.messageKey(chainKey);
+            chainKey = SymmetricRatchet.nextChainKey(chainKey);
+            chain.nextChainKeys[i] = chainKey;
+        }
+        for (PageMessage message : messages) {
+            int step = message.envelope.counter - base;
+            if (step >= 0 && step < chain.messageKeys.length) {
+                message.messageKey = chain.messageKeys[step];
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Advance a session past the last page message that authenticated, keeping keys for the
+     * steps before it that did not, drop the skipped keys that were used and store the plaintexts
+     */
+    private void commitChain(String ownerId, PageChain chain) {
+        CryptoSession session = chain.session;
+        String sessionId = session.getSessionId();
+        int base = session.getReceiveCounter();
+        boolean[] authenticated = new boolean[chain.messageKeys.length];
+        int last = -1;
+        long now = System.currentTimeMillis();
+        List<Integer> usedSkippedKeys = new ArrayList<>();
+        List<DecryptedMessage> decrypted = new ArrayList<>();
+        for (PageMessage message : chain.messages) {
+            if (message.plaintext == null) {
+                continue;
+            }
+            decrypted.add(decryptedMessage(ownerId, sessionId, message.envelope.counter, message.plaintext, now));
+            if (message.skipped) {
+                usedSkippedKeys.add(message.envelope.counter);
+            } else {
+                int step = message.envelope.counter - base;
+                authenticated[step] = true;
+                last = Math.max(last, step);
+            }
+        }
+
+        List<SkippedMessageKey> skipped = new ArrayList<>();
+        for (int step = 0; step < last; step++) {
+            if (!authenticated[step]) {
+                SkippedMessageKey key = new SkippedMessageKey();
+                key.setOwnerId(ownerId);
+                key.setSessionId(sessionId);
+                key.setCounter(base + step);
+                key.setMessageKey(chain.messageKeys[step].clone());
+                key.setCreatedAt(now);
+                skipped.add(key);
+            }
+        }
+        if (last >= 0) {
+            session.setReceiveChainKey(chain.nextChainKeys[last]);
+            session.setReceiveCounter(base + last + 1);
+            session.setUpdatedAt(now);
+        }
+        for (int step = 0; step < chain.messageKeys.length; step++) {
+            Arrays.fill(chain.messageKeys[step], (byte) 0);
+            if (step != last) {
+                Arrays.fill(chain.nextChainKeys[step], (byte) 0);
+            }
+        }
+        if (last < 0 && usedSkippedKeys.isEmpty()) {
+            return;
+        }
+
+        boolean advanced = last >= 0;
+        database.runInTransaction(() -> {
+            if (!skipped.isEmpty()) {
+                sessionDao.insertSkippedKeys(skipped);
+            }
+            for (int counter : usedSkippedKeys) {
+                sessionDao.deleteSkippedKey(ownerId, sessionId, counter);
+            }
+            if (advanced) {
+                sessionDao.update(session);
+            }
+            sessionDao.insertDecryptedMessages(decrypted);
+        });
+    }
+
+    private static DecryptedMessage decryptedMessage(String ownerId, String sessionId, int counter,
+                                                     String plaintext, long now) {
+        DecryptedMessage message = new DecryptedMessage();
+        message.setOwnerId(ownerId);
+        message.setSessionId(sessionId);
+        message.setCounter(counter);
+        message.setPlaintext(plaintext);
+        message.setCreatedAt(now);
+        return message;
+    }
+
+    /**
+     * Run the handshake as initiator and store the new session as active
+     */
+    private CryptoSession initiateSession(String ownerId, String contactId)
+            throws GeneralSecurityException, IOException {
+        long start = System.currentTimeMillis();
+        // The responder verifies our handshake signature against the published identity key
+        ensureIdentityPublished();
+        LocalIdentity identity = getOrCreateIdentity(ownerId);
+
+        // Verified when the bundle was fetched; refetched if it may be older than a key rotation
+        ContactKeyCache.ContactKeys keys = contactKeys.getKeys(ownerId, contactId, ContactKeyCache.MAX_AGE_MS);
+
+        PQCProvider.KyberEncapsulationResult signedPrekeyKem = requireKem(PQCProvider.encapsulateKey(keys.signedPrekey));
+        ApiClient.PreKey oneTimePrekey = apiClient.claimPreKey(contactId);
+        PQCProvider.KyberEncapsulationResult oneTimePrekeyKem = oneTimePrekey != null
+                ? requireKem(PQCProvider.encapsulateKey(decode(oneTimePrekey.prekey)))
+                : null;
+
+        Handshake handshake = new Handshake();
+        handshake.initiatorId = ownerId;
+        handshake.responderId = contactId;
+        handshake.signedPrekeyId = keys.signedPrekeyId;
+        handshake.signedPrekeyCiphertext = signedPrekeyKem.getCiphertext();
+        if (oneTimePrekeyKem != null) {
+            handshake.prekeyId = oneTimePrekey.prekeyId;
+            handshake.prekeyCiphertext = oneTimePrekeyKem.getCiphertext();
+        }
+        byte[] signature = PQCProvider.sign(identity.getIdentityPrivateKey(), handshake.transcript());
+        if (signature == null) {
+            throw new GeneralSecurityException("Failed to sign handshake");
+        }
+        handshake.signature = signature;
+
+        CryptoSession session = deriveSession(ownerId, contactId, true, handshake,
+                signedPrekeyKem.getSharedSecret(),
+                oneTimePrekeyKem != null ? oneTimePrekeyKem.getSharedSecret() : null);
+
+        // The responder can only read our first message once the handshake is on the server
+        apiClient.storeSession(contactId, handshake.toJson());
+        sessionDao.insertActive(session);
+        sessionDao.pruneInactiveSessions(ownerId, contactId, INACTIVE_SESSIONS_KEPT);
+        activeSessions.put(cacheKey(ownerId, contactId), session);
+        Log.d(TAG, "Established session " + session.getSessionId() + " with " + contactId
+                + (oneTimePrekey != null ? " using one-time prekey " + oneTimePrekey.prekeyId : "")
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+        return session;
+    }
+
+    /**
+     * Fetch and verify the handshake a contact ran with us and store the resulting session
+     */
+    private CryptoSession acceptSession(String ownerId, String contactId, String sessionId)
+            throws GeneralSecurityException, IOException {
+        String sessionData = apiClient.getIncomingSession(contactId);
+        if (sessionData == null) {
+            throw new GeneralSecurityException("No handshake from " + contactId);
+        }
+        Handshake handshake = Handshake.fromJson(sessionData);
+        if (!sessionId.equals(handshake.sessionId())) {
+            // The contact started a newer session; this message belongs to one we never saw
+            throw new GeneralSecurityException("Handshake for session " + sessionId + " no longer available");
+        }
+        if (!ownerId.equals(handshake.responderId) || !contactId.equals(handshake.initiatorId)) {
+            throw new GeneralSecurityException("Handshake addressed to someone else");
+        }
+
+        ContactKeyCache.ContactKeys initiatorKeys = contactKeys.getKeys(ownerId, contactId, Long.MAX_VALUE);
+        if (!BatchCrypto.getDefault().verify(initiatorKeys.identityKey, handshake.transcript(), handshake.signature)) {
+            // The contact may have a new identity key we have not heard about yet
+            initiatorKeys = contactKeys.getKeys(ownerId, contactId, 0);
+            if (!BatchCrypto.getDefault().verify(initiatorKeys.identityKey, handshake.transcript(), handshake.signature)) {
+                throw new GeneralSecurityException("Invalid handshake signature from " + contactId);
+            }
+        }
+
+        LocalIdentity identity = identityDao.getIdentity(ownerId);
+        if (identity == null || identity.getSignedPrekeyId() != handshake.signedPrekeyId) {
+            throw new GeneralSecurityException("Handshake uses unknown signed prekey " + handshake.signedPrekeyId);
+        }
+        byte[] signedPrekeySecret = requireSecret(PQCProvider.decapsulateKey(
+                identity.getSignedPrekeyPrivateKey(), handshake.signedPrekeyCiphertext));
+
+        byte[] oneTimePrekeySecret = null;
+        if (handshake.prekeyId != null) {
+            OneTimePreKeyRecord prekey = identityDao.getPreKey(ownerId, handshake.prekeyId);
+            if (prekey == null) {
+                throw new GeneralSecurityException("One-time prekey " + handshake.prekeyId + " already used");
+            }
+            oneTimePrekeySecret = requireSecret(PQCProvider.decapsulateKey(
+                    prekey.getPrivateKey(), handshake.prekeyCiphertext));
+        }
+
+        CryptoSession session = deriveSession(ownerId, contactId, false, handshake,
+                signedPrekeySecret, oneTimePrekeySecret);
+
+        // If both sides started a session at once, both end up sending on the lower session ID
+        CryptoSession active = getActiveSession(ownerId, contactId);
+        boolean makeActive = active == null || !active.isInitiator()
+                || session.getSessionId().compareTo(active.getSessionId()) < 0;
+        Integer consumedPrekey = handshake.prekeyId;
+        database.runInTransaction(() -> {
+            if (consumedPrekey != null) {
+                identityDao.deletePreKey(ownerId, consumedPrekey);
+            }
+            if (makeActive) {
+                sessionDao.insertActive(session);
+            } else {
+                sessionDao.insert(session);
+            }
+            sessionDao.pruneInactiveSessions(ownerId, contactId, INACTIVE_SESSIONS_KEPT);
+        });
+        if (makeActive) {
+            activeSessions.put(cacheKey(ownerId, contactId), session);
+        }
+        Log.d(TAG, "Accepted session " + sessionId + " from " + contactId + (makeActive ? " (active)" : ""));
+        return session;
+    }
+
+    /**
+     * Derive the root key and both chain keys from the KEM shared secrets
+     */
+    private CryptoSession deriveSession(String ownerId, String contactId, boolean initiator, Handshake handshake,
+                                        byte[] signedPrekeySecret, @Nullable byte[] oneTimePrekeySecret)
+            throws GeneralSecurityException {
+        ByteArrayOutputStream ikm = new ByteArrayOutputStream();
+        ikm.write(signedPrekeySecret, 0, signedPrekeySecret.length);
+        if (oneTimePrekeySecret != null) {
+            ikm.write(oneTimePrekeySecret, 0, oneTimePrekeySecret.length);
+        }
+        byte[] secret = ikm.toByteArray();
+        byte[] keys = Hkdf.derive(handshake.ciphertextDigest(), secret,
+                concat(SESSION_INFO, handshake.participants()), 3 * SymmetricRatchet.CHAIN_KEY_LENGTH);
+        Arrays.fill(secret, (byte) 0);
+        Arrays.fill(signedPrekeySecret, (byte) 0);
+        if (oneTimePrekeySecret != null) {
+            Arrays.fill(oneTimePrekeySecret, (byte) 0);
+        }
+
+        int length = SymmetricRatchet.CHAIN_KEY_LENGTH;
+        byte[] initiatorChain = Arrays.copyOfRange(keys, length, 2 * length);
+        byte[] responderChain = Arrays.copyOfRange(keys, 2 * length, 3 * length);
+
+        long now = System.currentTimeMillis();
+        CryptoSession session = new CryptoSession();
+        session.setOwnerId(ownerId);
+        session.setContactId(contactId);
+        session.setSessionId(handshake.sessionId());
+        session.setInitiator(initiator);
+        session.setRootKey(Arrays.copyOf(keys, length));
+        session.setSendChainKey(initiator ? initiatorChain : responderChain);
+        session.setReceiveChainKey(initiator ? responderChain : initiatorChain);
+        session.setCreatedAt(now);
+        session.setUpdatedAt(now);
+        Arrays.fill(keys, (byte) 0);
+        return session;
+    }
+
+    private LocalIdentity getOrCreateIdentity(String ownerId) throws GeneralSecurityException {
+        synchronized (lockFor(ownerId, "")) {
+            LocalIdentity identity = identityDao.getIdentity(ownerId);
+            if (identity != null) {
+                return identity;
+            }
+
+            PQCProvider.DilithiumKeyPair identityKeyPair = PQCProvider.generateDilithiumKeyPair();
+            PQCProvider.KyberKeyPair signedPrekeyPair = PQCProvider.generateKyberKeyPair();
+            if (identityKeyPair == null || signedPrekeyPair == null) {
+                throw new GeneralSecurityException("Failed to generate identity keys");
+            }
+            byte[] signature = PQCProvider.sign(identityKeyPair.getPrivateKey(), signedPrekeyPair.getPublicKey());
+            if (signature == null) {
+                throw new GeneralSecurityException("Failed to sign prekey");
+            }
+
+            identity = new LocalIdentity();
+            identity.setUserId(ownerId);
+            identity.setIdentityPublicKey(identityKeyPair.getPublicKey());
+            identity.setIdentityPrivateKey(identityKeyPair.getPrivateKey());
+            identity.setSignedPrekeyId(random.nextInt(Integer.MAX_VALUE));
+            identity.setSignedPrekeyPublicKey(signedPrekeyPair.getPublicKey());
+            identity.setSignedPrekeyPrivateKey(signedPrekeyPair.getPrivateKey());
+            identity.setSignedPrekeySignature(signature);
+            identity.setCreatedAt(System.currentTimeMillis());
+            identityDao.insert(identity);
+            Log.d(TAG, "Generated identity keys for " + ownerId);
+            return identity;
+        }
+    }
+
+    @Nullable
+    private CryptoSession getActiveSession(String ownerId, String contactId) {
+        String key = cacheKey(ownerId, contactId);
+        CryptoSession session = activeSessions.get(key);
+        if (session == null) {
+            session = sessionDao.getActiveSession(ownerId, contactId);
+            if (session != null) {
+                activeSessions.put(key, session);
+            }
+        }
+        return session;
+    }
+
+    @Nullable
+    private CryptoSession getSession(String ownerId, String contactId, String sessionId) {
+        CryptoSession active = getActiveSession(ownerId, contactId);
+        if (active != null && active.getSessionId().equals(sessionId)) {
+            return active;
+        }
+        return sessionDao.getSession(ownerId, contactId, sessionId);
+    }
+
+    private String requireOwnerId() throws GeneralSecurityException {
+        String ownerId = userSessionManager.getUserId();
+        if (ownerId == null || ownerId.isEmpty()) {
+            throw new GeneralSecurityException("Not signed in");
+        }
+        return ownerId;
+    }
+
+    private Object lockFor(String ownerId, String contactId) {
+        return locks.computeIfAbsent(cacheKey(ownerId, contactId), key -> new Object());
+    }
+
+    private static String cacheKey(String ownerId, String contactId) {
+        return ownerId + "/" + contactId;
+    }
+
+    private static byte[] buildHeader(String sessionId, int counter) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(ENVELOPE_VERSION);
+        for (int i = 0; i < SESSION_ID_LENGTH; i++) {
+            header.put((byte) Integer.parseInt(sessionId.substring(i * 2, i * 2 + 2), 16));
+        }
+        header.putInt(counter);
+        return header.array();
+    }
+
+    private static PQCProvider.KyberEncapsulationResult requireKem(
+            @Nullable PQCProvider.KyberEncapsulationResult result) throws GeneralSecurityException {
+        if (result == null) {
+            throw new GeneralSecurityException("Kyber encapsulation failed");
+        }
+        return result;
+    }
+
+    private static byte[] requireSecret(@Nullable byte[] secret) throws GeneralSecurityException {
+        if (secret == null) {
+            throw new GeneralSecurityException("Kyber decapsulation failed");
+        }
+        return secret;
+    }
+
+    private static String encode(byte[] data) {
+        return Base64.encodeToString(data, Base64.NO_WRAP);
+    }
+
+    private static byte[] decode(String data) throws GeneralSecurityException {
+        if (data == null) {
+            throw new GeneralSecurityException("Missing key material");
+        }
+        try {
+            return Base64.decode(data, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed key material", e);
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static String toHex(byte[] data, int offset, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            hex.append(Character.forDigit((data[i] >> 4) & 0x0F, 16));
+            hex.append(Character.forDigit(data[i] & 0x0F, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The header and body of an encrypted envelope
+     */
+    private static final class ParsedEnvelope {
+        final byte[] header;
+        final byte[] data;
+        final String sessionId;
+        final int counter;
+
+        private ParsedEnvelope(byte[] header, byte[] data, String sessionId, int counter) {
+            this.header = header;
+            this.data = data;
+            this.sessionId = sessionId;
+            this.counter = counter;
+        }
+
+        static ParsedEnvelope parse(String envelope) throws GeneralSecurityException {
+            if (!isEnvelope(envelope)) {
+                throw new GeneralSecurityException("Not an encrypted envelope");
+            }
+            byte[] data;
+            try {
+                data = Base64.decode(envelope.substring(ENVELOPE_PREFIX.length()), Base64.NO_WRAP);
+            } catch (IllegalArgumentException e) {
+                throw new GeneralSecurityException("Malformed envelope", e);
+            }
+            if (data.length <= HEADER_LENGTH || data[0] != ENVELOPE_VERSION) {
+                throw new GeneralSecurityException("Unsupported envelope");
+            }
+            byte[] header = Arrays.copyOf(data, HEADER_LENGTH);
+            int counter = ByteBuffer.wrap(header, 1 + SESSION_ID_LENGTH, 4).getInt();
+            if (counter < 0) {
+                throw new GeneralSecurityException("Invalid message counter");
+            }
+            return new ParsedEnvelope(header, data, toHex(header, 1, SESSION_ID_LENGTH), counter);
+        }
+    }
+
+    /**
+     * A message of a page being decrypted in a batch
+     */
+    private static final class PageMessage {
+        final int index;
+        final ParsedEnvelope envelope;
+        byte[] messageKey;
+        boolean skipped;
+        String plaintext;
+
+        PageMessage(int index, ParsedEnvelope envelope) {
+            this.index = index;
+            this.envelope = envelope;
+        }
+    }
+
+    /**
+     * Receive chain steps derived for one session of a page; step i is counter receiveCounter + i
+     */
+    private static final class PageChain {
+        final CryptoSession session;
+        final List<PageMessage> messages;
+        final byte[][] messageKeys;
+        final byte[][] nextChainKeys;
+
+        PageChain(CryptoSession session, List<PageMessage> messages, int steps) {
+            this.session = session;
+            this.messages = messages;
+            this.messageKeys = new byte[steps][];
+            this.nextChainKeys = new byte[steps][];
+        }
+    }
+
+    /**
+     * Public part of a handshake, exchanged through {@code /api/crypto/sessions}
+     */
+    private static final class Handshake {
+        String initiatorId;
+        String responderId;
+        int signedPrekeyId;
+        byte[] signedPrekeyCiphertext;
+        Integer prekeyId;
+        byte[] prekeyCiphertext;
+        byte[] signature;
+
+        /**
+         * Salt for the key derivation: a digest over every KEM ciphertext
+         */
+        byte[] ciphertextDigest() throws GeneralSecurityException {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(signedPrekeyCiphertext);
+            if (prekeyCiphertext != null) {
+                digest.update(prekeyCiphertext);
+            }
+            return digest.digest();
+        }
+
+        String sessionId() throws GeneralSecurityException {
+            return toHex(ciphertextDigest(), 0, SESSION_ID_LENGTH);
+        }
+
+        byte[] participants() {
+            return (initiatorId + "\u0000" + responderId).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Bytes signed by the initiator's identity key
+         */
+        byte[] transcript() throws GeneralSecurityException {
+            ByteBuffer ids = ByteBuffer.allocate(8).putInt(signedPrekeyId).putInt(prekeyId != null ? prekeyId : -1);
+            return concat(concat(HANDSHAKE_CONTEXT, participants()), concat(ids.array(), ciphertextDigest()));
+        }
+
+        String toJson() throws GeneralSecurityException {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("v", HANDSHAKE_VERSION);
+                json.put("initiatorId", initiatorId);
+                json.put("responderId", responderId);
+                json.put("signedPrekeyId", signedPrekeyId);
+                json.put("signedPrekeyCiphertext", encode(signedPrekeyCiphertext));
+                if (prekeyId != null) {
+                    json.put("prekeyId", prekeyId);
+                    json.put("prekeyCiphertext", encode(prekeyCiphertext));
+                }
+                json.put("signature", encode(signature));
+                return json.toString();
+            } catch (JSONException e) {
+                throw new GeneralSecurityException("Failed to encode handshake", e);
+            }
+        }
+
+        static Handshake fromJson(String sessionData) throws GeneralSecurityException {
+            try {
+                JSONObject json = new JSONObject(sessionData);
+                if (json.getInt("v") != HANDSHAKE_VERSION) {
+                    throw new GeneralSecurityException("Unsupported handshake version " + json.getInt("v"));
+                }
+                Handshake handshake = new Handshake();
+                handshake.initiatorId = json.getString("initiatorId");
+                handshake.responderId = json.getString("responderId");
+                handshake.signedPrekeyId = json.getInt("signedPrekeyId");
+                handshake.signedPrekeyCiphertext = decode(json.getString("signedPrekeyCiphertext"));
+                if (json.has("prekeyId")) {
+                    handshake.prekeyId = json.getInt("prekeyId");
+                    handshake.prekeyCiphertext = decode(json.getString("prekeyCiphertext"));
+                }
+                handshake.signature = decode(json.getString("signature"));
+                return handshake;
+            } catch (JSONException e) {
+                throw new GeneralSecurityException("Malformed handshake", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.nekkochan.onyxchat.crypto;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chunked AES-256-GCM for attachments too large to hold in memory, using the STREAM
+ * construction of Hoang, Reyhanitabar, Rogaway and Vizar.
+ * <p>
+ * A stream starts with a header of one version byte and a random 7-byte nonce prefix,
+ * followed by chunks of {@link #CHUNK_SIZE} plaintext bytes, each sealed with a 16-byte tag.
+ * The nonce of chunk {@code i} is the prefix, {@code i} as a 32-bit big-endian counter and a
+ * final-chunk flag, and the header is the associated data of every chunk. Chunks therefore
+ * cannot be reordered, dropped, moved to another stream or cut off at a chunk boundary.
+ * Only the final chunk is shorter than a full chunk, and it may be empty.
+ * <p>
+ * Both directions work one chunk at a time, so memory use does not depend on the attachment size.
+ */
+public final class StreamingAead {
+    public static final int KEY_SIZE = 32;
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int HEADER_SIZE = 8;
+
+    private static final byte VERSION = 1;
+    private static final int NONCE_PREFIX_SIZE = HEADER_SIZE - 1;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int SEALED_CHUNK_SIZE = CHUNK_SIZE + TAG_SIZE;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private StreamingAead() {
+    }
+
+    /**
+     * Generate a random attachment key
+     * @return A new AES-256 key
+     */
+    public static byte[] generateKey() {
+        byte[] key = new byte[KEY_SIZE];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Get the encrypted size of a plaintext, e.g. for a Content-Length header
+     * @param plaintextSize Plaintext size in bytes
+     * @return Encrypted size in bytes
+     */
+    public static long ciphertextSize(long plaintextSize) {
+        return HEADER_SIZE + plaintextSize + (plaintextSize / CHUNK_SIZE + 1) * TAG_SIZE;
+    }
+
+    /**
+     * Get the plaintext size of an encrypted stream
+     * @param ciphertextSize Encrypted size in bytes
+     * @return Plaintext size in bytes, or -1 if no valid stream has this size
+     */
+    public static long plaintextSize(long ciphertextSize) {
+        long body = ciphertextSize - HEADER_SIZE;
+        if (body < TAG_SIZE) {
+            return -1;
+        }
+        long finalChunk = body % SEALED_CHUNK_SIZE;
+        if (finalChunk < TAG_SIZE) {
+            return -1;
+        }
+        return body / SEALED_CHUNK_SIZE * CHUNK_SIZE + finalChunk - TAG_SIZE;
+    }
+
+    /**
+     * Seals or opens the chunks of one stream
+     */
+    private static final class ChunkCipher {
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] header;
+        private final byte[] nonce = new byte[NONCE_SIZE];
+        private int counter;
+
+        ChunkCipher(byte[] key, byte[] header) throws IOException {
+            if (key == null || key.length != KEY_SIZE) {
+                throw new IllegalArgumentException("Attachment key must be " + KEY_SIZE + " bytes");
+            }
+            try {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM unavailable", e);
+            }
+            this.key = new SecretKeySpec(key, "AES");
+            this.header = header;
+            System.arraycopy(header, 1, nonce, 0, NONCE_PREFIX_SIZE);
+        }
+
+        int process(int mode, byte[] input, int length, byte[] output, boolean last) throws IOException {
+            if (counter < 0) {
+                throw new IOException("Attachment has too many chunks");
+            }
+            nonce[NONCE_PREFIX_SIZE] = (byte) (counter >>> 24);
+            nonce[NONCE_PREFIX_SIZE + 1] = (byte) (counter >>> 16);
+            nonce[NONCE_PREFIX_SIZE + 2] = (byte) (counter >>> 8);
+            nonce[NONCE_PREFIX_SIZE + 3] = (byte) counter;
+            nonce[NONCE_SIZE - 1] = (byte) (last ? 1 : 0);
+            try {
+                cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                cipher.updateAAD(header);
+                int written = cipher.doFinal(input, 0, length, output, 0);
+                counter++;
+                return written;
+            } catch (GeneralSecurityException e) {
+                throw new IOException(mode == Cipher.DECRYPT_MODE
+                        ? "Attachment chunk " + counter + " failed authentication"
+                        : "Attachment chunk " + counter + " could not be sealed", e);
+            }
+        }
+    }
+
+    /**
+     * Encrypts everything written to it into the underlying stream.
+     * {@link #finish()} or {@link #close()} must be called to write the final chunk.
+     */
+    public static final class EncryptingOutputStream extends FilterOutputStream {
+        private final byte[] key;
+        private final byte[] plaintext = new byte[CHUNK_SIZE];
+        private final byte[] sealed = new byte[SEALED_CHUNK_SIZE];
+        private ChunkCipher chunkCipher;
+        private int buffered;
+        private boolean finished;
+
+        /**
+         * @param out Stream receiving the encrypted attachment
+         * @param key Attachment key from {@link #generateKey()}
+         */
+        public EncryptingOutputStream(@NonNull OutputStream out, @NonNull byte[] key) {
+            super(out);
+            this.key = key.clone();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Stream already finished");
+            }
+            start();
+            while (len > 0) {
+                int count = Math.min(len, CHUNK_SIZE - buffered);
+                System.arraycopy(b, off, plaintext, buffered, count);
+                buffered += count;
+                off += count;
+                len -= count;
+                // A full chunk is never the final one, so it can go out right away
+                if (buffered == CHUNK_SIZE) {
+                    sealChunk(false);
+                }
+            }
+        }
+
+        /**
+         * Write the final chunk without closing the underlying stream
+         */
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            start();
+            sealChunk(true);
+            finished = true;
+            Arrays.fill(plaintext, (byte) 0);
+            Arrays.fill(key, (byte) 0);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void start() throws IOException {
+            if (chunkCipher != null) {
+                return;
+            }
+            byte[] header = new byte[HEADER_SIZE];
+            RANDOM.nextBytes(header);
+            header[0] = VERSION;
+            chunkCipher = new ChunkCipher(key, header);
+            out.write(header);
+        }
+
+        private void sealChunk(boolean last) throws IOException {
+            int length = chunkCipher.process(Cipher.ENCRYPT_MODE, plaintext, buffered, sealed, last);
+            out.write(sealed, 0, length);
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Decrypts an encrypted attachment as it is read. Each chunk is authenticated before any
+     * of its bytes are returned, so a partially downloaded attachment can be consumed safely;
+     * a stream that was truncated or extended fails with an {@link IOException} at its end.
+     */
+    public static final class DecryptingInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] key;
+        private final byte[] sealed = new byte[SEALED_CHUNK_SIZE];
+        private final byte[] plaintext = new byte[CHUNK_SIZE];
+        private ChunkCipher chunkCipher;
+        private int position;
+        private int limit;
+        private boolean last;
+
+        /**
+         * @param in Stream with the encrypted attachment
+         * @param key Attachment key
+         */
+        public DecryptingInputStream(@NonNull InputStream in, @NonNull byte[] key) {
+            this.in = in;
+            this.key = key.clone();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (last) {
+                    return -1;
+                }
+                openChunk();
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(plaintext, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(plaintext, (byte) 0);
+            Arrays.fill(key, (byte) 0);
+            in.close();
+        }
+
+        private void openChunk() throws IOException {
+            if (chunkCipher == null) {
+                byte[] header = new byte[HEADER_SIZE];
+                if (readFully(header) != HEADER_SIZE || header[0] != VERSION) {
+                    throw new IOException("Not an encrypted attachment");
+                }
+                chunkCipher = new ChunkCipher(key, header);
+            }
+            int length = readFully(sealed);
+            // Only the final chunk is short; a full one is always followed by another
+            last = length < SEALED_CHUNK_SIZE;
+            if (last) {
+                if (length < TAG_SIZE) {
+                    throw new EOFException("Encrypted attachment is truncated");
+                }
+                if (in.read() != -1) {
+                    throw new IOException("Unexpected data after the final chunk");
+                }
+            }
+            limit = chunkCipher.process(Cipher.DECRYPT_MODE, sealed, length, plaintext, last);
+            position = 0;
+        }
+
+        private int readFully(byte[] buffer) throws IOException {
+            int total = 0;
+            while (total < buffer.length) {
+                int count = in.read(buffer, total, buffer.length - total);
+                if (count == -1) {
+                    break;
+                }
+                total += count;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.nekkochan.onyxchat.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC-based symmetric key ratchet.
+ * <p>
+ * Each step turns the current chain key into a one-time message key and the next
+ * chain key, so a message costs two HMACs, one HKDF expand and one AES-GCM operation
+ * instead of a KEM encapsulation. Chain keys only move forward: a compromised chain
+ * key does not reveal the keys of earlier messages.
+ */
+final class SymmetricRatchet {
+    static final int CHAIN_KEY_LENGTH = 32;
+    private static final int AES_KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    static final int MESSAGE_KEY_LENGTH = AES_KEY_LENGTH + NONCE_LENGTH;
+    private static final int GCM_TAG_BITS = 128;
+
+    private static final byte[] MESSAGE_KEY_SEED = {0x01};
+    private static final byte[] CHAIN_KEY_SEED = {0x02};
+    private static final byte[] MESSAGE_KEY_INFO = "OnyxChat message key".getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException("AES-GCM not available", e);
+        }
+    });
+
+    private SymmetricRatchet() {
+    }
+
+    /**
+     * Derive the message key for the current step: an AES-256 key followed by a GCM nonce.
+     * The nonce can be fixed because every key is used for exactly one message.
+     */
+    static byte[] messageKey(byte[] chainKey) throws GeneralSecurityException {
+        byte[] seed = Hkdf.hmac(chainKey, MESSAGE_KEY_SEED);
+        try {
+            return Hkdf.expand(seed, MESSAGE_KEY_INFO, MESSAGE_KEY_LENGTH);
+        } finally {
+            Arrays.fill(seed, (byte) 0);
+        }
+    }
+
+    /**
+     * Advance the chain by one step
+     */
+    static byte[] nextChainKey(byte[] chainKey) throws GeneralSecurityException {
+        return Hkdf.hmac(chainKey, CHAIN_KEY_SEED);
+    }
+
+    static byte[] encrypt(byte[] messageKey, byte[] associatedData, byte[] plaintext) throws GeneralSecurityException {
+        Cipher cipher = init(Cipher.ENCRYPT_MODE, messageKey);
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(plaintext);
+    }
+
+    static byte[] decrypt(byte[] messageKey, byte[] associatedData, byte[] ciphertext, int offset, int length)
+            throws GeneralSecurityException {
+        Cipher cipher = init(Cipher.DECRYPT_MODE, messageKey);
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(ciphertext, offset, length);
+    }
+
+    private static Cipher init(int mode, byte[] messageKey) throws GeneralSecurityException {
+        Cipher cipher = CIPHER.get();
+        cipher.init(mode, new SecretKeySpec(messageKey, 0, AES_KEY_LENGTH, "AES"),
+                new GCMParameterSpec(GCM_TAG_BITS, messageKey, AES_KEY_LENGTH, NONCE_LENGTH));
+        return cipher;
+    }
+}
@@ -0,0 +1,153 @@
+package com.nekkochan.onyxchat.crypto;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Base64 at the wire boundary for the direct buffer crypto path.
+ * <p>
+ * Decodes straight from the received string into a (pooled) direct buffer and encodes
+ * straight from one into the outgoing string, so ciphertext stays binary everywhere
+ * in between. Uses the standard alphabet with padding and no line breaks, matching
+ * {@code Base64.NO_WRAP} used elsewhere in the app.
+ */
+public final class WireCodec {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] DECODE = new int[128];
+
+    static {
+        Arrays.fill(DECODE, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = i;
+        }
+    }
+
+    private WireCodec() {
+    }
+
+    /**
+     * Get the number of bytes a Base64 range decodes to
+     * @param encoded The encoded text
+     * @param start Index of the first Base64 character
+     * @return The decoded length, or -1 if the range is not a whole number of quanta
+     */
+    public static int decodedLength(@NonNull CharSequence encoded, int start) {
+        int length = encoded.length() - start;
+        if (length < 0 || length % 4 != 0) {
+            return -1;
+        }
+        int padding = 0;
+        if (length > 0 && encoded.charAt(encoded.length() - 1) == '=') {
+            padding++;
+            if (encoded.charAt(encoded.length() - 2) == '=') {
+                padding++;
+            }
+        }
+        return length / 4 * 3 - padding;
+    }
+
+    /**
+     * Get the number of Base64 characters needed for a number of bytes
+     * @param length The number of bytes
+     * @return The encoded length including padding
+     */
+    public static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Decode Base64 text into a buffer without intermediate arrays or strings
+     * @param encoded The encoded text
+     * @param start Index of the first Base64 character, e.g. after an envelope prefix
+     * @param output Buffer to write into at its position; the position is advanced
+     * @return The number of bytes written, or -1 if the text is malformed or does not fit
+     */
+    public static int decode(@NonNull CharSequence encoded, int start, @NonNull ByteBuffer output) {
+        int decodedLength = decodedLength(encoded, start);
+        if (decodedLength < 0 || output.remaining() < decodedLength) {
+            return -1;
+        }
+        int outputStart = output.position();
+        int end = encoded.length();
+        for (int i = start; i < end; i += 4) {
+            int a = value(encoded.charAt(i));
+            int b = value(encoded.charAt(i + 1));
+            char c = encoded.charAt(i + 2);
+            char d = encoded.charAt(i + 3);
+            if (a < 0 || b < 0) {
+                output.position(outputStart);
+                return -1;
+            }
+            output.put((byte) (a << 2 | b >> 4));
+            if (c == '=') {
+                if (d != '=' || i + 4 != end) {
+                    output.position(outputStart);
+                    return -1;
+                }
+                break;
+            }
+            int cv = value(c);
+            if (cv < 0) {
+                output.position(outputStart);
+                return -1;
+            }
+            output.put((byte) (b << 4 | cv >> 2));
+            if (d == '=') {
+                if (i + 4 != end) {
+                    output.position(outputStart);
+                    return -1;
+                }
+                break;
+            }
+            int dv = value(d);
+            if (dv < 0) {
+                output.position(outputStart);
+                return -1;
+            }
+            output.put((byte) (cv << 6 | dv));
+        }
+        return output.position() - outputStart;
+    }
+
+    /**
+     * Append the Base64 encoding of the bytes between a buffer's position and limit.
+     * The buffer's position is not changed.
+     * @param input The bytes to encode
+     * @param output Destination, typically a reused {@link StringBuilder} holding an envelope prefix
+     * @return The destination
+     */
+    @NonNull
+    public static StringBuilder encode(@NonNull ByteBuffer input, @NonNull StringBuilder output) {
+        output.ensureCapacity(output.length() + encodedLength(input.remaining()));
+        int i = input.position();
+        int end = input.limit();
+        for (; i + 3 <= end; i += 3) {
+            int bits = (input.get(i) & 0xff) << 16 | (input.get(i + 1) & 0xff) << 8 | (input.get(i + 2) & 0xff);
+            output.append(ALPHABET[bits >>> 18])
+                    .append(ALPHABET[(bits >>> 12) & 0x3f])
+                    .append(ALPHABET[(bits >>> 6) & 0x3f])
+                    .append(ALPHABET[bits & 0x3f]);
+        }
+        int remaining = end - i;
+        if (remaining == 1) {
+            int bits = (input.get(i) & 0xff) << 16;
+            output.append(ALPHABET[bits >>> 18])
+                    .append(ALPHABET[(bits >>> 12) & 0x3f])
+                    .append("==");
+        } else if (remaining == 2) {
+            int bits = (input.get(i) & 0xff) << 16 | (input.get(i + 1) & 0xff) << 8;
+            output.append(ALPHABET[bits >>> 18])
+                    .append(ALPHABET[(bits >>> 12) & 0x3f])
+                    .append(ALPHABET[(bits >>> 6) & 0x3f])
+                    .append('=');
+        }
+        return output;
+    }
+
+    private static int value(char c) {
+        return c < DECODE.length ? DECODE[c] : -1;
+    }
+}
@@ -1,6 +1,7 @@
 package com.nekkochan.onyxchat.data;
 
 import android.content.Context;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.room.Database;
@@ -12,14 +13,28 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 /**
  * Main database for the SecureComm app
  */
-@Database(entities = {User.class, Message.class, Contact.class}, version = 2, exportSchema = true)
+@Database(entities = {User.class, Message.class, Contact.class, ConversationSummary.class,
+        LocalIdentity.class, OneTimePreKeyRecord.class, CryptoSession.class, SkippedMessageKey.class,
+        ContactKey.class, ChatGroup.class, GroupMember.class, SenderKey.class, DecryptedMessage.class},
+        version = 8, exportSchema = true)
 public abstract class AppDatabase extends RoomDatabase {
     
+    private static final String TAG = "AppDatabase";
+    static final String DATABASE_NAME = "securecomm_db";
+    
+    // Passphrase used before the Keystore-wrapped raw key; only needed to rekey old databases
+    private static final String LEGACY_PASSPHRASE = "YOUR_ENCRYPTION_KEY";
+    
     private static volatile AppDatabase INSTANCE;
     
     public abstract UserDao userDao();
     public abstract MessageDao messageDao();
     public abstract ContactDao contactDao();
+    public abstract ConversationSummaryDao conversationSummaryDao();
+    public abstract LocalIdentityDao localIdentityDao();
+    public abstract CryptoSessionDao cryptoSessionDao();
+    public abstract ContactKeyDao contactKeyDao();
+    public abstract GroupDao groupDao();
     
     /**
      * Migration from version 1 to 2 - adding isAppUser field to Contact
@@ -32,6 +47,114 @@ public abstract class AppDatabase extends RoomDatabase {
         }
     };
     
+    /**
+     * Migration from version 2 to 3 - adding trigger-maintained conversation summaries
+     */
+    private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `conversation_summaries` (" +
+                    "`ownerAddress` TEXT NOT NULL, `contactAddress` TEXT NOT NULL, " +
+                    "`unreadCount` INTEGER NOT NULL, `lastMessageId` TEXT, " +
+                    "`lastMessageTimestamp` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`ownerAddress`, `contactAddress`))");
+            ConversationSummaryTriggers.install(database);
+            // Seed the counters from the existing messages once; triggers keep them current afterwards
+            ConversationSummaryTriggers.rebuild(database);
+        }
+    };
+    
+    /**
+     * Migration from version 3 to 4 - indexing the columns scanned by the retention worker
+     */
+    private static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_expirationTime` ON `messages` (`expirationTime`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_isDeleted` ON `messages` (`isDeleted`)");
+        }
+    };
+    
+    /**
+     * Migration from version 4 to 5 - adding end-to-end session state
+     */
+    private static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `local_identity` (" +
+                    "`userId` TEXT NOT NULL, `identityPublicKey` BLOB, `identityPrivateKey` BLOB, " +
+                    "`signedPrekeyId` INTEGER NOT NULL, `signedPrekeyPublicKey` BLOB, " +
+                    "`signedPrekeyPrivateKey` BLOB, `signedPrekeySignature` BLOB, " +
+                    "`published` INTEGER NOT NULL, `createdAt` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`userId`))");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `one_time_prekeys` (" +
+                    "`userId` TEXT NOT NULL, `prekeyId` INTEGER NOT NULL, `publicKey` BLOB, " +
+                    "`privateKey` BLOB, `uploaded` INTEGER NOT NULL, `createdAt` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`userId`, `prekeyId`))");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `crypto_sessions` (" +
+                    "`ownerId` TEXT NOT NULL, `contactId` TEXT NOT NULL, `sessionId` TEXT NOT NULL, " +
+                    "`initiator` INTEGER NOT NULL, `active` INTEGER NOT NULL, `rootKey` BLOB, " +
+                    "`sendChainKey` BLOB, `sendCounter` INTEGER NOT NULL, `receiveChainKey` BLOB, " +
+                    "`receiveCounter` INTEGER NOT NULL, `createdAt` INTEGER NOT NULL, " +
+                    "`updatedAt` INTEGER NOT NULL, PRIMARY KEY(`ownerId`, `contactId`, `sessionId`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_crypto_sessions_ownerId_contactId_active` " +
+                    "ON `crypto_sessions` (`ownerId`, `contactId`, `active`)");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `skipped_message_keys` (" +
+                    "`ownerId` TEXT NOT NULL, `sessionId` TEXT NOT NULL, `counter` INTEGER NOT NULL, " +
+                    "`messageKey` BLOB, `createdAt` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`ownerId`, `sessionId`, `counter`))");
+        }
+    };
+    
+    /**
+     * Migration from version 5 to 6 - caching contact key bundles
+     */
+    private static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `contact_keys` (" +
+                    "`ownerId` TEXT NOT NULL, `contactId` TEXT NOT NULL, `identityKey` BLOB, " +
+                    "`signedPrekeyId` INTEGER NOT NULL, `signedPrekey` BLOB, `signedPrekeySignature` BLOB, " +
+                    "`fingerprint` TEXT, `verifiedAt` INTEGER NOT NULL, `fetchedAt` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`ownerId`, `contactId`))");
+        }
+    };
+    
+    /**
+     * Migration from version 6 to 7 - adding group conversations and sender keys
+     */
+    private static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `chat_groups` (" +
+                    "`ownerId` TEXT NOT NULL, `groupId` TEXT NOT NULL, `name` TEXT, `createdBy` TEXT, " +
+                    "`updatedAt` INTEGER NOT NULL, PRIMARY KEY(`ownerId`, `groupId`))");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `group_members` (" +
+                    "`ownerId` TEXT NOT NULL, `groupId` TEXT NOT NULL, `userId` TEXT NOT NULL, `role` TEXT, " +
+                    "PRIMARY KEY(`ownerId`, `groupId`, `userId`))");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `sender_keys` (" +
+                    "`ownerId` TEXT NOT NULL, `groupId` TEXT NOT NULL, `senderId` TEXT NOT NULL, " +
+                    "`keyId` INTEGER NOT NULL, `active` INTEGER NOT NULL, `chainKey` BLOB, " +
+                    "`counter` INTEGER NOT NULL, `createdAt` INTEGER NOT NULL, `updatedAt` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`ownerId`, `groupId`, `senderId`, `keyId`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_sender_keys_ownerId_groupId_senderId_active` " +
+                    "ON `sender_keys` (`ownerId`, `groupId`, `senderId`, `active`)");
+        }
+    };
+    
+    /**
+     * Migration from version 7 to 8 - keeping the plaintext of received encrypted messages
+     */
+    private static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `decrypted_messages` (" +
+                    "`ownerId` TEXT NOT NULL, `sessionId` TEXT NOT NULL, `counter` INTEGER NOT NULL, " +
+                    "`plaintext` TEXT, `createdAt` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`ownerId`, `sessionId`, `counter`))");
+        }
+    };
+    
     public static AppDatabase getInstance(final Context context) {
         if (INSTANCE == null) {
             synchronized (AppDatabase.class) {
@@ -45,11 +168,14 @@ public abstract class AppDatabase extends RoomDatabase {
                     INSTANCE = Room.databaseBuilder(
                             appContext,
                             AppDatabase.class,
-                            "securecomm_db")
+                            DATABASE_NAME)
                             // Encrypt the database using SQLCipher with context
-                            .openHelperFactory(new SafeHelperFactory("YOUR_ENCRYPTION_KEY".toCharArray(), appContext))
-                            // Add the migration
-                            .addMigrations(MIGRATION_1_2)
+                            .openHelperFactory(createHelperFactory(appContext))
+                            // Add the migrations
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6,
+                                    MIGRATION_6_7, MIGRATION_7_8)
+                            // Install the summary triggers
+                            .addCallback(sRoomDatabaseCallback)
                             // Fallback only as last resort
                             .fallbackToDestructiveMigration()
                             .build();
@@ -59,6 +185,45 @@ public abstract class AppDatabase extends RoomDatabase {
         return INSTANCE;
     }
     
+    /**
+     * Close the database and drop the instance so the next {@link #getInstance(Context)}
+     * reopens it, e.g. after a restore replaced the file
+     */
+    public static void closeInstance() {
+        synchronized (AppDatabase.class) {
+            if (INSTANCE != null) {
+                INSTANCE.close();
+                INSTANCE = null;
+            }
+        }
+    }
+
+    /**
+     * Create the SQLCipher factory, preferring the Keystore-wrapped raw key and rekeying
+     * a database that still uses the legacy passphrase on first run
+     *
+     * @throws IllegalStateException If the database was rekeyed but the raw key can no
+     *                               longer be loaded; the passphrase would not open it
+     */
+    private static SafeHelperFactory createHelperFactory(Context appContext) {
+        try {
+            byte[] rawKeySpec = DatabaseKeyManager.toRawKeySpec(
+                    DatabaseKeyManager.getOrCreateDatabaseKey(appContext));
+            DatabaseKeyManager.migrateLegacyDatabase(appContext, DATABASE_NAME,
+                    LEGACY_PASSPHRASE.toCharArray(), rawKeySpec);
+            if (DatabaseKeyManager.isRawKeyActive(appContext, DATABASE_NAME)) {
+                return SafeHelperFactory.fromRawKey(rawKeySpec, appContext);
+            }
+        } catch (Exception e) {
+            if (DatabaseKeyManager.isRawKeyActive(appContext, DATABASE_NAME)) {
+                throw new IllegalStateException("Database is encrypted with the raw key, " +
+                        "but the key could not be loaded from the Keystore", e);
+            }
+            Log.e(TAG, "Raw database key unavailable, using passphrase", e);
+        }
+        return new SafeHelperFactory(LEGACY_PASSPHRASE.toCharArray(), appContext);
+    }
+    
     /**
      * Callback for database creation
      */
@@ -66,7 +231,14 @@ public abstract class AppDatabase extends RoomDatabase {
         @Override
         public void onCreate(@NonNull SupportSQLiteDatabase db) {
             super.onCreate(db);
-            // You can pre-populate the database here if needed
+            ConversationSummaryTriggers.install(db);
+        }
+        
+        @Override
+        public void onOpen(@NonNull SupportSQLiteDatabase db) {
+            super.onOpen(db);
+            // REPLACE inserts must fire the delete trigger so counters are not applied twice
+            db.execSQL("PRAGMA recursive_triggers = ON");
         }
     };
 } 
\ No newline at end of file
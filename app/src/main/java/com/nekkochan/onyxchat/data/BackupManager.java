@@ -0,0 +1,353 @@
+package com.nekkochan.onyxchat.data;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.room.RoomDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.nekkochan.onyxchat.crypto.ChunkArchive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-device backup and restore of the message databases and the media cache.
+ * <p>
+ * Backups go into a {@link ChunkArchive}, so each run after the first only writes the database
+ * pages and media files that changed. Media files whose size and modification time match the
+ * previous snapshot are not read at all. The SQLCipher database is stored as its encrypted file
+ * and its raw key travels in the encrypted snapshot, so a restore on a new device is a file copy
+ * instead of an export and re-import of every row.
+ * <p>
+ * Both directions block and can take a while on large histories; call them from a worker thread.
+ */
+public final class BackupManager {
+    private static final String TAG = "BackupManager";
+
+    // Snapshots kept in the archive; chunks only older ones use are deleted
+    private static final int KEEP_SNAPSHOTS = 3;
+    private static final String DATABASE_PREFIX = "databases/";
+    private static final String MEDIA_PREFIX = "media/";
+    // Cache directories the media code stores sent and received files in
+    private static final String[] MEDIA_DIRS = {"media_files", "attachments"};
+    private static final String PROPERTY_DATABASE_KEY = "database_key";
+    private static final String PROPERTY_VERSION_PREFIX = "version:";
+    private static final String[] DATABASE_NAMES = {
+            AppDatabase.DATABASE_NAME, com.nekkochan.onyxchat.db.AppDatabase.DATABASE_NAME};
+    private static final String[] DATABASE_SUFFIXES = {"", "-wal", "-shm", "-journal"};
+    // Consistent copies of the database files are chunked from here, outside the write lock
+    private static final String STAGING_DIR = "backup_staging";
+
+    private BackupManager() {
+    }
+
+    /**
+     * Back up both databases and the media cache
+     * @param context Any context
+     * @param archiveDir Archive directory, e.g. on external storage
+     * @param backupKey 32-byte backup key
+     * @return The snapshot that was written
+     * @throws IOException If the archive cannot be written
+     * @throws GeneralSecurityException If the database key is unavailable
+     */
+    public static synchronized ChunkArchive.Snapshot backup(@NonNull Context context, @NonNull File archiveDir,
+                                                            @NonNull byte[] backupKey)
+            throws IOException, GeneralSecurityException {
+        Context appContext = context.getApplicationContext();
+        long start = System.currentTimeMillis();
+        if (!DatabaseKeyManager.isRawKeyActive(appContext, AppDatabase.DATABASE_NAME)) {
+            throw new IOException("Database still uses the legacy passphrase");
+        }
+        ChunkArchive archive = new ChunkArchive(archiveDir, backupKey);
+        ChunkArchive.Snapshot previous = archive.latestSnapshot();
+
+        List<ChunkArchive.Entry> entries = new ArrayList<>();
+        Map<String, String> properties = new LinkedHashMap<>();
+        byte[] databaseKey = DatabaseKeyManager.getOrCreateDatabaseKey(appContext);
+        try {
+            properties.put(PROPERTY_DATABASE_KEY, toHex(databaseKey));
+        } finally {
+            Arrays.fill(databaseKey, (byte) 0);
+        }
+        backupDatabase(appContext, archive, AppDatabase.getInstance(appContext), entries, properties);
+        backupDatabase(appContext, archive, com.nekkochan.onyxchat.db.AppDatabase.getInstance(appContext),
+                entries, properties);
+        for (String dirName : MEDIA_DIRS) {
+            backupTree(archive, new File(appContext.getCacheDir(), dirName), MEDIA_PREFIX + dirName,
+                    previous, entries);
+        }
+
+        long createdAt = System.currentTimeMillis();
+        if (previous != null && createdAt <= previous.getCreatedAt()) {
+            createdAt = previous.getCreatedAt() + 1;
+        }
+        ChunkArchive.Snapshot snapshot = new ChunkArchive.Snapshot(createdAt, properties, entries);
+        archive.writeSnapshot(snapshot);
+        int pruned = archive.prune(KEEP_SNAPSHOTS);
+        Log.d(TAG, "Backup of " + entries.size() + " files finished in " + (System.currentTimeMillis() - start)
+                + "ms: " + archive.getChunksWritten() + " chunks written (" + archive.getBytesWritten()
+                + " bytes), " + archive.getChunksReused() + " reused, " + pruned + " pruned");
+        return snapshot;
+    }
+
+    /**
+     * Replace both databases and the media cache with the latest backup. Opened databases are
+     * closed first; nothing is replaced until every chunk has been read and authenticated.
+     * <p>
+     * The session, key and prekey singletons are created at startup and keep DAOs and caches of
+     * the databases this closes, so once the backup is in place the app restarts itself as soon
+     * as the main thread is free. Call during onboarding, where a restart is expected.
+     * @param context Any context
+     * @param archiveDir Archive directory
+     * @param backupKey 32-byte backup key
+     * @return The snapshot that was restored
+     * @throws IOException If there is no backup, it fails authentication, or it is from a newer schema
+     * @throws GeneralSecurityException If the restored database key cannot be stored
+     */
+    public static synchronized ChunkArchive.Snapshot restore(@NonNull Context context, @NonNull File archiveDir,
+                                                             @NonNull byte[] backupKey)
+            throws IOException, GeneralSecurityException {
+        Context appContext = context.getApplicationContext();
+        long start = System.currentTimeMillis();
+        ChunkArchive archive = new ChunkArchive(archiveDir, backupKey);
+        ChunkArchive.Snapshot snapshot = archive.latestSnapshot();
+        if (snapshot == null) {
+            throw new IOException("No backup in " + archiveDir);
+        }
+        String encodedKey = snapshot.getProperties().get(PROPERTY_DATABASE_KEY);
+        if (encodedKey == null) {
+            throw new IOException("Backup is missing the database key");
+        }
+        checkVersion(snapshot, AppDatabase.getInstance(appContext));
+        checkVersion(snapshot, com.nekkochan.onyxchat.db.AppDatabase.getInstance(appContext));
+        AppDatabase.closeInstance();
+        com.nekkochan.onyxchat.db.AppDatabase.closeInstance();
+
+        // Decrypt everything next to the live files before touching them
+        List<File[]> staged = new ArrayList<>();
+        try {
+            for (String name : DATABASE_NAMES) {
+                File databaseFile = appContext.getDatabasePath(name);
+                for (String suffix : DATABASE_SUFFIXES) {
+                    ChunkArchive.Entry entry = snapshot.findEntry(DATABASE_PREFIX + name + suffix);
+                    if (entry != null) {
+                        File target = new File(databaseFile.getPath() + suffix);
+                        staged.add(new File[]{restoreToTemp(archive, entry, target), target});
+                    }
+                }
+            }
+
+            byte[] databaseKey = fromHex(encodedKey);
+            try {
+                DatabaseKeyManager.importDatabaseKey(appContext, AppDatabase.DATABASE_NAME, databaseKey);
+            } finally {
+                Arrays.fill(databaseKey, (byte) 0);
+            }
+            for (String name : DATABASE_NAMES) {
+                File databaseFile = appContext.getDatabasePath(name);
+                for (String suffix : DATABASE_SUFFIXES) {
+                    new File(databaseFile.getPath() + suffix).delete();
+                }
+            }
+            for (File[] file : staged) {
+                if (!file[0].renameTo(file[1])) {
+                    throw new IOException("Could not replace " + file[1].getName());
+                }
+            }
+        } finally {
+            for (File[] file : staged) {
+                file[0].delete();
+            }
+        }
+
+        int restoredMedia = restoreMedia(appContext, archive, snapshot);
+        Log.d(TAG, "Restored backup from " + snapshot.getCreatedAt() + " with " + restoredMedia
+                + " media files in " + (System.currentTimeMillis() - start) + "ms");
+        new Handler(Looper.getMainLooper()).post(() -> restartApp(appContext));
+        return snapshot;
+    }
+
+    /**
+     * Relaunch the app in a fresh process, so every singleton opens the restored databases
+     */
+    private static void restartApp(Context context) {
+        Intent launch = context.getPackageManager().getLaunchIntentForPackage(context.getPackageName());
+        if (launch != null && launch.getComponent() != null) {
+            Intent restart = Intent.makeRestartActivityTask(launch.getComponent());
+            context.startActivity(restart);
+        } else {
+            Log.e(TAG, "No launch activity to restart into after restore");
+        }
+        Runtime.getRuntime().exit(0);
+    }
+
+    private static void backupDatabase(Context context, ChunkArchive archive, RoomDatabase database,
+                                       List<ChunkArchive.Entry> entries, Map<String, String> properties)
+            throws IOException {
+        SupportSQLiteDatabase db = database.getOpenHelper().getWritableDatabase();
+        String name = database.getOpenHelper().getDatabaseName();
+        File databaseFile = context.getDatabasePath(name);
+        properties.put(PROPERTY_VERSION_PREFIX + name, String.valueOf(db.getVersion()));
+
+        // Move committed pages into the main file so there is little WAL left to copy
+        try (Cursor cursor = db.query("PRAGMA wal_checkpoint(TRUNCATE)")) {
+            cursor.moveToFirst();
+        }
+        File stagingDir = new File(context.getNoBackupFilesDir(), STAGING_DIR);
+        if (!stagingDir.isDirectory() && !stagingDir.mkdirs()) {
+            throw new IOException("Cannot create " + stagingDir);
+        }
+        List<File[]> copies = new ArrayList<>();
+        try {
+            // The write lock keeps writers and checkpoints out only for as long as a plain file
+            // copy takes; chunking and sealing the copy happens after it is released
+            db.beginTransaction();
+            try {
+                for (String suffix : new String[]{"", "-wal"}) {
+                    File file = new File(databaseFile.getPath() + suffix);
+                    if (file.length() > 0) {
+                        File copy = new File(stagingDir, file.getName());
+                        copyFile(file, copy);
+                        copies.add(new File[]{copy, file});
+                    }
+                }
+            } finally {
+                db.endTransaction();
+            }
+            for (File[] file : copies) {
+                try (InputStream in = new FileInputStream(file[0])) {
+                    entries.add(archive.writeEntry(DATABASE_PREFIX + file[1].getName(), in, file[1].lastModified()));
+                }
+            }
+        } finally {
+            for (File[] file : copies) {
+                file[0].delete();
+            }
+        }
+    }
+
+    private static void copyFile(File source, File target) throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private static void backupTree(ChunkArchive archive, File dir, String path, ChunkArchive.Snapshot previous,
+                                   List<ChunkArchive.Entry> entries) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String filePath = path + "/" + file.getName();
+            if (file.isDirectory()) {
+                backupTree(archive, file, filePath, previous, entries);
+                continue;
+            }
+            ChunkArchive.Entry unchanged = previous != null ? previous.findEntry(filePath) : null;
+            if (unchanged != null && unchanged.getSize() == file.length()
+                    && unchanged.getLastModified() == file.lastModified()) {
+                // Media files are written once; the chunks from last time are still valid
+                entries.add(unchanged);
+                continue;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                entries.add(archive.writeEntry(filePath, in, file.lastModified()));
+            } catch (IOException e) {
+                // A cache file removed mid-backup is not worth failing the backup for
+                Log.w(TAG, "Skipping " + filePath, e);
+            }
+        }
+    }
+
+    private static int restoreMedia(Context context, ChunkArchive archive, ChunkArchive.Snapshot snapshot)
+            throws IOException {
+        String cachePath = context.getCacheDir().getCanonicalPath() + File.separator;
+        int restored = 0;
+        for (ChunkArchive.Entry entry : snapshot.getEntries()) {
+            if (!entry.getPath().startsWith(MEDIA_PREFIX)) {
+                continue;
+            }
+            File target = new File(context.getCacheDir(), entry.getPath().substring(MEDIA_PREFIX.length()));
+            if (!target.getCanonicalPath().startsWith(cachePath)) {
+                Log.w(TAG, "Ignoring media entry outside the cache: " + entry.getPath());
+                continue;
+            }
+            if (target.length() == entry.getSize() && target.isFile()) {
+                continue;
+            }
+            File temp = restoreToTemp(archive, entry, target);
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("Could not restore " + entry.getPath());
+            }
+            target.setLastModified(entry.getLastModified());
+            restored++;
+        }
+        return restored;
+    }
+
+    private static File restoreToTemp(ChunkArchive archive, ChunkArchive.Entry entry, File target)
+            throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File temp = new File(parent, target.getName() + ".restore");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            archive.readEntry(entry, out);
+            out.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        return temp;
+    }
+
+    private static void checkVersion(ChunkArchive.Snapshot snapshot, RoomDatabase database) throws IOException {
+        String name = database.getOpenHelper().getDatabaseName();
+        String backedUp = snapshot.getProperties().get(PROPERTY_VERSION_PREFIX + name);
+        // Older versions are migrated by Room when the restored database is opened
+        if (backedUp != null && Integer.parseInt(backedUp) > database.getOpenHelper().getReadableDatabase().getVersion()) {
+            throw new IOException("Backup of " + name + " is from a newer app version");
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
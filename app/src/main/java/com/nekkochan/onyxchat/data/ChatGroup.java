@@ -0,0 +1,74 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+/**
+ * Entity caching a group conversation the local user belongs to. The server's
+ * {@code /api/groups} endpoints are authoritative; the copy here is refreshed when the
+ * server announces a membership change.
+ */
+@Entity(tableName = "chat_groups",
+        primaryKeys = {"ownerId", "groupId"})
+public class ChatGroup {
+
+    @NonNull
+    private String ownerId; // Server user ID of the local user
+
+    @NonNull
+    private String groupId; // Server group ID
+
+    private String name;
+
+    private String createdBy; // Server user ID of the creator
+
+    private long updatedAt; // When the membership was last refreshed
+
+    // Default constructor required by Room
+    public ChatGroup() {
+        this.ownerId = "";
+        this.groupId = "";
+    }
+
+    @NonNull
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(@NonNull String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @NonNull
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public void setGroupId(@NonNull String groupId) {
+        this.groupId = groupId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getCreatedBy() {
+        return createdBy;
+    }
+
+    public void setCreatedBy(String createdBy) {
+        this.createdBy = createdBy;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,114 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+/**
+ * Entity caching a contact's published key bundle: the Dilithium identity key and the
+ * Kyber signed prekey it signs. Stored so that the signature and fingerprint are only
+ * computed once per key version and the cache can be warmed without the network.
+ */
+@Entity(tableName = "contact_keys",
+        primaryKeys = {"ownerId", "contactId"})
+public class ContactKey {
+
+    @NonNull
+    private String ownerId; // Server user ID of the local user
+
+    @NonNull
+    private String contactId; // Server user ID of the contact
+
+    private byte[] identityKey; // Dilithium public key
+
+    private int signedPrekeyId;
+
+    private byte[] signedPrekey; // Kyber public key
+
+    private byte[] signedPrekeySignature; // Dilithium signature over the signed prekey
+
+    private String fingerprint; // Hex digest of the identity key, computed once
+
+    private long verifiedAt; // When the signed prekey signature was checked, 0 if never
+
+    private long fetchedAt; // When the bundle was fetched from the server
+
+    // Default constructor required by Room
+    public ContactKey() {
+        this.ownerId = "";
+        this.contactId = "";
+    }
+
+    @NonNull
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(@NonNull String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @NonNull
+    public String getContactId() {
+        return contactId;
+    }
+
+    public void setContactId(@NonNull String contactId) {
+        this.contactId = contactId;
+    }
+
+    public byte[] getIdentityKey() {
+        return identityKey;
+    }
+
+    public void setIdentityKey(byte[] identityKey) {
+        this.identityKey = identityKey;
+    }
+
+    public int getSignedPrekeyId() {
+        return signedPrekeyId;
+    }
+
+    public void setSignedPrekeyId(int signedPrekeyId) {
+        this.signedPrekeyId = signedPrekeyId;
+    }
+
+    public byte[] getSignedPrekey() {
+        return signedPrekey;
+    }
+
+    public void setSignedPrekey(byte[] signedPrekey) {
+        this.signedPrekey = signedPrekey;
+    }
+
+    public byte[] getSignedPrekeySignature() {
+        return signedPrekeySignature;
+    }
+
+    public void setSignedPrekeySignature(byte[] signedPrekeySignature) {
+        this.signedPrekeySignature = signedPrekeySignature;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public long getVerifiedAt() {
+        return verifiedAt;
+    }
+
+    public void setVerifiedAt(long verifiedAt) {
+        this.verifiedAt = verifiedAt;
+    }
+
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    public void setFetchedAt(long fetchedAt) {
+        this.fetchedAt = fetchedAt;
+    }
+}
@@ -0,0 +1,31 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+/**
+ * Data Access Object for cached contact key bundles
+ */
+@Dao
+public interface ContactKeyDao {
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(ContactKey contactKey);
+    
+    @Query("SELECT * FROM contact_keys WHERE ownerId = :ownerId AND contactId = :contactId")
+    ContactKey getContactKey(String ownerId, String contactId);
+    
+    // Keys of the contacts with the most recently used sessions
+    @Query("SELECT k.* FROM contact_keys k " +
+           "JOIN (SELECT contactId, MAX(updatedAt) AS lastUsed FROM crypto_sessions " +
+           "WHERE ownerId = :ownerId GROUP BY contactId) s ON s.contactId = k.contactId " +
+           "WHERE k.ownerId = :ownerId ORDER BY s.lastUsed DESC LIMIT :limit")
+    List<ContactKey> getRecentContactKeys(String ownerId, int limit);
+    
+    @Query("DELETE FROM contact_keys WHERE ownerId = :ownerId AND contactId = :contactId")
+    void delete(String ownerId, String contactId);
+}
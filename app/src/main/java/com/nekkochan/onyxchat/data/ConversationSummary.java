@@ -0,0 +1,74 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+/**
+ * Entity holding the per-contact aggregates shown in the conversation list.
+ * Rows are maintained by the triggers in {@link ConversationSummaryTriggers}
+ * so badge and list queries read a single row instead of scanning messages.
+ */
+@Entity(tableName = "conversation_summaries",
+        primaryKeys = {"ownerAddress", "contactAddress"})
+public class ConversationSummary {
+
+    @NonNull
+    private String ownerAddress; // The address of the user viewing the conversation
+
+    @NonNull
+    private String contactAddress; // The address of the other participant
+
+    private int unreadCount; // Unread, non-deleted messages received from the contact
+
+    private String lastMessageId; // ID of the newest non-deleted message (if any)
+
+    private long lastMessageTimestamp; // Timestamp of the newest non-deleted message
+
+    // Default constructor required by Room
+    public ConversationSummary() {
+        this.ownerAddress = "";
+        this.contactAddress = "";
+    }
+
+    @NonNull
+    public String getOwnerAddress() {
+        return ownerAddress;
+    }
+
+    public void setOwnerAddress(@NonNull String ownerAddress) {
+        this.ownerAddress = ownerAddress;
+    }
+
+    @NonNull
+    public String getContactAddress() {
+        return contactAddress;
+    }
+
+    public void setContactAddress(@NonNull String contactAddress) {
+        this.contactAddress = contactAddress;
+    }
+
+    public int getUnreadCount() {
+        return unreadCount;
+    }
+
+    public void setUnreadCount(int unreadCount) {
+        this.unreadCount = unreadCount;
+    }
+
+    public String getLastMessageId() {
+        return lastMessageId;
+    }
+
+    public void setLastMessageId(String lastMessageId) {
+        this.lastMessageId = lastMessageId;
+    }
+
+    public long getLastMessageTimestamp() {
+        return lastMessageTimestamp;
+    }
+
+    public void setLastMessageTimestamp(long lastMessageTimestamp) {
+        this.lastMessageTimestamp = lastMessageTimestamp;
+    }
+}
@@ -0,0 +1,25 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Query;
+
+import java.util.List;
+
+/**
+ * Data Access Object for ConversationSummary entities.
+ * Rows are written only by database triggers, so this DAO is read-only.
+ */
+@Dao
+public interface ConversationSummaryDao {
+    
+    @Query("SELECT * FROM conversation_summaries WHERE ownerAddress = :ownerAddress AND contactAddress = :contactAddress")
+    ConversationSummary getSummary(String ownerAddress, String contactAddress);
+    
+    @Query("SELECT * FROM conversation_summaries WHERE ownerAddress = :ownerAddress " +
+           "ORDER BY lastMessageTimestamp DESC")
+    LiveData<List<ConversationSummary>> getSummaries(String ownerAddress);
+    
+    @Query("SELECT IFNULL(SUM(unreadCount), 0) FROM conversation_summaries WHERE ownerAddress = :ownerAddress")
+    LiveData<Integer> getTotalUnreadCount(String ownerAddress);
+}
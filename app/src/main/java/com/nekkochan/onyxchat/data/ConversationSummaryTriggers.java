@@ -0,0 +1,102 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * SQLite triggers that keep {@link ConversationSummary} rows in step with the messages table.
+ * A message counts as unread for its recipient while {@code isRead = 0 AND isDeleted = 0}.
+ */
+final class ConversationSummaryTriggers {
+
+    // Matches messages exchanged between a summary row's owner and contact
+    private static final String SUMMARY_MESSAGES =
+            "((m.senderId = conversation_summaries.ownerAddress AND m.recipientId = conversation_summaries.contactAddress) OR " +
+            "(m.senderId = conversation_summaries.contactAddress AND m.recipientId = conversation_summaries.ownerAddress))";
+
+    // Recomputes the last message columns of the summary rows selected by the caller
+    private static final String RECOMPUTE_LAST_MESSAGE =
+            "UPDATE conversation_summaries SET " +
+            "lastMessageId = (SELECT m.id FROM messages m WHERE m.isDeleted = 0 AND " + SUMMARY_MESSAGES +
+            " ORDER BY m.timestamp DESC LIMIT 1), " +
+            "lastMessageTimestamp = IFNULL((SELECT MAX(m.timestamp) FROM messages m WHERE m.isDeleted = 0 AND " +
+            SUMMARY_MESSAGES + "), 0) ";
+
+    private static final String CREATE_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_summary_after_insert AFTER INSERT ON messages " +
+            "BEGIN " +
+            "INSERT OR IGNORE INTO conversation_summaries (ownerAddress, contactAddress, unreadCount, lastMessageTimestamp) " +
+            "VALUES (NEW.recipientId, NEW.senderId, 0, 0); " +
+            "INSERT OR IGNORE INTO conversation_summaries (ownerAddress, contactAddress, unreadCount, lastMessageTimestamp) " +
+            "VALUES (NEW.senderId, NEW.recipientId, 0, 0); " +
+            "UPDATE conversation_summaries SET unreadCount = unreadCount + 1 " +
+            "WHERE NEW.isRead = 0 AND NEW.isDeleted = 0 " +
+            "AND ownerAddress = NEW.recipientId AND contactAddress = NEW.senderId; " +
+            "UPDATE conversation_summaries SET lastMessageId = NEW.id, lastMessageTimestamp = NEW.timestamp " +
+            "WHERE NEW.isDeleted = 0 AND NEW.timestamp >= lastMessageTimestamp " +
+            "AND ((ownerAddress = NEW.recipientId AND contactAddress = NEW.senderId) " +
+            "OR (ownerAddress = NEW.senderId AND contactAddress = NEW.recipientId)); " +
+            "END";
+
+    private static final String CREATE_UNREAD_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_summary_after_unread_update " +
+            "AFTER UPDATE OF isRead, isDeleted ON messages " +
+            "WHEN (OLD.isRead = 0 AND OLD.isDeleted = 0) != (NEW.isRead = 0 AND NEW.isDeleted = 0) " +
+            "BEGIN " +
+            "UPDATE conversation_summaries SET unreadCount = MAX(unreadCount + " +
+            "CASE WHEN NEW.isRead = 0 AND NEW.isDeleted = 0 THEN 1 ELSE -1 END, 0) " +
+            "WHERE ownerAddress = NEW.recipientId AND contactAddress = NEW.senderId; " +
+            "END";
+
+    private static final String CREATE_SOFT_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_summary_after_soft_delete " +
+            "AFTER UPDATE OF isDeleted ON messages " +
+            "WHEN OLD.isDeleted != NEW.isDeleted " +
+            "BEGIN " +
+            RECOMPUTE_LAST_MESSAGE +
+            "WHERE (ownerAddress = NEW.recipientId AND contactAddress = NEW.senderId) " +
+            "OR (ownerAddress = NEW.senderId AND contactAddress = NEW.recipientId); " +
+            "END";
+
+    private static final String CREATE_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_summary_after_delete AFTER DELETE ON messages " +
+            "BEGIN " +
+            "UPDATE conversation_summaries SET unreadCount = MAX(unreadCount - 1, 0) " +
+            "WHERE OLD.isRead = 0 AND OLD.isDeleted = 0 " +
+            "AND ownerAddress = OLD.recipientId AND contactAddress = OLD.senderId; " +
+            RECOMPUTE_LAST_MESSAGE +
+            "WHERE lastMessageId = OLD.id; " +
+            "END";
+
+    private ConversationSummaryTriggers() {
+    }
+
+    /**
+     * Create the summary triggers if they do not exist yet
+     * @param db The database to install the triggers into
+     */
+    static void install(@NonNull SupportSQLiteDatabase db) {
+        db.execSQL(CREATE_INSERT_TRIGGER);
+        db.execSQL(CREATE_UNREAD_UPDATE_TRIGGER);
+        db.execSQL(CREATE_SOFT_DELETE_TRIGGER);
+        db.execSQL(CREATE_DELETE_TRIGGER);
+    }
+
+    /**
+     * Rebuild every summary row from the messages table.
+     * Used once when the triggers are first installed on an existing database.
+     * @param db The database to rebuild
+     */
+    static void rebuild(@NonNull SupportSQLiteDatabase db) {
+        db.execSQL("DELETE FROM conversation_summaries");
+        db.execSQL("INSERT INTO conversation_summaries " +
+                "(ownerAddress, contactAddress, unreadCount, lastMessageTimestamp) " +
+                "SELECT owner, contact, SUM(unread), 0 FROM (" +
+                "SELECT recipientId AS owner, senderId AS contact, " +
+                "(isRead = 0 AND isDeleted = 0) AS unread FROM messages " +
+                "UNION ALL " +
+                "SELECT senderId, recipientId, 0 FROM messages WHERE senderId != recipientId" +
+                ") GROUP BY owner, contact");
+        db.execSQL(RECOMPUTE_LAST_MESSAGE);
+    }
+}
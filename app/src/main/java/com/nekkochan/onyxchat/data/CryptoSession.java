@@ -0,0 +1,150 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+/**
+ * Entity holding the symmetric ratchet state of an end-to-end session with a contact.
+ * The chain keys advance with every message, so a row is rewritten on each send and receive.
+ * A contact can have more than one session while both sides' handshakes are in flight;
+ * only the active one is used for sending.
+ */
+@Entity(tableName = "crypto_sessions",
+        primaryKeys = {"ownerId", "contactId", "sessionId"},
+        indices = {@Index({"ownerId", "contactId", "active"})})
+public class CryptoSession {
+
+    @NonNull
+    private String ownerId; // Server user ID of the local user
+
+    @NonNull
+    private String contactId; // Server user ID of the other participant
+
+    @NonNull
+    private String sessionId; // Hex digest of the handshake ciphertexts
+
+    private boolean initiator; // Whether the local user ran the handshake
+
+    private boolean active; // Whether new messages are sent on this session
+
+    private byte[] rootKey;
+
+    private byte[] sendChainKey;
+
+    private int sendCounter; // Counter of the next message to send
+
+    private byte[] receiveChainKey;
+
+    private int receiveCounter; // Counter of the next message expected
+
+    private long createdAt;
+
+    private long updatedAt;
+
+    // Default constructor required by Room
+    public CryptoSession() {
+        this.ownerId = "";
+        this.contactId = "";
+        this.sessionId = "";
+    }
+
+    @NonNull
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(@NonNull String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @NonNull
+    public String getContactId() {
+        return contactId;
+    }
+
+    public void setContactId(@NonNull String contactId) {
+        this.contactId = contactId;
+    }
+
+    @NonNull
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(@NonNull String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public boolean isInitiator() {
+        return initiator;
+    }
+
+    public void setInitiator(boolean initiator) {
+        this.initiator = initiator;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    public byte[] getRootKey() {
+        return rootKey;
+    }
+
+    public void setRootKey(byte[] rootKey) {
+        this.rootKey = rootKey;
+    }
+
+    public byte[] getSendChainKey() {
+        return sendChainKey;
+    }
+
+    public void setSendChainKey(byte[] sendChainKey) {
+        this.sendChainKey = sendChainKey;
+    }
+
+    public int getSendCounter() {
+        return sendCounter;
+    }
+
+    public void setSendCounter(int sendCounter) {
+        this.sendCounter = sendCounter;
+    }
+
+    public byte[] getReceiveChainKey() {
+        return receiveChainKey;
+    }
+
+    public void setReceiveChainKey(byte[] receiveChainKey) {
+        this.receiveChainKey = receiveChainKey;
+    }
+
+    public int getReceiveCounter() {
+        return receiveCounter;
+    }
+
+    public void setReceiveCounter(int receiveCounter) {
+        this.receiveCounter = receiveCounter;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
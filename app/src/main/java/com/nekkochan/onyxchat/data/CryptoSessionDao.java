@@ -0,0 +1,72 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+import androidx.room.Update;
+
+import java.util.List;
+
+/**
+ * Data Access Object for end-to-end session state, skipped message keys and received plaintexts
+ */
+@Dao
+public interface CryptoSessionDao {
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(CryptoSession session);
+    
+    @Update
+    void update(CryptoSession session);
+    
+    @Query("SELECT * FROM crypto_sessions WHERE ownerId = :ownerId AND contactId = :contactId " +
+           "AND sessionId = :sessionId")
+    CryptoSession getSession(String ownerId, String contactId, String sessionId);
+    
+    @Query("SELECT * FROM crypto_sessions WHERE ownerId = :ownerId AND contactId = :contactId " +
+           "AND active = 1 LIMIT 1")
+    CryptoSession getActiveSession(String ownerId, String contactId);
+    
+    @Query("UPDATE crypto_sessions SET active = 0 WHERE ownerId = :ownerId AND contactId = :contactId")
+    void deactivateSessions(String ownerId, String contactId);
+    
+    /**
+     * Store a session and make it the only active session with the contact
+     */
+    @Transaction
+    default void insertActive(CryptoSession session) {
+        deactivateSessions(session.getOwnerId(), session.getContactId());
+        session.setActive(true);
+        insert(session);
+    }
+    
+    // Keeps the newest inactive sessions so messages still in flight on them can be read
+    @Query("DELETE FROM crypto_sessions WHERE ownerId = :ownerId AND contactId = :contactId " +
+           "AND active = 0 AND sessionId NOT IN (SELECT sessionId FROM crypto_sessions " +
+           "WHERE ownerId = :ownerId AND contactId = :contactId AND active = 0 " +
+           "ORDER BY createdAt DESC LIMIT :keep)")
+    int pruneInactiveSessions(String ownerId, String contactId, int keep);
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertSkippedKeys(List<SkippedMessageKey> keys);
+    
+    @Query("SELECT * FROM skipped_message_keys WHERE ownerId = :ownerId AND sessionId = :sessionId " +
+           "AND counter = :counter")
+    SkippedMessageKey getSkippedKey(String ownerId, String sessionId, int counter);
+    
+    @Query("DELETE FROM skipped_message_keys WHERE ownerId = :ownerId AND sessionId = :sessionId " +
+           "AND counter = :counter")
+    void deleteSkippedKey(String ownerId, String sessionId, int counter);
+    
+    @Query("DELETE FROM skipped_message_keys WHERE createdAt < :cutoff")
+    int deleteSkippedKeysOlderThan(long cutoff);
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertDecryptedMessages(List<DecryptedMessage> messages);
+    
+    @Query("SELECT * FROM decrypted_messages WHERE ownerId = :ownerId AND sessionId = :sessionId " +
+           "AND counter IN (:counters)")
+    List<DecryptedMessage> getDecryptedMessages(String ownerId, String sessionId, List<Integer> counters);
+}
@@ -0,0 +1,206 @@
+package com.nekkochan.onyxchat.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Manages the raw SQLCipher database key.
+ * <p>
+ * A random 256-bit key is generated once, wrapped with an AES-GCM key held in the
+ * Android Keystore and stored in private preferences. The unwrapped key is handed to
+ * SQLCipher as a raw key ({@code x'...'}), which skips the PBKDF2 passphrase derivation
+ * that otherwise runs on every database open.
+ */
+public final class DatabaseKeyManager {
+    private static final String TAG = "DatabaseKeyManager";
+
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String WRAPPING_KEY_ALIAS = "onyxchat_db_key_wrapper";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_BITS = 128;
+    private static final int DATABASE_KEY_BYTES = 32;
+
+    private static final String PREFS_NAME = "database_key";
+    private static final String KEY_WRAPPED_KEY = "wrapped_key";
+    private static final String KEY_WRAPPED_IV = "wrapped_iv";
+    private static final String KEY_REKEYED_PREFIX = "rekeyed_";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private DatabaseKeyManager() {
+    }
+
+    /**
+     * Get the raw database key, generating and wrapping it on first use
+     * @param context Application context
+     * @return The 32-byte database key
+     * @throws GeneralSecurityException If the Keystore cannot wrap or unwrap the key
+     */
+    public static synchronized byte[] getOrCreateDatabaseKey(Context context) throws GeneralSecurityException {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String wrappedKey = prefs.getString(KEY_WRAPPED_KEY, null);
+        String wrappedIv = prefs.getString(KEY_WRAPPED_IV, null);
+
+        if (wrappedKey != null && wrappedIv != null) {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getOrCreateWrappingKey(),
+                    new GCMParameterSpec(GCM_TAG_BITS, Base64.decode(wrappedIv, Base64.NO_WRAP)));
+            return cipher.doFinal(Base64.decode(wrappedKey, Base64.NO_WRAP));
+        }
+
+        byte[] databaseKey = new byte[DATABASE_KEY_BYTES];
+        new SecureRandom().nextBytes(databaseKey);
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getOrCreateWrappingKey());
+        byte[] wrapped = cipher.doFinal(databaseKey);
+        prefs.edit()
+                .putString(KEY_WRAPPED_KEY, Base64.encodeToString(wrapped, Base64.NO_WRAP))
+                .putString(KEY_WRAPPED_IV, Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP))
+                .commit();
+        Log.d(TAG, "Generated new database key");
+        return databaseKey;
+    }
+
+    /**
+     * Replace the database key with one restored from a backup, wrapped with this device's
+     * Keystore key. The database must be closed and its file already replaced.
+     * @param context Application context
+     * @param databaseName Name of the restored database file
+     * @param databaseKey The 32-byte key the restored database is encrypted with
+     * @throws GeneralSecurityException If the Keystore cannot wrap the key
+     */
+    public static synchronized void importDatabaseKey(Context context, String databaseName, byte[] databaseKey)
+            throws GeneralSecurityException {
+        if (databaseKey.length != DATABASE_KEY_BYTES) {
+            throw new GeneralSecurityException("Database key must be " + DATABASE_KEY_BYTES + " bytes");
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getOrCreateWrappingKey());
+        byte[] wrapped = cipher.doFinal(databaseKey);
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_WRAPPED_KEY, Base64.encodeToString(wrapped, Base64.NO_WRAP))
+                .putString(KEY_WRAPPED_IV, Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP))
+                .putBoolean(KEY_REKEYED_PREFIX + databaseName, true)
+                .commit();
+        Log.d(TAG, "Imported database key for " + databaseName);
+    }
+
+    /**
+     * Format a key as a SQLCipher raw key literal ({@code x'<64 hex digits>'})
+     * @param key The raw key bytes
+     * @return The ASCII bytes of the raw key literal
+     */
+    public static byte[] toRawKeySpec(byte[] key) {
+        char[] spec = new char[key.length * 2 + 3];
+        spec[0] = 'x';
+        spec[1] = '\'';
+        for (int i = 0; i < key.length; i++) {
+            spec[2 + i * 2] = HEX[(key[i] >> 4) & 0x0F];
+            spec[3 + i * 2] = HEX[key[i] & 0x0F];
+        }
+        spec[spec.length - 1] = '\'';
+
+        byte[] bytes = new byte[spec.length];
+        for (int i = 0; i < spec.length; i++) {
+            bytes[i] = (byte) spec[i];
+        }
+        Arrays.fill(spec, '\0');
+        return bytes;
+    }
+
+    /**
+     * Rekey a database that is still encrypted with the legacy passphrase so it opens
+     * with the raw key. Does nothing if the database does not exist or was already rekeyed.
+     * @param context Application context
+     * @param databaseName Name of the database file
+     * @param legacyPassphrase Passphrase the database was created with
+     * @param rawKeySpec Raw key literal from {@link #toRawKeySpec(byte[])}
+     */
+    public static synchronized void migrateLegacyDatabase(Context context, String databaseName,
+                                                          char[] legacyPassphrase, byte[] rawKeySpec) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String rekeyedFlag = KEY_REKEYED_PREFIX + databaseName;
+        if (prefs.getBoolean(rekeyedFlag, false)) {
+            return;
+        }
+
+        File databaseFile = context.getDatabasePath(databaseName);
+        if (!databaseFile.exists()) {
+            // Fresh install: the database will be created with the raw key
+            prefs.edit().putBoolean(rekeyedFlag, true).apply();
+            return;
+        }
+
+        SafeHelperFactory.initSQLCipher(context);
+        long start = System.currentTimeMillis();
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(databaseFile.getPath(), legacyPassphrase, null,
+                    SQLiteDatabase.OPEN_READWRITE, null);
+            db.rawExecSQL("PRAGMA rekey = \"" + new String(rawKeySpec, StandardCharsets.US_ASCII) + "\"");
+            prefs.edit().putBoolean(rekeyedFlag, true).commit();
+            Log.d(TAG, "Rekeyed " + databaseName + " to raw key in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            // Leave the flag unset so the next start retries; Room falls back if the key is wrong
+            Log.e(TAG, "Failed to rekey " + databaseName, e);
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Check whether a database opens with the raw key rather than the legacy passphrase
+     * @param context Application context
+     * @param databaseName Name of the database file
+     * @return true once the database was created with or rekeyed to the raw key
+     */
+    public static boolean isRawKeyActive(Context context, String databaseName) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(KEY_REKEYED_PREFIX + databaseName, false);
+    }
+
+    private static SecretKey getOrCreateWrappingKey() throws GeneralSecurityException {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+            keyStore.load(null);
+            KeyStore.Entry entry = keyStore.getEntry(WRAPPING_KEY_ALIAS, null);
+            if (entry instanceof KeyStore.SecretKeyEntry) {
+                return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+            }
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Unable to load Android Keystore", e);
+        }
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(WRAPPING_KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return keyGenerator.generateKey();
+    }
+}
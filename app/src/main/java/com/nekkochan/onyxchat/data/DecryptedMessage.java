@@ -0,0 +1,74 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+/**
+ * Entity holding the plaintext of a received end-to-end encrypted message. The server keeps
+ * only the envelope, and its message key is gone once the chain moves past it, so this is
+ * the only way to show the message again.
+ */
+@Entity(tableName = "decrypted_messages",
+        primaryKeys = {"ownerId", "sessionId", "counter"})
+public class DecryptedMessage {
+
+    @NonNull
+    private String ownerId; // Server user ID of the local user
+
+    @NonNull
+    private String sessionId;
+
+    private int counter;
+
+    private String plaintext;
+
+    private long createdAt;
+
+    // Default constructor required by Room
+    public DecryptedMessage() {
+        this.ownerId = "";
+        this.sessionId = "";
+    }
+
+    @NonNull
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(@NonNull String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @NonNull
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(@NonNull String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+
+    public String getPlaintext() {
+        return plaintext;
+    }
+
+    public void setPlaintext(String plaintext) {
+        this.plaintext = plaintext;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,102 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+import androidx.room.Update;
+
+import java.util.List;
+
+/**
+ * Data Access Object for group conversations, their members and sender keys
+ */
+@Dao
+public interface GroupDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertGroup(ChatGroup group);
+
+    @Query("SELECT * FROM chat_groups WHERE ownerId = :ownerId AND groupId = :groupId")
+    ChatGroup getGroup(String ownerId, String groupId);
+
+    @Query("SELECT * FROM chat_groups WHERE ownerId = :ownerId ORDER BY name")
+    List<ChatGroup> getGroups(String ownerId);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertMembers(List<GroupMember> members);
+
+    @Query("DELETE FROM group_members WHERE ownerId = :ownerId AND groupId = :groupId")
+    void deleteMembers(String ownerId, String groupId);
+
+    @Query("SELECT userId FROM group_members WHERE ownerId = :ownerId AND groupId = :groupId")
+    List<String> getMemberIds(String ownerId, String groupId);
+
+    /**
+     * Store a group and replace its member list
+     */
+    @Transaction
+    default void replaceGroup(ChatGroup group, List<GroupMember> members) {
+        insertGroup(group);
+        deleteMembers(group.getOwnerId(), group.getGroupId());
+        insertMembers(members);
+    }
+
+    @Query("DELETE FROM chat_groups WHERE ownerId = :ownerId AND groupId = :groupId")
+    void deleteGroupRow(String ownerId, String groupId);
+
+    /**
+     * Forget a group the local user left or was removed from, with all its keys
+     */
+    @Transaction
+    default void deleteGroup(String ownerId, String groupId) {
+        deleteSenderKeys(ownerId, groupId);
+        deleteMembers(ownerId, groupId);
+        deleteGroupRow(ownerId, groupId);
+    }
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertSenderKey(SenderKey senderKey);
+
+    @Update
+    void updateSenderKey(SenderKey senderKey);
+
+    @Query("SELECT * FROM sender_keys WHERE ownerId = :ownerId AND groupId = :groupId " +
+           "AND senderId = :senderId AND keyId = :keyId")
+    SenderKey getSenderKey(String ownerId, String groupId, String senderId, int keyId);
+
+    @Query("SELECT * FROM sender_keys WHERE ownerId = :ownerId AND groupId = :groupId " +
+           "AND senderId = :senderId AND active = 1 LIMIT 1")
+    SenderKey getActiveSenderKey(String ownerId, String groupId, String senderId);
+
+    @Query("UPDATE sender_keys SET active = 0 WHERE ownerId = :ownerId AND groupId = :groupId " +
+           "AND senderId = :senderId")
+    void deactivateSenderKeys(String ownerId, String groupId, String senderId);
+
+    /**
+     * Store a sender key and make it the sender's only active key in the group
+     */
+    @Transaction
+    default void insertActiveSenderKey(SenderKey senderKey) {
+        deactivateSenderKeys(senderKey.getOwnerId(), senderKey.getGroupId(), senderKey.getSenderId());
+        senderKey.setActive(true);
+        insertSenderKey(senderKey);
+    }
+
+    // Keeps the sender's newest inactive keys so messages still in flight under them can be read
+    @Query("DELETE FROM sender_keys WHERE ownerId = :ownerId AND groupId = :groupId " +
+           "AND senderId = :senderId AND active = 0 AND keyId NOT IN (SELECT keyId FROM sender_keys " +
+           "WHERE ownerId = :ownerId AND groupId = :groupId AND senderId = :senderId AND active = 0 " +
+           "ORDER BY createdAt DESC LIMIT :keep)")
+    int pruneInactiveSenderKeys(String ownerId, String groupId, String senderId, int keep);
+
+    // Keys of senders who are no longer members
+    @Query("DELETE FROM sender_keys WHERE ownerId = :ownerId AND groupId = :groupId " +
+           "AND senderId NOT IN (SELECT userId FROM group_members WHERE ownerId = :ownerId " +
+           "AND groupId = :groupId)")
+    int deleteSenderKeysOfFormerMembers(String ownerId, String groupId);
+
+    @Query("DELETE FROM sender_keys WHERE ownerId = :ownerId AND groupId = :groupId")
+    void deleteSenderKeys(String ownerId, String groupId);
+}
@@ -0,0 +1,65 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+/**
+ * Entity holding one member of a cached group conversation
+ */
+@Entity(tableName = "group_members",
+        primaryKeys = {"ownerId", "groupId", "userId"})
+public class GroupMember {
+
+    @NonNull
+    private String ownerId; // Server user ID of the local user
+
+    @NonNull
+    private String groupId;
+
+    @NonNull
+    private String userId; // Server user ID of the member
+
+    private String role; // "admin" or "member"
+
+    // Default constructor required by Room
+    public GroupMember() {
+        this.ownerId = "";
+        this.groupId = "";
+        this.userId = "";
+    }
+
+    @NonNull
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(@NonNull String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @NonNull
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public void setGroupId(@NonNull String groupId) {
+        this.groupId = groupId;
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public void setRole(String role) {
+        this.role = role;
+    }
+}
@@ -0,0 +1,112 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * Entity holding this device's long-term key material for session establishment:
+ * a Dilithium identity key pair and the Kyber signed prekey it signs.
+ * There is one row per signed-in user.
+ */
+@Entity(tableName = "local_identity")
+public class LocalIdentity {
+
+    @PrimaryKey
+    @NonNull
+    private String userId; // Server user ID the keys belong to
+
+    private byte[] identityPublicKey; // Dilithium public key
+
+    private byte[] identityPrivateKey; // Dilithium private key
+
+    private int signedPrekeyId;
+
+    private byte[] signedPrekeyPublicKey; // Kyber public key
+
+    private byte[] signedPrekeyPrivateKey; // Kyber private key
+
+    private byte[] signedPrekeySignature; // Dilithium signature over the signed prekey public key
+
+    private boolean published; // Whether the server has the current key bundle
+
+    private long createdAt;
+
+    // Default constructor required by Room
+    public LocalIdentity() {
+        this.userId = "";
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
+    public byte[] getIdentityPublicKey() {
+        return identityPublicKey;
+    }
+
+    public void setIdentityPublicKey(byte[] identityPublicKey) {
+        this.identityPublicKey = identityPublicKey;
+    }
+
+    public byte[] getIdentityPrivateKey() {
+        return identityPrivateKey;
+    }
+
+    public void setIdentityPrivateKey(byte[] identityPrivateKey) {
+        this.identityPrivateKey = identityPrivateKey;
+    }
+
+    public int getSignedPrekeyId() {
+        return signedPrekeyId;
+    }
+
+    public void setSignedPrekeyId(int signedPrekeyId) {
+        this.signedPrekeyId = signedPrekeyId;
+    }
+
+    public byte[] getSignedPrekeyPublicKey() {
+        return signedPrekeyPublicKey;
+    }
+
+    public void setSignedPrekeyPublicKey(byte[] signedPrekeyPublicKey) {
+        this.signedPrekeyPublicKey = signedPrekeyPublicKey;
+    }
+
+    public byte[] getSignedPrekeyPrivateKey() {
+        return signedPrekeyPrivateKey;
+    }
+
+    public void setSignedPrekeyPrivateKey(byte[] signedPrekeyPrivateKey) {
+        this.signedPrekeyPrivateKey = signedPrekeyPrivateKey;
+    }
+
+    public byte[] getSignedPrekeySignature() {
+        return signedPrekeySignature;
+    }
+
+    public void setSignedPrekeySignature(byte[] signedPrekeySignature) {
+        this.signedPrekeySignature = signedPrekeySignature;
+    }
+
+    public boolean isPublished() {
+        return published;
+    }
+
+    public void setPublished(boolean published) {
+        this.published = published;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,45 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+/**
+ * Data Access Object for the local identity and one-time prekeys
+ */
+@Dao
+public interface LocalIdentityDao {
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(LocalIdentity identity);
+    
+    @Query("SELECT * FROM local_identity WHERE userId = :userId")
+    LocalIdentity getIdentity(String userId);
+    
+    @Query("UPDATE local_identity SET published = 1 WHERE userId = :userId")
+    void markPublished(String userId);
+    
+    @Query("SELECT * FROM one_time_prekeys WHERE userId = :userId AND prekeyId = :prekeyId")
+    OneTimePreKeyRecord getPreKey(String userId, int prekeyId);
+    
+    @Query("DELETE FROM one_time_prekeys WHERE userId = :userId AND prekeyId = :prekeyId")
+    void deletePreKey(String userId, int prekeyId);
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertPreKeys(List<OneTimePreKeyRecord> prekeys);
+    
+    @Query("SELECT * FROM one_time_prekeys WHERE userId = :userId AND uploaded = 0 ORDER BY prekeyId LIMIT :limit")
+    List<OneTimePreKeyRecord> getPendingPreKeys(String userId, int limit);
+    
+    @Query("SELECT COUNT(*) FROM one_time_prekeys WHERE userId = :userId AND uploaded = 0")
+    int countPendingPreKeys(String userId);
+    
+    @Query("UPDATE one_time_prekeys SET uploaded = 1 WHERE userId = :userId AND prekeyId IN (:prekeyIds)")
+    void markPreKeysUploaded(String userId, List<Integer> prekeyIds);
+    
+    @Query("SELECT COALESCE(MAX(prekeyId), 0) FROM one_time_prekeys WHERE userId = :userId")
+    int getMaxPreKeyId(String userId);
+}
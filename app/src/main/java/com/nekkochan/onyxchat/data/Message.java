@@ -14,7 +14,9 @@ import androidx.room.PrimaryKey;
         indices = {
             @Index("senderId"),
             @Index("recipientId"),
-            @Index("timestamp")
+            @Index("timestamp"),
+            @Index("expirationTime"),
+            @Index("isDeleted")
         })
 public class Message {
     
@@ -37,7 +39,7 @@ public class Message {
     
     private long timestamp; // Message creation timestamp
     
-    private long expirationTime; // Self-destruct timestamp (if enabled)
+    private long expirationTime; // Self-destruct timestamp (0 = never)
     
     private boolean isRead; // Whether message has been read
     
@@ -34,17 +34,16 @@ public interface MessageDao {
            "ORDER BY timestamp ASC")
     LiveData<List<Message>> getMessagesForContact(String userAddress, String contactAddress);
     
-    @Query("SELECT * FROM messages WHERE isDeleted = 0 AND " +
-           "((senderId = :userAddress AND recipientId = :contactAddress) OR " +
-           "(senderId = :contactAddress AND recipientId = :userAddress)) " +
-           "ORDER BY timestamp DESC LIMIT 1")
+    @Query("SELECT * FROM messages WHERE id = " +
+           "(SELECT lastMessageId FROM conversation_summaries " +
+           "WHERE ownerAddress = :userAddress AND contactAddress = :contactAddress)")
     Message getLastMessageForContact(String userAddress, String contactAddress);
     
     @Query("SELECT DISTINCT recipientId FROM messages WHERE senderId = :userAddress " +
            "UNION SELECT DISTINCT senderId FROM messages WHERE recipientId = :userAddress")
     LiveData<List<String>> getAllContactAddresses(String userAddress);
     
-    @Query("UPDATE messages SET isRead = 1 WHERE senderId = :contactAddress AND recipientId = :userAddress")
+    @Query("UPDATE messages SET isRead = 1 WHERE senderId = :contactAddress AND recipientId = :userAddress AND isRead = 0")
     void markAsRead(String userAddress, String contactAddress);
     
     @Query("UPDATE messages SET isDeleted = 1 WHERE id = :messageId")
@@ -53,9 +52,22 @@ public interface MessageDao {
     @Query("DELETE FROM messages WHERE isDeleted = 1")
     void permanentlyDeleteMarkedMessages();
     
-    @Query("DELETE FROM messages WHERE expirationTime IS NOT NULL AND expirationTime < :currentTime AND isDeleted = 0")
+    @Query("DELETE FROM messages WHERE expirationTime > 0 AND expirationTime < :currentTime AND isDeleted = 0")
     void deleteExpiredMessages(long currentTime);
     
-    @Query("SELECT COUNT(*) FROM messages WHERE isRead = 0 AND recipientId = :userAddress AND senderId = :contactAddress")
+    // Bounded variants used by the retention worker; both are driven by an index
+    @Query("DELETE FROM messages WHERE id IN (SELECT id FROM messages " +
+           "WHERE expirationTime > 0 AND expirationTime <= :currentTime LIMIT :limit)")
+    int deleteExpiredMessagesBatch(long currentTime, int limit);
+    
+    @Query("DELETE FROM messages WHERE id IN (SELECT id FROM messages WHERE isDeleted = 1 LIMIT :limit)")
+    int permanentlyDeleteMarkedMessagesBatch(int limit);
+    
+    @Query("SELECT MIN(expirationTime) FROM messages WHERE expirationTime > :currentTime")
+    Long getNextExpirationTime(long currentTime);
+    
+    // Reads the trigger-maintained counter instead of counting unread rows
+    @Query("SELECT IFNULL((SELECT unreadCount FROM conversation_summaries " +
+           "WHERE ownerAddress = :userAddress AND contactAddress = :contactAddress), 0)")
     LiveData<Integer> getUnreadMessageCount(String userAddress, String contactAddress);
 } 
\ No newline at end of file
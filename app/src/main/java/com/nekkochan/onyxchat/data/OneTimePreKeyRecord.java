@@ -0,0 +1,80 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+/**
+ * Entity holding the private half of a one-time Kyber prekey uploaded to the server.
+ * A record is deleted as soon as a session handshake consumes it.
+ */
+@Entity(tableName = "one_time_prekeys",
+        primaryKeys = {"userId", "prekeyId"})
+public class OneTimePreKeyRecord {
+
+    @NonNull
+    private String userId; // Server user ID the prekey belongs to
+
+    private int prekeyId;
+
+    private byte[] publicKey; // Kyber public key
+
+    private byte[] privateKey; // Kyber private key
+
+    private boolean uploaded; // Whether the server has the public key
+
+    private long createdAt;
+
+    // Default constructor required by Room
+    public OneTimePreKeyRecord() {
+        this.userId = "";
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
+    public int getPrekeyId() {
+        return prekeyId;
+    }
+
+    public void setPrekeyId(int prekeyId) {
+        this.prekeyId = prekeyId;
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    public void setPublicKey(byte[] publicKey) {
+        this.publicKey = publicKey;
+    }
+
+    public byte[] getPrivateKey() {
+        return privateKey;
+    }
+
+    public void setPrivateKey(byte[] privateKey) {
+        this.privateKey = privateKey;
+    }
+
+    public boolean isUploaded() {
+        return uploaded;
+    }
+
+    public void setUploaded(boolean uploaded) {
+        this.uploaded = uploaded;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.function.Consumer;
 
 import com.nekkochan.onyxchat.network.ApiClient;
+import com.nekkochan.onyxchat.service.MessageRetentionWorker;
 
 /**
  * Repository to manage data operations and provide a clean API for data access
@@ -23,6 +24,7 @@ public class Repository {
     private final UserDao userDao;
     private final MessageDao messageDao;
     private final ContactDao contactDao;
+    private final ConversationSummaryDao conversationSummaryDao;
     private final ExecutorService executorService;
     private final AppDatabase appDatabase;
     private final Context appContext;
@@ -39,6 +41,7 @@ public class Repository {
         userDao = appDatabase.userDao();
         messageDao = appDatabase.messageDao();
         contactDao = appDatabase.contactDao();
+        conversationSummaryDao = appDatabase.conversationSummaryDao();
         executorService = Executors.newFixedThreadPool(4);
     }
 
@@ -96,6 +99,14 @@ public class Repository {
         return messageDao.getUnreadMessageCount(userAddress, contactAddress);
     }
 
+    public LiveData<Integer> getTotalUnreadMessageCount(String userAddress) {
+        return conversationSummaryDao.getTotalUnreadCount(userAddress);
+    }
+
+    public LiveData<List<ConversationSummary>> getConversationSummaries(String userAddress) {
+        return conversationSummaryDao.getSummaries(userAddress);
+    }
+
     // Contact operations
     public void insertContact(Contact contact) {
         executorService.execute(() -> contactDao.insert(contact));
@@ -292,6 +303,7 @@ public class Repository {
         
         if (expirationTime > 0) {
             message.setExpirationTime(expirationTime);
+            MessageRetentionWorker.scheduleAt(appContext, expirationTime);
         }
         
         message.setSent(true);
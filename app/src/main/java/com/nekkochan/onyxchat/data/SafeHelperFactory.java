@@ -13,7 +13,7 @@ import net.sqlcipher.database.SupportFactory;
  * Factory for creating encrypted database connections using SQLCipher
  */
 public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
-    private final char[] passphrase;
+    private final byte[] keyBytes;
     private final SQLiteDatabaseHook hook;
     private static boolean libsLoaded = false;
     private final Context context;
@@ -45,7 +45,12 @@ public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
      * @param context Application context
      */
     public SafeHelperFactory(char[] passphrase, SQLiteDatabaseHook hook, Context context) {
-        this.passphrase = passphrase;
+        // Convert char[] to byte[] for SupportFactory
+        this(toBytes(passphrase), hook, context);
+    }
+
+    private SafeHelperFactory(byte[] keyBytes, SQLiteDatabaseHook hook, Context context) {
+        this.keyBytes = keyBytes;
         this.hook = hook;
         this.context = context;
         
@@ -53,13 +58,27 @@ public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
         initSQLCipher(context);
     }
 
-    @Override
-    public SupportSQLiteOpenHelper create(SupportSQLiteOpenHelper.Configuration configuration) {
-        // Convert char[] to byte[] for SupportFactory
+    /**
+     * Creates a factory that opens the database with a raw 256-bit key.
+     * SQLCipher uses the key directly, so no PBKDF2 derivation runs at open.
+     * @param rawKeySpec Raw key literal from {@link DatabaseKeyManager#toRawKeySpec(byte[])}
+     * @param context Application context
+     */
+    public static SafeHelperFactory fromRawKey(byte[] rawKeySpec, Context context) {
+        return new SafeHelperFactory(rawKeySpec.clone(), null, context);
+    }
+
+    private static byte[] toBytes(char[] passphrase) {
         byte[] passphraseBytes = new byte[passphrase.length];
         for (int i = 0; i < passphrase.length; i++) {
             passphraseBytes[i] = (byte) passphrase[i];
         }
-        return new SupportFactory(passphraseBytes, hook).create(configuration);
+        return passphraseBytes;
+    }
+
+    @Override
+    public SupportSQLiteOpenHelper create(SupportSQLiteOpenHelper.Configuration configuration) {
+        // SupportFactory wipes the array it is given after opening, so hand it a copy
+        return new SupportFactory(keyBytes.clone(), hook).create(configuration);
     }
 } 
\ No newline at end of file
@@ -0,0 +1,120 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+/**
+ * Entity holding the chain state of a group member's sender key. Each member encrypts
+ * their group messages once with their own sender key; the other members receive its
+ * chain key over their pairwise sessions. The local user's own key is the active row
+ * with {@code senderId == ownerId}; a new key replaces it whenever the membership changes.
+ */
+@Entity(tableName = "sender_keys",
+        primaryKeys = {"ownerId", "groupId", "senderId", "keyId"},
+        indices = {@Index({"ownerId", "groupId", "senderId", "active"})})
+public class SenderKey {
+
+    @NonNull
+    private String ownerId; // Server user ID of the local user
+
+    @NonNull
+    private String groupId;
+
+    @NonNull
+    private String senderId; // Server user ID of the member the key belongs to
+
+    private int keyId; // Random ID the sender picked for this key
+
+    private boolean active; // Whether this is the sender's newest key
+
+    private byte[] chainKey;
+
+    private int counter; // Counter of the next message to send or expected
+
+    private long createdAt;
+
+    private long updatedAt;
+
+    // Default constructor required by Room
+    public SenderKey() {
+        this.ownerId = "";
+        this.groupId = "";
+        this.senderId = "";
+    }
+
+    @NonNull
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(@NonNull String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @NonNull
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public void setGroupId(@NonNull String groupId) {
+        this.groupId = groupId;
+    }
+
+    @NonNull
+    public String getSenderId() {
+        return senderId;
+    }
+
+    public void setSenderId(@NonNull String senderId) {
+        this.senderId = senderId;
+    }
+
+    public int getKeyId() {
+        return keyId;
+    }
+
+    public void setKeyId(int keyId) {
+        this.keyId = keyId;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    public byte[] getChainKey() {
+        return chainKey;
+    }
+
+    public void setChainKey(byte[] chainKey) {
+        this.chainKey = chainKey;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
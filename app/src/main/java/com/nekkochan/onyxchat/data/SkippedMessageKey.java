@@ -0,0 +1,73 @@
+package com.nekkochan.onyxchat.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+/**
+ * Entity holding a message key derived ahead of time because a later message of the
+ * same session arrived first. The key is deleted once the delayed message is decrypted.
+ */
+@Entity(tableName = "skipped_message_keys",
+        primaryKeys = {"ownerId", "sessionId", "counter"})
+public class SkippedMessageKey {
+
+    @NonNull
+    private String ownerId; // Server user ID of the local user
+
+    @NonNull
+    private String sessionId;
+
+    private int counter;
+
+    private byte[] messageKey; // AES key followed by the nonce
+
+    private long createdAt;
+
+    // Default constructor required by Room
+    public SkippedMessageKey() {
+        this.ownerId = "";
+        this.sessionId = "";
+    }
+
+    @NonNull
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(@NonNull String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @NonNull
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(@NonNull String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+
+    public byte[] getMessageKey() {
+        return messageKey;
+    }
+
+    public void setMessageKey(byte[] messageKey) {
+        this.messageKey = messageKey;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
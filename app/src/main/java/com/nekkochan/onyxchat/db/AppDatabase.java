@@ -7,6 +7,7 @@ import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.nekkochan.onyxchat.db.dao.ContactDao;
@@ -27,12 +28,12 @@ import java.util.concurrent.Executors;
  */
 @Database(
     entities = {User.class, Contact.class, Conversation.class, Message.class},
-    version = 1,
+    version = 3,
     exportSchema = false
 )
 @TypeConverters({Converters.class})
 public abstract class AppDatabase extends RoomDatabase {
-    private static final String DATABASE_NAME = "onyxchat_db";
+    public static final String DATABASE_NAME = "onyxchat_db";
     private static volatile AppDatabase instance;
     private static final int NUMBER_OF_THREADS = 4;
     public static final ExecutorService databaseWriteExecutor =
@@ -58,6 +59,31 @@ public abstract class AppDatabase extends RoomDatabase {
      */
     public abstract UserDao userDao();
 
+    /**
+     * Migration from version 1 to 2 - trigger-maintained conversation aggregates
+     */
+    private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_conversationId_timestamp` " +
+                    "ON `messages` (`conversationId`, `timestamp`)");
+            ConversationTriggers.install(database);
+            ConversationTriggers.rebuild(database);
+        }
+    };
+
+    /**
+     * Migration from version 2 to 3 - indexed absolute expiry time for self-destructing messages
+     */
+    private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE messages ADD COLUMN expiresAt INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("UPDATE messages SET expiresAt = timestamp + selfDestructTime WHERE selfDestructTime > 0");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_expiresAt` ON `messages` (`expiresAt`)");
+        }
+    };
+
     /**
      * Get the singleton instance of the AppDatabase
      *
@@ -70,15 +96,34 @@ public abstract class AppDatabase extends RoomDatabase {
                     context.getApplicationContext(),
                     AppDatabase.class,
                     DATABASE_NAME)
+                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3)
                     .addCallback(new Callback() {
                         @Override
                         public void onCreate(@NonNull SupportSQLiteDatabase db) {
                             super.onCreate(db);
-                            // Initialize database here if needed
+                            ConversationTriggers.install(db);
+                        }
+
+                        @Override
+                        public void onOpen(@NonNull SupportSQLiteDatabase db) {
+                            super.onOpen(db);
+                            // REPLACE inserts must fire the delete trigger so unread counts are not doubled
+                            db.execSQL("PRAGMA recursive_triggers = ON");
                         }
                     })
                     .build();
         }
         return instance;
     }
+
+    /**
+     * Close the database and drop the instance so the next {@link #getInstance(Context)}
+     * reopens it, e.g. after a restore replaced the file
+     */
+    public static synchronized void closeInstance() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,86 @@
+package com.nekkochan.onyxchat.db;
+
+import androidx.annotation.NonNull;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * SQLite triggers that keep the aggregate columns of the conversations table
+ * ({@code unreadCount}, {@code lastMessageTimestamp}, {@code lastMessageContent})
+ * consistent with the messages table.
+ * <p>
+ * A message counts as unread while {@code isRead = 0 AND isSelf = 0}.
+ */
+final class ConversationTriggers {
+
+    // Restores the last message columns from the newest remaining message of the conversation
+    private static final String RECOMPUTE_LAST_MESSAGE =
+            "UPDATE conversations SET " +
+            "lastMessageTimestamp = IFNULL((SELECT MAX(m.timestamp) FROM messages m " +
+            "WHERE m.conversationId = conversations.id), createdTimestamp), " +
+            "lastMessageContent = IFNULL((SELECT m.content FROM messages m " +
+            "WHERE m.conversationId = conversations.id ORDER BY m.timestamp DESC LIMIT 1), '') ";
+
+    private static final String CREATE_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_conversation_after_insert AFTER INSERT ON messages " +
+            "BEGIN " +
+            "UPDATE conversations SET unreadCount = unreadCount + 1 " +
+            "WHERE id = NEW.conversationId AND NEW.isRead = 0 AND NEW.isSelf = 0; " +
+            "UPDATE conversations SET lastMessageTimestamp = NEW.timestamp, lastMessageContent = NEW.content " +
+            "WHERE id = NEW.conversationId AND NEW.timestamp >= lastMessageTimestamp; " +
+            "END";
+
+    private static final String CREATE_READ_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_conversation_after_read_update " +
+            "AFTER UPDATE OF isRead, isSelf ON messages " +
+            "WHEN (OLD.isRead = 0 AND OLD.isSelf = 0) != (NEW.isRead = 0 AND NEW.isSelf = 0) " +
+            "BEGIN " +
+            "UPDATE conversations SET unreadCount = MAX(unreadCount + " +
+            "CASE WHEN NEW.isRead = 0 AND NEW.isSelf = 0 THEN 1 ELSE -1 END, 0) " +
+            "WHERE id = NEW.conversationId; " +
+            "END";
+
+    private static final String CREATE_CONTENT_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_conversation_after_content_update " +
+            "AFTER UPDATE OF content ON messages " +
+            "WHEN OLD.content IS NOT NEW.content " +
+            "BEGIN " +
+            "UPDATE conversations SET lastMessageContent = NEW.content " +
+            "WHERE id = NEW.conversationId AND lastMessageTimestamp = NEW.timestamp; " +
+            "END";
+
+    private static final String CREATE_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_conversation_after_delete AFTER DELETE ON messages " +
+            "BEGIN " +
+            "UPDATE conversations SET unreadCount = MAX(unreadCount - 1, 0) " +
+            "WHERE id = OLD.conversationId AND OLD.isRead = 0 AND OLD.isSelf = 0; " +
+            RECOMPUTE_LAST_MESSAGE +
+            "WHERE id = OLD.conversationId AND lastMessageTimestamp <= OLD.timestamp; " +
+            "END";
+
+    private ConversationTriggers() {
+    }
+
+    /**
+     * Create the conversation triggers if they do not exist yet
+     *
+     * @param db The database to install the triggers into
+     */
+    static void install(@NonNull SupportSQLiteDatabase db) {
+        db.execSQL(CREATE_INSERT_TRIGGER);
+        db.execSQL(CREATE_READ_UPDATE_TRIGGER);
+        db.execSQL(CREATE_CONTENT_UPDATE_TRIGGER);
+        db.execSQL(CREATE_DELETE_TRIGGER);
+    }
+
+    /**
+     * Recompute every conversation's aggregates from the messages table.
+     * Used once when the triggers are first installed on an existing database.
+     *
+     * @param db The database to rebuild
+     */
+    static void rebuild(@NonNull SupportSQLiteDatabase db) {
+        db.execSQL("UPDATE conversations SET unreadCount = (SELECT COUNT(*) FROM messages m " +
+                "WHERE m.conversationId = conversations.id AND m.isRead = 0 AND m.isSelf = 0)");
+        db.execSQL(RECOMPUTE_LAST_MESSAGE);
+    }
+}
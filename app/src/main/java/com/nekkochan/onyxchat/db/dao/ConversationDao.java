@@ -6,7 +6,6 @@ import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
-import androidx.room.Update;
 
 import com.nekkochan.onyxchat.model.Conversation;
 
@@ -28,12 +27,19 @@ public interface ConversationDao {
     void insertConversation(Conversation conversation);
 
     /**
-     * Update a conversation in the database.
+     * Update the settings of a conversation.
+     * The unread count and last message columns are left to the triggers.
      *
-     * @param conversation The conversation to update
+     * @param id The conversation ID
+     * @param contactAddress The contact's onion address
+     * @param isEncrypted Whether the conversation is encrypted
+     * @param isArchived Whether the conversation is archived
+     * @param isPinned Whether the conversation is pinned
      */
-    @Update
-    void updateConversation(Conversation conversation);
+    @Query("UPDATE conversations SET contactAddress = :contactAddress, isEncrypted = :isEncrypted, " +
+            "isArchived = :isArchived, isPinned = :isPinned WHERE id = :id")
+    void updateConversationSettings(String id, String contactAddress, boolean isEncrypted,
+                                    boolean isArchived, boolean isPinned);
 
     /**
      * Delete a conversation from the database.
@@ -162,7 +168,7 @@ public interface ConversationDao {
      *
      * @return The total number of unread messages
      */
-    @Query("SELECT SUM(unreadCount) FROM conversations")
+    @Query("SELECT IFNULL(SUM(unreadCount), 0) FROM conversations")
     int getTotalUnreadMessageCount();
 
     /**
@@ -170,6 +176,15 @@ public interface ConversationDao {
      *
      * @return LiveData containing the total number of unread messages
      */
-    @Query("SELECT SUM(unreadCount) FROM conversations")
+    @Query("SELECT IFNULL(SUM(unreadCount), 0) FROM conversations")
     LiveData<Integer> getTotalUnreadMessageCountLive();
+
+    /**
+     * Get the unread message count of a single conversation.
+     *
+     * @param id The conversation ID
+     * @return LiveData containing the conversation's unread count
+     */
+    @Query("SELECT unreadCount FROM conversations WHERE id = :id")
+    LiveData<Integer> getUnreadCountLive(String id);
 }
\ No newline at end of file
@@ -142,21 +142,52 @@ public interface MessageDao {
 
     /**
      * Count the number of unread messages.
+     * Reads the trigger-maintained conversation counters instead of scanning messages.
      *
      * @return The number of unread messages
      */
-    @Query("SELECT COUNT(*) FROM messages WHERE isRead = 0")
+    @Query("SELECT IFNULL(SUM(unreadCount), 0) FROM conversations")
     int countUnreadMessages();
 
     /**
      * Count the number of unread messages for a sender.
+     * Reads the trigger-maintained counter of the sender's conversation.
      *
      * @param senderAddress The sender's onion address
      * @return The number of unread messages from the sender
      */
-    @Query("SELECT COUNT(*) FROM messages WHERE senderAddress = :senderAddress AND isRead = 0")
+    @Query("SELECT IFNULL(SUM(unreadCount), 0) FROM conversations WHERE contactAddress = :senderAddress")
     int countUnreadMessagesFromSender(String senderAddress);
 
+    /**
+     * Mark every unread message in a conversation as read in a single statement.
+     *
+     * @param conversationId The conversation ID
+     * @return The number of messages marked as read
+     */
+    @Query("UPDATE messages SET isRead = 1 WHERE conversationId = :conversationId AND isRead = 0")
+    int markConversationAsRead(String conversationId);
+
+    /**
+     * Delete up to {@code limit} messages whose self-destruct time has passed.
+     *
+     * @param currentTime The current time in milliseconds
+     * @param limit Maximum number of messages to delete
+     * @return The number of messages deleted
+     */
+    @Query("DELETE FROM messages WHERE id IN (SELECT id FROM messages " +
+           "WHERE expiresAt > 0 AND expiresAt <= :currentTime LIMIT :limit)")
+    int deleteExpiredMessagesBatch(long currentTime, int limit);
+
+    /**
+     * Get the earliest upcoming self-destruct time.
+     *
+     * @param currentTime The current time in milliseconds
+     * @return The next expiry time, or null if no message is pending expiry
+     */
+    @Query("SELECT MIN(expiresAt) FROM messages WHERE expiresAt > :currentTime")
+    Long getNextExpirationTime(long currentTime);
+
     /**
      * Delete all messages from the database.
      */
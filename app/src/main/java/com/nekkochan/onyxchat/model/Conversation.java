@@ -12,6 +12,10 @@ import java.util.Date;
 /**
  * Entity representing a conversation in the OnyxChat application.
  * A conversation is a collection of messages between the user and a contact.
+ * <p>
+ * {@code unreadCount}, {@code lastMessageTimestamp} and {@code lastMessageContent} are
+ * kept in step with the messages table by database triggers, so reading them is a
+ * single row lookup.
  */
 @Entity(
     tableName = "conversations",
@@ -139,33 +143,4 @@ public class Conversation {
     public void setUnreadCount(int unreadCount) {
         this.unreadCount = unreadCount;
     }
-
-    /**
-     * Increment the unread count when a new message is received
-     */
-    public void incrementUnreadCount() {
-        this.unreadCount++;
-    }
-
-    /**
-     * Clear the unread count when conversation is read
-     */
-    public void clearUnreadCount() {
-        this.unreadCount = 0;
-    }
-
-    /**
-     * Update the conversation with new message information
-     * 
-     * @param message The new message
-     * @param incrementUnread Whether to increment unread count
-     */
-    public void updateWithMessage(Message message, boolean incrementUnread) {
-        this.lastMessageTimestamp = message.getTimestamp();
-        this.lastMessageContent = message.getContent();
-        
-        if (incrementUnread && !message.isSelf()) {
-            incrementUnreadCount();
-        }
-    }
 }
\ No newline at end of file
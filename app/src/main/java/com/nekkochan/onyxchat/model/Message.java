@@ -15,7 +15,9 @@ import androidx.room.Ignore;
     indices = {
         @Index("senderAddress"),
         @Index("receiverAddress"),
-        @Index("conversationId")
+        @Index("conversationId"),
+        @Index({"conversationId", "timestamp"}),
+        @Index("expiresAt")
     },
     foreignKeys = {
         @ForeignKey(
@@ -49,6 +51,7 @@ public class Message {
     private String encryptionInfo;
     private boolean isEncrypted;
     private long selfDestructTime; // Time in milliseconds after which the message will be deleted (0 = never)
+    private long expiresAt; // Absolute deletion time derived from timestamp + selfDestructTime (0 = never)
     private boolean isTranslated;
 
     /**
@@ -106,6 +109,7 @@ public class Message {
         this.encryptionInfo = original.encryptionInfo;
         this.isEncrypted = original.isEncrypted;
         this.selfDestructTime = original.selfDestructTime;
+        this.expiresAt = original.expiresAt;
         this.isTranslated = original.isTranslated;
     }
 
@@ -156,6 +160,7 @@ public class Message {
 
     public void setTimestamp(long timestamp) {
         this.timestamp = timestamp;
+        updateExpiresAt();
     }
 
     public boolean isRead() {
@@ -212,6 +217,24 @@ public class Message {
 
     public void setSelfDestructTime(long selfDestructTime) {
         this.selfDestructTime = selfDestructTime;
+        updateExpiresAt();
+    }
+
+    /**
+     * Get the absolute time at which the message will be deleted
+     * 
+     * @return Expiry time in milliseconds since epoch, or 0 if the message never expires
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    private void updateExpiresAt() {
+        this.expiresAt = selfDestructTime > 0 ? timestamp + selfDestructTime : 0;
     }
 
     /**
@@ -232,7 +255,7 @@ public class Message {
      * @param timeInMillis Time in milliseconds after which the message will be deleted
      */
     public void setSelfDestructAfter(long timeInMillis) {
-        this.selfDestructTime = timeInMillis;
+        setSelfDestructTime(timeInMillis);
     }
 
     /**
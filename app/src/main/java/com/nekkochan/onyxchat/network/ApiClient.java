@@ -17,6 +17,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.annotations.SerializedName;
+import com.nekkochan.onyxchat.crypto.StreamingAead;
 import com.nekkochan.onyxchat.model.User;
 import com.nekkochan.onyxchat.model.UserProfile;
 import com.nekkochan.onyxchat.util.UserSessionManager;
@@ -54,11 +55,15 @@ import retrofit2.converter.gson.GsonConverterFactory;
 import retrofit2.http.Body;
 import retrofit2.http.DELETE;
 import retrofit2.http.GET;
+import retrofit2.http.HTTP;
 import retrofit2.http.Multipart;
 import retrofit2.http.POST;
 import retrofit2.http.PUT;
 import retrofit2.http.Part;
 import retrofit2.http.Path;
+import retrofit2.http.Query;
+import retrofit2.http.Streaming;
+import retrofit2.http.Url;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -81,12 +86,17 @@ public class ApiClient {
     // Default server URL - for testing using Android emulator
     private static final String DEFAULT_API_URL = "https://10.0.2.2:443/";
     
+    // Extension the server's encrypted upload endpoint requires
+    private static final String ENCRYPTED_EXTENSION = ".enc";
+    
     // Singleton instance
     private static ApiClient instance;
     
     // Retrofit and API service
     private final Retrofit retrofit;
     private final ApiService apiService;
+    // Same API without the body logger, which would read whole attachments into memory
+    private final ApiService streamingApiService;
     private final UserSessionManager sessionManager;
     private final SharedPreferences sharedPreferences;
     private final Executor executor;
@@ -310,14 +320,22 @@ public class ApiClient {
                 .create();
         
         // Create Retrofit instance
+        OkHttpClient client = httpClient.build();
         retrofit = new Retrofit.Builder()
                 .baseUrl(apiUrl)
                 .addConverterFactory(GsonConverterFactory.create(gson))
-                .client(httpClient.build())
+                .client(client)
                 .build();
         
         // Create API service
         apiService = retrofit.create(ApiService.class);
+        
+        OkHttpClient.Builder streamingClient = client.newBuilder();
+        streamingClient.interceptors().removeIf(interceptor -> interceptor instanceof HttpLoggingInterceptor);
+        streamingApiService = retrofit.newBuilder()
+                .client(streamingClient.build())
+                .build()
+                .create(ApiService.class);
     }
     
     /**
@@ -776,6 +794,45 @@ public class ApiClient {
         @POST("api/media/upload")
         Call<MediaUploadResponse> uploadMedia(@Part MultipartBody.Part file);
         
+        /**
+         * Upload an end-to-end encrypted media file; the part must be ciphertext named *.enc
+         */
+        @Multipart
+        @POST("api/media/upload/encrypted")
+        Call<MediaUploadResponse> uploadEncryptedMedia(@Part MultipartBody.Part file);
+        
+        /**
+         * Start a media upload sent in chunks while it is recorded
+         */
+        @POST("api/media/stream")
+        Call<MediaStreamResponse> startMediaStream(@Body Map<String, String> requestBody);
+        
+        /**
+         * Append a chunk to a media stream at the given byte offset
+         */
+        @PUT("api/media/stream/{id}")
+        Call<MediaStreamResponse> appendMediaStream(@Path("id") String id, @Query("offset") long offset,
+                                                    @Body RequestBody chunk);
+        
+        /**
+         * Finish a media stream
+         */
+        @POST("api/media/stream/{id}/finish")
+        Call<MediaStreamResponse> finishMediaStream(@Path("id") String id);
+        
+        /**
+         * Discard a media stream and delete what was uploaded
+         */
+        @DELETE("api/media/stream/{id}")
+        Call<BaseResponse> discardMediaStream(@Path("id") String id);
+        
+        /**
+         * Download a media file without buffering the response
+         */
+        @Streaming
+        @GET
+        Call<ResponseBody> downloadMedia(@Url String url);
+        
         /**
          * Delete a media file from the server
          */
@@ -799,6 +856,53 @@ public class ApiClient {
          */
         @POST("api/auth/reset-password")
         Call<ApiResponse> resetPassword(@Body Map<String, String> requestBody);
+        
+        // End-to-end encryption key and session endpoints
+        @POST("api/crypto/keys")
+        Call<KeyBundleResponse> registerKeys(@Body KeyBundle request);
+        
+        @GET("api/crypto/keys/{userId}")
+        Call<KeyBundleResponse> getKeyBundle(@Path("userId") String userId);
+        
+        @POST("api/crypto/prekeys")
+        Call<PreKeyCountResponse> uploadPreKeys(@Body PreKeyUpload request);
+        
+        @GET("api/crypto/prekeys/count")
+        Call<PreKeyCountResponse> getPreKeyCount();
+        
+        @GET("api/crypto/prekeys/{userId}")
+        Call<PreKeyResponse> claimPreKey(@Path("userId") String userId);
+        
+        @POST("api/crypto/sessions")
+        Call<SessionResponse> storeSession(@Body Map<String, String> requestBody);
+        
+        @GET("api/crypto/sessions/{otherUserId}/incoming")
+        Call<SessionResponse> getIncomingSession(@Path("otherUserId") String otherUserId);
+        
+        // Group membership and sender key distribution endpoints
+        @POST("api/groups")
+        Call<GroupResponse> createGroup(@Body GroupCreateRequest request);
+        
+        @GET("api/groups")
+        Call<GroupsResponse> getGroups();
+        
+        @GET("api/groups/{groupId}")
+        Call<GroupResponse> getGroup(@Path("groupId") String groupId);
+        
+        @POST("api/groups/{groupId}/members")
+        Call<BaseResponse> addGroupMember(@Path("groupId") String groupId, @Body Map<String, String> requestBody);
+        
+        @DELETE("api/groups/{groupId}/members/{userId}")
+        Call<BaseResponse> removeGroupMember(@Path("groupId") String groupId, @Path("userId") String userId);
+        
+        @POST("api/groups/{groupId}/sender-keys")
+        Call<BaseResponse> uploadSenderKeys(@Path("groupId") String groupId, @Body SenderKeyUpload request);
+        
+        @GET("api/groups/sender-keys")
+        Call<SenderKeysResponse> fetchSenderKeys();
+        
+        @HTTP(method = "DELETE", path = "api/groups/sender-keys", hasBody = true)
+        Call<BaseResponse> acknowledgeSenderKeys(@Body Map<String, List<String>> requestBody);
     }
     
     /**
@@ -1387,6 +1491,29 @@ public class ApiClient {
      * @param callback Callback to handle response
      */
     public void uploadMedia(Uri fileUri, String mimeType, ApiCallback<MediaUploadResponse> callback) {
+        uploadMedia(fileUri, mimeType, null, callback);
+    }
+    
+    /**
+     * Upload media to the server encrypted with {@link StreamingAead}. The file is encrypted
+     * chunk by chunk while it is sent, so memory use does not grow with its size.
+     * 
+     * @param fileUri URI of the file to upload
+     * @param mimeType MIME type of the file
+     * @param attachmentKey Key from {@link StreamingAead#generateKey()}, sent to the recipient with the message
+     * @param callback Callback to handle response
+     */
+    public void uploadEncryptedMedia(Uri fileUri, String mimeType, byte[] attachmentKey,
+                                     ApiCallback<MediaUploadResponse> callback) {
+        if (attachmentKey == null || attachmentKey.length != StreamingAead.KEY_SIZE) {
+            callback.onFailure("Invalid attachment key");
+            return;
+        }
+        uploadMedia(fileUri, mimeType, attachmentKey, callback);
+    }
+    
+    private void uploadMedia(Uri fileUri, String mimeType, byte[] attachmentKey,
+                             ApiCallback<MediaUploadResponse> callback) {
         if (fileUri == null) {
             callback.onFailure("Invalid file URI");
             return;
@@ -1447,18 +1574,20 @@ public class ApiClient {
                 Log.d(TAG, "Preparing to upload file: " + file.getAbsolutePath() + " (" + file.length() + " bytes)");
                 
                 // Create RequestBody from file
-                RequestBody requestFile = RequestBody.create(
-                        MediaType.parse(finalMimeType),
-                        file
-                );
+                RequestBody requestFile = attachmentKey != null
+                        ? new EncryptedFileRequestBody(file, attachmentKey)
+                        : RequestBody.create(MediaType.parse(finalMimeType), file);
                 
                 // MultipartBody.Part is used to send the file as a form-data part
+                // Ciphertext goes to its own endpoint, which only accepts *.enc octet streams
                 MultipartBody.Part filePart = MultipartBody.Part.createFormData(
-                        "file", fileName, requestFile
+                        "file", attachmentKey != null ? fileName + ENCRYPTED_EXTENSION : fileName, requestFile
                 );
                 
                 // Call the API
-                Call<MediaUploadResponse> call = apiService.uploadMedia(filePart);
+                Call<MediaUploadResponse> call = attachmentKey != null
+                        ? streamingApiService.uploadEncryptedMedia(filePart)
+                        : apiService.uploadMedia(filePart);
                 call.enqueue(new Callback<MediaUploadResponse>() {
                     @Override
                     public void onResponse(Call<MediaUploadResponse> call, retrofit2.Response<MediaUploadResponse> response) {
@@ -1852,6 +1981,347 @@ public class ApiClient {
         });
     }
     
+    /**
+     * Publish the current user's identity key and signed prekey.
+     * Blocking; call from a background thread.
+     * @param keyBundle The public key bundle
+     * @throws IOException If the request fails
+     */
+    public void registerKeys(KeyBundle keyBundle) throws IOException {
+        executeCrypto(apiService.registerKeys(keyBundle), "register keys");
+    }
+    
+    /**
+     * Fetch another user's identity key and signed prekey.
+     * Blocking; call from a background thread.
+     * @param userId The other user's ID
+     * @return The key bundle
+     * @throws IOException If the request fails or the user has no keys
+     */
+    public KeyBundle getKeyBundle(String userId) throws IOException {
+        KeyBundleResponse response = executeCrypto(apiService.getKeyBundle(userId), "get key bundle");
+        if (response == null || response.data == null || response.data.userKey == null) {
+            throw new IOException("Key bundle missing for " + userId);
+        }
+        return response.data.userKey;
+    }
+    
+    /**
+     * Upload a batch of the current user's one-time prekeys.
+     * Blocking; call from a background thread.
+     * @param prekeys The prekeys to upload
+     * @return The number of unused prekeys the server now holds for this user
+     * @throws IOException If the request fails
+     */
+    public int uploadPreKeys(List<PreKey> prekeys) throws IOException {
+        PreKeyUpload request = new PreKeyUpload();
+        request.prekeys = prekeys;
+        return unusedCount(executeCrypto(apiService.uploadPreKeys(request), "upload prekeys"));
+    }
+    
+    /**
+     * Get the number of unused one-time prekeys the server holds for the current user.
+     * Blocking; call from a background thread.
+     * @return The unused prekey count
+     * @throws IOException If the request fails
+     */
+    public int getPreKeyCount() throws IOException {
+        return unusedCount(executeCrypto(apiService.getPreKeyCount(), "get prekey count"));
+    }
+    
+    private static int unusedCount(PreKeyCountResponse response) throws IOException {
+        if (response == null || response.data == null) {
+            throw new IOException("Prekey count missing from response");
+        }
+        return response.data.unusedCount;
+    }
+    
+    /**
+     * Claim one of another user's one-time prekeys. The server marks it as used.
+     * Blocking; call from a background thread.
+     * @param userId The other user's ID
+     * @return The prekey, or null if the user has none left
+     * @throws IOException If the request fails
+     */
+    public PreKey claimPreKey(String userId) throws IOException {
+        retrofit2.Response<PreKeyResponse> response = apiService.claimPreKey(userId).execute();
+        if (response.code() == 404) {
+            return null;
+        }
+        if (!response.isSuccessful() || response.body() == null || response.body().data == null) {
+            throw new IOException("Failed to claim prekey: " + response.code());
+        }
+        return response.body().data.prekey;
+    }
+    
+    /**
+     * Store the handshake for a session this user initiated with another user.
+     * Blocking; call from a background thread.
+     * @param otherUserId The other user's ID
+     * @param sessionData Serialized public handshake data
+     * @throws IOException If the request fails
+     */
+    public void storeSession(String otherUserId, String sessionData) throws IOException {
+        Map<String, String> requestBody = new HashMap<>();
+        requestBody.put("otherUserId", otherUserId);
+        requestBody.put("sessionData", sessionData);
+        executeCrypto(apiService.storeSession(requestBody), "store session");
+    }
+    
+    /**
+     * Fetch the handshake of a session another user initiated with this user.
+     * Blocking; call from a background thread.
+     * @param otherUserId The initiating user's ID
+     * @return Serialized handshake data, or null if there is none
+     * @throws IOException If the request fails
+     */
+    public String getIncomingSession(String otherUserId) throws IOException {
+        retrofit2.Response<SessionResponse> response = apiService.getIncomingSession(otherUserId).execute();
+        if (response.code() == 404) {
+            return null;
+        }
+        if (!response.isSuccessful() || response.body() == null || response.body().data == null
+                || response.body().data.session == null) {
+            throw new IOException("Failed to get incoming session: " + response.code());
+        }
+        return response.body().data.session.sessionData;
+    }
+    
+    /**
+     * Create a group with the current user as admin.
+     * Blocking; call from a background thread.
+     * @param name Group name
+     * @param memberIds User IDs of the other members
+     * @return The created group
+     * @throws IOException If the request fails
+     */
+    public GroupInfo createGroup(String name, List<String> memberIds) throws IOException {
+        GroupCreateRequest request = new GroupCreateRequest();
+        request.name = name;
+        request.memberIds = memberIds;
+        return requireGroup(executeCrypto(apiService.createGroup(request), "create group"));
+    }
+    
+    /**
+     * Get the groups the current user is a member of.
+     * Blocking; call from a background thread.
+     * @return The groups with their members
+     * @throws IOException If the request fails
+     */
+    public List<GroupInfo> getGroups() throws IOException {
+        GroupsResponse response = executeCrypto(apiService.getGroups(), "get groups");
+        if (response == null || response.data == null || response.data.groups == null) {
+            throw new IOException("Groups missing from response");
+        }
+        return response.data.groups;
+    }
+    
+    /**
+     * Get a group and its members.
+     * Blocking; call from a background thread.
+     * @param groupId The group ID
+     * @return The group, or null if it does not exist or the current user is not a member
+     * @throws IOException If the request fails
+     */
+    public GroupInfo getGroup(String groupId) throws IOException {
+        retrofit2.Response<GroupResponse> response = apiService.getGroup(groupId).execute();
+        if (response.code() == 403 || response.code() == 404) {
+            return null;
+        }
+        if (!response.isSuccessful()) {
+            throw new IOException("Failed to get group: " + response.code());
+        }
+        return requireGroup(response.body());
+    }
+    
+    private static GroupInfo requireGroup(GroupResponse response) throws IOException {
+        if (response == null || response.data == null || response.data.group == null) {
+            throw new IOException("Group missing from response");
+        }
+        return response.data.group;
+    }
+    
+    /**
+     * Add a member to a group the current user administers.
+     * Blocking; call from a background thread.
+     * @param groupId The group ID
+     * @param userId The user to add
+     * @throws IOException If the request fails
+     */
+    public void addGroupMember(String groupId, String userId) throws IOException {
+        Map<String, String> requestBody = new HashMap<>();
+        requestBody.put("userId", userId);
+        executeCrypto(apiService.addGroupMember(groupId, requestBody), "add group member");
+    }
+    
+    /**
+     * Remove a member from a group, or leave it when {@code userId} is the current user.
+     * Blocking; call from a background thread.
+     * @param groupId The group ID
+     * @param userId The user to remove
+     * @throws IOException If the request fails
+     */
+    public void removeGroupMember(String groupId, String userId) throws IOException {
+        executeCrypto(apiService.removeGroupMember(groupId, userId), "remove group member");
+    }
+    
+    /**
+     * Upload the current user's sender key for a group, encrypted separately for each member.
+     * Blocking; call from a background thread.
+     * @param groupId The group ID
+     * @param keyId ID of the sender key
+     * @param distributions One pairwise-encrypted copy of the key per member
+     * @throws IOException If the request fails
+     */
+    public void uploadSenderKeys(String groupId, int keyId, List<SenderKeyDistribution> distributions)
+            throws IOException {
+        SenderKeyUpload request = new SenderKeyUpload();
+        request.keyId = keyId;
+        request.distributions = distributions;
+        executeCrypto(apiService.uploadSenderKeys(groupId, request), "upload sender keys");
+    }
+    
+    /**
+     * Fetch the sender keys other members distributed to the current user. The server keeps
+     * them until they are passed to {@link #acknowledgeSenderKeys(List)}.
+     * Blocking; call from a background thread.
+     * @return The pending distributions, oldest first
+     * @throws IOException If the request fails
+     */
+    public List<SenderKeyDistribution> fetchSenderKeys() throws IOException {
+        SenderKeysResponse response = executeCrypto(apiService.fetchSenderKeys(), "fetch sender keys");
+        if (response == null || response.data == null || response.data.senderKeys == null) {
+            throw new IOException("Sender keys missing from response");
+        }
+        return response.data.senderKeys;
+    }
+    
+    /**
+     * Tell the server that sender keys are stored, so it stops returning them.
+     * Blocking; call from a background thread.
+     * @param ids IDs of the distributions from {@link #fetchSenderKeys()}
+     * @throws IOException If the request fails
+     */
+    public void acknowledgeSenderKeys(List<String> ids) throws IOException {
+        Map<String, List<String>> requestBody = new HashMap<>();
+        requestBody.put("ids", ids);
+        executeCrypto(apiService.acknowledgeSenderKeys(requestBody), "acknowledge sender keys");
+    }
+    
+    /**
+     * Start a media upload that is sent in chunks while it is recorded. Receivers can fetch
+     * the file from its URL straight away and get the rest as it arrives.
+     * Blocking; call from a background thread.
+     * 
+     * @param mimeType MIME type of the stream, audio/ogg or audio/aac
+     * @return The stream, with its id and media URL
+     * @throws IOException If the request fails
+     */
+    public MediaStreamResponse.StreamData startMediaStream(String mimeType) throws IOException {
+        Map<String, String> requestBody = new HashMap<>();
+        requestBody.put("mimeType", mimeType);
+        MediaStreamResponse response = executeCrypto(apiService.startMediaStream(requestBody), "start media stream");
+        if (response == null || response.stream == null) {
+            throw new IOException("Stream missing from response");
+        }
+        return response.stream;
+    }
+    
+    /**
+     * Append a chunk to a media stream. Resending a chunk the server already has is harmless.
+     * Blocking; call from a background thread.
+     * 
+     * @param id Stream id
+     * @param offset Byte offset of the chunk in the stream
+     * @param chunk The chunk
+     * @throws IOException If the request fails
+     */
+    public void appendMediaStream(String id, long offset, byte[] chunk) throws IOException {
+        executeCrypto(apiService.appendMediaStream(id, offset,
+                RequestBody.create(MediaType.parse("application/octet-stream"), chunk)), "append media stream");
+    }
+    
+    /**
+     * Finish a media stream. Blocking; call from a background thread.
+     * 
+     * @param id Stream id
+     * @throws IOException If the request fails
+     */
+    public void finishMediaStream(String id) throws IOException {
+        executeCrypto(apiService.finishMediaStream(id), "finish media stream");
+    }
+    
+    /**
+     * Discard a media stream, e.g. a cancelled recording. The server deletes the partial file.
+     * Blocking; call from a background thread.
+     * 
+     * @param id Stream id
+     * @throws IOException If the request fails
+     */
+    public void discardMediaStream(String id) throws IOException {
+        executeCrypto(apiService.discardMediaStream(id), "discard media stream");
+    }
+    
+    /**
+     * Open a media file uploaded with {@link #uploadEncryptedMedia}. Chunks are decrypted and
+     * authenticated as they arrive, so playback can start before the download finishes.
+     * Blocks until the response headers arrive; call from a background thread and close the stream.
+     * 
+     * @param url Media URL from the upload response
+     * @param attachmentKey Key the sender attached to the message
+     * @return Stream of the decrypted file
+     * @throws IOException If the download fails
+     */
+    public InputStream openEncryptedMedia(String url, byte[] attachmentKey) throws IOException {
+        ResponseBody body = executeCrypto(streamingApiService.downloadMedia(url), "download media");
+        if (body == null) {
+            throw new IOException("Empty media response");
+        }
+        return new StreamingAead.DecryptingInputStream(body.byteStream(), attachmentKey);
+    }
+    
+    /**
+     * Download a media file uploaded with {@link #uploadEncryptedMedia} into a cache file.
+     * The cached copy stays encrypted; read it back through {@link StreamingAead.DecryptingInputStream}.
+     * 
+     * @param url Media URL from the upload response
+     * @param cacheFile Destination file
+     * @return The plaintext size of the cached file
+     * @throws IOException If the download fails or the response is not a valid encrypted file
+     */
+    public long downloadEncryptedMedia(String url, File cacheFile) throws IOException {
+        ResponseBody body = executeCrypto(streamingApiService.downloadMedia(url), "download media");
+        if (body == null) {
+            throw new IOException("Empty media response");
+        }
+        try (InputStream in = body.byteStream();
+             OutputStream out = new FileOutputStream(cacheFile)) {
+            byte[] buffer = new byte[StreamingAead.CHUNK_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+        long plaintextSize = StreamingAead.plaintextSize(cacheFile.length());
+        if (plaintextSize < 0) {
+            cacheFile.delete();
+            throw new IOException("Downloaded media is not a valid encrypted file");
+        }
+        return plaintextSize;
+    }
+    
+    private <T> T executeCrypto(Call<T> call, String action) throws IOException {
+        if (apiService == null) {
+            throw new IOException("API service not initialized");
+        }
+        retrofit2.Response<T> response = call.execute();
+        if (!response.isSuccessful()) {
+            String errorBody = response.errorBody() != null ? response.errorBody().string() : "";
+            throw new IOException("Failed to " + action + ": " + response.code() + " " + parseErrorMessage(errorBody));
+        }
+        return response.body();
+    }
+    
     private String parseErrorMessage(String errorBody) {
         try {
             JSONObject errorJson = new JSONObject(errorBody);
@@ -1861,6 +2331,278 @@ public class ApiClient {
         }
     }
     
+    /**
+     * Public key bundle used for session establishment
+     */
+    public static class KeyBundle {
+        @SerializedName("userId")
+        public String userId;
+        
+        // Dilithium public key, Base64
+        @SerializedName("identityKey")
+        public String identityKey;
+        
+        // Kyber public key, Base64
+        @SerializedName("signedPrekey")
+        public String signedPrekey;
+        
+        // Dilithium signature over the signed prekey, Base64
+        @SerializedName("signedPrekeySignature")
+        public String signedPrekeySignature;
+        
+        @SerializedName("signedPrekeyId")
+        public int signedPrekeyId;
+    }
+    
+    /**
+     * Key bundle response model
+     */
+    public static class KeyBundleResponse {
+        @SerializedName("status")
+        public String status;
+        
+        @SerializedName("data")
+        public KeyBundleData data;
+        
+        public static class KeyBundleData {
+            @SerializedName("userKey")
+            public KeyBundle userKey;
+        }
+    }
+    
+    /**
+     * One-time prekey
+     */
+    public static class PreKey {
+        @SerializedName("prekeyId")
+        public int prekeyId;
+        
+        // Kyber public key, Base64
+        @SerializedName("prekey")
+        public String prekey;
+    }
+    
+    /**
+     * One-time prekey response model
+     */
+    public static class PreKeyResponse {
+        @SerializedName("status")
+        public String status;
+        
+        @SerializedName("data")
+        public PreKeyData data;
+        
+        public static class PreKeyData {
+            @SerializedName("prekey")
+            public PreKey prekey;
+        }
+    }
+    
+    /**
+     * One-time prekey upload request model
+     */
+    public static class PreKeyUpload {
+        @SerializedName("prekeys")
+        public List<PreKey> prekeys;
+    }
+    
+    /**
+     * Unused prekey count, returned by the upload and count endpoints
+     */
+    public static class PreKeyCountResponse {
+        @SerializedName("status")
+        public String status;
+        
+        @SerializedName("data")
+        public PreKeyCountData data;
+        
+        public static class PreKeyCountData {
+            @SerializedName("unusedCount")
+            public int unusedCount;
+        }
+    }
+    
+    /**
+     * Media stream response model, returned when a stream is started
+     */
+    public static class MediaStreamResponse {
+        @SerializedName("message")
+        public String message;
+        
+        @SerializedName("stream")
+        public StreamData stream;
+        
+        public static class StreamData {
+            @SerializedName("id")
+            public String id;
+            
+            @SerializedName("filename")
+            public String filename;
+            
+            @SerializedName("url")
+            public String url;
+            
+            @SerializedName("size")
+            public long size;
+        }
+    }
+    
+    /**
+     * Session handshake response model
+     */
+    public static class SessionResponse {
+        @SerializedName("status")
+        public String status;
+        
+        @SerializedName("data")
+        public SessionData data;
+        
+        public static class SessionData {
+            @SerializedName("session")
+            public Session session;
+        }
+        
+        public static class Session {
+            @SerializedName("id")
+            public String id;
+            
+            @SerializedName("userId")
+            public String userId;
+            
+            @SerializedName("otherUserId")
+            public String otherUserId;
+            
+            @SerializedName("sessionData")
+            public String sessionData;
+        }
+    }
+    
+    /**
+     * Group with its members
+     */
+    public static class GroupInfo {
+        @SerializedName("id")
+        public String id;
+        
+        @SerializedName("name")
+        public String name;
+        
+        @SerializedName("createdBy")
+        public String createdBy;
+        
+        @SerializedName("members")
+        public List<GroupMemberInfo> members;
+    }
+    
+    /**
+     * Member of a group
+     */
+    public static class GroupMemberInfo {
+        @SerializedName("userId")
+        public String userId;
+        
+        // "admin" or "member"
+        @SerializedName("role")
+        public String role;
+    }
+    
+    /**
+     * Group creation request model
+     */
+    public static class GroupCreateRequest {
+        @SerializedName("name")
+        public String name;
+        
+        @SerializedName("memberIds")
+        public List<String> memberIds;
+    }
+    
+    /**
+     * Single group response model
+     */
+    public static class GroupResponse {
+        @SerializedName("status")
+        public String status;
+        
+        @SerializedName("data")
+        public GroupData data;
+        
+        public static class GroupData {
+            @SerializedName("group")
+            public GroupInfo group;
+        }
+    }
+    
+    /**
+     * Group list response model
+     */
+    public static class GroupsResponse {
+        @SerializedName("status")
+        public String status;
+        
+        @SerializedName("data")
+        public GroupsData data;
+        
+        public static class GroupsData {
+            @SerializedName("groups")
+            public List<GroupInfo> groups;
+        }
+    }
+    
+    /**
+     * A sender key encrypted for one group member
+     */
+    public static class SenderKeyDistribution {
+        // Set by the server on fetch, and sent back to acknowledge the key
+        @SerializedName("id")
+        public String id;
+        
+        @SerializedName("groupId")
+        public String groupId;
+        
+        // Set by the server on fetch
+        @SerializedName("senderId")
+        public String senderId;
+        
+        // Set by the sender on upload
+        @SerializedName("recipientId")
+        public String recipientId;
+        
+        @SerializedName("keyId")
+        public int keyId;
+        
+        // Envelope from the pairwise session with the recipient
+        @SerializedName("content")
+        public String content;
+    }
+    
+    /**
+     * Sender key upload request model
+     */
+    public static class SenderKeyUpload {
+        @SerializedName("keyId")
+        public int keyId;
+        
+        @SerializedName("distributions")
+        public List<SenderKeyDistribution> distributions;
+    }
+    
+    /**
+     * Pending sender keys response model
+     */
+    public static class SenderKeysResponse {
+        @SerializedName("status")
+        public String status;
+        
+        @SerializedName("data")
+        public SenderKeysData data;
+        
+        public static class SenderKeysData {
+            @SerializedName("senderKeys")
+            public List<SenderKeyDistribution> senderKeys;
+        }
+    }
+    
     /**
      * Verify OTP response model
      */
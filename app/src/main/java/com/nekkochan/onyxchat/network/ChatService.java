@@ -13,8 +13,11 @@ import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.nekkochan.onyxchat.crypto.ContactKeyCache;
+import com.nekkochan.onyxchat.crypto.SenderKeyManager;
 import com.nekkochan.onyxchat.util.UserSessionManager;
 import com.nekkochan.onyxchat.model.UserStatus;
+import com.nekkochan.onyxchat.service.PreKeyRefillWorker;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -24,6 +27,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -62,6 +67,8 @@ public class ChatService {
     private final MutableLiveData<ChatMessage> latestMessage;
     private final MutableLiveData<ChatEvent> chatEvents;
     private final Gson gson = new Gson();
+    // Group crypto blocks on the database and network; one thread keeps each group's messages in order
+    private final ExecutorService groupExecutor = Executors.newSingleThreadExecutor();
     private String userId;
     
     /**
@@ -289,6 +296,44 @@ public class ChatService {
                     broadcastIntent.putExtra("recipientId", recipientId);
                     broadcastIntent.putExtra("timestamp", messageTimestamp);
                     context.sendBroadcast(broadcastIntent);
+                } else if ("PREKEYS_LOW".equals(type)) {
+                    // Others have claimed most of our one-time prekeys; refill without waiting for idle
+                    Log.d(TAG, "Server reports one-time prekeys running low");
+                    PreKeyRefillWorker.requestUrgentRefill(context);
+                } else if ("KEYS_CHANGED".equals(type)) {
+                    // A contact published new keys; drop the cached bundle so the next session fetches it
+                    JsonObject keysData = jsonMessage.getAsJsonObject("data");
+                    String keysUserId = keysData != null && keysData.has("userId")
+                            ? keysData.get("userId").getAsString() : null;
+                    if (keysUserId != null && userId != null) {
+                        ContactKeyCache.getInstance(context).invalidate(userId, keysUserId);
+                    }
+                } else if ("NEW_GROUP_MESSAGE".equals(type)) {
+                    JsonObject groupData = jsonMessage.getAsJsonObject("data");
+                    long groupTimestamp = parseIsoTimestamp(groupData, messageTimestamp);
+                    groupExecutor.execute(() -> handleGroupMessage(groupData, groupTimestamp));
+                } else if ("SENDER_KEYS_AVAILABLE".equals(type)) {
+                    // Another member distributed a new sender key to us
+                    groupExecutor.execute(() -> {
+                        try {
+                            SenderKeyManager.getInstance(context).processPendingSenderKeys();
+                        } catch (Exception e) {
+                            Log.e(TAG, "Failed to fetch sender keys", e);
+                        }
+                    });
+                } else if ("GROUP_MEMBERS_CHANGED".equals(type)) {
+                    // Refresh the members and rotate our sender key before the next group message
+                    JsonObject groupData = jsonMessage.getAsJsonObject("data");
+                    if (groupData != null && groupData.has("groupId")) {
+                        String groupId = groupData.get("groupId").getAsString();
+                        groupExecutor.execute(() -> {
+                            try {
+                                SenderKeyManager.getInstance(context).onMembersChanged(groupId);
+                            } catch (Exception e) {
+                                Log.e(TAG, "Failed to refresh group " + groupId, e);
+                            }
+                        });
+                    }
                 } else if ("user_status".equals(type)) {
                     // User status update
                     String status = jsonMessage.get("status").getAsString();
@@ -583,6 +628,83 @@ public class ChatService {
         return success;
     }
     
+    /**
+     * Send a message to a group. The message is encrypted once with our sender key on a
+     * background thread and the server forwards the single envelope to every member.
+     * @param groupId ID of the group
+     * @param message The message content
+     */
+    public void sendGroupMessage(String groupId, String message) {
+        groupExecutor.execute(() -> {
+            try {
+                String envelope = SenderKeyManager.getInstance(context).encrypt(groupId, message);
+                if (!webSocketClient.sendGroupMessage(groupId, envelope)) {
+                    throw new IllegalStateException("Not connected");
+                }
+                ChatMessage chatMessage = new ChatMessage(
+                        ChatMessage.MessageType.MESSAGE,
+                        userId,
+                        groupId,
+                        message,
+                        System.currentTimeMillis()
+                );
+                chatMessage.setSelf(true);
+                latestMessage.postValue(chatMessage);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to send group message to " + groupId, e);
+                latestMessage.postValue(new ChatMessage(
+                        ChatMessage.MessageType.ERROR,
+                        "system",
+                        userId,
+                        "Failed to send group message: " + e.getMessage(),
+                        System.currentTimeMillis()
+                ));
+            }
+        });
+    }
+    
+    /**
+     * Decrypt a group message on the group executor and publish it
+     */
+    private void handleGroupMessage(JsonObject data, long timestamp) {
+        String groupId = data.get("groupId").getAsString();
+        String senderId = data.get("senderId").getAsString();
+        try {
+            String content = SenderKeyManager.getInstance(context)
+                    .decrypt(groupId, senderId, data.get("content").getAsString());
+            // The recipient of a group message is the group itself
+            ChatMessage chatMessage = new ChatMessage(
+                    ChatMessage.MessageType.MESSAGE,
+                    senderId,
+                    groupId,
+                    content,
+                    timestamp
+            );
+            chatMessage.setSelf(senderId.equals(userId));
+            latestMessage.postValue(chatMessage);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to decrypt group message from " + senderId + " in " + groupId, e);
+        }
+    }
+    
+    /**
+     * Read an ISO-8601 "timestamp" field, falling back to the given time
+     */
+    private static long parseIsoTimestamp(JsonObject data, long fallback) {
+        if (data == null || !data.has("timestamp")) {
+            return fallback;
+        }
+        try {
+            SimpleDateFormat iso8601Format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            iso8601Format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            Date date = iso8601Format.parse(data.get("timestamp").getAsString());
+            return date != null ? date.getTime() : fallback;
+        } catch (Exception e) {
+            Log.e(TAG, "Error parsing timestamp from data", e);
+            return fallback;
+        }
+    }
+    
     /**
      * Send a text message
      * @param message The message content
@@ -0,0 +1,61 @@
+package com.nekkochan.onyxchat.network;
+
+import androidx.annotation.NonNull;
+
+import com.nekkochan.onyxchat.crypto.StreamingAead;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Request body that encrypts a file with {@link StreamingAead} while it is being sent.
+ * Only one chunk is held in memory at a time, and the content length is known up front.
+ */
+public class EncryptedFileRequestBody extends RequestBody {
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    private final File file;
+    private final byte[] key;
+
+    /**
+     * @param file File to upload
+     * @param key Attachment key the recipient receives with the message
+     */
+    public EncryptedFileRequestBody(@NonNull File file, @NonNull byte[] key) {
+        this.file = file;
+        this.key = key.clone();
+    }
+
+    @Override
+    public MediaType contentType() {
+        // The server only ever sees ciphertext
+        return OCTET_STREAM;
+    }
+
+    @Override
+    public long contentLength() {
+        return StreamingAead.ciphertextSize(file.length());
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        // A fresh nonce prefix per attempt, so a retried request never reuses nonces
+        StreamingAead.EncryptingOutputStream out =
+                new StreamingAead.EncryptingOutputStream(sink.outputStream(), key);
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[StreamingAead.CHUNK_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+        // The sink belongs to OkHttp; write the final chunk without closing it
+        out.finish();
+    }
+}
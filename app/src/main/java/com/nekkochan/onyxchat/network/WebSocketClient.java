@@ -766,6 +766,34 @@ public class WebSocketClient {
         }
     }
     
+    /**
+     * Send a group message. The server stores it once and forwards it to every member.
+     * @param groupId the group's ID
+     * @param content the sender-key envelope, the same for every member
+     * @return true if the message was sent, false otherwise
+     */
+    public boolean sendGroupMessage(String groupId, String content) {
+        if (webSocket == null || state != WebSocketState.CONNECTED) {
+            Log.w(TAG, "Cannot send group message, websocket is not connected");
+            return false;
+        }
+        
+        try {
+            JSONObject message = new JSONObject();
+            message.put("type", "GROUP_MESSAGE");
+            
+            JSONObject data = new JSONObject();
+            data.put("groupId", groupId);
+            data.put("content", content);
+            
+            message.put("data", data);
+            return send(message.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating group message JSON", e);
+            return false;
+        }
+    }
+    
     /**
      * Send a generic message
      * @param message The message to send
@@ -296,14 +296,17 @@ public class Repository {
     }
 
     /**
-     * Update a conversation
+     * Update a conversation's settings; the unread count and last message are maintained
+     * by the database triggers
      *
      * @param conversation The conversation to update
      */
     public void updateConversation(Conversation conversation) {
         executor.execute(() -> {
             try {
-                database.conversationDao().updateConversation(conversation);
+                database.conversationDao().updateConversationSettings(conversation.getId(),
+                        conversation.getContactAddress(), conversation.isEncrypted(),
+                        conversation.isArchived(), conversation.isPinned());
             } catch (Exception e) {
                 Log.e(TAG, "Error updating conversation", e);
                 setErrorMessage("Failed to update conversation: " + e.getMessage());
@@ -393,11 +396,7 @@ public class Repository {
     public void markAllMessagesAsRead(String conversationId) {
         executor.execute(() -> {
             try {
-                List<Message> messages = database.messageDao().getUnreadMessagesForConversation(conversationId);
-                for (Message message : messages) {
-                    message.setRead(true);
-                    database.messageDao().updateMessage(message);
-                }
+                database.messageDao().markConversationAsRead(conversationId);
             } catch (Exception e) {
                 Log.e(TAG, "Error marking all messages as read", e);
                 setErrorMessage("Failed to mark all messages as read: " + e.getMessage());
@@ -0,0 +1,610 @@
+package com.nekkochan.onyxchat.service;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import androidx.core.app.NotificationCompat;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.ForegroundInfo;
+import androidx.work.ListenableWorker;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.MediaInformation;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.nekkochan.onyxchat.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs FFmpeg media jobs from a persistent WorkManager queue.
+ * <p>
+ * Each job is unique work named after a hash of its input and commands, so picking the same
+ * attachment twice joins the job already queued instead of encoding it again, and a job that
+ * was interrupted by process death is run again when the app restarts. The number of encodes
+ * running at once is capped by core count and lowered while the device is thermally throttled.
+ * A job runs its commands in order until one succeeds, which is how fallbacks are expressed.
+ * Jobs run as foreground work with a progress notification, so long encodes are not stopped
+ * by WorkManager's execution limit. A job waiting for a slot holds no thread: it is queued
+ * here and started on this class's own executor, so a backlog of media jobs never ties up
+ * the WorkManager threads other workers run on.
+ */
+public class MediaJobWorker extends ListenableWorker {
+    private static final String TAG = "MediaJobWorker";
+    private static final String WORK_NAME_PREFIX = "media_job_";
+    private static final String KEY_TYPE = "type";
+    private static final String KEY_COMMANDS = "commands";
+    private static final String KEY_PARTIAL_PATH = "partial_path";
+    private static final String KEY_DURATION_SOURCE = "duration_source";
+
+    public static final String TAG_MEDIA_JOB = "media_job";
+    public static final String KEY_OUTPUT_PATH = "output_path";
+    public static final String KEY_PROGRESS = "progress";
+    public static final String KEY_ERROR = "error";
+
+    // Bytes hashed from each end of the input when computing the job key
+    private static final int FINGERPRINT_BYTES = 64 * 1024;
+    // FFmpeg already spreads a single encode over several threads
+    private static final int MAX_CONCURRENT_JOBS = 3;
+    private static final String CHANNEL_ID = "onyxchat_media_jobs";
+    // Characters of FFmpeg output logged when a command fails
+    private static final int FAILURE_LOG_CHARS = 2000;
+
+    // Builds commands and fingerprints inputs off the caller's thread
+    private static final ExecutorService SUBMIT_EXECUTOR = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "media-job-submit"));
+
+    // Prepares jobs and runs their FFmpeg sessions; only jobs holding a slot run encodes on it
+    private static final ExecutorService JOB_EXECUTOR = Executors.newCachedThreadPool(
+            runnable -> new Thread(runnable, "media-job"));
+
+    private static final Object SLOT_LOCK = new Object();
+    // Jobs waiting for an encoding slot, oldest first
+    private static final Deque<MediaJobWorker> WAITING = new ArrayDeque<>();
+    private static int runningJobs = 0;
+    private static boolean thermalListenerRegistered;
+
+    private volatile long sessionId = 0;
+    private int lastProgress = -1;
+    private boolean foreground;
+    private CallbackToFutureAdapter.Completer<Result> completer;
+    private long durationMs;
+
+    public MediaJobWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Builds the FFmpeg commands of a job for a given output path. Called on a background
+     * thread, once for the job key and once for the queued job, so it may probe the input.
+     */
+    public interface CommandBuilder {
+        String[] build(String outputPath);
+    }
+
+    /**
+     * A submitted job: the path of its output once it finishes
+     */
+    public static final class Job {
+        private final CompletableFuture<String> result;
+        // Unique work name, set once the job is queued
+        private String name;
+        private boolean cancelled;
+
+        private Job(CompletableFuture<String> result) {
+            this.result = result;
+        }
+
+        public CompletableFuture<String> getResult() {
+            return result;
+        }
+
+        /**
+         * Cancel the job, whether or not it has been queued yet; a running FFmpeg session is
+         * stopped rather than left to finish
+         */
+        public synchronized void cancel(@NonNull Context context) {
+            cancelled = true;
+            if (name != null) {
+                WorkManager.getInstance(context).cancelUniqueWork(name);
+            }
+            result.completeExceptionally(new CancellationException("Media processing cancelled"));
+        }
+
+        /**
+         * Record the work name before it is enqueued, unless the job was already cancelled
+         */
+        private synchronized void queue(String name, Runnable enqueue) {
+            if (cancelled) {
+                return;
+            }
+            this.name = name;
+            // Enqueued under the lock, so a cancel always follows the enqueue it has to undo
+            enqueue.run();
+        }
+
+        /**
+         * A job that could not be queued
+         */
+        public static Job failed(@NonNull Exception error) {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            result.completeExceptionally(error);
+            return new Job(result);
+        }
+    }
+
+    /**
+     * Queue a media job, or join the identical job already queued. The commands are built and
+     * the input is fingerprinted on a background thread, so this returns straight away.
+     *
+     * @param context   Application context
+     * @param type      Media type shown to the user ("image", "video", ...)
+     * @param inputPath Local path of the source file
+     * @param extension Output file extension with dot
+     * @param commands  Builds the commands to try, in order, for an output path
+     * @return The job, whose result completes on the main thread
+     */
+    public static Job submit(@NonNull Context context, @NonNull String type, @NonNull String inputPath,
+                             @NonNull String extension, @NonNull CommandBuilder commands) {
+        Context appContext = context.getApplicationContext();
+        Job job = new Job(new CompletableFuture<>());
+        SUBMIT_EXECUTOR.execute(() -> {
+            try {
+                enqueue(appContext, job, type, inputPath, extension, commands);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Cannot start " + type + " job for " + inputPath, e);
+                job.result.completeExceptionally(e);
+            }
+        });
+        return job;
+    }
+
+    private static void enqueue(Context context, Job job, String type, String inputPath, String extension,
+                                CommandBuilder commands) throws IOException {
+        String key = jobKey(type, inputPath, commands.build(""));
+        String name = WORK_NAME_PREFIX + key;
+        File directory = new File(context.getCacheDir(), "attachments");
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        // The partial file keeps the extension so FFmpeg still picks the right muxer
+        String baseName = type + "_" + key.substring(0, 32);
+        File output = new File(directory, baseName + extension);
+        File partial = new File(directory, baseName + ".part" + extension);
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        if (output.length() > 0) {
+            // Finished earlier; its work may already have been pruned
+            mainHandler.post(() -> job.result.complete(output.getAbsolutePath()));
+            return;
+        }
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(MediaJobWorker.class)
+                .addTag(TAG_MEDIA_JOB)
+                .addTag(typeTag(type))
+                .setInputData(new Data.Builder()
+                        .putString(KEY_TYPE, type)
+                        .putStringArray(KEY_COMMANDS, commands.build(partial.getAbsolutePath()))
+                        .putString(KEY_PARTIAL_PATH, partial.getAbsolutePath())
+                        .putString(KEY_OUTPUT_PATH, output.getAbsolutePath())
+                        .putString(KEY_DURATION_SOURCE, inputPath)
+                        .build())
+                .build();
+
+        WorkManager workManager = WorkManager.getInstance(context);
+        // Observe only after the enqueue is committed, so an older finished run is not reported
+        job.queue(name, () -> workManager.enqueueUniqueWork(name, ExistingWorkPolicy.KEEP, request).getResult()
+                .addListener(() -> observeResult(workManager.getWorkInfosForUniqueWorkLiveData(name), job.result),
+                        mainHandler::post));
+    }
+
+    /**
+     * Cancel a job seen through {@link #getJobs(Context)}
+     *
+     * @param context Application context
+     * @param id      The job's work ID
+     */
+    public static void cancel(@NonNull Context context, @NonNull UUID id) {
+        WorkManager.getInstance(context).cancelWorkById(id);
+    }
+
+    /**
+     * All media jobs, including ones restored after the process was restarted
+     */
+    public static LiveData<List<WorkInfo>> getJobs(@NonNull Context context) {
+        return WorkManager.getInstance(context).getWorkInfosByTagLiveData(TAG_MEDIA_JOB);
+    }
+
+    /**
+     * @return The progress of a running job in percent, or -1 if it is not known
+     */
+    public static int getProgress(@NonNull WorkInfo job) {
+        return job.getProgress().getInt(KEY_PROGRESS, -1);
+    }
+
+    /**
+     * @return The media type of a job, or null if it has none
+     */
+    @Nullable
+    public static String getType(@NonNull WorkInfo job) {
+        String prefix = TAG_MEDIA_JOB + ":";
+        for (String tag : job.getTags()) {
+            if (tag.startsWith(prefix)) {
+                return tag.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of FFmpeg jobs allowed to run at once
+     *
+     * @param cores         Available processors
+     * @param thermalStatus A {@link PowerManager} thermal status
+     */
+    static int maxConcurrentJobs(int cores, int thermalStatus) {
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            return 1;
+        }
+        int jobs = Math.max(1, Math.min(cores / 2, MAX_CONCURRENT_JOBS));
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            jobs = Math.max(1, jobs / 2);
+        }
+        return jobs;
+    }
+
+    private static void observeResult(LiveData<List<WorkInfo>> infos, CompletableFuture<String> result) {
+        infos.observeForever(new Observer<List<WorkInfo>>() {
+            @Override
+            public void onChanged(List<WorkInfo> jobs) {
+                if (jobs == null || jobs.isEmpty() || !jobs.get(0).getState().isFinished()) {
+                    return;
+                }
+                WorkInfo job = jobs.get(0);
+                infos.removeObserver(this);
+                if (job.getState() == WorkInfo.State.SUCCEEDED) {
+                    result.complete(job.getOutputData().getString(KEY_OUTPUT_PATH));
+                } else if (job.getState() == WorkInfo.State.CANCELLED) {
+                    result.completeExceptionally(new CancellationException("Media processing cancelled"));
+                } else {
+                    String error = job.getOutputData().getString(KEY_ERROR);
+                    result.completeExceptionally(new IOException(error != null ? error : "Media processing failed"));
+                }
+            }
+        });
+    }
+
+    private static String typeTag(String type) {
+        return TAG_MEDIA_JOB + ":" + type;
+    }
+
+    /**
+     * Hash of the type, commands, size and both ends of the input. Picking the same file again
+     * copies it to a new modification time, so the contents are hashed instead.
+     */
+    private static String jobKey(String type, String inputPath, String[] commands) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(type.getBytes(StandardCharsets.UTF_8));
+        for (String command : commands) {
+            digest.update((byte) 0);
+            digest.update(command.getBytes(StandardCharsets.UTF_8));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(inputPath, "r")) {
+            long length = file.length();
+            digest.update(String.valueOf(length).getBytes(StandardCharsets.UTF_8));
+            byte[] buffer = new byte[(int) Math.min(FINGERPRINT_BYTES, length)];
+            file.readFully(buffer);
+            digest.update(buffer);
+            if (length > buffer.length) {
+                file.seek(length - buffer.length);
+                file.readFully(buffer);
+                digest.update(buffer);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<Result> startWork() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            this.completer = completer;
+            JOB_EXECUTOR.execute(this::prepare);
+            return "MediaJobWorker " + getId();
+        });
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<ForegroundInfo> getForegroundInfoAsync() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            completer.set(createForegroundInfo(getInputData().getString(KEY_TYPE), -1));
+            return "MediaJobWorker foreground info";
+        });
+    }
+
+    /**
+     * Check the job, move it to the foreground and queue it for an encoding slot
+     */
+    private void prepare() {
+        Data input = getInputData();
+        String type = input.getString(KEY_TYPE);
+        String[] commands = input.getStringArray(KEY_COMMANDS);
+        File output = new File(input.getString(KEY_OUTPUT_PATH));
+        if (output.length() > 0) {
+            completer.set(Result.success(success(output)));
+            return;
+        }
+        if (commands == null || commands.length == 0) {
+            completer.set(Result.failure(error("No commands for " + type + " job")));
+            return;
+        }
+
+        promoteToForeground(type);
+        durationMs = probeDurationMs(input.getString(KEY_DURATION_SOURCE));
+        synchronized (SLOT_LOCK) {
+            if (isStopped()) {
+                completer.set(Result.failure(error("Cancelled")));
+                return;
+            }
+            WAITING.add(this);
+            registerThermalListener(getApplicationContext());
+        }
+        dispatch(getApplicationContext());
+    }
+
+    /**
+     * Run the job's commands in its slot, then hand the slot to the next waiting job
+     */
+    private void encode() {
+        try {
+            completer.set(runCommands());
+        } catch (RuntimeException e) {
+            completer.setException(e);
+        } finally {
+            synchronized (SLOT_LOCK) {
+                runningJobs--;
+            }
+            dispatch(getApplicationContext());
+        }
+    }
+
+    private Result runCommands() {
+        Data input = getInputData();
+        String type = input.getString(KEY_TYPE);
+        File partial = new File(input.getString(KEY_PARTIAL_PATH));
+        File output = new File(input.getString(KEY_OUTPUT_PATH));
+        try {
+            for (String command : input.getStringArray(KEY_COMMANDS)) {
+                if (isStopped()) {
+                    break;
+                }
+                partial.delete();
+                if (execute(type, command, durationMs) && partial.renameTo(output)) {
+                    return Result.success(success(output));
+                }
+                Log.e(TAG, "FFmpeg command failed for " + type + " job, trying next fallback");
+            }
+        } finally {
+            partial.delete();
+        }
+        return Result.failure(error(isStopped() ? "Cancelled" : "Could not process " + type));
+    }
+
+    /**
+     * Start waiting jobs while there are free slots. The limit is re-read on every call, so a
+     * change in thermal state takes effect when a job finishes or the thermal status changes.
+     */
+    private static void dispatch(Context context) {
+        List<MediaJobWorker> started = new ArrayList<>();
+        synchronized (SLOT_LOCK) {
+            int limit = maxConcurrentJobs(Runtime.getRuntime().availableProcessors(), thermalStatus(context));
+            while (runningJobs < limit && !WAITING.isEmpty()) {
+                runningJobs++;
+                started.add(WAITING.poll());
+            }
+        }
+        for (MediaJobWorker job : started) {
+            JOB_EXECUTOR.execute(job::encode);
+        }
+    }
+
+    /**
+     * Start more jobs as soon as the device cools down, rather than when the next job finishes
+     */
+    private static void registerThermalListener(Context context) {
+        if (thermalListenerRegistered || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null) {
+            Context appContext = context.getApplicationContext();
+            powerManager.addThermalStatusListener(JOB_EXECUTOR, status -> dispatch(appContext));
+            thermalListenerRegistered = true;
+        }
+    }
+
+    /**
+     * Run the rest of the job as a foreground service. If the system refuses, e.g. because the
+     * app is in the background, the job carries on as regular work.
+     */
+    private void promoteToForeground(String type) {
+        try {
+            setForegroundAsync(createForegroundInfo(type, -1)).get();
+            foreground = true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Could not run " + type + " job in the foreground", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param progress Progress in percent, or -1 while it is not known
+     */
+    private ForegroundInfo createForegroundInfo(String type, int progress) {
+        Context context = getApplicationContext();
+        createNotificationChannel(context);
+        Notification notification = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setContentTitle("Processing " + type)
+                .setContentText(progress >= 0 ? progress + "%" : "Preparing")
+                .setSmallIcon(R.drawable.ic_notification)
+                .setProgress(100, Math.max(progress, 0), progress < 0)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .addAction(0, context.getString(R.string.cancel),
+                        WorkManager.getInstance(context).createCancelPendingIntent(getId()))
+                .build();
+        int notificationId = getId().hashCode();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new ForegroundInfo(notificationId, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        }
+        return new ForegroundInfo(notificationId, notification);
+    }
+
+    private static void createNotificationChannel(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Media processing",
+                    NotificationManager.IMPORTANCE_LOW);
+            channel.setDescription("Progress of photos and videos being prepared for sending");
+            context.getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+    }
+
+    @Override
+    public void onStopped() {
+        long id = sessionId;
+        if (id != 0) {
+            FFmpegKit.cancel(id);
+        }
+        boolean waiting;
+        synchronized (SLOT_LOCK) {
+            waiting = WAITING.remove(this);
+        }
+        if (waiting) {
+            completer.set(Result.failure(error("Cancelled")));
+        }
+    }
+
+    private boolean execute(String type, String command, long durationMs) {
+        // The session keeps its own output, which is logged if the command fails
+        FFmpegSession session = FFmpegSession.create(FFmpegKitConfig.parseArguments(command), null,
+                log -> {
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, log.getMessage());
+                    }
+                },
+                statistics -> reportProgress(type, (long) statistics.getTime(), durationMs));
+        sessionId = session.getSessionId();
+        try {
+            // Checked again here in case the job was stopped before the session existed
+            if (isStopped()) {
+                return false;
+            }
+            FFmpegKitConfig.ffmpegExecute(session);
+            if (ReturnCode.isSuccess(session.getReturnCode())) {
+                return true;
+            }
+            if (!isStopped()) {
+                String output = session.getLogsAsString();
+                Log.e(TAG, "FFmpeg output of failed " + type + " command:\n"
+                        + output.substring(Math.max(0, output.length() - FAILURE_LOG_CHARS)));
+            }
+            return false;
+        } finally {
+            sessionId = 0;
+        }
+    }
+
+    private void reportProgress(String type, long timeMs, long durationMs) {
+        if (durationMs <= 0) {
+            return;
+        }
+        int progress = (int) Math.min(99, timeMs * 100 / durationMs);
+        if (progress != lastProgress) {
+            lastProgress = progress;
+            setProgressAsync(new Data.Builder()
+                    .putString(KEY_TYPE, type)
+                    .putInt(KEY_PROGRESS, progress)
+                    .build());
+            if (foreground) {
+                // Re-posting the foreground info updates the notification in place
+                setForegroundAsync(createForegroundInfo(type, progress));
+            }
+        }
+    }
+
+    private static long probeDurationMs(String path) {
+        try {
+            MediaInformation information = FFprobeKit.getMediaInformation(path).getMediaInformation();
+            if (information != null && information.getDuration() != null) {
+                return (long) (Double.parseDouble(information.getDuration()) * 1000);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not probe duration of " + path, e);
+        }
+        return 0;
+    }
+
+    private static int thermalStatus(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            if (powerManager != null) {
+                return powerManager.getCurrentThermalStatus();
+            }
+        }
+        return PowerManager.THERMAL_STATUS_NONE;
+    }
+
+    private static Data success(File output) {
+        return new Data.Builder().putString(KEY_OUTPUT_PATH, output.getAbsolutePath()).build();
+    }
+
+    private static Data error(String message) {
+        return new Data.Builder().putString(KEY_ERROR, message).build();
+    }
+}
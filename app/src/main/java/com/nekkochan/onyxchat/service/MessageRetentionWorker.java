@@ -0,0 +1,246 @@
+package com.nekkochan.onyxchat.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.RoomDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background worker that enforces message retention.
+ * <p>
+ * Each run deletes self-destructed messages and purges soft-deleted ones in bounded
+ * batches, returns the freed pages to the file system with incremental vacuum, and
+ * schedules the next run at the earliest upcoming expiry. The number of rows and bytes
+ * reclaimed is logged and published as the worker's output data.
+ */
+public class MessageRetentionWorker extends Worker {
+    private static final String TAG = "MessageRetentionWorker";
+    private static final String WORK_NAME = "message_retention";
+    private static final String PREFS_NAME = "message_retention";
+    private static final String KEY_NEXT_RUN_AT = "next_run_at";
+
+    public static final String KEY_EXPIRED_DELETED = "expired_deleted";
+    public static final String KEY_SOFT_DELETED_PURGED = "soft_deleted_purged";
+    public static final String KEY_BYTES_RECLAIMED = "bytes_reclaimed";
+
+    // Rows deleted per statement; keeps each write transaction short
+    private static final int BATCH_SIZE = 500;
+    // Batches per table per run; a run that hits the cap schedules a follow-up immediately
+    private static final int MAX_BATCHES_PER_RUN = 40;
+    // Free pages returned to the file system per database per run
+    private static final int VACUUM_PAGES_PER_RUN = 4096;
+    // Soft-deleted rows are purged at least this often even when nothing expires
+    private static final long MAX_DELAY_MS = TimeUnit.HOURS.toMillis(24);
+    // Ratchet keys kept for messages that never arrived are dropped after this long
+    private static final long SKIPPED_KEY_MAX_AGE_MS = TimeUnit.DAYS.toMillis(30);
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    public MessageRetentionWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Enqueue a retention run now unless one is already pending
+     *
+     * @param context Application context
+     */
+    public static void schedule(@NonNull Context context) {
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                WORK_NAME, ExistingWorkPolicy.KEEP, buildRequest(0));
+    }
+
+    /**
+     * Make sure a retention run happens no later than the given expiry time.
+     * Called whenever a self-destructing message is stored.
+     *
+     * @param context Application context
+     * @param expiresAt Expiry time in milliseconds since epoch
+     */
+    public static synchronized void scheduleAt(@NonNull Context context, long expiresAt) {
+        if (expiresAt <= 0) {
+            return;
+        }
+
+        SharedPreferences prefs = context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        long nextRunAt = prefs.getLong(KEY_NEXT_RUN_AT, 0);
+        if (nextRunAt > now && nextRunAt <= expiresAt) {
+            // An earlier run is already scheduled and will reschedule itself
+            return;
+        }
+
+        prefs.edit().putLong(KEY_NEXT_RUN_AT, expiresAt).apply();
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                WORK_NAME, ExistingWorkPolicy.REPLACE, buildRequest(expiresAt - now));
+    }
+
+    private static OneTimeWorkRequest buildRequest(long delayMs) {
+        return new OneTimeWorkRequest.Builder(MessageRetentionWorker.class)
+                .setInitialDelay(Math.max(delayMs, 0), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        long now = System.currentTimeMillis();
+
+        com.nekkochan.onyxchat.data.AppDatabase secureDb =
+                com.nekkochan.onyxchat.data.AppDatabase.getInstance(context);
+        com.nekkochan.onyxchat.db.AppDatabase chatDb =
+                com.nekkochan.onyxchat.db.AppDatabase.getInstance(context);
+
+        try {
+            long sizeBefore = databaseSize(secureDb) + databaseSize(chatDb);
+
+            BatchResult expired = deleteInBatches(limit ->
+                    secureDb.messageDao().deleteExpiredMessagesBatch(now, limit));
+            expired = expired.plus(deleteInBatches(limit ->
+                    chatDb.messageDao().deleteExpiredMessagesBatch(now, limit)));
+            BatchResult purged = deleteInBatches(limit ->
+                    secureDb.messageDao().permanentlyDeleteMarkedMessagesBatch(limit));
+
+            int skippedKeys = secureDb.cryptoSessionDao().deleteSkippedKeysOlderThan(now - SKIPPED_KEY_MAX_AGE_MS);
+
+            reclaimPages(secureDb);
+            reclaimPages(chatDb);
+
+            long bytesReclaimed = Math.max(sizeBefore - databaseSize(secureDb) - databaseSize(chatDb), 0);
+            Log.d(TAG, "Retention run deleted " + expired.rows + " expired and " + purged.rows
+                    + " soft-deleted messages and " + skippedKeys + " stale ratchet keys, reclaimed "
+                    + bytesReclaimed + " bytes");
+
+            Long nextExpiry = earliest(
+                    secureDb.messageDao().getNextExpirationTime(now),
+                    chatDb.messageDao().getNextExpirationTime(now));
+            scheduleNext(context, now, nextExpiry, expired.capped || purged.capped);
+
+            return Result.success(new Data.Builder()
+                    .putInt(KEY_EXPIRED_DELETED, expired.rows)
+                    .putInt(KEY_SOFT_DELETED_PURGED, purged.rows)
+                    .putLong(KEY_BYTES_RECLAIMED, bytesReclaimed)
+                    .build());
+        } catch (Exception e) {
+            Log.e(TAG, "Retention run failed", e);
+            return Result.retry();
+        }
+    }
+
+    /**
+     * Enqueue the follow-up run after this one finishes
+     */
+    private static synchronized void scheduleNext(Context context, long now, @Nullable Long nextExpiry,
+                                                  boolean backlog) {
+        long delayMs = backlog ? 0 : MAX_DELAY_MS;
+        if (!backlog && nextExpiry != null) {
+            delayMs = Math.min(nextExpiry - now, MAX_DELAY_MS);
+        }
+
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(KEY_NEXT_RUN_AT, now + delayMs)
+                .apply();
+        // APPEND_OR_REPLACE so the follow-up does not cancel the run that is enqueueing it
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, buildRequest(delayMs));
+    }
+
+    private BatchResult deleteInBatches(BatchDelete delete) {
+        int total = 0;
+        for (int batch = 0; batch < MAX_BATCHES_PER_RUN; batch++) {
+            if (isStopped()) {
+                return new BatchResult(total, true);
+            }
+            int deleted = delete.run(BATCH_SIZE);
+            total += deleted;
+            if (deleted < BATCH_SIZE) {
+                return new BatchResult(total, false);
+            }
+        }
+        return new BatchResult(total, true);
+    }
+
+    /**
+     * Return free pages to the file system. Databases created before incremental
+     * auto-vacuum was enabled are converted once with a full VACUUM.
+     */
+    private static void reclaimPages(RoomDatabase database) {
+        SupportSQLiteDatabase db = database.getOpenHelper().getWritableDatabase();
+        if (queryLong(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            Log.d(TAG, "Enabling incremental auto-vacuum on " + db.getPath());
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            return;
+        }
+        if (queryLong(db, "PRAGMA freelist_count") == 0) {
+            return;
+        }
+        // incremental_vacuum frees one page per step, so the cursor must be drained
+        try (Cursor cursor = db.query("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_RUN + ")")) {
+            while (cursor.moveToNext()) {
+                // Keep stepping
+            }
+        }
+    }
+
+    private static long databaseSize(RoomDatabase database) {
+        SupportSQLiteDatabase db = database.getOpenHelper().getWritableDatabase();
+        return queryLong(db, "PRAGMA page_count") * queryLong(db, "PRAGMA page_size");
+    }
+
+    private static long queryLong(SupportSQLiteDatabase db, String sql) {
+        try (Cursor cursor = db.query(sql)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    @Nullable
+    private static Long earliest(@Nullable Long a, @Nullable Long b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return Math.min(a, b);
+    }
+
+    /**
+     * A single bounded delete statement
+     */
+    private interface BatchDelete {
+        int run(int limit);
+    }
+
+    /**
+     * Rows deleted from one table and whether the per-run cap was reached
+     */
+    private static final class BatchResult {
+        final int rows;
+        final boolean capped;
+
+        BatchResult(int rows, boolean capped) {
+            this.rows = rows;
+            this.capped = capped;
+        }
+
+        BatchResult plus(BatchResult other) {
+            return new BatchResult(rows + other.rows, capped || other.capped);
+        }
+    }
+}
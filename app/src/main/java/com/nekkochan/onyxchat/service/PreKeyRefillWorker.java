@@ -0,0 +1,94 @@
+package com.nekkochan.onyxchat.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.nekkochan.onyxchat.crypto.PreKeyManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background worker that keeps the server's pool of one-time prekeys topped up.
+ * <p>
+ * Routine top-ups generate Kyber keys only while the device is idle and charging. When the
+ * server reports the pool running low, waiting for that could leave contacts without prekeys,
+ * so that refill only needs a network.
+ */
+public class PreKeyRefillWorker extends Worker {
+    private static final String TAG = "PreKeyRefillWorker";
+    private static final String PERIODIC_WORK_NAME = "prekey_refill_periodic";
+    private static final String URGENT_REFILL_WORK_NAME = "prekey_refill_urgent";
+
+    public static final String KEY_UNUSED_COUNT = "unused_count";
+
+    private static final long REFILL_INTERVAL_HOURS = 12;
+
+    public PreKeyRefillWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Schedule the periodic refill. Called at startup; an existing schedule is kept.
+     *
+     * @param context Application context
+     */
+    public static void schedule(@NonNull Context context) {
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(
+                PreKeyRefillWorker.class, REFILL_INTERVAL_HOURS, TimeUnit.HOURS)
+                .setConstraints(generateConstraints())
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+                PERIODIC_WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    /**
+     * Upload spare prekeys and generate new ones as soon as there is a network.
+     * Called when the server reports that the pool is running low.
+     *
+     * @param context Application context
+     */
+    public static void requestUrgentRefill(@NonNull Context context) {
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                URGENT_REFILL_WORK_NAME, ExistingWorkPolicy.KEEP, new OneTimeWorkRequest.Builder(PreKeyRefillWorker.class)
+                        .setConstraints(new Constraints.Builder()
+                                .setRequiredNetworkType(NetworkType.CONNECTED)
+                                .build())
+                        .build());
+    }
+
+    private static Constraints generateConstraints() {
+        return new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .build();
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+
+        try {
+            int unused = PreKeyManager.getInstance(context).refill(this::isStopped);
+            return Result.success(new Data.Builder()
+                    .putInt(KEY_UNUSED_COUNT, unused)
+                    .build());
+        } catch (Exception e) {
+            Log.e(TAG, "Prekey refill failed", e);
+            return Result.retry();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.nekkochan.onyxchat.startup;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dependency-ordered application startup.
+ * <p>
+ * Initializers are registered with the names of the initializers they depend on. Each one
+ * starts as soon as its dependencies finish, independent initializers run in parallel on a
+ * background pool, and every initializer runs inside a {@link Trace} section named
+ * {@code Startup.<name>}. Initializers marked as deferred wait until the first frame has
+ * been drawn unless something awaits them earlier. The time from process start to the
+ * first frame is logged and exposed through {@link #getTimeToFirstFrameMillis()}.
+ */
+public final class AppStartup {
+    private static final String TAG = "AppStartup";
+
+    // Initializer names
+    public static final String TASK_NOTIFICATION_CHANNELS = "notification_channels";
+    public static final String TASK_SQLCIPHER = "sqlcipher";
+    public static final String TASK_DATABASE = "database";
+    public static final String TASK_CHAT_SERVICE = "chat_service";
+    public static final String TASK_EMOJI = "emoji";
+    public static final String TASK_RETENTION = "retention";
+    public static final String TASK_CRYPTO_IDENTITY = "crypto_identity";
+    public static final String TASK_PREKEYS = "prekeys";
+    public static final String TASK_VIDEO_ENCODER = "video_encoder";
+
+    private static final AppStartup INSTANCE = new AppStartup();
+
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor;
+    private Context appContext;
+    private boolean firstFrameDrawn;
+    private volatile long timeToFirstFrameMillis = -1;
+
+    private AppStartup() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "startup-" + count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the startup graph
+     * @return The singleton instance
+     */
+    public static AppStartup getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register an initializer
+     * @param name Unique initializer name
+     * @param mainThread Whether the initializer must run on the main thread
+     * @param deferred Whether the initializer should wait until after the first frame
+     * @param initializer The initialization work
+     * @param dependencies Names of initializers that must finish first
+     */
+    public synchronized void register(@NonNull String name, boolean mainThread, boolean deferred,
+                                      @NonNull Initializer initializer, String... dependencies) {
+        if (tasks.containsKey(name)) {
+            throw new IllegalStateException("Initializer already registered: " + name);
+        }
+        tasks.put(name, new Task(name, mainThread, deferred, initializer, dependencies));
+    }
+
+    /**
+     * Start every non-deferred initializer. Main-thread initializers without
+     * dependencies run before this method returns.
+     * @param application The application
+     */
+    public void start(@NonNull Application application) {
+        List<Task> eager = new ArrayList<>();
+        synchronized (this) {
+            appContext = application.getApplicationContext();
+            for (Task task : tasks.values()) {
+                for (String dependency : task.dependencies) {
+                    if (!tasks.containsKey(dependency)) {
+                        throw new IllegalStateException(task.name + " depends on unknown initializer " + dependency);
+                    }
+                }
+                if (!task.deferred) {
+                    eager.add(task);
+                }
+            }
+        }
+        for (Task task : eager) {
+            schedule(task.name);
+        }
+        application.registerActivityLifecycleCallbacks(new FirstFrameCallbacks(application));
+    }
+
+    /**
+     * Block until an initializer has finished, starting it early if it was deferred.
+     * Intended for background threads; on the main thread it only blocks if the work is not done yet.
+     * @param name Initializer name
+     */
+    public void await(@NonNull String name) {
+        try {
+            schedule(name).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Initializer " + name + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Run an action on the main thread once an initializer has finished
+     * @param name Initializer name
+     * @param action Action to run
+     */
+    public void runWhenReady(@NonNull String name, @NonNull Runnable action) {
+        CompletableFuture<Void> future = schedule(name);
+        if (future.isDone() && Looper.myLooper() == Looper.getMainLooper()) {
+            action.run();
+        } else {
+            future.whenComplete((result, error) -> mainHandler.post(action));
+        }
+    }
+
+    /**
+     * Check whether an initializer has finished
+     * @param name Initializer name
+     * @return true if the initializer ran to completion
+     */
+    public synchronized boolean isReady(@NonNull String name) {
+        Task task = tasks.get(name);
+        return task != null && task.future != null && task.future.isDone();
+    }
+
+    /**
+     * Get the time from process start to the first drawn frame
+     * @return Milliseconds, or -1 if no frame has been drawn yet
+     */
+    public long getTimeToFirstFrameMillis() {
+        return timeToFirstFrameMillis;
+    }
+
+    private synchronized CompletableFuture<Void> schedule(String name) {
+        Task task = tasks.get(name);
+        if (task == null) {
+            throw new IllegalArgumentException("Unknown initializer: " + name);
+        }
+        if (task.future != null) {
+            return task.future;
+        }
+
+        CompletableFuture<?>[] dependencies = new CompletableFuture<?>[task.dependencies.length];
+        boolean dependenciesDone = true;
+        for (int i = 0; i < dependencies.length; i++) {
+            dependencies[i] = schedule(task.dependencies[i]);
+            dependenciesDone &= dependencies[i].isDone();
+        }
+
+        if (task.mainThread && dependenciesDone && Looper.myLooper() == Looper.getMainLooper()) {
+            // Run inline so components created right after Application.onCreate can rely on it
+            task.future = new CompletableFuture<>();
+            runTraced(task);
+            task.future.complete(null);
+        } else {
+            task.future = CompletableFuture.allOf(dependencies)
+                    .thenRunAsync(() -> runTraced(task), task.mainThread ? mainHandler::post : executor);
+        }
+        return task.future;
+    }
+
+    private void runTraced(Task task) {
+        long start = SystemClock.elapsedRealtime();
+        Trace.beginSection("Startup." + task.name);
+        try {
+            task.initializer.initialize(appContext);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Initializer " + task.name + " failed", e);
+        } finally {
+            Trace.endSection();
+        }
+        Log.d(TAG, "Initializer " + task.name + " took " + (SystemClock.elapsedRealtime() - start)
+                + "ms on " + Thread.currentThread().getName());
+    }
+
+    private void onFirstFrame() {
+        List<String> deferred = new ArrayList<>();
+        synchronized (this) {
+            if (firstFrameDrawn) {
+                return;
+            }
+            firstFrameDrawn = true;
+            timeToFirstFrameMillis = SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+            for (Task task : tasks.values()) {
+                if (task.deferred) {
+                    deferred.add(task.name);
+                }
+            }
+        }
+        Log.i(TAG, "Time to first frame: " + timeToFirstFrameMillis + "ms");
+        for (String name : deferred) {
+            schedule(name);
+        }
+    }
+
+    /**
+     * Detects the first frame drawn by the first activity to resume
+     */
+    private final class FirstFrameCallbacks implements Application.ActivityLifecycleCallbacks {
+        private final Application application;
+
+        FirstFrameCallbacks(Application application) {
+            this.application = application;
+        }
+
+        @Override
+        public void onActivityResumed(@NonNull Activity activity) {
+            application.unregisterActivityLifecycleCallbacks(this);
+            // The frame callback fires before the frame is drawn; posting from it lands after the draw
+            Choreographer.getInstance().postFrameCallback(frameTimeNanos ->
+                    mainHandler.postAtFrontOfQueue(AppStartup.this::onFirstFrame));
+        }
+
+        @Override
+        public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(@NonNull Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(@NonNull Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(@NonNull Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(@NonNull Activity activity) {
+        }
+    }
+
+    /**
+     * A registered initializer and its scheduling state
+     */
+    private static final class Task {
+        final String name;
+        final boolean mainThread;
+        final boolean deferred;
+        final Initializer initializer;
+        final String[] dependencies;
+        CompletableFuture<Void> future;
+
+        Task(String name, boolean mainThread, boolean deferred, Initializer initializer, String[] dependencies) {
+            this.name = name;
+            this.mainThread = mainThread;
+            this.deferred = deferred;
+            this.initializer = initializer;
+            this.dependencies = dependencies;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.nekkochan.onyxchat.startup;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A single unit of application startup work run by {@link AppStartup}
+ */
+public interface Initializer {
+
+    /**
+     * Perform the initialization
+     * @param context Application context
+     */
+    void initialize(@NonNull Context context);
+}
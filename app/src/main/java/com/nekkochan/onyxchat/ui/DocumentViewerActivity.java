@@ -4,8 +4,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.OperationCanceledException;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -65,6 +67,8 @@ public class DocumentViewerActivity extends AppCompatActivity {
     private TextView errorText;
     private ProgressBar progressBar;
     private ExecutorService executorService;
+    // Cancels a PDF conversion still running when the activity goes away
+    private final CancellationSignal conversionSignal = new CancellationSignal();
 
     private Uri fileUri;
     private String fileName;
@@ -190,6 +194,7 @@ public class DocumentViewerActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        conversionSignal.cancel();
         if (executorService != null) {
             executorService.shutdown();
         }
@@ -301,7 +306,7 @@ public class DocumentViewerActivity extends AppCompatActivity {
                 try {
                     // Convert the document to PDF
                     String extension = FileUtils.getExtension(this, fileUri);
-                    File pdfFile = DocumentConverter.convertToPdf(this, fileUri, extension);
+                    File pdfFile = DocumentConverter.convertToPdf(this, fileUri, extension, conversionSignal);
                     if (pdfFile != null) {
                         // Create a content URI for the PDF file
                         Uri pdfUri = FileProvider.getUriForFile(
@@ -317,6 +322,8 @@ public class DocumentViewerActivity extends AppCompatActivity {
                                 "Could not convert document for annotation", 
                                 Toast.LENGTH_SHORT).show());
                     }
+                } catch (OperationCanceledException e) {
+                    Log.d(TAG, "Conversion for annotation cancelled");
                 } catch (Exception e) {
                     Log.e(TAG, "Error converting document for annotation", e);
                     runOnUiThread(() -> Toast.makeText(this, 
@@ -390,7 +397,12 @@ public class DocumentViewerActivity extends AppCompatActivity {
                 } else {
                     // If text extraction fails or produces unreadable content, try to convert to PDF
                     String fileExtension = FileUtils.getExtension(this, fileUri);
-                    File pdfFile = DocumentConverter.convertToPdf(this, fileUri, fileExtension);
+                    File pdfFile = DocumentConverter.convertToPdf(this, fileUri, fileExtension, conversionSignal,
+                            pageCount -> runOnUiThread(() -> {
+                                pageNumber.setText(String.format("Converting page %d", pageCount));
+                                pageNumber.setVisibility(View.VISIBLE);
+                            }));
+                    runOnUiThread(this::updatePageInfo);
                     if (pdfFile != null && pdfFile.exists()) {
                         // Create a content URI that can be shared with other apps
                         Uri contentUri = FileProvider.getUriForFile(
@@ -453,6 +465,8 @@ public class DocumentViewerActivity extends AppCompatActivity {
                         });
                     }
                 }
+            } catch (OperationCanceledException e) {
+                Log.d(TAG, "Document conversion cancelled");
             } catch (Exception e) {
                 Log.e(TAG, "Error loading document", e);
                 showError("Error loading document: " + e.getMessage());
@@ -3,6 +3,9 @@ package com.nekkochan.onyxchat.ui.adapters;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.text.TextUtils;
@@ -34,6 +37,7 @@ import com.bumptech.glide.request.target.Target;
 import com.google.android.exoplayer2.ExoPlayer;
 import com.google.android.exoplayer2.MediaItem;
 import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.ui.PlayerControlView;
 import com.google.android.exoplayer2.ui.PlayerView;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -42,12 +46,17 @@ import com.nekkochan.onyxchat.R;
 import com.nekkochan.onyxchat.network.ApiClient;
 import com.nekkochan.onyxchat.ui.media.MediaViewerActivity;
 import com.nekkochan.onyxchat.ui.viewmodel.ChatViewModel;
+import com.nekkochan.onyxchat.utils.MediaPreview;
+import com.nekkochan.onyxchat.utils.MediaStreamCache;
+import com.nekkochan.onyxchat.utils.MediaVariant;
 import com.nekkochan.onyxchat.utils.MimeTypeUtils;
+import com.nekkochan.onyxchat.utils.PosterFrameCache;
 import com.nekkochan.onyxchat.util.UserSessionManager;
 import com.nekkochan.onyxchat.ui.chat.ChatDocumentHandler;
 
 import org.json.JSONObject;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -66,6 +75,13 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
     private static final int VIEW_TYPE_SENT = 1;
     private static final int VIEW_TYPE_RECEIVED = 2;
     private static final long ANIMATION_DURATION = 300;
+    // Media bubble size, matching the 200x150dp default in the message layouts
+    private static final int MEDIA_WIDTH_DP = 200;
+    private static final int MEDIA_DEFAULT_HEIGHT_DP = 150;
+    private static final int MEDIA_MIN_HEIGHT_DP = 100;
+    private static final int MEDIA_MAX_HEIGHT_DP = 300;
+    // Tall enough for the player controls of a voice message
+    private static final int VOICE_MESSAGE_HEIGHT_DP = 72;
     private int lastAnimatedPosition = -1;
     
     // Consistent time formatter for the entire app
@@ -295,6 +311,11 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
                 String type = jsonObject.get("type").getAsString().toUpperCase();
                 String url = jsonObject.get("url").getAsString();
                 String caption = jsonObject.has("caption") ? jsonObject.get("caption").getAsString() : "";
+                // Size and placeholder are only present in messages from newer senders
+                int width = jsonObject.has(MediaPreview.KEY_WIDTH) ? jsonObject.get(MediaPreview.KEY_WIDTH).getAsInt() : 0;
+                int height = jsonObject.has(MediaPreview.KEY_HEIGHT) ? jsonObject.get(MediaPreview.KEY_HEIGHT).getAsInt() : 0;
+                String blurHash = jsonObject.has(MediaPreview.KEY_BLURHASH)
+                        ? jsonObject.get(MediaPreview.KEY_BLURHASH).getAsString() : null;
                 
                 // Check if this is a video message
                 if (type.equals("VIDEO") || url.toLowerCase().endsWith(".mp4") || 
@@ -305,7 +326,25 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
                 Log.d(TAG, String.format("Successfully parsed media message - Type: %s, URL: %s, Caption: %s", 
                     type, url, caption));
                 
-                return new MediaContent(type, url, caption);
+                MediaContent mediaContent = new MediaContent(type, url, caption);
+                if (jsonObject.has(MediaVariant.KEY_VARIANTS)) {
+                    for (com.google.gson.JsonElement element : jsonObject.getAsJsonArray(MediaVariant.KEY_VARIANTS)) {
+                        JsonObject variant = element.getAsJsonObject();
+                        mediaContent.variants.add(new MediaVariant(
+                                variant.get(MediaVariant.KEY_NAME).getAsString(),
+                                variant.get(MediaVariant.KEY_URL).getAsString(),
+                                variant.get(MediaVariant.KEY_WIDTH).getAsInt(),
+                                variant.get(MediaVariant.KEY_HEIGHT).getAsInt()));
+                    }
+                }
+                mediaContent.width = width;
+                mediaContent.height = height;
+                mediaContent.blurHash = blurHash;
+                mediaContent.posterUrl = jsonObject.has(PosterFrameCache.KEY_POSTER)
+                        ? jsonObject.get(PosterFrameCache.KEY_POSTER).getAsString() : null;
+                mediaContent.contentHash = jsonObject.has(PosterFrameCache.KEY_CONTENT_HASH)
+                        ? jsonObject.get(PosterFrameCache.KEY_CONTENT_HASH).getAsString() : null;
+                return mediaContent;
             }
         } catch (Exception e) {
             Log.e(TAG, "Failed to parse media message: " + e.getMessage());
@@ -322,6 +361,14 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
         String type;
         String url;
         String caption;
+        int width;
+        int height;
+        String blurHash;
+        // Poster frame of a video and the video's hash; absent in messages from older senders
+        String posterUrl;
+        String contentHash;
+        // Resolutions of a photo; empty for messages sent as a single file
+        final List<MediaVariant> variants = new ArrayList<>();
         
         MediaContent(String type, String url, String caption) {
             this.type = type;
@@ -383,6 +430,12 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
         
         // Track which message this player is associated with
         private String currentVideoUrl;
+        private Drawable mediaPlaceholder;
+        private int mediaWidthPx;
+        private int mediaHeightPx;
+        // Poster frame of the bound video
+        private String posterKey;
+        private String posterUrl;
         
         public ChatMessageViewHolder(View itemView) {
             super(itemView);
@@ -488,10 +541,21 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
                     handleDocumentMessage(mediaContent);
                 } else if (mediaContent.type.equals("VIDEO")) {
                     // Handle video message with ExoPlayer
-                    handleVideoContent(mediaContent.url, mediaContent.caption);
+                    applyMediaPreview(mediaContent);
+                    handleVideoContent(mediaContent.url, mediaContent.posterUrl, mediaContent.contentHash,
+                            mediaContent.caption);
+                } else if (mediaContent.type.equals("AUDIO")) {
+                    // Voice message, played with the player's controls only
+                    handleAudioContent(mediaContent.url);
                 } else if (mediaContent.type.equals("IMAGE")) {
                     // Handle image message with Glide
-                    handleImageContent(mediaContent.url, mediaContent.caption);
+                    applyMediaPreview(mediaContent);
+                    // The bubble gets the smallest variant that stays sharp, the viewer the largest
+                    MediaVariant bubbleVariant = MediaVariant.choose(mediaContent.variants, mediaWidthPx, mediaHeightPx);
+                    MediaVariant fullVariant = MediaVariant.largest(mediaContent.variants);
+                    handleImageContent(bubbleVariant != null ? bubbleVariant.getLocation() : mediaContent.url,
+                            fullVariant != null ? fullVariant.getLocation() : mediaContent.url,
+                            mediaContent.caption);
                 } else {
                     // Regular text message
                     messageText.setText(mediaContent.caption.isEmpty() 
@@ -594,24 +658,48 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
         }
         
         /**
-         * Handle video content with ExoPlayer
+         * Size the media views to the aspect ratio of the media and decode its placeholder, so the
+         * bubble does not jump when the media arrives. Views are recycled, so media without a
+         * size goes back to the default bubble.
          */
-        private void handleVideoContent(String videoUrl, String caption) {
-            // Hide text and show video player
-            messageText.setVisibility(View.GONE);
-            
-            if (mediaImageView != null) {
-                mediaImageView.setVisibility(View.GONE);
+        private void applyMediaPreview(MediaContent mediaContent) {
+            float density = itemView.getResources().getDisplayMetrics().density;
+            int width = Math.round(MEDIA_WIDTH_DP * density);
+            int height = Math.round(MEDIA_DEFAULT_HEIGHT_DP * density);
+            if (mediaContent.width > 0 && mediaContent.height > 0) {
+                float heightDp = MEDIA_WIDTH_DP * mediaContent.height / (float) mediaContent.width;
+                heightDp = Math.max(MEDIA_MIN_HEIGHT_DP, Math.min(MEDIA_MAX_HEIGHT_DP, heightDp));
+                height = Math.round(heightDp * density);
             }
+            resizeView(mediaImageView, width, height);
+            resizeView(videoPlayerView, width, height);
+            mediaWidthPx = width;
+            mediaHeightPx = height;
             
-            if (videoPlayerView != null) {
-                videoPlayerView.setVisibility(View.VISIBLE);
+            Bitmap placeholder = MediaPreview.placeholder(mediaContent.blurHash, mediaContent.width, mediaContent.height);
+            mediaPlaceholder = placeholder != null
+                    ? new BitmapDrawable(itemView.getResources(), placeholder) : null;
+        }
+        
+        private void resizeView(View view, int width, int height) {
+            if (view == null) {
+                return;
             }
-            
-            // Hide play button as ExoPlayer has its own controls
-            if (playButtonView != null) {
-                playButtonView.setVisibility(View.GONE);
+            ViewGroup.LayoutParams params = view.getLayoutParams();
+            if (params != null && (params.width != width || params.height != height)) {
+                params.width = width;
+                params.height = height;
+                view.setLayoutParams(params);
             }
+        }
+        
+        /**
+         * Handle video content. The bubble shows the cached poster frame with a play button, and
+         * the player is only created once the video is played, so binding never starts a decoder.
+         */
+        private void handleVideoContent(String videoUrl, String posterUrl, String contentHash, String caption) {
+            // Hide text and document views
+            messageText.setVisibility(View.GONE);
             
             // Hide document view if it exists
             if (documentView != null) {
@@ -632,23 +720,165 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
             String processedUrl = processMediaUrl(videoUrl);
             Log.d(TAG, "Processing video URL: " + processedUrl + " from original: " + videoUrl);
             
-            // Initialize ExoPlayer if needed
-            initializePlayer(processedUrl);
+            this.posterKey = PosterFrameCache.key(contentHash, processedUrl);
+            this.posterUrl = posterUrl != null
+                    ? getAuthenticatedUrl(processMediaUrl(posterUrl), itemView.getContext()) : null;
             
-            // Set click listener for fullscreen view
-            videoPlayerView.setOnClickListener(v -> {
-                // Pause the player
-                if (player != null) {
-                    player.pause();
+            if (videoPlayerView != null) {
+                // Undo the always-visible controls of a recycled voice message
+                videoPlayerView.setControllerShowTimeoutMs(PlayerControlView.DEFAULT_SHOW_TIMEOUT_MS);
+                videoPlayerView.setControllerHideOnTouch(true);
+                // Show the placeholder through the shutter until the first frame is rendered
+                if (mediaPlaceholder != null) {
+                    videoPlayerView.setShutterBackgroundColor(Color.TRANSPARENT);
+                    videoPlayerView.setBackground(mediaPlaceholder);
+                } else {
+                    videoPlayerView.setShutterBackgroundColor(Color.BLACK);
+                    videoPlayerView.setBackground(null);
                 }
-                
-                // Open in full screen viewer
-                Intent intent = new Intent(itemView.getContext(), MediaViewerActivity.class);
-                intent.putExtra("mediaUrl", processedUrl);
-                intent.putExtra("mediaType", "VIDEO");
-                intent.putExtra("mediaCaption", caption);
-                itemView.getContext().startActivity(intent);
-            });
+                videoPlayerView.setOnClickListener(v -> openVideoViewer(processedUrl, caption));
+            }
+            
+            if (player != null && processedUrl.equals(currentVideoUrl)) {
+                // Rebound while this video is playing inline
+                showPlayer();
+            } else {
+                releasePlayer();
+                showPoster(processedUrl);
+            }
+            
+            if (mediaImageView != null) {
+                mediaImageView.setOnClickListener(v -> openVideoViewer(processedUrl, caption));
+            }
+            if (playButtonView != null) {
+                playButtonView.setOnClickListener(v -> {
+                    showPlayer();
+                    initializePlayer(processedUrl);
+                    if (player != null) {
+                        player.play();
+                    }
+                });
+            }
+        }
+        
+        private void openVideoViewer(String videoUrl, String caption) {
+            // Pause the player
+            if (player != null) {
+                player.pause();
+            }
+            
+            // Open in full screen viewer
+            Intent intent = new Intent(itemView.getContext(), MediaViewerActivity.class);
+            intent.putExtra("mediaUrl", videoUrl);
+            intent.putExtra("mediaType", "VIDEO");
+            intent.putExtra("mediaCaption", caption);
+            itemView.getContext().startActivity(intent);
+        }
+        
+        private void showPlayer() {
+            if (mediaImageView != null) {
+                mediaImageView.setVisibility(View.GONE);
+            }
+            if (playButtonView != null) {
+                playButtonView.setVisibility(View.GONE);
+            }
+            if (videoPlayerView != null) {
+                videoPlayerView.setVisibility(View.VISIBLE);
+            }
+        }
+        
+        /**
+         * Show the poster frame of the bound video with a play button. A poster that is not cached
+         * yet is fetched once in the background while the placeholder shows.
+         */
+        private void showPoster(String videoUrl) {
+            if (videoPlayerView != null) {
+                videoPlayerView.setVisibility(View.GONE);
+            }
+            if (playButtonView != null) {
+                playButtonView.setVisibility(View.VISIBLE);
+            }
+            if (mediaImageView == null) {
+                return;
+            }
+            mediaImageView.setVisibility(View.VISIBLE);
+            
+            Context context = itemView.getContext();
+            File poster = PosterFrameCache.getCachedFile(context, posterKey);
+            if (poster != null) {
+                loadPoster(poster);
+                return;
+            }
+            
+            Glide.with(context).clear(mediaImageView);
+            if (mediaPlaceholder != null) {
+                mediaImageView.setImageDrawable(mediaPlaceholder);
+            } else {
+                mediaImageView.setImageResource(R.drawable.placeholder_image);
+            }
+            String key = posterKey;
+            PosterFrameCache.getAsync(context, key, posterUrl, getAuthenticatedUrl(videoUrl, context))
+                    .whenCompleteAsync((file, error) -> {
+                        if (error != null) {
+                            Log.e(TAG, "Could not get poster frame for " + videoUrl, error);
+                            return;
+                        }
+                        // The holder may have been bound to another message or started playing
+                        if (key.equals(posterKey) && player == null) {
+                            loadPoster(file);
+                        }
+                    }, itemView::post);
+        }
+        
+        private void loadPoster(File poster) {
+            try {
+                Glide.with(itemView.getContext())
+                        .load(poster)
+                        .apply(placeholderOptions().error(R.drawable.error_image))
+                        .into(mediaImageView);
+            } catch (Exception e) {
+                Log.e(TAG, "Error loading poster frame", e);
+            }
+        }
+        
+        /**
+         * Handle a voice message. The player view shrinks to its controls, which stay visible.
+         * The recording may still be uploading; the server streams it as it arrives.
+         */
+        private void handleAudioContent(String audioUrl) {
+            posterKey = null;
+            messageText.setVisibility(View.GONE);
+            if (mediaImageView != null) {
+                mediaImageView.setVisibility(View.GONE);
+            }
+            if (playButtonView != null) {
+                playButtonView.setVisibility(View.GONE);
+            }
+            if (documentView != null) {
+                documentView.setVisibility(View.GONE);
+            }
+            if (captionText != null) {
+                captionText.setVisibility(View.GONE);
+            }
+            if (videoPlayerView == null) {
+                return;
+            }
+            
+            float density = itemView.getResources().getDisplayMetrics().density;
+            resizeView(videoPlayerView, Math.round(MEDIA_WIDTH_DP * density), Math.round(VOICE_MESSAGE_HEIGHT_DP * density));
+            videoPlayerView.setVisibility(View.VISIBLE);
+            videoPlayerView.setOnClickListener(null);
+            videoPlayerView.setBackground(null);
+            videoPlayerView.setShutterBackgroundColor(Color.TRANSPARENT);
+            videoPlayerView.setControllerShowTimeoutMs(0);
+            videoPlayerView.setControllerHideOnTouch(false);
+            
+            initializePlayer(processMediaUrl(audioUrl));
+            if (player != null) {
+                // Voice messages play once
+                player.setRepeatMode(Player.REPEAT_MODE_OFF);
+            }
+            videoPlayerView.showController();
         }
         
         /**
@@ -664,15 +894,15 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
             releasePlayer();
             
             try {
-                // Create a new ExoPlayer instance
-                player = new ExoPlayer.Builder(itemView.getContext()).build();
+                // Create a new ExoPlayer instance that streams ranges through the media cache
+                player = MediaStreamCache.buildPlayer(itemView.getContext());
                 
                 // Set player to the view
                 videoPlayerView.setPlayer(player);
                 
                 // Create a MediaItem
                 String authenticatedUrl = getAuthenticatedUrl(videoUrl, itemView.getContext());
-                MediaItem mediaItem = MediaItem.fromUri(authenticatedUrl);
+                MediaItem mediaItem = MediaStreamCache.mediaItem(authenticatedUrl);
                 
                 // Set the media item to be played
                 player.setMediaItem(mediaItem);
@@ -708,45 +938,35 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
         }
         
         /**
-         * Fallback to showing a thumbnail if video playback fails
+         * Fallback to showing the poster frame if video playback fails
          */
         private void fallbackToThumbnail(String videoUrl) {
-            // Show image view and play button instead
-            if (mediaImageView != null) {
-                mediaImageView.setVisibility(View.VISIBLE);
-            }
-            
-            if (videoPlayerView != null) {
-                videoPlayerView.setVisibility(View.GONE);
-            }
-            
-            if (playButtonView != null) {
-                playButtonView.setVisibility(View.VISIBLE);
-            }
-            
-            // Load thumbnail with Glide
-            try {
-                RequestOptions requestOptions = new RequestOptions()
-                        .placeholder(R.drawable.placeholder_image)
-                        .error(R.drawable.error_image)
-                        .diskCacheStrategy(DiskCacheStrategy.ALL)
-                        .frame(1000000); // Use a frame from 1 second in
-                
-                Glide.with(itemView.getContext())
-                        .load(videoUrl)
-                        .apply(requestOptions)
-                        .into(mediaImageView);
-                
-                Log.d(TAG, "Fallback to thumbnail for: " + videoUrl);
-            } catch (Exception e) {
-                Log.e(TAG, "Error loading video thumbnail", e);
+            if (posterKey == null) {
+                // Voice messages have no poster
+                return;
             }
+            releasePlayer();
+            showPoster(videoUrl);
+            Log.d(TAG, "Fallback to poster frame for: " + videoUrl);
+        }
+        
+        /**
+         * Glide options with the message's BlurHash placeholder, or the generic one without it
+         */
+        private RequestOptions placeholderOptions() {
+            RequestOptions requestOptions = new RequestOptions();
+            return mediaPlaceholder != null
+                    ? requestOptions.placeholder(mediaPlaceholder)
+                    : requestOptions.placeholder(R.drawable.placeholder_image);
         }
         
         /**
          * Handle image content with Glide
+         *
+         * @param imageUrl URL of the variant shown in the bubble
+         * @param fullUrl  URL of the largest variant, shown in the media viewer
          */
-        private void handleImageContent(String imageUrl, String caption) {
+        private void handleImageContent(String imageUrl, String fullUrl, String caption) {
             // Show image view, hide video player
             if (mediaImageView != null) {
                 mediaImageView.setVisibility(View.VISIBLE);
@@ -773,8 +993,7 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
             
             // Load the image with Glide
             try {
-                RequestOptions requestOptions = new RequestOptions()
-                        .placeholder(R.drawable.placeholder_image)
+                RequestOptions requestOptions = placeholderOptions()
                         .error(R.drawable.error_image)
                         .diskCacheStrategy(DiskCacheStrategy.ALL);
                 
@@ -799,7 +1018,11 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
                 // Set click listener to open media viewer
                 mediaImageView.setOnClickListener(v -> {
                     Intent intent = new Intent(itemView.getContext(), MediaViewerActivity.class);
-                    intent.putExtra("mediaUrl", imageUrl);
+                    intent.putExtra("mediaUrl", fullUrl);
+                    if (!fullUrl.equals(imageUrl)) {
+                        // Already cached, so the viewer can show it while the full image loads
+                        intent.putExtra(MediaViewerActivity.EXTRA_PREVIEW_URL, imageUrl);
+                    }
                     intent.putExtra("mediaType", "IMAGE");
                     intent.putExtra("mediaCaption", caption);
                     itemView.getContext().startActivity(intent);
@@ -13,6 +13,7 @@ import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewParent;
 import android.view.inputmethod.InputMethodManager;
@@ -34,6 +35,7 @@ import androidx.core.content.ContextCompat;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import androidx.work.WorkInfo;
 
 import com.google.android.material.bottomsheet.BottomSheetDialog;
 import com.google.android.material.chip.Chip;
@@ -41,17 +43,27 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.nekkochan.onyxchat.R;
 import com.nekkochan.onyxchat.model.Contact;
 import com.nekkochan.onyxchat.network.WebSocketClient;
+import com.nekkochan.onyxchat.service.MediaJobWorker;
 import com.nekkochan.onyxchat.ui.adapters.ChatMessageAdapter;
 import com.nekkochan.onyxchat.ui.media.MediaProcessingActivity;
 import com.nekkochan.onyxchat.ui.viewmodel.ChatViewModel;
+import com.nekkochan.onyxchat.startup.AppStartup;
 import com.nekkochan.onyxchat.utils.EmojiUtils;
 import com.nekkochan.onyxchat.utils.FileUtils;
 import com.nekkochan.onyxchat.utils.MediaUtils;
+import com.nekkochan.onyxchat.utils.MediaVariant;
 import com.nekkochan.onyxchat.utils.MimeTypeUtils;
+import com.nekkochan.onyxchat.utils.VoiceNoteRecorder;
 import com.vanniktech.emoji.EmojiPopup;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 
 import de.hdodenhof.circleimageview.CircleImageView;
@@ -74,6 +86,10 @@ public class ChatActivity extends AppCompatActivity {
     private boolean isProcessingMedia = false;
     private String processingMediaType = null;
     private String processingMediaMessage = null;
+    // Job behind the media status card, if it was started from this chat
+    private MediaJobWorker.Job currentMediaJob = null;
+    // First unfinished media job, which may have been restored after a restart
+    private UUID activeMediaJobId = null;
     
     private ChatViewModel viewModel;
     private RecyclerView recyclerView;
@@ -89,6 +105,8 @@ public class ChatActivity extends AppCompatActivity {
     private FloatingActionButton scrollDownButton;
     private ImageButton attachButton;
     private ImageButton emojiButton;
+    private ImageButton voiceNoteButton;
+    private VoiceNoteRecorder voiceNoteRecorder;
     private ImageButton voiceCallButton;
     private ImageButton videoCallButton;
     private ImageButton chatSettingsButton;
@@ -191,6 +209,7 @@ public class ChatActivity extends AppCompatActivity {
         scrollDownButton = findViewById(R.id.scrollDownButton);
         attachButton = findViewById(R.id.attachButton);
         emojiButton = findViewById(R.id.emojiButton);
+        voiceNoteButton = findViewById(R.id.voiceNoteButton);
         voiceCallButton = findViewById(R.id.voiceCallButton);
         videoCallButton = findViewById(R.id.videoCallButton);
         chatSettingsButton = findViewById(R.id.chatSettingsButton);
@@ -203,7 +222,8 @@ public class ChatActivity extends AppCompatActivity {
         mediaStatusProgress = findViewById(R.id.mediaStatusProgress);
         mediaStatusCancel = findViewById(R.id.mediaStatusCancel);
         
-        mediaStatusCancel.setOnClickListener(v -> hideMediaStatus());
+        mediaStatusCancel.setOnClickListener(v -> cancelMediaJob());
+        MediaJobWorker.getJobs(this).observe(this, this::onMediaJobsChanged);
         
         // Add logging to track timestamps of messages
         // Set up contact info in header format similar to Discover Users screen
@@ -307,8 +327,8 @@ public class ChatActivity extends AppCompatActivity {
         emojiButton.setOnClickListener(null);
         Log.d(TAG, "Setting up emoji popup");
         
-        // Wait for layout to be completely ready
-        findViewById(android.R.id.content).postDelayed(() -> {
+        // Wait for emoji support to finish loading and for layout to be completely ready
+        AppStartup.getInstance().runWhenReady(AppStartup.TASK_EMOJI, () -> findViewById(android.R.id.content).postDelayed(() -> {
             // Set up emoji popup after layout is ready to ensure it works right away
             emojiPopup = EmojiUtils.setupEmojiPopup(this, findViewById(android.R.id.content), messageInput, (ImageView) emojiButton);
             Log.d(TAG, "Emoji popup setup complete");
@@ -356,7 +376,7 @@ public class ChatActivity extends AppCompatActivity {
                 Log.d(TAG, "Done button clicked - dismissing emoji popup");
                 EmojiUtils.dismissEmojiPopup();
             });
-        }, 300);
+        }, 300));
         
         // Watch for scrolling to show/hide scroll button
         recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
@@ -380,6 +400,24 @@ public class ChatActivity extends AppCompatActivity {
         // Set up attachment button
         attachButton.setOnClickListener(v -> showAttachmentOptions());
         
+        // Voice messages record while the button is held and send on release
+        voiceNoteButton.setOnTouchListener((v, event) -> {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    startVoiceNote();
+                    return true;
+                case MotionEvent.ACTION_UP:
+                    stopVoiceNote(true);
+                    v.performClick();
+                    return true;
+                case MotionEvent.ACTION_CANCEL:
+                    stopVoiceNote(false);
+                    return true;
+                default:
+                    return false;
+            }
+        });
+        
         // Set up voice call button
         voiceCallButton.setOnClickListener(v -> initiateCall(false));
         
@@ -506,17 +544,13 @@ public class ChatActivity extends AppCompatActivity {
         if (viewModel != null) {
             viewModel.refreshMessages();
         }
-        
-        // Also check for media processing state
-        if (FileUtils.isMediaProcessing()) {
-            // Show media status UI with the current processing type
-            String mediaType = FileUtils.getMediaProcessingType();
-            String statusMessage = "Processing " + mediaType + "...";
-            showMediaStatus(statusMessage, mediaType, true);
-        } else if (isProcessingMedia) {
-            // If we think we're processing but FileUtils disagrees, hide the UI
-            hideMediaStatus();
-        }
+    }
+    
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Leaving the screen while holding the button discards the recording
+        stopVoiceNote(false);
     }
     
     @Override
@@ -556,6 +590,10 @@ public class ChatActivity extends AppCompatActivity {
             } else {
                 Toast.makeText(this, "Permission denied. Cannot access media files.", Toast.LENGTH_SHORT).show();
             }
+        } else if (requestCode == PERMISSION_REQUEST_VOICE_NOTE) {
+            if (grantResults.length == 0 || grantResults[0] != PackageManager.PERMISSION_GRANTED) {
+                Toast.makeText(this, "Permission denied. Cannot record voice messages.", Toast.LENGTH_SHORT).show();
+            }
         } else if (requestCode == PERMISSION_REQUEST_CALL) {
             // Handle call permissions
             boolean allGranted = true;
@@ -757,6 +795,8 @@ public class ChatActivity extends AppCompatActivity {
             mediaStatusIcon.setImageResource(R.drawable.ic_image);
         } else if ("document".equals(mediaType)) {
             mediaStatusIcon.setImageResource(R.drawable.ic_document);
+        } else if ("audio".equals(mediaType)) {
+            mediaStatusIcon.setImageResource(R.drawable.ic_mic);
         }
         
         // Set the status text
@@ -808,6 +848,137 @@ public class ChatActivity extends AppCompatActivity {
         }
     }
     
+    /**
+     * Keep the media status card in line with the job queue, including jobs that survived
+     * the activity or the process being recreated
+     */
+    private void onMediaJobsChanged(List<WorkInfo> jobs) {
+        for (WorkInfo job : jobs) {
+            if (job.getState().isFinished()) {
+                continue;
+            }
+            activeMediaJobId = job.getId();
+            String mediaType = MediaJobWorker.getType(job);
+            int progress = MediaJobWorker.getProgress(job);
+            if (!isProcessingMedia) {
+                showMediaStatus("Processing " + mediaType + "...", mediaType, progress < 0);
+            }
+            if (progress >= 0) {
+                updateMediaStatusProgress(progress);
+            }
+            return;
+        }
+
+        activeMediaJobId = null;
+        // A restored job has no callback of its own, so its card is hidden here
+        if (isProcessingMedia && currentMediaJob == null && !"document".equals(processingMediaType)) {
+            hideMediaStatus();
+        }
+    }
+
+    /**
+     * Stop the media job shown in the status card
+     */
+    private void cancelMediaJob() {
+        if (currentMediaJob != null) {
+            currentMediaJob.cancel(this);
+        }
+        if (activeMediaJobId != null) {
+            MediaJobWorker.cancel(this, activeMediaJobId);
+        }
+        currentMediaJob = null;
+        hideMediaStatus();
+    }
+
+    private static boolean isCancellation(Throwable ex) {
+        return ex instanceof CancellationException || ex.getCause() instanceof CancellationException;
+    }
+
+    /**
+     * Start recording a voice message; the recording is uploaded while it is made
+     */
+    private void startVoiceNote() {
+        if (voiceNoteRecorder != null) {
+            return;
+        }
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.RECORD_AUDIO},
+                    PERMISSION_REQUEST_VOICE_NOTE);
+            return;
+        }
+        try {
+            voiceNoteRecorder = VoiceNoteRecorder.start(this);
+            showMediaStatus("Recording voice message...", "audio", true);
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting voice message", e);
+            Toast.makeText(this, "Could not start recording: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+    }
+    
+    /**
+     * Stop recording a voice message
+     * 
+     * @param send Whether to send the recording or discard it
+     */
+    private void stopVoiceNote(boolean send) {
+        VoiceNoteRecorder recorder = voiceNoteRecorder;
+        if (recorder == null) {
+            return;
+        }
+        voiceNoteRecorder = null;
+        hideMediaStatus();
+        if (!send) {
+            recorder.cancel();
+            return;
+        }
+        
+        // The message goes out as soon as the stream URL is known; the upload finishes behind it
+        recorder.stop().thenAcceptAsync(result -> sendVoiceNote(recorder, result), runnable -> runOnUiThread(runnable))
+                .exceptionally(ex -> {
+                    runOnUiThread(() -> {
+                        if (recorder.getDurationMs() < VoiceNoteRecorder.MIN_DURATION_MS) {
+                            Toast.makeText(this, R.string.voice_message, Toast.LENGTH_SHORT).show();
+                        } else {
+                            Log.e(TAG, "Error sending voice message", ex);
+                            Toast.makeText(this, "Failed to send voice message", Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                    return null;
+                });
+        recorder.getUploadFuture().exceptionally(ex -> {
+            if (!isCancellation(ex)) {
+                // The message is already out, so its receiver would silently get a cut-off clip
+                Log.e(TAG, "Voice message upload did not complete", ex);
+                runOnUiThread(() -> Toast.makeText(this,
+                        "Voice message upload failed; it may be cut off for the recipient",
+                        Toast.LENGTH_LONG).show());
+            }
+            return null;
+        });
+    }
+    
+    /**
+     * Send the message for a recorded voice message, discarding the upload if it cannot be sent
+     */
+    private void sendVoiceNote(VoiceNoteRecorder recorder, VoiceNoteRecorder.Result result) {
+        try {
+            JSONObject contentJson = new JSONObject();
+            contentJson.put("url", result.url);
+            contentJson.put("type", ChatMessageItem.MessageType.AUDIO.toString().toLowerCase());
+            contentJson.put("filename", result.filename);
+            contentJson.put("mimeType", result.mimeType);
+            contentJson.put("duration", result.durationMs);
+            if (!viewModel.sendMessage(contentJson.toString(), ChatMessageItem.MessageType.AUDIO)) {
+                recorder.cancel();
+                Toast.makeText(this, "Failed to send voice message", Toast.LENGTH_SHORT).show();
+            }
+        } catch (JSONException e) {
+            recorder.cancel();
+            Log.e(TAG, "Error creating voice message JSON", e);
+        }
+    }
+    
     /**
      * Process an image file
      */
@@ -816,16 +987,21 @@ public class ChatActivity extends AppCompatActivity {
         showMediaStatus("Processing image...", "image", true);
         
         // Start compressing in the background
-        CompletableFuture<String> future = FileUtils.compressImage(this, imageUri);
-        future.thenAcceptAsync(compressedPath -> {
+        CompletableFuture<List<MediaVariant>> future = FileUtils.compressImageVariants(this, imageUri);
+        future.thenAcceptAsync(variants -> {
             // Hide the status UI before launching the new activity
             hideMediaStatus();
             
+            // Preview the screen-sized variant; all of them are uploaded on send
+            MediaVariant screen = MediaVariant.find(variants, MediaVariant.SCREEN);
+            String previewPath = (screen != null ? screen : variants.get(0)).getLocation();
+            
             // Launch media preview activity
             Intent intent = new Intent(this, MediaProcessingActivity.class);
-            intent.putExtra(MediaProcessingActivity.EXTRA_MEDIA_URI, Uri.parse(compressedPath));
+            intent.putExtra(MediaProcessingActivity.EXTRA_MEDIA_URI, Uri.parse(previewPath));
             intent.putExtra(MediaProcessingActivity.EXTRA_MEDIA_TYPE, MediaProcessingActivity.MEDIA_TYPE_IMAGE);
             intent.putExtra(MediaProcessingActivity.EXTRA_CHAT_ID, contactId);
+            intent.putExtra(MediaProcessingActivity.EXTRA_VARIANTS, new ArrayList<>(variants));
             startActivity(intent);
         }, runnable -> runOnUiThread(runnable))
         .exceptionally(ex -> {
@@ -854,9 +1030,11 @@ public class ChatActivity extends AppCompatActivity {
         showMediaStatus("Processing video...", "video", true);
         
         // Start compressing in the background
-        CompletableFuture<String> future = FileUtils.compressVideo(this, videoUri);
-        future.thenAcceptAsync(compressedPath -> {
+        MediaJobWorker.Job job = FileUtils.compressVideo(this, videoUri);
+        currentMediaJob = job;
+        job.getResult().thenAcceptAsync(compressedPath -> {
             // Hide the status UI before launching the new activity
+            currentMediaJob = null;
             hideMediaStatus();
             
             // Launch media preview activity
@@ -869,6 +1047,11 @@ public class ChatActivity extends AppCompatActivity {
         .exceptionally(ex -> {
             // Handle error with media status UI
             runOnUiThread(() -> {
+                currentMediaJob = null;
+                if (isCancellation(ex)) {
+                    // Cancelled from the status card, which is already hidden
+                    return;
+                }
                 mediaStatusProgress.setIndeterminate(false);
                 mediaStatusText.setText("Error: " + ex.getMessage());
                 
@@ -1062,4 +1245,5 @@ public class ChatActivity extends AppCompatActivity {
     }
 
     private static final int PERMISSION_REQUEST_CALL = 101;
+    private static final int PERMISSION_REQUEST_VOICE_NOTE = 102;
 } 
\ No newline at end of file
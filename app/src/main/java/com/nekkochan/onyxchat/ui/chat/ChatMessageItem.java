@@ -16,6 +16,7 @@ public class ChatMessageItem {
         IMAGE,
         VIDEO,
         DOCUMENT,
+        AUDIO,
         SYSTEM
     }
     
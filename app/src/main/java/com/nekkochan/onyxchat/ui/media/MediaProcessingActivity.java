@@ -37,7 +37,10 @@ import com.google.android.exoplayer2.ui.PlayerView;
 import com.nekkochan.onyxchat.R;
 import com.nekkochan.onyxchat.network.ApiClient;
 import com.nekkochan.onyxchat.utils.FileUtils;
+import com.nekkochan.onyxchat.utils.MediaPreview;
 import com.nekkochan.onyxchat.utils.MediaUtils;
+import com.nekkochan.onyxchat.utils.MediaVariant;
+import com.nekkochan.onyxchat.utils.PosterFrameCache;
 import com.nekkochan.onyxchat.utils.MimeTypeUtils;
 import com.nekkochan.onyxchat.ui.chat.ChatMessageItem;
 import com.nekkochan.onyxchat.ui.viewmodel.ChatViewModel;
@@ -47,8 +50,12 @@ import com.nekkochan.onyxchat.ui.chat.ChatDocumentHandler;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
@@ -62,6 +69,7 @@ public class MediaProcessingActivity extends AppCompatActivity {
     public static final String EXTRA_CHAT_ID = "chat_id";
     public static final String EXTRA_MEDIA_NAME = "media_name";
     public static final String EXTRA_MIME_TYPE = "mime_type";
+    public static final String EXTRA_VARIANTS = "variants";
     
     public static final String MEDIA_TYPE_IMAGE = "image";
     public static final String MEDIA_TYPE_VIDEO = "video";
@@ -80,6 +88,7 @@ public class MediaProcessingActivity extends AppCompatActivity {
     private Uri mediaUri;
     private String mediaType;
     private String chatId;
+    private ArrayList<MediaVariant> variants;
     private ApiClient apiClient;
     
     // ExoPlayer related fields
@@ -144,6 +153,9 @@ public class MediaProcessingActivity extends AppCompatActivity {
             mediaUri = intent.getParcelableExtra(EXTRA_MEDIA_URI);
             mediaType = intent.getStringExtra(EXTRA_MEDIA_TYPE);
             chatId = intent.getStringExtra(EXTRA_CHAT_ID);
+            @SuppressWarnings("unchecked")
+            ArrayList<MediaVariant> sentVariants = (ArrayList<MediaVariant>) intent.getSerializableExtra(EXTRA_VARIANTS);
+            variants = sentVariants;
             
             if (mediaUri == null || mediaType == null) {
                 Toast.makeText(this, "Error: Media not found", Toast.LENGTH_SHORT).show();
@@ -507,6 +519,40 @@ public class MediaProcessingActivity extends AppCompatActivity {
             }
         }
         
+        // Size and placeholder for the receiver, computed while the upload runs
+        CompletableFuture<MediaPreview> previewFuture = CompletableFuture.completedFuture(null);
+        if (MEDIA_TYPE_IMAGE.equals(mediaType) || MEDIA_TYPE_VIDEO.equals(mediaType)) {
+            String previewPath = FileUtils.getPath(this, mediaUri);
+            if (previewPath != null) {
+                previewFuture = MediaPreview.computeAsync(previewPath, MEDIA_TYPE_VIDEO.equals(mediaType))
+                        .exceptionally(e -> {
+                            Log.e(TAG, "Error computing media preview", e);
+                            return null;
+                        });
+            }
+        }
+        final CompletableFuture<MediaPreview> finalPreviewFuture = previewFuture;
+        
+        // Poster frame for the chat list, extracted and uploaded alongside the video
+        CompletableFuture<PosterFrameCache.Poster> posterFuture = CompletableFuture.completedFuture(null);
+        if (MEDIA_TYPE_VIDEO.equals(mediaType)) {
+            String videoPath = FileUtils.getPath(this, mediaUri);
+            if (videoPath != null) {
+                posterFuture = PosterFrameCache.createAsync(this, videoPath)
+                        .thenCompose(this::uploadPoster)
+                        .exceptionally(e -> {
+                            Log.e(TAG, "Error creating poster frame", e);
+                            return null;
+                        });
+            }
+        }
+        final CompletableFuture<PosterFrameCache.Poster> finalPosterFuture = posterFuture;
+        
+        if (variants != null && !variants.isEmpty()) {
+            sendImageVariants(caption, finalPreviewFuture);
+            return;
+        }
+        
         // Upload to server
         final String finalMimeType = mimeType; // For use in lambda
         Log.d(TAG, "Starting media upload with URI: " + mediaUri + " and MIME type: " + finalMimeType);
@@ -528,39 +574,10 @@ public class MediaProcessingActivity extends AppCompatActivity {
                     messageType = ChatMessageItem.MessageType.DOCUMENT;
                 }
                 
-                // Create a JSON content with media information
-                JSONObject contentJson = new JSONObject();
-                try {
-                    contentJson.put("url", mediaUrl);
-                    contentJson.put("type", messageType.toString().toLowerCase());
-                    contentJson.put("filename", fileName);
-                    if (!caption.isEmpty()) {
-                        contentJson.put("caption", caption);
-                    }
-                    
-                    // Log the created JSON for debugging
-                    String jsonContent = contentJson.toString();
-                    Log.d(TAG, "Created media message JSON: " + jsonContent);
-                    
-                    // Get ChatViewModel to send the message
-                    ChatViewModel viewModel = new ChatViewModel(getApplication());
-                    viewModel.setCurrentRecipient(chatId);
-                    viewModel.sendMessage(jsonContent, messageType);
-                    
-                    // Finish activity
-                    runOnUiThread(() -> {
-                        Toast.makeText(MediaProcessingActivity.this, "Media sent", Toast.LENGTH_SHORT).show();
-                        finish();
-                    });
-                } catch (Exception e) {
-                    Log.e(TAG, "Error creating media message JSON", e);
-                    runOnUiThread(() -> {
-                        progressBar.setVisibility(View.GONE);
-                        sendButton.setEnabled(true);
-                        Toast.makeText(MediaProcessingActivity.this, 
-                                "Failed to send media: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                    });
-                }
+                // The preview and poster are normally long done by the time the upload finishes
+                finalPreviewFuture.thenAcceptBothAsync(finalPosterFuture, (preview, poster) ->
+                        sendMediaMessage(mediaUrl, fileName, caption, messageType, preview, null, poster),
+                        runnable -> runOnUiThread(runnable));
             }
             
             @Override
@@ -576,6 +593,148 @@ public class MediaProcessingActivity extends AppCompatActivity {
         });
     }
     
+    /**
+     * Upload every variant of a photo in parallel, then send one message listing them all
+     */
+    private void sendImageVariants(String caption, CompletableFuture<MediaPreview> previewFuture) {
+        List<CompletableFuture<MediaVariant>> uploads = new ArrayList<>();
+        for (MediaVariant variant : variants) {
+            uploads.add(uploadVariant(variant));
+        }
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0]))
+                .thenCombine(previewFuture, (ignored, preview) -> preview)
+                .whenCompleteAsync((preview, error) -> {
+                    if (error != null) {
+                        Throwable cause = error.getCause() != null ? error.getCause() : error;
+                        Log.e(TAG, "Error uploading image variants", cause);
+                        progressBar.setVisibility(View.GONE);
+                        sendButton.setEnabled(true);
+                        Toast.makeText(MediaProcessingActivity.this,
+                                "Failed to upload media: " + cause.getMessage(), Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    List<MediaVariant> uploaded = new ArrayList<>();
+                    for (CompletableFuture<MediaVariant> upload : uploads) {
+                        uploaded.add(upload.join());
+                    }
+                    // Older clients only read "url", so point it at the screen-sized variant
+                    MediaVariant main = MediaVariant.find(uploaded, MediaVariant.SCREEN);
+                    if (main == null) {
+                        main = MediaVariant.largest(uploaded);
+                    }
+                    sendMediaMessage(main.getLocation(), Uri.parse(main.getLocation()).getLastPathSegment(),
+                            caption, ChatMessageItem.MessageType.IMAGE, preview, uploaded, null);
+                }, runnable -> runOnUiThread(runnable));
+    }
+    
+    /**
+     * Upload one variant
+     *
+     * @return CompletableFuture with the variant located at its server URL
+     */
+    private CompletableFuture<MediaVariant> uploadVariant(MediaVariant variant) {
+        return uploadFile(variant.getLocation()).thenApply(variant::withLocation);
+    }
+    
+    /**
+     * Upload a poster frame. The video is still worth sending without it, so a failed upload
+     * only drops the poster URL and keeps the content hash.
+     *
+     * @return CompletableFuture with the poster located at its server URL
+     */
+    private CompletableFuture<PosterFrameCache.Poster> uploadPoster(PosterFrameCache.Poster poster) {
+        return uploadFile(poster.getLocation())
+                .thenApply(poster::withLocation)
+                .exceptionally(e -> {
+                    Log.e(TAG, "Error uploading poster frame", e);
+                    return poster.withLocation(null);
+                });
+    }
+    
+    /**
+     * Upload a local file
+     *
+     * @return CompletableFuture with the server URL of the file
+     */
+    private CompletableFuture<String> uploadFile(String path) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        apiClient.uploadMedia(Uri.parse(path), MimeTypeUtils.getMimeTypeFromPath(path),
+                new ApiClient.ApiCallback<ApiClient.MediaUploadResponse>() {
+            @Override
+            public void onSuccess(ApiClient.MediaUploadResponse response) {
+                future.complete(response.data.url);
+            }
+            
+            @Override
+            public void onFailure(String errorMessage) {
+                future.completeExceptionally(new IOException(errorMessage));
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * Send the chat message that points at the uploaded media
+     *
+     * @param uploadedVariants Uploaded variants of a photo, or null if it was sent as a single file
+     * @param poster           Poster frame of a video, or null
+     */
+    private void sendMediaMessage(String mediaUrl, String fileName, String caption,
+                                  ChatMessageItem.MessageType messageType, MediaPreview preview,
+                                  List<MediaVariant> uploadedVariants, PosterFrameCache.Poster poster) {
+        // Create a JSON content with media information
+        JSONObject contentJson = new JSONObject();
+        try {
+            contentJson.put("url", mediaUrl);
+            contentJson.put("type", messageType.toString().toLowerCase());
+            contentJson.put("filename", fileName);
+            if (!caption.isEmpty()) {
+                contentJson.put("caption", caption);
+            }
+            if (preview != null) {
+                preview.writeTo(contentJson);
+            }
+            if (uploadedVariants != null) {
+                JSONArray variantsJson = new JSONArray();
+                for (MediaVariant variant : uploadedVariants) {
+                    JSONObject variantJson = new JSONObject();
+                    variantJson.put(MediaVariant.KEY_NAME, variant.getName());
+                    variantJson.put(MediaVariant.KEY_URL, variant.getLocation());
+                    variantJson.put(MediaVariant.KEY_WIDTH, variant.getWidth());
+                    variantJson.put(MediaVariant.KEY_HEIGHT, variant.getHeight());
+                    variantsJson.put(variantJson);
+                }
+                contentJson.put(MediaVariant.KEY_VARIANTS, variantsJson);
+            }
+            if (poster != null) {
+                poster.writeTo(contentJson);
+            }
+            
+            // Log the created JSON for debugging
+            String jsonContent = contentJson.toString();
+            Log.d(TAG, "Created media message JSON: " + jsonContent);
+            
+            // Get ChatViewModel to send the message
+            ChatViewModel viewModel = new ChatViewModel(getApplication());
+            viewModel.setCurrentRecipient(chatId);
+            viewModel.sendMessage(jsonContent, messageType);
+            
+            // Finish activity
+            runOnUiThread(() -> {
+                Toast.makeText(MediaProcessingActivity.this, "Media sent", Toast.LENGTH_SHORT).show();
+                finish();
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error creating media message JSON", e);
+            runOnUiThread(() -> {
+                progressBar.setVisibility(View.GONE);
+                sendButton.setEnabled(true);
+                Toast.makeText(MediaProcessingActivity.this, 
+                        "Failed to send media: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            });
+        }
+    }
+    
     @Override
     protected void onPause() {
         super.onPause();
@@ -14,6 +14,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.annotation.Nullable;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestBuilder;
 import com.bumptech.glide.request.RequestListener;
 import com.bumptech.glide.request.target.Target;
 import com.bumptech.glide.load.DataSource;
@@ -21,14 +22,11 @@ import com.bumptech.glide.load.engine.GlideException;
 import com.google.android.exoplayer2.ExoPlayer;
 import com.google.android.exoplayer2.MediaItem;
 import com.google.android.exoplayer2.Player;
-import com.google.android.exoplayer2.SimpleExoPlayer;
 import com.google.android.exoplayer2.ui.PlayerView;
 import com.google.android.exoplayer2.util.Util;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
-import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
-import com.google.android.exoplayer2.upstream.HttpDataSource;
 import com.nekkochan.onyxchat.R;
 import com.nekkochan.onyxchat.util.UserSessionManager;
+import com.nekkochan.onyxchat.utils.MediaStreamCache;
 
 /**
  * Activity for viewing media content (images and videos)
@@ -37,11 +35,15 @@ public class MediaViewerActivity extends AppCompatActivity {
 
     private static final String TAG = "MediaViewerActivity";
 
+    // Smaller variant of the image, shown until the full one has loaded
+    public static final String EXTRA_PREVIEW_URL = "mediaPreviewUrl";
+
     private PlayerView playerView;
     private ImageView imageView;
     private ProgressBar progressBar;
     private ExoPlayer player;
     private String mediaUrl;
+    private String previewUrl;
     private String mediaType;
     private boolean playWhenReady = true;
     private int currentWindow = 0;
@@ -54,6 +56,7 @@ public class MediaViewerActivity extends AppCompatActivity {
 
         // Get media information from intent
         mediaUrl = getIntent().getStringExtra("mediaUrl");
+        previewUrl = getIntent().getStringExtra(EXTRA_PREVIEW_URL);
         mediaType = getIntent().getStringExtra("mediaType");
 
         // Initialize views
@@ -112,6 +115,7 @@ public class MediaViewerActivity extends AppCompatActivity {
             // Load with auth header
             Glide.with(this)
                     .load(glideUrl)
+                    .thumbnail(previewRequest(authToken))
                     .apply(options)
                     .listener(new RequestListener<Drawable>() {
                         @Override
@@ -135,6 +139,7 @@ public class MediaViewerActivity extends AppCompatActivity {
             Log.w(TAG, "No auth token available for image loading!");
             Glide.with(this)
                     .load(mediaUri.toString())
+                    .thumbnail(previewRequest(authToken))
                     .apply(options)
                     .listener(new RequestListener<Drawable>() {
                         @Override
@@ -156,34 +161,42 @@ public class MediaViewerActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Request for the smaller variant already shown in the chat, displayed until the full
+     * image has loaded
+     *
+     * @return The request, or null if there is no smaller variant
+     */
+    @Nullable
+    private RequestBuilder<Drawable> previewRequest(String authToken) {
+        if (previewUrl == null) {
+            return null;
+        }
+        Uri previewUri = getProperMediaUri(previewUrl);
+        if (previewUri == null) {
+            return null;
+        }
+        if (authToken == null || authToken.isEmpty()) {
+            return Glide.with(this).load(previewUri.toString());
+        }
+        return Glide.with(this).load(new com.bumptech.glide.load.model.GlideUrl(
+                previewUri.toString(),
+                new com.bumptech.glide.load.model.LazyHeaders.Builder()
+                    .addHeader("Authorization", "Bearer " + authToken)
+                    .build()));
+    }
+
     private void initializePlayer() {
         if (player == null && mediaType != null && mediaType.equalsIgnoreCase("VIDEO")) {
-            // Create a custom HttpDataSource.Factory with auth headers
-            HttpDataSource.Factory httpDataSourceFactory = new DefaultHttpDataSource.Factory()
-                .setUserAgent("OnyxChat-App")
-                .setAllowCrossProtocolRedirects(true)
-                .setDefaultRequestProperties(getAuthHeaders());
-
-            // Create a DataSourceFactory that uses our HttpDataSourceFactory
-            DefaultDataSourceFactory dataSourceFactory = new DefaultDataSourceFactory(
-                this,
-                httpDataSourceFactory
-            );
-            
-            // Create player with our custom factory
-            player = new SimpleExoPlayer.Builder(this)
-                .setMediaSourceFactory(
-                    new com.google.android.exoplayer2.source.DefaultMediaSourceFactory(dataSourceFactory)
-                )
-                .build();
-            
+            // Stream byte ranges through the shared media cache with auth headers
+            player = MediaStreamCache.buildPlayer(this);
             playerView.setPlayer(player);
             
             // Create media item with proper URL handling
             Uri mediaUri = getProperMediaUri(mediaUrl);
             Log.d(TAG, "Loading video with URI: " + mediaUri);
             
-            MediaItem mediaItem = MediaItem.fromUri(mediaUri);
+            MediaItem mediaItem = MediaStreamCache.mediaItem(mediaUri.toString());
             player.setMediaItem(mediaItem);
             
             // Set playback parameters
@@ -306,26 +319,6 @@ public class MediaViewerActivity extends AppCompatActivity {
         }
     }
 
-    /**
-     * Get authentication headers for API requests
-     */
-    private java.util.Map<String, String> getAuthHeaders() {
-        java.util.Map<String, String> headers = new java.util.HashMap<>();
-        
-        // Get auth token from session manager
-        UserSessionManager sessionManager = new UserSessionManager(this);
-        String authToken = sessionManager.getAuthToken();
-        
-        if (authToken != null && !authToken.isEmpty()) {
-            headers.put("Authorization", "Bearer " + authToken);
-            Log.d(TAG, "Added auth token to headers");
-        } else {
-            Log.w(TAG, "No auth token available!");
-        }
-        
-        return headers;
-    }
-
     private void releasePlayer() {
         if (player != null) {
             playWhenReady = player.getPlayWhenReady();
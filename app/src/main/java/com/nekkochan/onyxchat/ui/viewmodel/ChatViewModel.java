@@ -11,11 +11,13 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Transformations;
 
+import com.nekkochan.onyxchat.crypto.SessionManager;
 import com.nekkochan.onyxchat.network.ApiClient;
 import com.nekkochan.onyxchat.network.ChatService;
 import com.nekkochan.onyxchat.network.WebSocketClient;
 import com.nekkochan.onyxchat.ui.chat.ChatMessageItem;
 
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -23,6 +25,8 @@ import java.util.List;
 import java.text.SimpleDateFormat;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.json.JSONObject;
 
@@ -40,6 +44,7 @@ public class ChatViewModel extends AndroidViewModel {
     
     private MutableLiveData<String> errorMessage = new MutableLiveData<>();
     private MutableLiveData<Boolean> isLoading = new MutableLiveData<>(false);
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
     
     public ChatViewModel(@NonNull Application application) {
         super(application);
@@ -112,51 +117,13 @@ public class ChatViewModel extends AndroidViewModel {
                 @Override
                 public void onSuccess(List<ApiClient.MessageResponse> result) {
                     if (result != null) {
-                        List<ChatMessage> messages = new ArrayList<>();
-                        
-                        for (ApiClient.MessageResponse message : result) {
-                            // Log timestamp details for debugging
-                            Date createdAt = message.getCreatedAt();
-                            long timestamp = createdAt != null ? createdAt.getTime() : System.currentTimeMillis();
-                            
-                            Log.d(TAG, String.format(
-                                "Message from API - ID: %s, Content: %s, Timestamp: %d (%s)", 
-                                message.getId(), 
-                                message.getContent(),
-                                timestamp,
-                                createdAt != null ? formatDateForLogging(createdAt) : "null"));
-                            
-                            // Convert API message to ChatMessage
-                            messages.add(new ChatMessage(
-                                "DIRECT", // Assuming all are direct messages
-                                message.getSenderId(),
-                                message.getRecipientId(),
-                                message.getContent(),
-                                new Date(timestamp) // Ensure we use the server timestamp
-                            ));
-                        }
-                        
-                        // Sort messages by timestamp
-                        Collections.sort(messages, (m1, m2) -> m1.getTimestamp().compareTo(m2.getTimestamp()));
-                        
-                        // Log the sorted message timestamps for debugging
-                        if (!messages.isEmpty()) {
-                            Log.d(TAG, "Loaded and sorted " + messages.size() + " messages");
-                            Log.d(TAG, "First message timestamp: " + formatDateForLogging(messages.get(0).getTimestamp()));
-                            Log.d(TAG, "Last message timestamp: " + formatDateForLogging(messages.get(messages.size() - 1).getTimestamp()));
-                        } else {
-                            Log.d(TAG, "No messages loaded from API");
-                        }
-                        
-                        // Update UI on main thread
-                        new Handler(Looper.getMainLooper()).post(() -> {
-                            chatMessages.setValue(messages);
-                        });
+                        // Decrypting a page is CPU-bound; keep it off the main thread
+                        historyExecutor.execute(() -> showHistory(result));
                     } else {
                         Log.e(TAG, "API returned null messages");
                         errorMessage.setValue("Failed to load messages");
+                        isLoading.setValue(false);
                     }
-                    isLoading.setValue(false);
                 }
 
                 @Override
@@ -168,6 +135,97 @@ public class ChatViewModel extends AndroidViewModel {
             });
     }
     
+    /**
+     * Convert a page of history to chat messages and publish it
+     */
+    private void showHistory(List<ApiClient.MessageResponse> result) {
+        List<ChatMessage> messages = new ArrayList<>();
+        List<String> contents = decryptContents(result);
+        
+        for (int i = 0; i < result.size(); i++) {
+            ApiClient.MessageResponse message = result.get(i);
+            // Log timestamp details for debugging
+            Date createdAt = message.getCreatedAt();
+            long timestamp = createdAt != null ? createdAt.getTime() : System.currentTimeMillis();
+            
+            Log.d(TAG, String.format(
+                "Message from API - ID: %s, Content: %s, Timestamp: %d (%s)", 
+                message.getId(), 
+                message.getContent(),
+                timestamp,
+                createdAt != null ? formatDateForLogging(createdAt) : "null"));
+            
+            // Convert API message to ChatMessage
+            messages.add(new ChatMessage(
+                "DIRECT", // Assuming all are direct messages
+                message.getSenderId(),
+                message.getRecipientId(),
+                contents.get(i),
+                new Date(timestamp) // Ensure we use the server timestamp
+            ));
+        }
+        
+        // Sort messages by timestamp
+        Collections.sort(messages, (m1, m2) -> m1.getTimestamp().compareTo(m2.getTimestamp()));
+        
+        // Log the sorted message timestamps for debugging
+        if (!messages.isEmpty()) {
+            Log.d(TAG, "Loaded and sorted " + messages.size() + " messages");
+            Log.d(TAG, "First message timestamp: " + formatDateForLogging(messages.get(0).getTimestamp()));
+            Log.d(TAG, "Last message timestamp: " + formatDateForLogging(messages.get(messages.size() - 1).getTimestamp()));
+        } else {
+            Log.d(TAG, "No messages loaded from API");
+        }
+        
+        // Update UI on main thread
+        new Handler(Looper.getMainLooper()).post(() -> {
+            chatMessages.setValue(messages);
+        });
+        isLoading.postValue(false);
+    }
+    
+    /**
+     * Get the display content of each message, decrypting the contact's encrypted messages in one batch.
+     * Messages that cannot be decrypted keep their original content.
+     */
+    private List<String> decryptContents(List<ApiClient.MessageResponse> result) {
+        List<String> contents = new ArrayList<>(result.size());
+        List<String> envelopes = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        String contactId = null;
+        for (int i = 0; i < result.size(); i++) {
+            ApiClient.MessageResponse message = result.get(i);
+            contents.add(message.getContent());
+            if (SessionManager.isEnvelope(message.getContent())
+                    && message.getSenderId() != null && !message.getSenderId().equals(userId)) {
+                contactId = message.getSenderId();
+                envelopes.add(message.getContent());
+                positions.add(i);
+            }
+        }
+        if (envelopes.isEmpty()) {
+            return contents;
+        }
+        
+        try {
+            List<String> plaintexts = SessionManager.getInstance(getApplication()).decryptPage(contactId, envelopes);
+            for (int i = 0; i < plaintexts.size(); i++) {
+                if (plaintexts.get(i) != null) {
+                    contents.set(positions.get(i), plaintexts.get(i));
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Error decrypting message history", e);
+        }
+        return contents;
+    }
+    
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        historyExecutor.shutdown();
+    }
+    
     /**
      * Format a date for consistent logging
      */
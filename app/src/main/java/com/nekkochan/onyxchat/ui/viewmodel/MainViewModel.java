@@ -9,15 +9,16 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Transformations;
 
 import com.nekkochan.onyxchat.crypto.PQCProvider;
 import com.nekkochan.onyxchat.data.Contact;
 import com.nekkochan.onyxchat.data.Repository;
-import com.nekkochan.onyxchat.data.SafeHelperFactory;
 import com.nekkochan.onyxchat.data.User;
 import com.nekkochan.onyxchat.model.ConversationDisplay;
+import com.nekkochan.onyxchat.startup.AppStartup;
 import com.nekkochan.onyxchat.network.ChatService;
 import com.nekkochan.onyxchat.network.WebSocketClient;
 import com.nekkochan.onyxchat.network.ApiClient;
@@ -36,6 +37,7 @@ import java.util.Map;
 import java.text.SimpleDateFormat;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -53,8 +55,10 @@ public class MainViewModel extends AndroidViewModel {
     private final MutableLiveData<String> errorMessage = new MutableLiveData<>();
     private final MutableLiveData<List<ChatMessage>> chatMessages = new MutableLiveData<>(new ArrayList<>());
     
-    private final Repository repository;
-    private final ChatService chatService;
+    // Created once the startup graph has the database and chat service ready
+    private volatile Repository repository;
+    private volatile ChatService chatService;
+    // Only set once the database is open, so methods that check it can use repository() directly
     private User currentUser;
     private LiveData<List<Contact>> activeContacts;
     
@@ -68,8 +72,8 @@ public class MainViewModel extends AndroidViewModel {
     private static final long CONNECTION_DEBOUNCE_MS = 3000; // 3 second cooldown between attempts
     
     // Chat state
-    private final LiveData<Boolean> isChatConnected;
-    private final LiveData<Map<String, UserStatus>> onlineUsers;
+    private final MediatorLiveData<Boolean> isChatConnected = new MediatorLiveData<>();
+    private final MediatorLiveData<Map<String, UserStatus>> onlineUsers = new MediatorLiveData<>();
 
     // Conversations list
     private final MutableLiveData<List<ConversationDisplay>> conversations = new MutableLiveData<>(new ArrayList<>());
@@ -80,25 +84,79 @@ public class MainViewModel extends AndroidViewModel {
     public MainViewModel(@NonNull Application application) {
         super(application);
         
-        // Initialize SQLCipher before creating repository
-        SafeHelperFactory.initSQLCipher(application.getApplicationContext());
+        isChatConnected.setValue(false);
         
-        repository = new Repository(application);
-        
-        // Initialize chat service
-        chatService = ChatService.getInstance(application);
+        // Bind to the chat service and database once startup has built them off the main thread
+        AppStartup startup = AppStartup.getInstance();
+        startup.runWhenReady(AppStartup.TASK_CHAT_SERVICE, this::bindChatService);
+        startup.runWhenReady(AppStartup.TASK_DATABASE, this::initCurrentUser);
+    }
+    
+    /**
+     * Get the repository. Only valid once the database initializer has finished; code that can run
+     * earlier goes through {@link #withRepository(Consumer)} so the main thread never waits on it.
+     */
+    private Repository repository() {
+        if (repository == null) {
+            synchronized (this) {
+                if (repository == null) {
+                    if (!AppStartup.getInstance().isReady(AppStartup.TASK_DATABASE)) {
+                        throw new IllegalStateException("Database is not open yet");
+                    }
+                    repository = new Repository(getApplication());
+                }
+            }
+        }
+        return repository;
+    }
+    
+    /**
+     * Get the chat service. Only valid once the chat service initializer has finished; code that can
+     * run earlier goes through {@link #withChatService(Consumer)}.
+     */
+    private ChatService chatService() {
+        if (chatService == null) {
+            synchronized (this) {
+                if (chatService == null) {
+                    if (!AppStartup.getInstance().isReady(AppStartup.TASK_CHAT_SERVICE)) {
+                        throw new IllegalStateException("Chat service is not created yet");
+                    }
+                    chatService = ChatService.getInstance(getApplication());
+                }
+            }
+        }
+        return chatService;
+    }
+    
+    /**
+     * Run an action with the repository on the main thread, queueing it until the database is open
+     */
+    private void withRepository(Consumer<Repository> action) {
+        AppStartup.getInstance().runWhenReady(AppStartup.TASK_DATABASE, () -> action.accept(repository()));
+    }
+    
+    /**
+     * Run an action with the chat service on the main thread, queueing it until the service exists
+     */
+    private void withChatService(Consumer<ChatService> action) {
+        AppStartup.getInstance().runWhenReady(AppStartup.TASK_CHAT_SERVICE, () -> action.accept(chatService()));
+    }
+    
+    /**
+     * Observe the chat service once it has been created
+     */
+    private void bindChatService() {
+        ChatService service = chatService();
         
         // Map WebSocket connection state to boolean
-        isChatConnected = Transformations.map(
-                chatService.getConnectionState(),
-                state -> state == WebSocketClient.WebSocketState.CONNECTED
-        );
+        isChatConnected.addSource(service.getConnectionState(),
+                state -> isChatConnected.setValue(state == WebSocketClient.WebSocketState.CONNECTED));
         
         // Get online users from chat service
-        onlineUsers = chatService.getOnlineUsers();
+        onlineUsers.addSource(service.getOnlineUsers(), onlineUsers::setValue);
         
         // Listen for new messages
-        chatService.getLatestMessage().observeForever(message -> {
+        service.getLatestMessage().observeForever(message -> {
             if (message != null) {
                 // Add message to the list
                 List<ChatMessage> messages = chatMessages.getValue();
@@ -121,7 +179,7 @@ public class MainViewModel extends AndroidViewModel {
         });
         
         // Listen for WebSocket events
-        chatService.getWebSocketClient().getEvents().observeForever(event -> {
+        service.getWebSocketClient().getEvents().observeForever(event -> {
             if (event != null && event.getType() == WebSocketClient.WebSocketEventType.USER_STATUS_CHANGE) {
                 try {
                     // Parse the event data
@@ -136,16 +194,13 @@ public class MainViewModel extends AndroidViewModel {
                 }
             }
         });
-        
-        // Initialize current user
-        initCurrentUser();
     }
     
     /**
      * Initialize current user data
      */
     private void initCurrentUser() {
-        repository.getCurrentUser().observeForever(user -> {
+        repository().getCurrentUser().observeForever(user -> {
             if (user != null) {
                 currentUser = user;
                 userAddress.setValue(user.getAddress());
@@ -180,7 +235,7 @@ public class MainViewModel extends AndroidViewModel {
             newUser.setCurrentUser(true);
             
             // Save user to database
-            repository.insertUser(newUser);
+            repository().insertUser(newUser);
             
             currentUser = newUser;
             userAddress.setValue(newUser.getAddress());
@@ -225,7 +280,7 @@ public class MainViewModel extends AndroidViewModel {
                     
                     // Update user
                     currentUser.setPublicKey(encodedPublicKey);
-                    repository.updateUser(currentUser);
+                    repository().updateUser(currentUser);
                     
                     isLoading.postValue(false);
                     result.postValue(true);
@@ -257,7 +312,7 @@ public class MainViewModel extends AndroidViewModel {
         }
         
         if (activeContacts == null) {
-            activeContacts = repository.getActiveContacts(currentUser.getAddress());
+            activeContacts = repository().getActiveContacts(currentUser.getAddress());
         }
         
         return activeContacts;
@@ -282,19 +337,19 @@ public class MainViewModel extends AndroidViewModel {
         
         try {
             // Use an async transaction to prevent main thread blocking
-            repository.executeTransactionAsync(() -> {
+            repository().executeTransactionAsync(() -> {
                 // Check if User already exists with this address
-                User existingUser = repository.getUserByAddress(contactAddress);
+                User existingUser = repository().getUserByAddress(contactAddress);
                 
                 // If not, create a User entry for the contact address
                 if (existingUser == null) {
                     User contactUser = new User(contactAddress, nickname != null ? nickname : contactAddress, null);
                     contactUser.setCurrentUser(false);
-                    repository.insertUser(contactUser);
+                    repository().insertUser(contactUser);
                 }
                 
                 // Check if contact already exists to avoid duplicates
-                if (repository.contactExists(currentUser.getAddress(), contactAddress)) {
+                if (repository().contactExists(currentUser.getAddress(), contactAddress)) {
                     throw new IllegalStateException("Contact already exists");
                 }
                 
@@ -306,7 +361,7 @@ public class MainViewModel extends AndroidViewModel {
                 );
                 
                 // Save to database
-                repository.insertContact(contact);
+                repository().insertContact(contact);
                 return null;
             });
         } catch (Exception e) {
@@ -320,7 +375,7 @@ public class MainViewModel extends AndroidViewModel {
      * @param contact The contact to delete
      */
     public void deleteContact(Contact contact) {
-        repository.deleteContact(contact);
+        withRepository(repository -> repository.deleteContact(contact));
     }
     
     /**
@@ -329,7 +384,8 @@ public class MainViewModel extends AndroidViewModel {
      * @param blocked Whether to block or unblock
      */
     public void setContactBlocked(Contact contact, boolean blocked) {
-        repository.setContactBlocked(contact.getOwnerAddress(), contact.getContactAddress(), blocked);
+        withRepository(repository -> repository.setContactBlocked(contact.getOwnerAddress(),
+                contact.getContactAddress(), blocked));
     }
     
     /**
@@ -338,7 +394,8 @@ public class MainViewModel extends AndroidViewModel {
      * @param verified Whether the contact is verified
      */
     public void setContactVerified(Contact contact, boolean verified) {
-        repository.setContactVerified(contact.getOwnerAddress(), contact.getContactAddress(), verified);
+        withRepository(repository -> repository.setContactVerified(contact.getOwnerAddress(),
+                contact.getContactAddress(), verified));
     }
     
     /**
@@ -351,7 +408,7 @@ public class MainViewModel extends AndroidViewModel {
         }
         
         isLoading.setValue(true);
-        repository.syncContactsWithServer(currentUser.getAddress(), success -> {
+        repository().syncContactsWithServer(currentUser.getAddress(), success -> {
             isLoading.postValue(false);
             if (!success) {
                 errorMessage.postValue("Failed to sync contacts with server");
@@ -360,7 +417,7 @@ public class MainViewModel extends AndroidViewModel {
                 
                 // Re-fetch the contacts list to update the UI with new app user statuses
                 if (activeContacts == null) {
-                    activeContacts = repository.getActiveContacts(currentUser.getAddress());
+                    activeContacts = repository().getActiveContacts(currentUser.getAddress());
                 }
             }
         });
@@ -438,24 +495,29 @@ public class MainViewModel extends AndroidViewModel {
     }
 
     /**
-     * Get the repository
+     * Get the repository. Only call once {@link AppStartup#TASK_DATABASE} is ready,
+     * e.g. from {@link AppStartup#runWhenReady(String, Runnable)}.
      * @return Repository instance
+     * @throws IllegalStateException If the database is not open yet
      */
     public Repository getRepository() {
-        return repository;
+        return repository();
     }
     
     /**
-     * Get the chat service instance
+     * Get the chat service instance. Only call once {@link AppStartup#TASK_CHAT_SERVICE} is ready,
+     * e.g. from {@link AppStartup#runWhenReady(String, Runnable)}.
      * @return ChatService instance
+     * @throws IllegalStateException If the chat service is not created yet
      */
     public ChatService getChatService() {
-        return chatService;
+        return chatService();
     }
     
     /**
-     * Connect to the chat server
-     * @return true if connection was successful or already connected
+     * Connect to the chat server. Before startup has created the chat service the attempt is
+     * queued until it has, rather than waiting for it on the calling thread.
+     * @return true if connection was successful, already connected or queued
      */
     public boolean connectToChat() {
         // Check if we're already connected
@@ -469,15 +531,20 @@ public class MainViewModel extends AndroidViewModel {
             return false;
         }
         
+        if (!AppStartup.getInstance().isReady(AppStartup.TASK_CHAT_SERVICE)) {
+            withChatService(service -> connectToChat());
+            return true;
+        }
+        
         // Connect to chat service
-        return chatService.connect(userId);
+        return chatService().connect(userId);
     }
     
     /**
-     * Disconnect from the chat server
+     * Disconnect from the chat server, after any connection attempt queued before startup finished
      */
     public void disconnectFromChat() {
-        chatService.disconnect();
+        withChatService(ChatService::disconnect);
     }
 
     /**
@@ -487,7 +554,11 @@ public class MainViewModel extends AndroidViewModel {
      * @return true if the message was sent successfully
      */
     public boolean sendDirectMessage(String recipientId, String message) {
-        return chatService.sendDirectMessage(recipientId, message);
+        // Without the chat service there is no connection to send on
+        if (!AppStartup.getInstance().isReady(AppStartup.TASK_CHAT_SERVICE)) {
+            return false;
+        }
+        return chatService().sendDirectMessage(recipientId, message);
     }
     
     /**
@@ -496,7 +567,10 @@ public class MainViewModel extends AndroidViewModel {
      * @return true if the message was sent successfully
      */
     public boolean sendChatMessage(String message) {
-        return chatService.sendMessage(message);
+        if (!AppStartup.getInstance().isReady(AppStartup.TASK_CHAT_SERVICE)) {
+            return false;
+        }
+        return chatService().sendMessage(message);
     }
     
     /**
@@ -505,7 +579,10 @@ public class MainViewModel extends AndroidViewModel {
      * @return true if the message was sent successfully
      */
     public boolean sendBroadcastMessage(String message) {
-        return chatService.sendMessage(message);
+        if (!AppStartup.getInstance().isReady(AppStartup.TASK_CHAT_SERVICE)) {
+            return false;
+        }
+        return chatService().sendMessage(message);
     }
     
     /**
@@ -538,7 +615,7 @@ public class MainViewModel extends AndroidViewModel {
      */
     public LiveData<List<String>> getOnlineUsers() {
         // Update to extract the list of online users from the map
-        return Transformations.map(chatService.getOnlineUsers(), userMap -> {
+        return Transformations.map(onlineUsers, userMap -> {
             if (userMap == null) return new ArrayList<>();
             
             List<String> onlineUserIds = new ArrayList<>();
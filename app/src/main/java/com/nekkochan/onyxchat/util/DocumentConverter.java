@@ -2,9 +2,10 @@ package com.nekkochan.onyxchat.util;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.Log;
 
-import org.apache.poi.xwpf.usermodel.XWPFDocument;
 import org.apache.poi.hwpf.HWPFDocument;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
@@ -23,16 +24,30 @@ import com.tom_roush.pdfbox.android.PDFBoxResourceLoader;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
-import java.util.UUID;
 
 /**
  * Utility class for converting various document formats to PDF
  */
 public class DocumentConverter {
     private static final String TAG = "DocumentConverter";
+    // Part of the conversion cache key; bump whenever the PDF output changes
+    private static final int CONVERTER_VERSION = 2;
+
+    /**
+     * Progress of a conversion
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the converting thread after each page is written
+         *
+         * @param pageCount Number of pages written so far
+         */
+        void onPageConverted(int pageCount);
+    }
 
     /**
      * Convert a document to PDF format
@@ -43,33 +58,85 @@ public class DocumentConverter {
      * @return The converted PDF file, or null if conversion failed
      */
     public static File convertToPdf(Context context, Uri uri, String extension) {
+        return convertToPdf(context, uri, extension, null);
+    }
+
+    /**
+     * Convert a document to PDF format, or return the PDF cached from an earlier conversion of
+     * the same content. Call from a background thread.
+     *
+     * @param context   The context
+     * @param uri       The URI of the document to convert
+     * @param extension The file extension of the document
+     * @param signal    Cancels the conversion between paragraphs, or null
+     * @return The converted PDF file, or null if conversion failed
+     * @throws OperationCanceledException If {@code signal} is cancelled
+     */
+    public static File convertToPdf(Context context, Uri uri, String extension, CancellationSignal signal) {
+        return convertToPdf(context, uri, extension, signal, null);
+    }
+
+    /**
+     * Convert a document to PDF format, or return the PDF cached from an earlier conversion of
+     * the same content. Call from a background thread.
+     *
+     * @param context   The context
+     * @param uri       The URI of the document to convert
+     * @param extension The file extension of the document
+     * @param signal    Cancels the conversion between paragraphs, or null
+     * @param listener  Receives the page count as DOCX pages are written, or null
+     * @return The converted PDF file, or null if conversion failed
+     * @throws OperationCanceledException If {@code signal} is cancelled
+     */
+    public static File convertToPdf(Context context, Uri uri, String extension, CancellationSignal signal,
+                                    ProgressListener listener) {
+        File outputFile = null;
         try {
+            String key = PdfConversionCache.key(context, uri, extension, CONVERTER_VERSION, signal);
+            File cached = PdfConversionCache.get(context, key);
+            if (cached != null) {
+                Log.d(TAG, "Using cached PDF for " + uri);
+                return cached;
+            }
+            
             // Initialize PDFBox resources for Android
             PDFBoxResourceLoader.init(context);
             
-            // Create a temporary file for the PDF output
-            File outputDir = context.getCacheDir();
-            File outputFile = new File(outputDir, UUID.randomUUID().toString() + ".pdf");
-
-            InputStream inputStream = context.getContentResolver().openInputStream(uri);
-            if (inputStream == null) {
-                Log.e(TAG, "Failed to open input stream for URI: " + uri);
-                return null;
-            }
+            // Write to a temporary file in the cache, moved into place once complete
+            outputFile = PdfConversionCache.newTempFile(context);
 
             boolean success = false;
 
-            // Try to convert the document using Apache POI and iText/PDFBox
-            try {
-                success = convertWithPOIAndPDF(inputStream, outputFile, extension);
-            } catch (Exception e) {
-                Log.e(TAG, "Document conversion failed", e);
-            }
+            if ("docx".equalsIgnoreCase(extension)) {
+                // Streamed from the zip rather than parsed whole, so memory does not grow with the document
+                try {
+                    success = convertDocx(context, uri, outputFile, signal, listener);
+                } catch (OperationCanceledException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Log.e(TAG, "Document conversion failed", e);
+                }
+            } else {
+                InputStream inputStream = context.getContentResolver().openInputStream(uri);
+                if (inputStream == null) {
+                    Log.e(TAG, "Failed to open input stream for URI: " + uri);
+                    return null;
+                }
 
-            inputStream.close();
+                // Try to convert the document using Apache POI and iText/PDFBox
+                try {
+                    success = convertWithPOIAndPDF(inputStream, outputFile, extension, signal);
+                } catch (OperationCanceledException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Log.e(TAG, "Document conversion failed", e);
+                } finally {
+                    inputStream.close();
+                }
+            }
 
             if (success && outputFile.exists() && outputFile.length() > 0) {
-                return outputFile;
+                return PdfConversionCache.put(context, key, outputFile);
             } else {
                 Log.e(TAG, "Conversion failed or output file is empty");
                 if (outputFile.exists()) {
@@ -77,59 +144,57 @@ public class DocumentConverter {
                 }
                 return null;
             }
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "Conversion cancelled for " + uri);
+            if (outputFile != null) {
+                outputFile.delete();
+            }
+            throw e;
         } catch (Exception e) {
             Log.e(TAG, "Error converting document to PDF", e);
+            if (outputFile != null) {
+                outputFile.delete();
+            }
             return null;
         }
     }
 
+    /**
+     * Convert a DOCX document with {@link DocxStreamingConverter}, which needs random access to
+     * the zip, so content URIs are copied to a file first
+     */
+    private static boolean convertDocx(Context context, Uri uri, File outputFile, CancellationSignal signal,
+                                       ProgressListener listener) throws Exception {
+        boolean copied = !"file".equals(uri.getScheme());
+        File docx = copied
+                ? FileUtils.createTempFileFromUri(context, uri, "convert", ".docx")
+                : new File(uri.getPath());
+        try {
+            return DocxStreamingConverter.convert(docx, outputFile, signal, listener);
+        } finally {
+            if (copied) {
+                docx.delete();
+            }
+        }
+    }
+
     /**
      * Convert a document to PDF using Apache POI with iText or PDFBox
      *
      * @param inputStream The input stream of the document
      * @param outputFile  The output PDF file
      * @param extension   The file extension of the document
+     * @param signal      Cancels the conversion, or null
      * @return True if conversion was successful, false otherwise
      */
-    private static boolean convertWithPOIAndPDF(InputStream inputStream, File outputFile, String extension) throws Exception {
+    private static boolean convertWithPOIAndPDF(InputStream inputStream, File outputFile, String extension,
+                                                CancellationSignal signal) throws Exception {
         switch (extension.toLowerCase()) {
             case "doc":
                 // Convert DOC using HWPFDocument
                 HWPFDocument doc = new HWPFDocument(inputStream);
                 String docText = doc.getDocumentText();
-                return convertWordDocToPdf(docText, outputFile);
-                
-            case "docx":
-                // Convert DOCX using XWPFDocument with improved extraction
-                XWPFDocument docx = new XWPFDocument(inputStream);
-                StringBuilder docxText = new StringBuilder();
-                
-                // Extract paragraphs with better formatting
-                docx.getParagraphs().forEach(paragraph -> {
-                    // Get paragraph text with style information
-                    String text = paragraph.getText();
-                    if (text != null && !text.trim().isEmpty()) {
-                        docxText.append(text).append("\n\n");
-                    }
-                });
-                
-                // Extract tables if present
-                docx.getTables().forEach(table -> {
-                    docxText.append("\n[TABLE]\n");
-                    for (int i = 0; i < table.getNumberOfRows(); i++) {
-                        for (int j = 0; j < table.getRow(i).getTableCells().size(); j++) {
-                            String cellText = table.getRow(i).getCell(j).getText();
-                            docxText.append(cellText).append(" | ");
-                        }
-                        docxText.append("\n");
-                    }
-                    docxText.append("[/TABLE]\n\n");
-                });
-                
-                Log.d(TAG, "Extracted text from DOCX: " + (docxText.length() > 100 ? 
-                        docxText.substring(0, 100) + "..." : docxText.toString()));
-                
-                return convertWordDocToPdf(docxText.toString(), outputFile);
+                return convertWordDocToPdf(docText, outputFile, signal);
                 
             case "odt":
             case "rtf":
@@ -162,16 +227,41 @@ public class DocumentConverter {
         }
     }
     
+    /**
+     * Release an iText document, its writer and their file after a conversion was given up.
+     * Closing may fail, e.g. iText refuses to close a document without pages, so failures are
+     * only logged; the file must be deleted by the caller either way.
+     */
+    static void abandon(Document document, PdfWriter writer, FileOutputStream outputStream) {
+        try {
+            document.close();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not close abandoned document: " + e.getMessage());
+        }
+        try {
+            writer.close();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not close abandoned PDF writer: " + e.getMessage());
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing abandoned PDF file", e);
+        }
+    }
+
     /**
      * Convert text from a Word document to PDF using iText with improved formatting
      *
      * @param text       The text content to convert
      * @param outputFile The output PDF file
+     * @param signal     Cancels the conversion, or null
      * @return True if conversion was successful, false otherwise
      */
-    private static boolean convertWordDocToPdf(String text, File outputFile) throws Exception {
+    private static boolean convertWordDocToPdf(String text, File outputFile, CancellationSignal signal) throws Exception {
         Document document = new Document();
-        PdfWriter writer = PdfWriter.getInstance(document, new FileOutputStream(outputFile));
+        FileOutputStream outputStream = new FileOutputStream(outputFile);
+        PdfWriter writer = PdfWriter.getInstance(document, outputStream);
         document.open();
         
         // Add metadata
@@ -188,26 +278,33 @@ public class DocumentConverter {
         
         // Split text into paragraphs and add them with proper formatting
         String[] paragraphs = text.split("\n\n");
-        for (String paragraph : paragraphs) {
-            if (paragraph.trim().isEmpty()) {
-                continue;
-            }
-            
-            // Check if this is a table section
-            if (paragraph.contains("[TABLE]") && paragraph.contains("[/TABLE]")) {
-                // Simple table formatting
-                String tableContent = paragraph.substring(
-                        paragraph.indexOf("[TABLE]") + 7, 
-                        paragraph.indexOf("[/TABLE]"));
-                document.add(new Paragraph("Table Content:", font));
-                document.add(new Paragraph(tableContent, font));
-            } else {
-                // Regular paragraph
-                Paragraph p = new Paragraph(paragraph.trim(), font);
-                p.setAlignment(com.itextpdf.text.Element.ALIGN_LEFT);
-                p.setSpacingAfter(10);
-                document.add(p);
+        try {
+            for (String paragraph : paragraphs) {
+                throwIfCanceled(signal);
+                if (paragraph.trim().isEmpty()) {
+                    continue;
+                }
+                
+                // Check if this is a table section
+                if (paragraph.contains("[TABLE]") && paragraph.contains("[/TABLE]")) {
+                    // Simple table formatting
+                    String tableContent = paragraph.substring(
+                            paragraph.indexOf("[TABLE]") + 7, 
+                            paragraph.indexOf("[/TABLE]"));
+                    document.add(new Paragraph("Table Content:", font));
+                    document.add(new Paragraph(tableContent, font));
+                } else {
+                    // Regular paragraph
+                    Paragraph p = new Paragraph(paragraph.trim(), font);
+                    p.setAlignment(com.itextpdf.text.Element.ALIGN_LEFT);
+                    p.setSpacingAfter(10);
+                    document.add(p);
+                }
             }
+        } catch (OperationCanceledException e) {
+            // The caller deletes the unfinished file
+            abandon(document, writer, outputStream);
+            throw e;
         }
         
         document.close();
@@ -224,6 +321,12 @@ public class DocumentConverter {
         }
     }
     
+    private static void throwIfCanceled(CancellationSignal signal) {
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+    }
+    
     /**
      * Create a simple PDF with a message using PDFBox
      *
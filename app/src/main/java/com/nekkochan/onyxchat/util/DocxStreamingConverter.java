@@ -0,0 +1,544 @@
+package com.nekkochan.onyxchat.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import com.itextpdf.text.Chunk;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Element;
+import com.itextpdf.text.Font;
+import com.itextpdf.text.FontFactory;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfPCell;
+import com.itextpdf.text.pdf.PdfPTable;
+import com.itextpdf.text.pdf.PdfPageEventHelper;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Converts DOCX to PDF without loading the document.
+ * <p>
+ * The body XML is read with SAX straight out of the zip, and each paragraph is handed to iText
+ * as soon as it ends, so iText writes finished pages out while the rest is still being read.
+ * Tables are added every few rows as incomplete large tables, and images are decoded one at a
+ * time from the zip on disk at no more than page resolution. Peak memory is about one page
+ * plus one image, whatever the size of the document.
+ */
+final class DocxStreamingConverter {
+    private static final String TAG = "DocxStreamingConverter";
+
+    private static final String NS_WORD = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final String NS_DRAWING = "http://schemas.openxmlformats.org/drawingml/2006/main";
+    private static final String NS_RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String NS_PACKAGE_RELATIONSHIPS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String NS_VML = "urn:schemas-microsoft-com:vml";
+    private static final String NS_MARKUP_COMPATIBILITY = "http://schemas.openxmlformats.org/markup-compatibility/2006";
+
+    private static final String DOCUMENT_PART = "word/document.xml";
+    private static final String RELATIONSHIPS_PART = "word/_rels/document.xml.rels";
+
+    // Widest decoded image, about page width at 150 dpi
+    private static final int MAX_IMAGE_PX = 1200;
+    private static final int JPEG_QUALITY = 85;
+    // Rows of a table buffered before they are written out
+    private static final int TABLE_ROWS_PER_FLUSH = 20;
+
+    private DocxStreamingConverter() {
+    }
+
+    /**
+     * @param docx       The DOCX file
+     * @param outputFile The output PDF file
+     * @param signal     Cancels the conversion between paragraphs, or null
+     * @param listener   Receives each written page, or null
+     * @return True if conversion was successful, false otherwise
+     * @throws OperationCanceledException If {@code signal} is cancelled
+     */
+    static boolean convert(File docx, File outputFile, CancellationSignal signal,
+                           DocumentConverter.ProgressListener listener)
+            throws IOException, DocumentException {
+        try (ZipFile zip = new ZipFile(docx)) {
+            ZipEntry body = zip.getEntry(DOCUMENT_PART);
+            if (body == null) {
+                Log.e(TAG, "No " + DOCUMENT_PART + " in document");
+                return false;
+            }
+            Map<String, String> images = readImageRelationships(zip);
+
+            Document document = new Document();
+            FileOutputStream outputStream = new FileOutputStream(outputFile);
+            PdfWriter writer = PdfWriter.getInstance(document, outputStream);
+            if (listener != null) {
+                writer.setPageEvent(new PdfPageEventHelper() {
+                    @Override
+                    public void onEndPage(PdfWriter pdfWriter, Document pdfDocument) {
+                        listener.onPageConverted(pdfWriter.getPageNumber());
+                    }
+                });
+            }
+            document.open();
+            document.addCreationDate();
+            document.addTitle("Converted Document");
+
+            BodyHandler handler = new BodyHandler(zip, images, document, signal);
+            try (InputStream in = zip.getInputStream(body)) {
+                parser().parse(in, handler);
+            } catch (SAXException | RuntimeException e) {
+                // The caller deletes the unfinished file
+                DocumentConverter.abandon(document, writer, outputStream);
+                Throwable cause = e instanceof SAXException && ((SAXException) e).getException() != null
+                        ? ((SAXException) e).getException() : e;
+                if (cause instanceof OperationCanceledException) {
+                    throw (OperationCanceledException) cause;
+                }
+                throw new IOException("Could not convert document body", e);
+            }
+            if (!handler.hasContent) {
+                // iText refuses to close a document without pages
+                document.add(new Paragraph(" "));
+            }
+            document.close();
+            writer.close();
+        }
+        return outputFile.exists() && outputFile.length() > 0;
+    }
+
+    private static javax.xml.parsers.SAXParser parser() throws IOException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            // Attachments are untrusted; never let them pull in other files
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        } catch (ParserConfigurationException | SAXException e) {
+            Log.w(TAG, "XML parser does not support disabling external entities", e);
+        }
+        try {
+            return factory.newSAXParser();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("No XML parser available", e);
+        }
+    }
+
+    /**
+     * @return Zip entry names of the document's embedded images by relationship ID
+     */
+    private static Map<String, String> readImageRelationships(ZipFile zip) throws IOException {
+        Map<String, String> images = new HashMap<>();
+        ZipEntry entry = zip.getEntry(RELATIONSHIPS_PART);
+        if (entry == null) {
+            return images;
+        }
+        try (InputStream in = zip.getInputStream(entry)) {
+            parser().parse(in, new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if (!NS_PACKAGE_RELATIONSHIPS.equals(uri) || !"Relationship".equals(localName)) {
+                        return;
+                    }
+                    String type = attributes.getValue("Type");
+                    String target = attributes.getValue("Target");
+                    if (type == null || target == null || !type.endsWith("/image")
+                            || "External".equals(attributes.getValue("TargetMode"))) {
+                        return;
+                    }
+                    // Targets are relative to word/ unless they start at the package root
+                    images.put(attributes.getValue("Id"),
+                            target.startsWith("/") ? target.substring(1) : "word/" + target);
+                }
+            });
+        } catch (SAXException e) {
+            Log.e(TAG, "Could not read document relationships, images will be left out", e);
+        }
+        return images;
+    }
+
+    /**
+     * Walks w:body and adds each paragraph, table and image to the PDF as it ends
+     */
+    private static final class BodyHandler extends DefaultHandler {
+        private final ZipFile zip;
+        private final Map<String, String> images;
+        private final Document document;
+        private final CancellationSignal signal;
+
+        private final Font regularFont = font(FontFactory.HELVETICA, 12);
+        private final Font boldFont = font(FontFactory.HELVETICA_BOLD, 12);
+        private final Font italicFont = font(FontFactory.HELVETICA_OBLIQUE, 12);
+        private final Font boldItalicFont = font(FontFactory.HELVETICA_BOLDOBLIQUE, 12);
+        private final Font headingFont = font(FontFactory.HELVETICA_BOLD, 15);
+        private final Font titleFont = font(FontFactory.HELVETICA_BOLD, 20);
+
+        boolean hasContent = false;
+
+        // Elements inside mc:Fallback repeat the mc:Choice before them
+        private int skipDepth = 0;
+        // Text box paragraphs sit inside the paragraph that anchors them
+        private int paragraphDepth = 0;
+        private Paragraph paragraph;
+        private Font paragraphFont;
+        private boolean inRun = false;
+        private boolean inText = false;
+        private boolean bold = false;
+        private boolean italic = false;
+        private final StringBuilder runText = new StringBuilder();
+
+        // Only the outermost table is laid out as a table; nested ones flow into its cell
+        private int tableDepth = 0;
+        private int gridColumns = 0;
+        private PdfPTable table;
+        private PdfPCell cell;
+        private int bufferedRows = 0;
+
+        BodyHandler(ZipFile zip, Map<String, String> images, Document document, CancellationSignal signal) {
+            this.zip = zip;
+            this.images = images;
+            this.document = document;
+            this.signal = signal;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if (skipDepth > 0) {
+                skipDepth++;
+                return;
+            }
+            if (NS_MARKUP_COMPATIBILITY.equals(uri) && "Fallback".equals(localName)) {
+                skipDepth = 1;
+                return;
+            }
+            try {
+                if (NS_WORD.equals(uri)) {
+                    startWordElement(localName, attributes);
+                } else if (NS_DRAWING.equals(uri) && "blip".equals(localName)) {
+                    addImage(attributes.getValue(NS_RELATIONSHIPS, "embed"));
+                } else if (NS_VML.equals(uri) && "imagedata".equals(localName)) {
+                    addImage(attributes.getValue(NS_RELATIONSHIPS, "id"));
+                }
+            } catch (DocumentException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        private void startWordElement(String name, Attributes attributes) throws DocumentException {
+            switch (name) {
+                case "p":
+                    if (paragraphDepth++ == 0) {
+                        paragraph = new Paragraph();
+                        paragraph.setSpacingAfter(6);
+                        paragraphFont = null;
+                    } else {
+                        flushRun();
+                        paragraph.add(Chunk.NEWLINE);
+                    }
+                    break;
+                case "pStyle":
+                    String style = value(attributes);
+                    if (paragraphDepth == 1 && style != null) {
+                        if (style.equals("Title")) {
+                            paragraphFont = titleFont;
+                        } else if (style.startsWith("Heading")) {
+                            paragraphFont = headingFont;
+                        }
+                    }
+                    break;
+                case "r":
+                    flushRun();
+                    inRun = true;
+                    bold = false;
+                    italic = false;
+                    break;
+                case "b":
+                    if (inRun) {
+                        bold = isOn(attributes);
+                    }
+                    break;
+                case "i":
+                    if (inRun) {
+                        italic = isOn(attributes);
+                    }
+                    break;
+                case "t":
+                    inText = true;
+                    break;
+                case "tab":
+                    if (inRun) {
+                        runText.append("    ");
+                    }
+                    break;
+                case "br":
+                    if (!inRun) {
+                        break;
+                    }
+                    if ("page".equals(attributes.getValue(NS_WORD, "type")) && tableDepth == 0 && paragraphDepth == 1) {
+                        flushRun();
+                        addBlock(paragraph);
+                        paragraph = new Paragraph();
+                        paragraph.setSpacingAfter(6);
+                        document.newPage();
+                    } else {
+                        runText.append('\n');
+                    }
+                    break;
+                case "tbl":
+                    if (tableDepth++ == 0) {
+                        gridColumns = 0;
+                        table = null;
+                        bufferedRows = 0;
+                    }
+                    break;
+                case "gridCol":
+                    if (tableDepth == 1) {
+                        gridColumns++;
+                    }
+                    break;
+                case "tr":
+                    if (tableDepth == 1 && table == null) {
+                        table = new PdfPTable(Math.max(1, gridColumns));
+                        table.setWidthPercentage(100);
+                        table.setSpacingAfter(6);
+                        // Written out in parts as rows complete
+                        table.setComplete(false);
+                    }
+                    break;
+                case "tc":
+                    if (tableDepth == 1) {
+                        cell = new PdfPCell();
+                        cell.setPadding(4);
+                    }
+                    break;
+                case "gridSpan":
+                    if (tableDepth == 1 && cell != null) {
+                        cell.setColspan(Math.max(1, parseInt(value(attributes))));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (skipDepth > 0) {
+                skipDepth--;
+                return;
+            }
+            if (!NS_WORD.equals(uri)) {
+                return;
+            }
+            try {
+                switch (localName) {
+                    case "t":
+                        inText = false;
+                        break;
+                    case "r":
+                        flushRun();
+                        inRun = false;
+                        break;
+                    case "p":
+                        if (--paragraphDepth == 0) {
+                            flushRun();
+                            if (paragraph.isEmpty()) {
+                                // Keep the vertical space of empty paragraphs
+                                paragraph.add(new Chunk(" ", regularFont));
+                            }
+                            addBlock(paragraph);
+                            paragraph = null;
+                            if (signal != null) {
+                                signal.throwIfCanceled();
+                            }
+                        }
+                        break;
+                    case "tc":
+                        if (tableDepth == 1 && cell != null) {
+                            table.addCell(cell);
+                            cell = null;
+                        }
+                        break;
+                    case "tr":
+                        if (tableDepth == 1 && table != null) {
+                            table.completeRow();
+                            if (++bufferedRows >= TABLE_ROWS_PER_FLUSH) {
+                                document.add(table);
+                                bufferedRows = 0;
+                            }
+                        }
+                        break;
+                    case "tbl":
+                        if (--tableDepth == 0 && table != null) {
+                            table.setComplete(true);
+                            document.add(table);
+                            hasContent = true;
+                            table = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (DocumentException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inText && skipDepth == 0) {
+                runText.append(ch, start, length);
+            }
+        }
+
+        private void flushRun() {
+            if (runText.length() == 0 || paragraph == null) {
+                runText.setLength(0);
+                return;
+            }
+            Font font = paragraphFont;
+            if (font == null) {
+                font = bold ? (italic ? boldItalicFont : boldFont) : (italic ? italicFont : regularFont);
+            }
+            paragraph.add(new Chunk(runText.toString(), font));
+            runText.setLength(0);
+        }
+
+        /**
+         * Add a paragraph or image to the page, or to the table cell it is in
+         */
+        private void addBlock(Element element) throws DocumentException {
+            if (tableDepth > 0) {
+                if (cell != null) {
+                    cell.addElement(element);
+                }
+            } else {
+                document.add(element);
+                hasContent = true;
+            }
+        }
+
+        /**
+         * End the text before an image, add the image as a block of its own and continue the
+         * paragraph after it
+         */
+        private void addImage(String relationshipId) throws DocumentException {
+            String entryName = relationshipId != null ? images.get(relationshipId) : null;
+            if (entryName == null) {
+                return;
+            }
+            Image image = readImage(entryName);
+            if (image == null) {
+                return;
+            }
+            if (paragraph != null) {
+                flushRun();
+                if (!paragraph.isEmpty()) {
+                    addBlock(paragraph);
+                    paragraph = new Paragraph();
+                    paragraph.setSpacingAfter(6);
+                }
+            }
+            float width = document.getPageSize().getWidth() - document.leftMargin() - document.rightMargin();
+            float height = document.getPageSize().getHeight() - document.topMargin() - document.bottomMargin();
+            image.scaleToFit(width, height);
+            image.setAlignment(Image.MIDDLE);
+            addBlock(image);
+        }
+
+        /**
+         * Decode an image from the zip at no more than {@link #MAX_IMAGE_PX} wide
+         *
+         * @return The image, or null if the format cannot be decoded (EMF, WMF)
+         */
+        private Image readImage(String entryName) {
+            ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    BitmapFactory.decodeStream(in, null, options);
+                }
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
+                    Log.w(TAG, "Skipping image that cannot be decoded: " + entryName);
+                    return null;
+                }
+                int sampleSize = 1;
+                while (options.outWidth / (sampleSize * 2) >= MAX_IMAGE_PX) {
+                    sampleSize *= 2;
+                }
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = sampleSize;
+                Bitmap bitmap;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    bitmap = BitmapFactory.decodeStream(in, null, options);
+                }
+                if (bitmap == null) {
+                    return null;
+                }
+                if (bitmap.getWidth() > MAX_IMAGE_PX) {
+                    Bitmap scaled = Bitmap.createScaledBitmap(bitmap, MAX_IMAGE_PX,
+                            Math.max(1, bitmap.getHeight() * MAX_IMAGE_PX / bitmap.getWidth()), true);
+                    bitmap.recycle();
+                    bitmap = scaled;
+                }
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                // PNG keeps transparency, which JPEG would turn black
+                if (bitmap.hasAlpha()) {
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, encoded);
+                } else {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, encoded);
+                }
+                bitmap.recycle();
+                return Image.getInstance(encoded.toByteArray());
+            } catch (IOException | DocumentException | RuntimeException e) {
+                Log.e(TAG, "Error reading image " + entryName, e);
+                return null;
+            }
+        }
+
+        private static Font font(String name, float size) {
+            return FontFactory.getFont(name, "UTF-8", true, size);
+        }
+
+        private static String value(Attributes attributes) {
+            return attributes.getValue(NS_WORD, "val");
+        }
+
+        /**
+         * Toggle properties such as w:b are on unless w:val turns them off
+         */
+        private static boolean isOn(Attributes attributes) {
+            String value = value(attributes);
+            return value == null || !(value.equals("0") || value.equals("false") || value.equals("off"));
+        }
+
+        private static int parseInt(String value) {
+            try {
+                return value != null ? Integer.parseInt(value) : 1;
+            } catch (NumberFormatException e) {
+                return 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.nekkochan.onyxchat.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.nekkochan.onyxchat.utils.CacheUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+/**
+ * Disk cache of documents converted to PDF, so opening or sharing the same attachment again
+ * skips parsing and rendering it.
+ * <p>
+ * Entries are keyed by the SHA-256 of the source content together with the converter version,
+ * so a changed file or a new converter never returns a stale PDF. The least recently used
+ * entries are deleted once the cache is over its budget.
+ */
+public final class PdfConversionCache {
+    private static final String TAG = "PdfConversionCache";
+
+    private static final long MAX_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final String EXTENSION = ".pdf";
+
+    private PdfConversionCache() {
+    }
+
+    /**
+     * Hash the document's content. Reading is much cheaper than converting, so this is done
+     * every time rather than trusting file names or sizes.
+     *
+     * @param signal Cancels hashing between reads, or null
+     * @return The cache key
+     * @throws android.os.OperationCanceledException If {@code signal} is cancelled
+     */
+    public static String key(Context context, Uri uri, String extension, int converterVersion,
+                             CancellationSignal signal) throws IOException {
+        MessageDigest digest = CacheUtils.sha256Digest();
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            if (in == null) {
+                throw new IOException("Failed to open input stream for URI: " + uri);
+            }
+            CacheUtils.update(digest, in, signal);
+        }
+        String suffix = "\0" + (extension != null ? extension.toLowerCase() : "") + "\0" + converterVersion;
+        digest.update(suffix.getBytes(StandardCharsets.UTF_8));
+        return CacheUtils.hex(digest.digest());
+    }
+
+    /**
+     * @return The cached PDF, marked as recently used, or null if there is none
+     */
+    public static File get(Context context, String key) {
+        File file = new File(directory(context), key + EXTENSION);
+        if (!file.exists() || file.length() == 0) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * A new file in the cache directory for a conversion to write to before {@link #put}
+     */
+    public static File newTempFile(Context context) throws IOException {
+        File directory = directory(context);
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create PDF cache directory");
+        }
+        return new File(directory, UUID.randomUUID().toString() + ".tmp");
+    }
+
+    /**
+     * Move a finished conversion into the cache and evict old entries if it is over budget
+     *
+     * @param pdf File from {@link #newTempFile}
+     * @return The cached PDF, or null if it could not be stored
+     */
+    public static File put(Context context, String key, File pdf) {
+        File file = new File(directory(context), key + EXTENSION);
+        if (!pdf.renameTo(file)) {
+            Log.e(TAG, "Could not move converted PDF into the cache");
+            pdf.delete();
+            return null;
+        }
+        CacheUtils.trim(directory(context), EXTENSION, MAX_CACHE_BYTES, file);
+        return file;
+    }
+
+    private static File directory(Context context) {
+        return new File(context.getCacheDir(), "converted_pdfs");
+    }
+}
@@ -0,0 +1,66 @@
+package com.nekkochan.onyxchat.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes AAC-LC frames as an ADTS stream, where every frame carries its own header and the
+ * file can be played from any point. Used where the platform has no Opus encoder.
+ */
+final class AdtsWriter implements AudioFrameWriter {
+    public static final String MIME_TYPE = "audio/aac";
+
+    private static final int HEADER_LENGTH = 7;
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final OutputStream out;
+    private final int sampleRateIndex;
+    private final int channels;
+
+    AdtsWriter(OutputStream out, int sampleRate, int channels) {
+        this.out = out;
+        this.channels = channels;
+        int index = -1;
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Unsupported AAC sample rate " + sampleRate);
+        }
+        this.sampleRateIndex = index;
+    }
+
+    @Override
+    public void writeConfig(byte[] config) {
+        // The ADTS header of each frame replaces the AudioSpecificConfig
+    }
+
+    @Override
+    public void writeFrame(byte[] frame, long presentationTimeUs) throws IOException {
+        out.write(header(frame.length));
+        out.write(frame);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    byte[] header(int frameLength) {
+        int length = frameLength + HEADER_LENGTH;
+        // MPEG-4, no CRC, AAC LC (profile 1)
+        return new byte[] {
+                (byte) 0xFF,
+                (byte) 0xF1,
+                (byte) ((1 << 6) | (sampleRateIndex << 2) | (channels >> 2)),
+                (byte) (((channels & 3) << 6) | (length >> 11)),
+                (byte) ((length >> 3) & 0xFF),
+                (byte) (((length & 7) << 5) | 0x1F),
+                (byte) 0xFC
+        };
+    }
+}
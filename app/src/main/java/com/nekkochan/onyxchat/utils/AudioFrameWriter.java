@@ -0,0 +1,26 @@
+package com.nekkochan.onyxchat.utils;
+
+import java.io.IOException;
+
+/**
+ * Writes encoded audio frames into a container that can be played while it is still
+ * being written, so a recording can be uploaded as it is made.
+ */
+interface AudioFrameWriter {
+
+    /**
+     * @param config Codec config output of the encoder
+     */
+    void writeConfig(byte[] config) throws IOException;
+
+    /**
+     * @param frame              One encoded frame
+     * @param presentationTimeUs Presentation time of the frame
+     */
+    void writeFrame(byte[] frame, long presentationTimeUs) throws IOException;
+
+    /**
+     * Write anything still buffered and mark the end of the stream
+     */
+    void finish() throws IOException;
+}
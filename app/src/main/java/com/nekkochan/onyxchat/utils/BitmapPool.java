@@ -0,0 +1,76 @@
+package com.nekkochan.onyxchat.utils;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps mutable bitmaps from earlier decodes so the next image can decode into them
+ * through {@code inBitmap} instead of allocating tens of megabytes again.
+ */
+final class BitmapPool {
+    private final long maxBytes;
+    private final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+    private long bytes = 0;
+
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take a pooled bitmap with room for at least {@code byteCount} bytes, for use as {@code inBitmap}
+     *
+     * @return The bitmap, or null if none is large enough
+     */
+    synchronized Bitmap take(long byteCount) {
+        Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getAllocationByteCount() >= byteCount) {
+                iterator.remove();
+                bytes -= bitmap.getAllocationByteCount();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A cleared bitmap of the given size, reused from the pool when one is large enough
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take((long) width * height * bytesPerPixel(config));
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Return a bitmap for reuse; the oldest bitmaps are recycled when the pool is full
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || size > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        while (bytes + size > maxBytes && !bitmaps.isEmpty()) {
+            Bitmap evicted = bitmaps.removeFirst();
+            bytes -= evicted.getAllocationByteCount();
+            evicted.recycle();
+        }
+        bitmaps.addLast(bitmap);
+        bytes += size;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+}
@@ -0,0 +1,197 @@
+package com.nekkochan.onyxchat.utils;
+
+/**
+ * Encoder and decoder for BlurHash placeholders.
+ * <p>
+ * A BlurHash is a handful of DCT components of an image packed into a short base-83 string
+ * (about 30 characters for 4x3 components), small enough to travel inside a message and
+ * decoded into a blurred preview before the media itself has been downloaded.
+ * Pixels are packed ARGB ints as used by {@code Bitmap.getPixels}.
+ */
+public final class BlurHash {
+    private static final String CHARACTERS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+
+    private BlurHash() {
+    }
+
+    /**
+     * Encode an image; a few dozen pixels per side are plenty
+     *
+     * @param pixels      ARGB pixels, row by row
+     * @param width       Image width
+     * @param height      Image height
+     * @param componentsX Horizontal components, 1 to 9
+     * @param componentsY Vertical components, 1 to 9
+     * @return The hash
+     */
+    public static String encode(int[] pixels, int width, int height, int componentsX, int componentsY) {
+        if (componentsX < 1 || componentsX > 9 || componentsY < 1 || componentsY > 9) {
+            throw new IllegalArgumentException("Components must be between 1 and 9");
+        }
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Not enough pixels");
+        }
+
+        double[][] factors = new double[componentsX * componentsY][];
+        for (int j = 0; j < componentsY; j++) {
+            for (int i = 0; i < componentsX; i++) {
+                factors[j * componentsX + i] = basisFactor(pixels, width, height, i, j);
+            }
+        }
+
+        StringBuilder hash = new StringBuilder();
+        encode83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+
+        double maximumValue;
+        if (factors.length > 1) {
+            double actualMaximum = 0;
+            for (int f = 1; f < factors.length; f++) {
+                for (double value : factors[f]) {
+                    actualMaximum = Math.max(actualMaximum, Math.abs(value));
+                }
+            }
+            int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(actualMaximum * 166 - 0.5)));
+            maximumValue = (quantisedMaximum + 1) / 166.0;
+            encode83(hash, quantisedMaximum, 1);
+        } else {
+            maximumValue = 1;
+            encode83(hash, 0, 1);
+        }
+
+        double[] dc = factors[0];
+        encode83(hash, (linearToSrgb(dc[0]) << 16) + (linearToSrgb(dc[1]) << 8) + linearToSrgb(dc[2]), 4);
+        for (int f = 1; f < factors.length; f++) {
+            double[] ac = factors[f];
+            encode83(hash, quantiseAc(ac[0], maximumValue) * 19 * 19
+                    + quantiseAc(ac[1], maximumValue) * 19
+                    + quantiseAc(ac[2], maximumValue), 2);
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Decode a hash into opaque ARGB pixels
+     *
+     * @param hash   The hash
+     * @param width  Output width; 32 is enough since the result is stretched anyway
+     * @param height Output height
+     * @param punch  Contrast boost, 1 for none
+     * @return The pixels, or null if the hash is malformed
+     */
+    public static int[] decode(String hash, int width, int height, double punch) {
+        if (hash == null || hash.length() < 6) {
+            return null;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            if (CHARACTERS.indexOf(hash.charAt(i)) < 0) {
+                return null;
+            }
+        }
+        int sizeFlag = decode83(hash, 0, 1);
+        int componentsY = sizeFlag / 9 + 1;
+        int componentsX = sizeFlag % 9 + 1;
+        if (hash.length() != 4 + 2 * componentsX * componentsY) {
+            return null;
+        }
+
+        double maximumValue = (decode83(hash, 1, 2) + 1) / 166.0 * punch;
+        double[][] colors = new double[componentsX * componentsY][];
+        int dc = decode83(hash, 2, 6);
+        colors[0] = new double[] {srgbToLinear(dc >> 16), srgbToLinear((dc >> 8) & 255), srgbToLinear(dc & 255)};
+        for (int c = 1; c < colors.length; c++) {
+            int value = decode83(hash, 4 + c * 2, 6 + c * 2);
+            colors[c] = new double[] {
+                    signPow((value / (19 * 19) - 9) / 9.0, 2) * maximumValue,
+                    signPow((value / 19 % 19 - 9) / 9.0, 2) * maximumValue,
+                    signPow((value % 19 - 9) / 9.0, 2) * maximumValue
+            };
+        }
+
+        int[] pixels = new int[width * height];
+        // The cosines only depend on one coordinate each, so compute them once per row and column
+        double[][] cosX = cosines(componentsX, width);
+        double[][] cosY = cosines(componentsY, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r = 0;
+                double g = 0;
+                double b = 0;
+                for (int j = 0; j < componentsY; j++) {
+                    for (int i = 0; i < componentsX; i++) {
+                        double basis = cosX[i][x] * cosY[j][y];
+                        double[] color = colors[j * componentsX + i];
+                        r += color[0] * basis;
+                        g += color[1] * basis;
+                        b += color[2] * basis;
+                    }
+                }
+                pixels[y * width + x] = 0xFF000000 | (linearToSrgb(r) << 16) | (linearToSrgb(g) << 8) | linearToSrgb(b);
+            }
+        }
+        return pixels;
+    }
+
+    private static double[] basisFactor(int[] pixels, int width, int height, int i, int j) {
+        double r = 0;
+        double g = 0;
+        double b = 0;
+        for (int y = 0; y < height; y++) {
+            double cosY = Math.cos(Math.PI * j * y / height);
+            for (int x = 0; x < width; x++) {
+                double basis = Math.cos(Math.PI * i * x / width) * cosY;
+                int pixel = pixels[y * width + x];
+                r += basis * srgbToLinear((pixel >> 16) & 255);
+                g += basis * srgbToLinear((pixel >> 8) & 255);
+                b += basis * srgbToLinear(pixel & 255);
+            }
+        }
+        double scale = (i == 0 && j == 0 ? 1.0 : 2.0) / (width * height);
+        return new double[] {r * scale, g * scale, b * scale};
+    }
+
+    private static double[][] cosines(int components, int size) {
+        double[][] cosines = new double[components][size];
+        for (int c = 0; c < components; c++) {
+            for (int p = 0; p < size; p++) {
+                cosines[c][p] = Math.cos(Math.PI * c * p / size);
+            }
+        }
+        return cosines;
+    }
+
+    private static int quantiseAc(double value, double maximumValue) {
+        return (int) Math.max(0, Math.min(18, Math.floor(signPow(value / maximumValue, 0.5) * 9 + 9.5)));
+    }
+
+    private static double signPow(double value, double exponent) {
+        return Math.copySign(Math.pow(Math.abs(value), exponent), value);
+    }
+
+    private static double srgbToLinear(int value) {
+        double v = value / 255.0;
+        return v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+    }
+
+    private static int linearToSrgb(double value) {
+        double v = Math.max(0, Math.min(1, value));
+        return v <= 0.0031308
+                ? (int) (v * 12.92 * 255 + 0.5)
+                : (int) ((1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255 + 0.5);
+    }
+
+    private static void encode83(StringBuilder hash, int value, int length) {
+        for (int i = 1; i <= length; i++) {
+            int digit = (value / (int) Math.pow(83, length - i)) % 83;
+            hash.append(CHARACTERS.charAt(digit));
+        }
+    }
+
+    private static int decode83(String hash, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 83 + CHARACTERS.indexOf(hash.charAt(i));
+        }
+        return value;
+    }
+}
@@ -0,0 +1,123 @@
+package com.nekkochan.onyxchat.utils;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Helpers shared by the disk caches that name entries after a SHA-256 of their content and
+ * evict the least recently used entries once over budget.
+ */
+public final class CacheUtils {
+    private static final String TAG = "CacheUtils";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CacheUtils() {
+    }
+
+    public static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android runtime has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return Hex SHA-256 of a file's content
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = sha256Digest();
+        try (InputStream in = new FileInputStream(file)) {
+            update(digest, in, null);
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * @return Hex SHA-256 of a string's UTF-8 bytes
+     */
+    public static String sha256(String text) {
+        return hex(sha256Digest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Feed a whole stream into a digest
+     *
+     * @param signal Cancels hashing between reads, or null
+     * @throws android.os.OperationCanceledException If {@code signal} is cancelled
+     */
+    public static void update(MessageDigest digest, InputStream in, @Nullable CancellationSignal signal)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+            digest.update(buffer, 0, read);
+        }
+    }
+
+    public static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Delete the least recently modified entries while a cache directory is over budget
+     *
+     * @param extension Suffix of the entries; other files, such as partial writes, are left alone
+     * @param keep      Entry that is never evicted, e.g. the one just added, or null
+     * @return The entries that were deleted
+     */
+    public static synchronized List<File> trim(File directory, String extension, long maxBytes,
+                                               @Nullable File keep) {
+        List<File> evicted = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(extension));
+        if (files == null) {
+            return evicted;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxBytes) {
+            return evicted;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (file.equals(keep)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                evicted.add(file);
+                Log.d(TAG, "Evicted " + file.getName() + " from " + directory.getName());
+            }
+        }
+        return evicted;
+    }
+}
@@ -14,32 +14,25 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
-import com.arthenica.ffmpegkit.FFmpegKit;
-import com.arthenica.ffmpegkit.FFmpegSession;
-import com.arthenica.ffmpegkit.ReturnCode;
+import com.nekkochan.onyxchat.service.MediaJobWorker;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FileInputStream;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Utility class for file operations
  */
 public class FileUtils {
     private static final String TAG = "FileUtils";
-    private static final int MAX_IMAGE_DIMENSION = 1280; // Maximum width/height for images
-    private static final int VIDEO_BITRATE = 1500000; // 1.5 Mbps for videos
     private static final int MAX_FILE_SIZE_MB = 15; // 15 MB max file size
 
-    // Static variables to track processing state
-    public static boolean isMediaProcessing = false;
-    public static String currentProcessingType = null;
-    public static String currentMediaUri = null;
-
     /**
      * Get a file path from a Uri
      * 
@@ -359,156 +352,37 @@ public class FileUtils {
     }
     
     /**
-     * Execute an FFmpeg command asynchronously
+     * Compress an image file for sending
      *
-     * @param command The FFmpeg command
-     * @param outputPath The output file path
-     * @param future The CompletableFuture to complete when done
+     * @param context The context
+     * @param sourceUri The source image Uri
+     * @return CompletableFuture with the compressed file path
      */
-    private static void executeFFmpegAsync(String command, String outputPath, CompletableFuture<String> future) {
-        Log.d(TAG, "Executing FFmpeg command: " + command);
-        
-        // Set the processing state to true
-        isMediaProcessing = true;
-        
-        FFmpegSession session = FFmpegKit.executeAsync(command, session1 -> {
-            if (ReturnCode.isSuccess(session1.getReturnCode())) {
-                Log.d(TAG, "FFmpeg process completed successfully");
-                future.complete(outputPath);
-                // Clear the processing state
-                isMediaProcessing = false;
-            } else if (ReturnCode.isCancel(session1.getReturnCode())) {
-                Log.d(TAG, "FFmpeg process canceled");
-                future.completeExceptionally(new IOException("Process canceled"));
-                // Clear the processing state
-                isMediaProcessing = false;
-            } else {
-                Log.e(TAG, "FFmpeg process failed with state: " + session1.getState() + 
-                        " and return code: " + session1.getReturnCode());
-                if (command.contains("-c:v mpeg4") || command.contains("-c:v libx264")) {
-                    // Try fallback with copy codec (no transcoding)
-                    // Remove all filters when using copy to avoid conflicts
-                    String fallbackCommand = command
-                        .replaceAll("-c:v \\w+", "-c:v copy")
-                        .replaceAll("-vf [^ ]+", "") // Remove video filters
-                        .replaceAll("-b:v [^ ]+", "") // Remove bitrate
-                        .replaceAll("-maxrate [^ ]+", "") // Remove maxrate
-                        .replaceAll("-bufsize [^ ]+", ""); // Remove bufsize
-                    
-                    Log.d(TAG, "Trying fallback command: " + fallbackCommand);
-                    
-                    FFmpegSession fallbackSession = FFmpegKit.executeAsync(fallbackCommand, session2 -> {
-                        if (ReturnCode.isSuccess(session2.getReturnCode())) {
-                            Log.d(TAG, "Fallback FFmpeg process completed successfully");
-                            future.complete(outputPath);
-                            // Clear the processing state
-                            isMediaProcessing = false;
-                        } else {
-                            Log.e(TAG, "Fallback FFmpeg process also failed with state: " + 
-                                    session2.getState() + " and return code: " + session2.getReturnCode());
-                            
-                            // Try one more fallback with just basic copy
-                            String simpleFallbackCmd = String.format(
-                                "-i %s -c copy -y %s",
-                                command.substring(command.indexOf("-i ") + 3, command.indexOf(" -c:v")),
-                                command.substring(command.lastIndexOf(" -y ") + 4));
-                            
-                            Log.d(TAG, "Trying simple fallback command: " + simpleFallbackCmd);
-                            
-                            FFmpegSession finalFallbackSession = FFmpegKit.executeAsync(simpleFallbackCmd, session3 -> {
-                                if (ReturnCode.isSuccess(session3.getReturnCode())) {
-                                    Log.d(TAG, "Simple fallback FFmpeg process completed successfully");
-                                    future.complete(outputPath);
-                                } else {
-                                    Log.e(TAG, "All FFmpeg fallbacks failed");
-                                    future.completeExceptionally(new IOException("Process failed with return code: " + 
-                                            session1.getReturnCode()));
-                                }
-                                // Clear the processing state (whether it succeeded or failed)
-                                isMediaProcessing = false;
-                            }, log -> {
-                                Log.d(TAG, "Simple fallback FFmpeg log: " + log.getMessage());
-                            }, null);
-                            
-                            if (finalFallbackSession == null) {
-                                future.completeExceptionally(new IOException("Failed to start final fallback FFmpeg process"));
-                                // Clear the processing state
-                                isMediaProcessing = false;
-                            }
-                        }
-                    }, log -> {
-                        Log.d(TAG, "Fallback FFmpeg log: " + log.getMessage());
-                    }, null);
-                    
-                    if (fallbackSession == null) {
-                        future.completeExceptionally(new IOException("Failed to start fallback FFmpeg process"));
-                        // Clear the processing state
-                        isMediaProcessing = false;
-                    }
-                } else {
-                    future.completeExceptionally(new IOException("Process failed with return code: " + 
-                            session1.getReturnCode()));
-                    // Clear the processing state
-                    isMediaProcessing = false;
-                }
-            }
-        }, log -> {
-            // FFmpeg logs
-            Log.d(TAG, "FFmpeg log: " + log.getMessage());
-        }, statistics -> {
-            // Progress updates if needed
-            // We can use statistics.getTime() to get the progress time in milliseconds
-        });
-        
-        if (session == null) {
-            future.completeExceptionally(new IOException("Failed to start FFmpeg process"));
-            // Clear the processing state
-            isMediaProcessing = false;
+    public static CompletableFuture<String> compressImage(Context context, Uri sourceUri) {
+        String sourcePath = getPath(context, sourceUri);
+        if (sourcePath == null) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("Could not find file path"));
+            return future;
         }
+        return ImageCompressor.compressAsync(context, sourcePath);
     }
     
     /**
-     * Compress an image file using FFmpeg
+     * Compress an image into the thumbnail, screen and original variants sent with a photo
      *
      * @param context The context
      * @param sourceUri The source image Uri
-     * @return CompletableFuture with the compressed file path
+     * @return CompletableFuture with the variants, largest first, located at their local paths
      */
-    public static CompletableFuture<String> compressImage(Context context, Uri sourceUri) {
-        CompletableFuture<String> future = new CompletableFuture<>();
+    public static CompletableFuture<List<MediaVariant>> compressImageVariants(Context context, Uri sourceUri) {
         String sourcePath = getPath(context, sourceUri);
-        
         if (sourcePath == null) {
+            CompletableFuture<List<MediaVariant>> future = new CompletableFuture<>();
             future.completeExceptionally(new IOException("Could not find file path"));
             return future;
         }
-        
-        // Set the processing state
-        isMediaProcessing = true;
-        currentProcessingType = "image";
-        currentMediaUri = sourceUri.toString();
-        
-        try {
-            String fileName = getFileName(context, sourceUri);
-            String extension = fileName.substring(fileName.lastIndexOf("."));
-            File outputFile = createTempFile(context, "img", extension);
-            
-            // Fix the filter syntax by properly escaping quotes
-            String quotedSourcePath = "\"" + sourcePath + "\"";
-            String quotedOutputPath = "\"" + outputFile.getAbsolutePath() + "\"";
-            
-            String ffmpegCmd = String.format("-i %s -vf \"scale=min(%d\\,iw):-1\" -quality 85 -y %s",
-                    quotedSourcePath, MAX_IMAGE_DIMENSION, quotedOutputPath);
-            
-            executeFFmpegAsync(ffmpegCmd, outputFile.getAbsolutePath(), future);
-            
-            return future;
-        } catch (IOException e) {
-            future.completeExceptionally(e);
-            // Clear the processing state
-            isMediaProcessing = false;
-            return future;
-        }
+        return ImageCompressor.compressVariantsAsync(context, sourcePath);
     }
     
     /**
@@ -516,51 +390,33 @@ public class FileUtils {
      *
      * @param context The context
      * @param sourceUri The source video Uri
-     * @return CompletableFuture with the compressed file path
+     * @return The queued job, whose result is the compressed file path
      */
-    public static CompletableFuture<String> compressVideo(Context context, Uri sourceUri) {
-        CompletableFuture<String> future = new CompletableFuture<>();
+    public static MediaJobWorker.Job compressVideo(Context context, Uri sourceUri) {
         String sourcePath = getPath(context, sourceUri);
-        
         if (sourcePath == null) {
-            future.completeExceptionally(new IOException("Could not find file path"));
-            return future;
-        }
-        
-        // Set the processing state
-        isMediaProcessing = true;
-        currentProcessingType = "video";
-        currentMediaUri = sourceUri.toString();
-        
-        try {
-            File outputFile = createTempFile(context, "video", ".mp4");
-            
-            // Properly quote file paths to handle spaces and special characters
-            String quotedSourcePath = "\"" + sourcePath + "\"";
-            String quotedOutputPath = "\"" + outputFile.getAbsolutePath() + "\"";
-            
-            // FFmpeg command to compress video using mpeg4 which is widely available
-            // Fix the filter syntax by properly escaping quotes
-            String ffmpegCmd = String.format(
-                    "-i %s -c:v mpeg4 -b:v %d -maxrate %d " +
-                    "-bufsize %d -vf \"scale=min(%d\\,iw):-2\" -c:a aac -b:a 128k " +
-                    "-movflags +faststart -y %s",
-                    quotedSourcePath, 
-                    VIDEO_BITRATE, 
-                    VIDEO_BITRATE * 2, 
-                    VIDEO_BITRATE * 4,
-                    MAX_IMAGE_DIMENSION,
-                    quotedOutputPath);
-            
-            executeFFmpegAsync(ffmpegCmd, outputFile.getAbsolutePath(), future);
-            
-            return future;
-        } catch (IOException e) {
-            future.completeExceptionally(e);
-            // Clear the processing state
-            isMediaProcessing = false;
-            return future;
+            return failedJob(new IOException("Could not find file path"));
         }
+
+        // Probing and the encoder lookup run FFprobe and FFmpeg, so the plan is made on the
+        // job's submit thread the first time the commands are built
+        AtomicReference<VideoCompressionPlanner.Plan> plan = new AtomicReference<>();
+        MediaJobWorker.Job job = MediaJobWorker.submit(context, "video", sourcePath, ".mp4", outputPath -> {
+            if (plan.get() == null) {
+                plan.set(VideoCompressionPlanner.plan(MediaUtils.probeVideo(sourcePath),
+                        VideoCompressionPlanner.Budget.forAttachment(MAX_FILE_SIZE_MB), MediaUtils.getVideoEncoder()));
+                Log.d(TAG, "Video compression plan: " + plan.get());
+            }
+            return plan.get().commands(sourcePath, outputPath);
+        });
+        job.getResult().thenAccept(outputPath -> Log.i(TAG, "Video compressed to " + new File(outputPath).length()
+                + " bytes, predicted " + plan.get().getPredictedBytes()));
+        return job;
+    }
+
+    private static MediaJobWorker.Job failedJob(IOException e) {
+        Log.e(TAG, "Cannot start media job", e);
+        return MediaJobWorker.Job.failed(e);
     }
     
     /**
@@ -641,20 +497,4 @@ public class FileUtils {
         }
         return null;
     }
-
-    /**
-     * Check if media is currently being processed
-     * @return true if media is being processed, false otherwise
-     */
-    public static boolean isMediaProcessing() {
-        return isMediaProcessing;
-    }
-
-    /**
-     * Get the current media processing type
-     * @return The type of media being processed ("image", "video", etc.) or null if none
-     */
-    public static String getMediaProcessingType() {
-        return currentProcessingType;
-    }
 } 
\ No newline at end of file
@@ -0,0 +1,360 @@
+package com.nekkochan.onyxchat.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Downscales and re-encodes photos for sending without starting FFmpeg.
+ * <p>
+ * The photo is decoded with the largest power-of-two {@code inSampleSize} that still covers the
+ * target size, so a 48 MP photo is never fully decoded. When even the sampled image would be too
+ * large it is decoded in horizontal strips with {@link BitmapRegionDecoder}, each strip drawn
+ * straight into the scaled result. EXIF orientation is applied to the small bitmap, and the
+ * encoder quality is searched for the best one within the byte budget. Decode buffers come
+ * from a {@link BitmapPool}, so consecutive photos reuse the same memory.
+ * <p>
+ * Photos for chat messages are produced in several {@link Variant}s from that one decode.
+ */
+public final class ImageCompressor {
+    private static final String TAG = "ImageCompressor";
+
+    public static final int MAX_DIMENSION = 1280;
+    public static final int BYTE_BUDGET = 400 * 1024;
+
+    /**
+     * Resolutions a photo is sent in. The original is re-encoded too, which caps its size and
+     * drops EXIF metadata such as the location.
+     */
+    public enum Variant {
+        THUMBNAIL(MediaVariant.THUMBNAIL, 640, 80 * 1024),
+        SCREEN(MediaVariant.SCREEN, MAX_DIMENSION, BYTE_BUDGET),
+        ORIGINAL(MediaVariant.ORIGINAL, 2560, 1536 * 1024);
+
+        final String variantName;
+        final int maxDimension;
+        final int byteBudget;
+
+        Variant(String variantName, int maxDimension, int byteBudget) {
+            this.variantName = variantName;
+            this.maxDimension = maxDimension;
+            this.byteBudget = byteBudget;
+        }
+    }
+
+    private static final int MIN_QUALITY = 50;
+    private static final int MAX_QUALITY = 90;
+    // Largest sampled bitmap decoded in one piece; bigger images are decoded in strips
+    private static final long MAX_DECODE_BYTES = 8L * 1024 * 1024;
+    private static final long POOL_BYTES = 16L * 1024 * 1024;
+
+    private static final BitmapPool POOL = new BitmapPool(POOL_BYTES);
+    // One photo at a time keeps the peak memory at one decode
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private ImageCompressor() {
+    }
+
+    /**
+     * Compress a photo on the image thread
+     *
+     * @param context    The context
+     * @param sourcePath Local path of the photo
+     * @return CompletableFuture with the compressed file path
+     */
+    public static CompletableFuture<String> compressAsync(Context context, String sourcePath) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return compress(context, sourcePath);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    /**
+     * Compress a photo into all of its {@link Variant}s on the image thread
+     *
+     * @param context    The context
+     * @param sourcePath Local path of the photo
+     * @return CompletableFuture with the variants, largest first, located at their local paths
+     */
+    public static CompletableFuture<List<MediaVariant>> compressVariantsAsync(Context context, String sourcePath) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return compress(context, sourcePath, Variant.ORIGINAL, Variant.SCREEN, Variant.THUMBNAIL);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    /**
+     * Compress a photo on the calling thread
+     *
+     * @param context    The context
+     * @param sourcePath Local path of the photo
+     * @return The compressed file path
+     * @throws IOException If the photo cannot be decoded or written
+     */
+    public static String compress(Context context, String sourcePath) throws IOException {
+        return compress(context, sourcePath, Variant.SCREEN).get(0).getLocation();
+    }
+
+    /**
+     * Decode the photo once at the size of the largest variant and scale each smaller variant
+     * from the one before it. A variant that would be no smaller than the previous one, because
+     * the photo itself is small, is left out.
+     *
+     * @param variants Variants to produce, largest first
+     */
+    private static List<MediaVariant> compress(Context context, String sourcePath, Variant... variants)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(sourcePath, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Unsupported image");
+        }
+
+        int[] target = targetSize(bounds.outWidth, bounds.outHeight, variants[0].maxDimension);
+        int sampleSize = sampleSize(bounds.outWidth, bounds.outHeight, target[0], target[1]);
+        Bitmap scaled = decodeScaled(sourcePath, bounds.outWidth, bounds.outHeight, sampleSize, target[0], target[1]);
+        Bitmap oriented = applyOrientation(scaled, readOrientation(sourcePath));
+        if (oriented != scaled) {
+            POOL.put(scaled);
+        }
+
+        // Formats that can carry transparency keep it as WebP; photos stay JPEG
+        boolean mayHaveAlpha = "image/png".equals(bounds.outMimeType) || "image/webp".equals(bounds.outMimeType)
+                || "image/gif".equals(bounds.outMimeType);
+        Bitmap.CompressFormat format = mayHaveAlpha ? webpFormat() : Bitmap.CompressFormat.JPEG;
+
+        List<MediaVariant> results = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(BYTE_BUDGET);
+        Bitmap current = oriented;
+        try {
+            for (Variant variant : variants) {
+                int[] size = targetSize(oriented.getWidth(), oriented.getHeight(), variant.maxDimension);
+                if (!results.isEmpty() && Math.max(size[0], size[1]) >= Math.max(current.getWidth(), current.getHeight())) {
+                    continue;
+                }
+                if (size[0] != current.getWidth() || size[1] != current.getHeight()) {
+                    Bitmap smaller = Bitmap.createScaledBitmap(current, size[0], size[1], true);
+                    POOL.put(current);
+                    current = smaller;
+                }
+                File output = FileUtils.createTempFile(context, "img_" + variant.variantName,
+                        mayHaveAlpha ? ".webp" : ".jpg");
+                int quality = encode(current, format, variant.byteBudget, buffer, output);
+                results.add(new MediaVariant(variant.variantName, output.getAbsolutePath(),
+                        current.getWidth(), current.getHeight()));
+                Log.d(TAG, "Compressed " + bounds.outWidth + "x" + bounds.outHeight + " to " + variant.variantName
+                        + " " + current.getWidth() + "x" + current.getHeight() + " at quality " + quality + ", "
+                        + buffer.size() + " bytes");
+            }
+        } finally {
+            POOL.put(current);
+        }
+        Log.d(TAG, "Compressed " + results.size() + " variants in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return results;
+    }
+
+    /**
+     * Encode at the best quality within the budget and write the result
+     *
+     * @return The quality used
+     */
+    private static int encode(Bitmap bitmap, Bitmap.CompressFormat format, int byteBudget,
+                              ByteArrayOutputStream buffer, File output) throws IOException {
+        int quality = chooseQuality(q -> {
+            buffer.reset();
+            bitmap.compress(format, q, buffer);
+            return buffer.size();
+        }, byteBudget);
+        buffer.reset();
+        bitmap.compress(format, quality, buffer);
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            buffer.writeTo(out);
+        }
+        return quality;
+    }
+
+    /**
+     * Size of the image scaled down so its longer side is at most {@code maxDimension}
+     */
+    static int[] targetSize(int width, int height, int maxDimension) {
+        int longer = Math.max(width, height);
+        if (longer <= maxDimension) {
+            return new int[] {width, height};
+        }
+        double scale = (double) maxDimension / longer;
+        return new int[] {Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale))};
+    }
+
+    /**
+     * Largest power of two that still decodes at least the target size
+     */
+    static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Highest quality whose encoded size fits the budget, by binary search over the quality range.
+     * Falls back to the lowest quality if nothing fits.
+     *
+     * @param encodedSize Encoded size in bytes at a given quality
+     * @param byteBudget  Maximum encoded size
+     */
+    static int chooseQuality(IntToLongFunction encodedSize, long byteBudget) {
+        if (encodedSize.applyAsLong(MAX_QUALITY) <= byteBudget) {
+            return MAX_QUALITY;
+        }
+        int low = MIN_QUALITY;
+        int high = MAX_QUALITY - 1;
+        int best = MIN_QUALITY;
+        while (low <= high) {
+            // Steps of 5 are as fine as a viewer can tell apart
+            int quality = ((low + high) / 2) / 5 * 5;
+            if (quality < low) {
+                quality = low;
+            }
+            if (encodedSize.applyAsLong(quality) <= byteBudget) {
+                best = quality;
+                low = quality + 5;
+            } else {
+                high = quality - 1;
+            }
+        }
+        return best;
+    }
+
+    private static Bitmap decodeScaled(String path, int width, int height, int sampleSize,
+                                       int targetWidth, int targetHeight) throws IOException {
+        Bitmap target = POOL.get(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(target);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        int sampledWidth = (width + sampleSize - 1) / sampleSize;
+        int sampledHeight = (height + sampleSize - 1) / sampleSize;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+
+        if ((long) sampledWidth * sampledHeight * 4 <= MAX_DECODE_BYTES) {
+            options.inBitmap = POOL.take((long) sampledWidth * sampledHeight * 4);
+            Bitmap decoded = BitmapFactory.decodeFile(path, options);
+            if (decoded == null) {
+                POOL.put(options.inBitmap);
+                POOL.put(target);
+                throw new IOException("Could not decode image");
+            }
+            canvas.drawBitmap(decoded, null, new Rect(0, 0, targetWidth, targetHeight), paint);
+            POOL.put(decoded);
+            return target;
+        }
+
+        // Strip height in source rows, a multiple of the sample size so strips meet exactly
+        int stripRows = (int) (MAX_DECODE_BYTES / ((long) sampledWidth * 4)) * sampleSize;
+        stripRows = Math.max(sampleSize, stripRows);
+        BitmapRegionDecoder decoder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                ? BitmapRegionDecoder.newInstance(path)
+                : BitmapRegionDecoder.newInstance(path, false);
+        // The region decoder draws into inBitmap without resizing it, so it must fit a whole strip
+        Bitmap strip = POOL.get(sampledWidth, (stripRows + sampleSize - 1) / sampleSize, Bitmap.Config.ARGB_8888);
+        try {
+            for (int top = 0; top < height; top += stripRows) {
+                int bottom = Math.min(height, top + stripRows);
+                options.inBitmap = strip;
+                strip = decoder.decodeRegion(new Rect(0, top, width, bottom), options);
+                if (strip == null) {
+                    POOL.put(target);
+                    throw new IOException("Could not decode image region");
+                }
+                // The last strip only fills the top of the bitmap
+                Rect source = new Rect(0, 0, sampledWidth, (bottom - top + sampleSize - 1) / sampleSize);
+                int destinationTop = (int) ((long) top * targetHeight / height);
+                int destinationBottom = (int) ((long) bottom * targetHeight / height);
+                canvas.drawBitmap(strip, source, new Rect(0, destinationTop, targetWidth, destinationBottom), paint);
+            }
+        } finally {
+            decoder.recycle();
+            POOL.put(strip);
+        }
+        return target;
+    }
+
+    static int readOrientation(String path) {
+        try {
+            return new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read EXIF orientation", e);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    static Bitmap applyOrientation(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webpFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+}
@@ -0,0 +1,208 @@
+package com.nekkochan.onyxchat.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Intrinsic size and BlurHash placeholder of an image or video, computed by the sender and
+ * carried in the media message so the receiver can lay out the bubble at its final size and
+ * paint the placeholder before anything has been downloaded.
+ */
+public final class MediaPreview {
+    private static final String TAG = "MediaPreview";
+
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_BLURHASH = "blurhash";
+
+    // Longest side of the bitmap the hash is computed from
+    private static final int HASH_SOURCE_SIZE = 32;
+    // Longest side of a decoded placeholder; it is stretched over the bubble anyway
+    private static final int PLACEHOLDER_SIZE = 32;
+    private static final long VIDEO_FRAME_TIME_US = 1_000_000;
+
+    private static final LruCache<String, Bitmap> PLACEHOLDERS = new LruCache<>(64);
+
+    private final int width;
+    private final int height;
+    private final String blurHash;
+
+    public MediaPreview(int width, int height, String blurHash) {
+        this.width = width;
+        this.height = height;
+        this.blurHash = blurHash;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    /**
+     * Add the preview fields to a media message
+     */
+    public void writeTo(JSONObject json) throws JSONException {
+        if (width > 0 && height > 0) {
+            json.put(KEY_WIDTH, width);
+            json.put(KEY_HEIGHT, height);
+        }
+        if (blurHash != null) {
+            json.put(KEY_BLURHASH, blurHash);
+        }
+    }
+
+    /**
+     * Compute the preview of a local file off the calling thread
+     *
+     * @param path  Local file path
+     * @param video Whether the file is a video
+     * @return The preview; completes with null if nothing could be read
+     */
+    public static CompletableFuture<MediaPreview> computeAsync(String path, boolean video) {
+        return CompletableFuture.supplyAsync(() -> video ? fromVideo(path) : fromImage(path));
+    }
+
+    /**
+     * @return The preview of an image, or null if it cannot be decoded
+     */
+    public static MediaPreview fromImage(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ImageCompressor.sampleSize(width, height, HASH_SOURCE_SIZE, HASH_SOURCE_SIZE);
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        // Size and placeholder as the photo is displayed, after its EXIF rotation
+        int orientation = ImageCompressor.readOrientation(path);
+        if (orientation == ExifInterface.ORIENTATION_ROTATE_90 || orientation == ExifInterface.ORIENTATION_ROTATE_270
+                || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE) {
+            int swap = width;
+            width = height;
+            height = swap;
+        }
+        Bitmap oriented = ImageCompressor.applyOrientation(bitmap, orientation);
+        if (oriented != bitmap) {
+            bitmap.recycle();
+        }
+        return new MediaPreview(width, height, hash(oriented, width, height));
+    }
+
+    /**
+     * @return The preview of a video from a frame one second in, or null if it cannot be read
+     */
+    public static MediaPreview fromVideo(String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            int width = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            int height = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+            int rotation = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+            if (rotation == 90 || rotation == 270) {
+                int swap = width;
+                width = height;
+                height = swap;
+            }
+            Bitmap frame = retriever.getScaledFrameAtTime(VIDEO_FRAME_TIME_US,
+                    MediaMetadataRetriever.OPTION_CLOSEST_SYNC, HASH_SOURCE_SIZE, HASH_SOURCE_SIZE);
+            return new MediaPreview(width, height, hash(frame, width, height));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not read video preview from " + path, e);
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error releasing retriever", e);
+            }
+        }
+    }
+
+    /**
+     * Decode a placeholder with the aspect ratio of the media; decoded hashes are cached
+     *
+     * @return The placeholder, or null if the hash is missing or malformed
+     */
+    public static Bitmap placeholder(String blurHash, int width, int height) {
+        if (blurHash == null) {
+            return null;
+        }
+        Bitmap bitmap = PLACEHOLDERS.get(blurHash);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        int placeholderWidth = PLACEHOLDER_SIZE;
+        int placeholderHeight = PLACEHOLDER_SIZE;
+        if (width > 0 && height > 0) {
+            if (width >= height) {
+                placeholderHeight = Math.max(1, PLACEHOLDER_SIZE * height / width);
+            } else {
+                placeholderWidth = Math.max(1, PLACEHOLDER_SIZE * width / height);
+            }
+        }
+        int[] pixels = BlurHash.decode(blurHash, placeholderWidth, placeholderHeight, 1);
+        if (pixels == null) {
+            return null;
+        }
+        bitmap = Bitmap.createBitmap(pixels, placeholderWidth, placeholderHeight, Bitmap.Config.ARGB_8888);
+        PLACEHOLDERS.put(blurHash, bitmap);
+        return bitmap;
+    }
+
+    private static String hash(Bitmap bitmap, int width, int height) {
+        if (bitmap == null) {
+            return null;
+        }
+        int longer = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        Bitmap small = bitmap;
+        if (longer > HASH_SOURCE_SIZE) {
+            small = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, bitmap.getWidth() * HASH_SOURCE_SIZE / longer),
+                    Math.max(1, bitmap.getHeight() * HASH_SOURCE_SIZE / longer), true);
+        }
+        int[] pixels = new int[small.getWidth() * small.getHeight()];
+        small.getPixels(pixels, 0, small.getWidth(), 0, 0, small.getWidth(), small.getHeight());
+        // More components along the longer side
+        boolean landscape = width >= height;
+        String hash = BlurHash.encode(pixels, small.getWidth(), small.getHeight(), landscape ? 4 : 3, landscape ? 3 : 4);
+        if (small != bitmap) {
+            small.recycle();
+        }
+        bitmap.recycle();
+        return hash;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return value != null ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.nekkochan.onyxchat.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.database.StandaloneDatabaseProvider;
+import com.google.android.exoplayer2.source.DefaultMediaSourceFactory;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultDataSource;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.nekkochan.onyxchat.util.UserSessionManager;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Players for inline and full-screen video that stream byte ranges through a shared disk cache.
+ * <p>
+ * Uploaded videos are fast-start MP4s and the media route serves HTTP ranges, so the player
+ * only fetches the moov atom and the first few seconds before the first frame. Fetched ranges
+ * stay in the cache, so scrolling back to a video or opening it full screen plays from disk.
+ */
+public final class MediaStreamCache {
+    private static final String TAG = "MediaStreamCache";
+
+    private static final long MAX_CACHE_BYTES = 256L * 1024 * 1024;
+    // Start playing after half a second of media instead of ExoPlayer's default 2.5 s
+    private static final int BUFFER_FOR_PLAYBACK_MS = 500;
+
+    private static SimpleCache cache;
+
+    private MediaStreamCache() {
+    }
+
+    /**
+     * The shared cache; SimpleCache allows a single instance per directory
+     */
+    public static synchronized Cache getCache(Context context) {
+        if (cache == null) {
+            Context appContext = context.getApplicationContext();
+            cache = new SimpleCache(new File(appContext.getCacheDir(), "media_stream"),
+                    new LeastRecentlyUsedCacheEvictor(MAX_CACHE_BYTES),
+                    new StandaloneDatabaseProvider(appContext));
+        }
+        return cache;
+    }
+
+    /**
+     * Data source that reads through the cache and fetches missing ranges with the session's
+     * auth header. Local files pass through unchanged.
+     */
+    public static DataSource.Factory dataSourceFactory(Context context) {
+        Map<String, String> headers = new HashMap<>();
+        String authToken = new UserSessionManager(context).getAuthToken();
+        if (authToken != null && !authToken.isEmpty()) {
+            headers.put("Authorization", "Bearer " + authToken);
+        } else {
+            Log.w(TAG, "No auth token available for media streaming");
+        }
+        DefaultHttpDataSource.Factory httpDataSourceFactory = new DefaultHttpDataSource.Factory()
+                .setUserAgent("OnyxChat-App")
+                .setAllowCrossProtocolRedirects(true)
+                .setDefaultRequestProperties(headers);
+        return new CacheDataSource.Factory()
+                .setCache(getCache(context))
+                .setUpstreamDataSourceFactory(new DefaultDataSource.Factory(context, httpDataSourceFactory))
+                .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+    }
+
+    /**
+     * A player that streams through the cache and starts as soon as half a second is buffered
+     */
+    public static ExoPlayer buildPlayer(Context context) {
+        DefaultLoadControl loadControl = new DefaultLoadControl.Builder()
+                .setBufferDurationsMs(
+                        DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
+                        DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
+                        BUFFER_FOR_PLAYBACK_MS,
+                        DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS)
+                .build();
+        return new ExoPlayer.Builder(context)
+                .setMediaSourceFactory(new DefaultMediaSourceFactory(dataSourceFactory(context)))
+                .setLoadControl(loadControl)
+                .build();
+    }
+
+    /**
+     * Media item cached under its URL without the auth token, so a refreshed token still hits
+     * the ranges cached before it
+     */
+    public static MediaItem mediaItem(String url) {
+        return new MediaItem.Builder()
+                .setUri(url)
+                .setCustomCacheKey(cacheKey(url))
+                .build();
+    }
+
+    /**
+     * The URL with any {@code token} query parameter removed
+     */
+    static String cacheKey(String url) {
+        int query = url.indexOf('?');
+        if (query < 0) {
+            return url;
+        }
+        StringBuilder key = new StringBuilder(url.substring(0, query));
+        char separator = '?';
+        for (String parameter : url.substring(query + 1).split("&")) {
+            if (parameter.isEmpty() || parameter.startsWith("token=")) {
+                continue;
+            }
+            key.append(separator).append(parameter);
+            separator = '&';
+        }
+        return key.toString();
+    }
+}
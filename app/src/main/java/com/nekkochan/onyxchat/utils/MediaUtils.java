@@ -5,18 +5,16 @@ import android.net.Uri;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.arthenica.ffmpegkit.FFmpegKit;
 import com.arthenica.ffmpegkit.FFmpegKitConfig;
-import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.FFmpegKit;
 import com.arthenica.ffmpegkit.FFprobeKit;
-import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.MediaInformation;
 import com.arthenica.ffmpegkit.SessionState;
+import com.arthenica.ffmpegkit.StreamInformation;
+import com.nekkochan.onyxchat.service.MediaJobWorker;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.provider.MediaStore;
@@ -32,6 +30,8 @@ import java.util.UUID;
 public class MediaUtils {
     private static final String TAG = "MediaUtils";
 
+    private static VideoCompressionPlanner.Encoder videoEncoder;
+
     /**
      * Compress video file for chat sharing
      *
@@ -40,44 +40,15 @@ public class MediaUtils {
      * @param callback      Callback to handle the result
      */
     public static void compressVideo(Context context, Uri inputUri, MediaProcessCallback callback) {
-        try {
-            // Get real file path
-            String inputPath = FileUtils.getPath(context, inputUri);
-            if (inputPath == null) {
-                callback.onError("Could not resolve file path from URI");
-                return;
+        // Same planned encode as attachments picked in the chat screen
+        FileUtils.compressVideo(context, inputUri).getResult().whenComplete((outputPath, error) -> {
+            if (error == null) {
+                callback.onSuccess(Uri.fromFile(new File(outputPath)));
+            } else {
+                Log.e(TAG, "Error compressing video", error);
+                callback.onError("Video compression failed: " + error.getMessage());
             }
-
-            // Create output file
-            File outputDir = context.getCacheDir();
-            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-            File outputFile = new File(outputDir, "VID_" + timeStamp + ".mp4");
-            String outputPath = outputFile.getAbsolutePath();
-
-            // FFmpeg command for video compression
-            String[] command = {
-                "-i", inputPath,
-                "-c:v", "libx264",
-                "-crf", "28",
-                "-preset", "medium",
-                "-c:a", "aac",
-                "-b:a", "128k",
-                "-vf", "scale=720:-2",
-                "-movflags", "+faststart",
-                outputPath
-            };
-
-            executeFFmpegCommand(command, session -> {
-                if (ReturnCode.isSuccess(session.getReturnCode())) {
-                    callback.onSuccess(Uri.fromFile(outputFile));
-                } else {
-                    callback.onError("Video compression failed: " + session.getReturnCode());
-                }
-            });
-        } catch (Exception e) {
-            Log.e(TAG, "Error compressing video", e);
-            callback.onError("Error compressing video: " + e.getMessage());
-        }
+        });
     }
 
     /**
@@ -96,27 +67,13 @@ public class MediaUtils {
                 return;
             }
 
-            // Create output file
-            File outputDir = context.getCacheDir();
-            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-            File outputFile = new File(outputDir, "AUD_" + timeStamp + ".m4a");
-            String outputPath = outputFile.getAbsolutePath();
-
             // FFmpeg command for audio conversion
-            String[] command = {
+            executeFFmpegCommand(context, "audio", inputPath, ".m4a", outputPath -> new String[] {
                 "-i", inputPath,
                 "-c:a", "aac",
                 "-b:a", "128k",
                 outputPath
-            };
-
-            executeFFmpegCommand(command, session -> {
-                if (ReturnCode.isSuccess(session.getReturnCode())) {
-                    callback.onSuccess(Uri.fromFile(outputFile));
-                } else {
-                    callback.onError("Audio conversion failed: " + session.getReturnCode());
-                }
-            });
+            }, "Audio conversion failed", callback);
         } catch (Exception e) {
             Log.e(TAG, "Error converting audio", e);
             callback.onError("Error converting audio: " + e.getMessage());
@@ -131,39 +88,14 @@ public class MediaUtils {
      * @param callback      Callback to handle the result
      */
     public static void compressImage(Context context, Uri inputUri, MediaProcessCallback callback) {
-        try {
-            // Get real file path
-            String inputPath = FileUtils.getPath(context, inputUri);
-            if (inputPath == null) {
-                callback.onError("Could not resolve file path from URI");
-                return;
+        FileUtils.compressImage(context, inputUri).whenComplete((outputPath, error) -> {
+            if (error == null) {
+                callback.onSuccess(Uri.fromFile(new File(outputPath)));
+            } else {
+                Log.e(TAG, "Error compressing image", error);
+                callback.onError("Image compression failed: " + error.getMessage());
             }
-
-            // Create output file
-            File outputDir = context.getCacheDir();
-            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-            File outputFile = new File(outputDir, "IMG_" + timeStamp + ".jpg");
-            String outputPath = outputFile.getAbsolutePath();
-
-            // FFmpeg command for image compression
-            String[] command = {
-                "-i", inputPath,
-                "-vf", "scale='min(1280,iw):-1'",
-                "-quality", "85",
-                outputPath
-            };
-
-            executeFFmpegCommand(command, session -> {
-                if (ReturnCode.isSuccess(session.getReturnCode())) {
-                    callback.onSuccess(Uri.fromFile(outputFile));
-                } else {
-                    callback.onError("Image compression failed: " + session.getReturnCode());
-                }
-            });
-        } catch (Exception e) {
-            Log.e(TAG, "Error compressing image", e);
-            callback.onError("Error compressing image: " + e.getMessage());
-        }
+        });
     }
 
     /**
@@ -182,26 +114,13 @@ public class MediaUtils {
                 return;
             }
 
-            // Create output file
-            File outputDir = context.getCacheDir();
-            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-            File outputFile = new File(outputDir, "THUMB_" + timeStamp + ".jpg");
-            String outputPath = outputFile.getAbsolutePath();
-
-            // FFmpeg command to extract a frame at 1 second mark
-            String[] command = {
-                "-i", videoPath,
-                "-ss", "00:00:01.000",
-                "-vframes", "1",
-                "-vf", "scale=320:-1",
-                outputPath
-            };
-
-            executeFFmpegCommand(command, session -> {
-                if (ReturnCode.isSuccess(session.getReturnCode())) {
-                    callback.onSuccess(Uri.fromFile(outputFile));
+            // Frame one second in, extracted once per video and then served from the poster cache
+            PosterFrameCache.createAsync(context, videoPath).whenComplete((poster, error) -> {
+                if (error == null) {
+                    callback.onSuccess(Uri.fromFile(new File(poster.getLocation())));
                 } else {
-                    callback.onError("Thumbnail creation failed: " + session.getReturnCode());
+                    Log.e(TAG, "Error creating thumbnail", error);
+                    callback.onError("Thumbnail creation failed: " + error.getMessage());
                 }
             });
         } catch (Exception e) {
@@ -226,28 +145,14 @@ public class MediaUtils {
                 return;
             }
 
-            // Create output file
-            File outputDir = context.getCacheDir();
-            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-            File outputFile = new File(outputDir, "AUDIO_" + timeStamp + ".m4a");
-            String outputPath = outputFile.getAbsolutePath();
-
             // FFmpeg command to extract audio
-            String[] command = {
+            executeFFmpegCommand(context, "audio", videoPath, ".m4a", outputPath -> new String[] {
                 "-i", videoPath,
                 "-vn",
                 "-c:a", "aac",
                 "-b:a", "128k",
                 outputPath
-            };
-
-            executeFFmpegCommand(command, session -> {
-                if (ReturnCode.isSuccess(session.getReturnCode())) {
-                    callback.onSuccess(Uri.fromFile(outputFile));
-                } else {
-                    callback.onError("Audio extraction failed: " + session.getReturnCode());
-                }
-            });
+            }, "Audio extraction failed", callback);
         } catch (Exception e) {
             Log.e(TAG, "Error extracting audio", e);
             callback.onError("Error extracting audio: " + e.getMessage());
@@ -276,37 +181,115 @@ public class MediaUtils {
     }
 
     /**
-     * Execute an FFmpeg command with the given arguments
+     * Probe the streams of a video for compression planning
      *
-     * @param command    FFmpeg command arguments
-     * @param callback   Callback for when the command completes
+     * @param path Local file path
+     * @return What could be read from the file; unknown values are left at 0 or null
      */
-    private static void executeFFmpegCommand(String[] command, FFmpegSessionCallback callback) {
-        // Convert the string array to a single command string
-        StringBuilder commandBuilder = new StringBuilder();
-        for (String part : command) {
-            commandBuilder.append(part).append(" ");
+    public static VideoCompressionPlanner.Source probeVideo(String path) {
+        long durationMs = 0;
+        int width = 0;
+        int height = 0;
+        double fps = 0;
+        long videoBitrate = 0;
+        long audioBitrate = 0;
+        String videoCodec = null;
+        String audioCodec = null;
+        try {
+            MediaInformation information = FFprobeKit.getMediaInformation(path).getMediaInformation();
+            if (information != null) {
+                durationMs = (long) (parseDouble(information.getDuration()) * 1000);
+                for (StreamInformation stream : information.getStreams()) {
+                    if ("video".equals(stream.getType()) && videoCodec == null) {
+                        videoCodec = stream.getCodec();
+                        width = stream.getWidth() != null ? stream.getWidth().intValue() : 0;
+                        height = stream.getHeight() != null ? stream.getHeight().intValue() : 0;
+                        fps = parseFrameRate(stream.getAverageFrameRate());
+                        videoBitrate = (long) parseDouble(stream.getBitrate());
+                    } else if ("audio".equals(stream.getType()) && audioCodec == null) {
+                        audioCodec = stream.getCodec();
+                        audioBitrate = (long) parseDouble(stream.getBitrate());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error probing video " + path, e);
         }
-        String commandString = commandBuilder.toString().trim();
-        
-        FFmpegSession session = FFmpegKit.executeAsync(commandString, 
-            session1 -> {
-                if (callback != null) {
-                    callback.onComplete(session1);
+        return new VideoCompressionPlanner.Source(durationMs, width, height, fps, videoBitrate, audioBitrate,
+                videoCodec, audioCodec, new File(path).length());
+    }
+
+    /**
+     * The best video encoder compiled into the bundled FFmpeg; checked once per process
+     */
+    public static synchronized VideoCompressionPlanner.Encoder getVideoEncoder() {
+        if (videoEncoder == null) {
+            videoEncoder = VideoCompressionPlanner.Encoder.MPEG4;
+            try {
+                String encoders = FFmpegKit.execute("-hide_banner -encoders").getOutput();
+                for (VideoCompressionPlanner.Encoder encoder : VideoCompressionPlanner.Encoder.values()) {
+                    if (encoders != null && encoders.contains(" " + encoder.getCodec() + " ")) {
+                        videoEncoder = encoder;
+                        break;
+                    }
                 }
-            },
-            log -> Log.d(TAG, log.getMessage()),
-            statistics -> {
-                // Process statistics if needed
-                // Log.d(TAG, "Progress: " + statistics.getTime());
-            });
+            } catch (Exception e) {
+                Log.e(TAG, "Error listing FFmpeg encoders", e);
+            }
+        }
+        return videoEncoder;
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return value != null ? Double.parseDouble(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Frame rates are reported as fractions such as "30000/1001"
+    private static double parseFrameRate(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int slash = value.indexOf('/');
+        if (slash < 0) {
+            return parseDouble(value);
+        }
+        double denominator = parseDouble(value.substring(slash + 1));
+        return denominator > 0 ? parseDouble(value.substring(0, slash)) / denominator : 0;
     }
 
     /**
-     * Callback for FFmpeg session completion
+     * Queue an FFmpeg command on the shared media job queue
+     *
+     * @param context      App context
+     * @param type         Media type of the job
+     * @param inputPath    Source file path
+     * @param extension    Output file extension with dot
+     * @param arguments    Builds the FFmpeg arguments for an output path
+     * @param errorMessage Message reported when the command fails
+     * @param callback     Callback for when the job completes
      */
-    private interface FFmpegSessionCallback {
-        void onComplete(FFmpegSession session);
+    private static void executeFFmpegCommand(Context context, String type, String inputPath, String extension,
+                                             MediaJobWorker.CommandBuilder arguments, String errorMessage,
+                                             MediaProcessCallback callback) {
+        // Quote each argument so paths with spaces survive FFmpegKit's argument parsing
+        MediaJobWorker.submit(context, type, inputPath, extension, outputPath -> {
+            StringBuilder commandBuilder = new StringBuilder();
+            for (String part : arguments.build(outputPath)) {
+                commandBuilder.append('"').append(part).append("\" ");
+            }
+            return new String[] {"-y " + commandBuilder.toString().trim()};
+        }).getResult().whenComplete((outputPath, error) -> {
+            if (error == null) {
+                callback.onSuccess(Uri.fromFile(new File(outputPath)));
+            } else {
+                Log.e(TAG, errorMessage, error);
+                callback.onError(errorMessage + ": " + error.getMessage());
+            }
+        });
     }
 
     /**
@@ -0,0 +1,109 @@
+package com.nekkochan.onyxchat.utils;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One resolution of an uploaded image. Photos are sent as several variants so each screen
+ * can download the smallest one that still looks sharp at the size it is shown.
+ */
+public final class MediaVariant implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String KEY_VARIANTS = "variants";
+    public static final String KEY_NAME = "name";
+    public static final String KEY_URL = "url";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+
+    public static final String THUMBNAIL = "thumbnail";
+    public static final String SCREEN = "screen";
+    public static final String ORIGINAL = "original";
+
+    private final String name;
+    private final String location;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param name     Variant name, e.g. {@link #THUMBNAIL}
+     * @param location Server URL, or the local path before upload
+     * @param width    Width in pixels
+     * @param height   Height in pixels
+     */
+    public MediaVariant(String name, String location, int width, int height) {
+        this.name = name;
+        this.location = location;
+        this.width = width;
+        this.height = height;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The same variant at another location, e.g. its URL once uploaded
+     */
+    public MediaVariant withLocation(String location) {
+        return new MediaVariant(name, location, width, height);
+    }
+
+    /**
+     * Smallest variant that covers a view of the given pixel size when center-cropped into it,
+     * or the largest variant if none does
+     *
+     * @return The variant, or null if there are none
+     */
+    public static MediaVariant choose(List<MediaVariant> variants, int targetWidth, int targetHeight) {
+        MediaVariant best = null;
+        for (MediaVariant variant : variants) {
+            if (variant.width >= targetWidth && variant.height >= targetHeight
+                    && (best == null || pixels(variant) < pixels(best))) {
+                best = variant;
+            }
+        }
+        return best != null ? best : largest(variants);
+    }
+
+    /**
+     * @return The variant with the most pixels, or null if there are none
+     */
+    public static MediaVariant largest(List<MediaVariant> variants) {
+        MediaVariant largest = null;
+        for (MediaVariant variant : variants) {
+            if (largest == null || pixels(variant) > pixels(largest)) {
+                largest = variant;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @return The variant with the given name, or null if there is none
+     */
+    public static MediaVariant find(List<MediaVariant> variants, String name) {
+        for (MediaVariant variant : variants) {
+            if (variant.name.equals(name)) {
+                return variant;
+            }
+        }
+        return null;
+    }
+
+    private static long pixels(MediaVariant variant) {
+        return (long) variant.width * variant.height;
+    }
+}
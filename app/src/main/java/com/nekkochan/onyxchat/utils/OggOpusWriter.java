@@ -0,0 +1,244 @@
+package com.nekkochan.onyxchat.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs Opus packets into an Ogg stream (RFC 7845).
+ * <p>
+ * Pages are written every few packets rather than once per packet, which keeps the container
+ * overhead low while still handing out a page about every 200 ms for upload.
+ */
+final class OggOpusWriter implements AudioFrameWriter {
+    public static final String MIME_TYPE = "audio/ogg";
+
+    // Packets per page; 10 packets of 20 ms is a page every 200 ms
+    private static final int PACKETS_PER_PAGE = 10;
+    private static final int MAX_SEGMENTS = 255;
+    private static final int OPUS_HEAD_LENGTH = 19;
+    private static final int DEFAULT_PRE_SKIP = 312;
+    private static final byte[] OPUS_HEAD = "OpusHead".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] CRC_TABLE = crcTable();
+
+    private final OutputStream out;
+    private final int channels;
+    private final int inputSampleRate;
+    private final int serial;
+    private final List<byte[]> packets = new ArrayList<>();
+    private int sequence = 0;
+    private long granule = 0;
+    private boolean headersWritten = false;
+
+    /**
+     * @param out             Destination of the Ogg stream
+     * @param channels        Channel count, 1 or 2
+     * @param inputSampleRate Sample rate of the recording, stored in the header for information
+     * @param serial          Stream serial number
+     */
+    OggOpusWriter(OutputStream out, int channels, int inputSampleRate, int serial) {
+        this.out = out;
+        this.channels = channels;
+        this.inputSampleRate = inputSampleRate;
+        this.serial = serial;
+    }
+
+    @Override
+    public void writeConfig(byte[] config) throws IOException {
+        if (headersWritten) {
+            return;
+        }
+        // Android wraps the identification header in its own markers; use it when it is there
+        int start = indexOf(config, OPUS_HEAD);
+        byte[] head = start >= 0 && config.length - start >= OPUS_HEAD_LENGTH
+                ? Arrays.copyOfRange(config, start, start + OPUS_HEAD_LENGTH)
+                : defaultHead();
+        writeHeaders(head);
+    }
+
+    @Override
+    public void writeFrame(byte[] frame, long presentationTimeUs) throws IOException {
+        if (!headersWritten) {
+            writeHeaders(defaultHead());
+        }
+        if (segments(packets) + frame.length / 255 + 1 > MAX_SEGMENTS) {
+            writePage(0);
+        }
+        packets.add(frame);
+        granule += packetSamples(frame);
+        if (packets.size() >= PACKETS_PER_PAGE) {
+            writePage(0);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (!headersWritten) {
+            writeHeaders(defaultHead());
+        }
+        writePage(0x04);
+        out.flush();
+    }
+
+    /**
+     * Duration of an Opus packet in 48 kHz samples, from its TOC byte (RFC 6716 section 3.1)
+     */
+    static int packetSamples(byte[] packet) {
+        if (packet.length == 0) {
+            return 0;
+        }
+        int config = (packet[0] & 0xFF) >> 3;
+        // Frame size in units of 2.5 ms
+        int frameUnits;
+        if (config < 12) {
+            frameUnits = new int[] {4, 8, 16, 24}[config % 4];
+        } else if (config < 16) {
+            frameUnits = new int[] {4, 8}[config % 2];
+        } else {
+            frameUnits = new int[] {1, 2, 4, 8}[config % 4];
+        }
+        int frames;
+        switch (packet[0] & 0x03) {
+            case 0:
+                frames = 1;
+                break;
+            case 1:
+            case 2:
+                frames = 2;
+                break;
+            default:
+                frames = packet.length > 1 ? packet[1] & 0x3F : 0;
+                break;
+        }
+        return frameUnits * 120 * frames;
+    }
+
+    private void writeHeaders(byte[] head) throws IOException {
+        packets.add(head);
+        writePage(0x02);
+
+        byte[] vendor = "OnyxChat".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream tags = new ByteArrayOutputStream();
+        tags.write("OpusTags".getBytes(StandardCharsets.US_ASCII));
+        writeInt(tags, vendor.length);
+        tags.write(vendor);
+        writeInt(tags, 0);
+        packets.add(tags.toByteArray());
+        writePage(0);
+        headersWritten = true;
+    }
+
+    private byte[] defaultHead() {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        head.write(OPUS_HEAD, 0, OPUS_HEAD.length);
+        head.write(1);
+        head.write(channels);
+        head.write(DEFAULT_PRE_SKIP & 0xFF);
+        head.write(DEFAULT_PRE_SKIP >> 8);
+        writeInt(head, inputSampleRate);
+        // Output gain and channel mapping family 0
+        head.write(0);
+        head.write(0);
+        head.write(0);
+        return head.toByteArray();
+    }
+
+    /**
+     * Write the pending packets as one page. An empty page is still written when it carries
+     * the end-of-stream flag.
+     */
+    private void writePage(int headerType) throws IOException {
+        if (packets.isEmpty() && headerType == 0) {
+            return;
+        }
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        page.write('O');
+        page.write('g');
+        page.write('g');
+        page.write('S');
+        page.write(0);
+        page.write(headerType);
+        // Header pages carry granule position 0
+        long pageGranule = headerType == 0x02 || !headersWritten ? 0 : granule;
+        for (int i = 0; i < 8; i++) {
+            page.write((int) (pageGranule >> (8 * i)));
+        }
+        writeInt(page, serial);
+        writeInt(page, sequence++);
+        writeInt(page, 0);
+        page.write(segments(packets));
+        for (byte[] packet : packets) {
+            for (int remaining = packet.length; ; remaining -= 255) {
+                if (remaining < 255) {
+                    page.write(remaining);
+                    break;
+                }
+                page.write(255);
+            }
+        }
+        for (byte[] packet : packets) {
+            page.write(packet);
+        }
+        packets.clear();
+
+        byte[] bytes = page.toByteArray();
+        int crc = crc(bytes);
+        bytes[22] = (byte) crc;
+        bytes[23] = (byte) (crc >> 8);
+        bytes[24] = (byte) (crc >> 16);
+        bytes[25] = (byte) (crc >> 24);
+        out.write(bytes);
+    }
+
+    private static int segments(List<byte[]> packets) {
+        int segments = 0;
+        for (byte[] packet : packets) {
+            segments += packet.length / 255 + 1;
+        }
+        return segments;
+    }
+
+    static int crc(byte[] bytes) {
+        int crc = 0;
+        for (byte b : bytes) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ (b & 0xFF)) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int[] crcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int r = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                r = (r & 0x80000000) != 0 ? (r << 1) ^ 0x04C11DB7 : r << 1;
+            }
+            table[i] = r;
+        }
+        return table;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,297 @@
+package com.nekkochan.onyxchat.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Poster frames of video messages, stored on disk under the SHA-256 of the video.
+ * <p>
+ * The sender extracts the frame once, uploads it next to the video and names the video's hash
+ * in the message, so its own bubble and the receiver's both find the poster without decoding
+ * anything. Messages without an uploaded poster get theirs extracted from the stream once, in
+ * the background. After that every bind is a JPEG load from the cache.
+ */
+public final class PosterFrameCache {
+    private static final String TAG = "PosterFrameCache";
+
+    public static final String KEY_POSTER = "poster";
+    public static final String KEY_CONTENT_HASH = "contentHash";
+
+    // Longest side of a poster; the bubble is at most 300 dp tall
+    private static final int POSTER_SIZE = 640;
+    private static final int JPEG_QUALITY = 80;
+    private static final long FRAME_TIME_US = 1_000_000;
+    private static final long MAX_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final int TIMEOUT_MS = 15_000;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2);
+    // One job per poster, however many holders ask for it while it runs
+    private static final Map<String, CompletableFuture<File>> PENDING = new ConcurrentHashMap<>();
+    // Posters known to be on disk, so a bind can use them without touching the file system
+    private static final Set<String> CACHED = ConcurrentHashMap.newKeySet();
+
+    private PosterFrameCache() {
+    }
+
+    /**
+     * Poster of a video being sent: the video's hash and where the poster image is
+     */
+    public static final class Poster {
+        private final String contentHash;
+        private final String location;
+
+        Poster(String contentHash, String location) {
+            this.contentHash = contentHash;
+            this.location = location;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        /**
+         * @return Local path of the poster before upload, its server URL after, or null if the
+         * upload failed
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        public Poster withLocation(String location) {
+            return new Poster(contentHash, location);
+        }
+
+        /**
+         * Add the poster fields to a media message
+         */
+        public void writeTo(JSONObject json) throws JSONException {
+            json.put(KEY_CONTENT_HASH, contentHash);
+            if (location != null) {
+                json.put(KEY_POSTER, location);
+            }
+        }
+    }
+
+    /**
+     * Extract and cache the poster of a local video off the calling thread
+     *
+     * @param path Local video file path
+     * @return The poster, located at its cached file
+     */
+    public static CompletableFuture<Poster> createAsync(Context context, String path) {
+        Context appContext = context.getApplicationContext();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return create(appContext, path);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    private static Poster create(Context context, String path) throws IOException {
+        String hash = CacheUtils.sha256(new File(path));
+        File poster = posterFile(context, hash);
+        if (poster.exists()) {
+            poster.setLastModified(System.currentTimeMillis());
+        } else {
+            writeFrame(path, null, poster);
+            trim(context);
+        }
+        CACHED.add(hash);
+        return new Poster(hash, poster.getAbsolutePath());
+    }
+
+    /**
+     * Cache key of a message's poster: the video's hash when the sender included it, otherwise
+     * a hash of its URL without the auth token
+     */
+    public static String key(String contentHash, String videoUrl) {
+        // The hash names a file, so anything else a message carries is not used as one
+        if (contentHash != null && contentHash.matches("[0-9a-f]{64}")) {
+            return contentHash;
+        }
+        return CacheUtils.sha256(MediaStreamCache.cacheKey(videoUrl));
+    }
+
+    /**
+     * @return The cached poster, or null if it is not known to be cached yet
+     */
+    public static File getCachedFile(Context context, String key) {
+        return CACHED.contains(key) ? posterFile(context, key) : null;
+    }
+
+    /**
+     * Get a poster into the cache off the calling thread. Posters already on disk are returned
+     * as they are; otherwise the uploaded poster is downloaded, or, when there is none, a frame
+     * is extracted from the video.
+     *
+     * @param posterUrl Authenticated URL of the uploaded poster, or null
+     * @param videoUrl  Authenticated URL of the video
+     * @return The cached poster file
+     */
+    public static CompletableFuture<File> getAsync(Context context, String key, String posterUrl, String videoUrl) {
+        Context appContext = context.getApplicationContext();
+        CompletableFuture<File> future = PENDING.computeIfAbsent(key, k -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetch(appContext, k, posterUrl, videoUrl);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR));
+        future.whenComplete((file, error) -> {
+            PENDING.remove(key, future);
+            if (error == null) {
+                CACHED.add(key);
+            }
+        });
+        return future;
+    }
+
+    private static File fetch(Context context, String key, String posterUrl, String videoUrl) throws IOException {
+        File poster = posterFile(context, key);
+        if (poster.exists()) {
+            poster.setLastModified(System.currentTimeMillis());
+            return poster;
+        }
+        boolean downloaded = false;
+        if (posterUrl != null) {
+            try {
+                download(posterUrl, poster);
+                downloaded = true;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not download poster, extracting it from the video instead", e);
+            }
+        }
+        if (!downloaded) {
+            writeFrame(null, videoUrl, poster);
+        }
+        trim(context);
+        return poster;
+    }
+
+    private static File posterFile(Context context, String key) {
+        return new File(directory(context), key + ".jpg");
+    }
+
+    private static File directory(Context context) {
+        return new File(context.getCacheDir(), "poster_frames");
+    }
+
+    private static File tempFile(File out) throws IOException {
+        File directory = out.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create poster cache directory");
+        }
+        return new File(out.getPath() + ".tmp");
+    }
+
+    /**
+     * Extract a frame one second in, scaled down, and write it as a JPEG
+     *
+     * @param path Local video path, or null to read from {@code url}
+     * @param url  Video URL when {@code path} is null
+     */
+    private static void writeFrame(String path, String url, File out) throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        Bitmap frame;
+        try {
+            if (path != null) {
+                retriever.setDataSource(path);
+            } else if (url.startsWith("file://")) {
+                retriever.setDataSource(url.substring("file://".length()));
+            } else {
+                retriever.setDataSource(url, new HashMap<>());
+            }
+            frame = retriever.getScaledFrameAtTime(FRAME_TIME_US,
+                    MediaMetadataRetriever.OPTION_CLOSEST_SYNC, POSTER_SIZE, POSTER_SIZE);
+            if (frame == null) {
+                // Videos shorter than a second
+                frame = retriever.getScaledFrameAtTime(0,
+                        MediaMetadataRetriever.OPTION_CLOSEST_SYNC, POSTER_SIZE, POSTER_SIZE);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Could not read video frame", e);
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error releasing retriever", e);
+            }
+        }
+        if (frame == null) {
+            throw new IOException("Video has no frame to use as poster");
+        }
+        File temp = tempFile(out);
+        try (OutputStream stream = new FileOutputStream(temp)) {
+            frame.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, stream);
+        } finally {
+            frame.recycle();
+        }
+        commit(temp, out);
+    }
+
+    private static void download(String url, File out) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        File temp = tempFile(out);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Poster request failed with HTTP " + connection.getResponseCode());
+            }
+            try (InputStream in = connection.getInputStream();
+                 OutputStream stream = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    stream.write(buffer, 0, read);
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+        commit(temp, out);
+    }
+
+    /**
+     * Move a finished poster into place, so readers never see a partly written file
+     */
+    private static void commit(File temp, File out) throws IOException {
+        if (!temp.renameTo(out)) {
+            temp.delete();
+            throw new IOException("Could not move poster into the cache");
+        }
+    }
+
+    /**
+     * Delete the least recently used posters while the cache is over its limit
+     */
+    private static void trim(Context context) {
+        for (File file : CacheUtils.trim(directory(context), ".jpg", MAX_CACHE_BYTES, null)) {
+            String name = file.getName();
+            CACHED.remove(name.substring(0, name.length() - ".jpg".length()));
+        }
+    }
+}
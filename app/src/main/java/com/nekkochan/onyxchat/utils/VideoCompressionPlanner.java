@@ -0,0 +1,303 @@
+package com.nekkochan.onyxchat.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Chooses how to compress a video for sending from what the source actually contains.
+ * <p>
+ * The planner spends a byte budget over the clip's duration: audio first, the rest on video.
+ * It then takes the largest resolution whose bits per pixel stay above what the encoder needs
+ * to look acceptable, caps the bitrate where extra bits stop paying off (so short clips are not
+ * over-compressed), and picks the slowest x264 preset whose estimated encode time still fits the
+ * time budget. A source that is already H.264/AAC within the budget is only remuxed.
+ */
+public final class VideoCompressionPlanner {
+    // Short side of each output resolution, best first
+    private static final int[] SHORT_SIDES = {1080, 720, 540, 480, 360, 240};
+    private static final int MAX_FPS = 30;
+    private static final int DEFAULT_SHORT_SIDE = 720;
+    // Share of the byte budget left after MP4 boxes and muxing overhead
+    private static final double CONTAINER_EFFICIENCY = 0.97;
+    // Below this nothing is watchable, so very long clips overshoot the size budget instead
+    private static final long MIN_VIDEO_BITRATE = 100_000;
+    private static final long DEFAULT_ENCODE_BUDGET_MS = 60_000;
+
+    // Slowest first; x264 is only used when the bundled FFmpeg build has it
+    private static final String[] X264_PRESETS = {"medium", "fast", "faster", "veryfast", "superfast", "ultrafast"};
+    // Pixels per second a mid-range phone encodes with each preset above
+    private static final double[] X264_THROUGHPUT = {8e6, 12e6, 18e6, 28e6, 40e6, 60e6};
+
+    private VideoCompressionPlanner() {
+    }
+
+    /**
+     * Video encoders the planner knows how to drive, in order of preference
+     */
+    public enum Encoder {
+        LIBX264("libx264", 0.04, 0.12, 0),
+        OPENH264("libopenh264", 0.05, 0.14, 25e6),
+        MPEG4("mpeg4", 0.07, 0.20, 45e6);
+
+        final String codec;
+        // Bits per pixel per frame below which the picture breaks up
+        final double minBitsPerPixel;
+        // Bits per pixel per frame above which extra bits are not visible
+        final double maxBitsPerPixel;
+        // Pixels per second on a mid-range phone; 0 when it depends on the preset
+        final double throughput;
+
+        Encoder(String codec, double minBitsPerPixel, double maxBitsPerPixel, double throughput) {
+            this.codec = codec;
+            this.minBitsPerPixel = minBitsPerPixel;
+            this.maxBitsPerPixel = maxBitsPerPixel;
+            this.throughput = throughput;
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+    }
+
+    /**
+     * What the source contains, as far as probing could tell. Unknown values are 0 or null.
+     */
+    public static final class Source {
+        final long durationMs;
+        final int width;
+        final int height;
+        final double fps;
+        final long videoBitrate;
+        final long audioBitrate;
+        final String videoCodec;
+        final String audioCodec;
+        final long sizeBytes;
+
+        public Source(long durationMs, int width, int height, double fps, long videoBitrate, long audioBitrate,
+                      String videoCodec, String audioCodec, long sizeBytes) {
+            this.durationMs = durationMs;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.videoBitrate = videoBitrate;
+            this.audioBitrate = audioBitrate;
+            this.videoCodec = videoCodec;
+            this.audioCodec = audioCodec;
+            this.sizeBytes = sizeBytes;
+        }
+
+        boolean hasAudio() {
+            return audioCodec != null;
+        }
+    }
+
+    /**
+     * Limits a plan has to meet
+     */
+    public static final class Budget {
+        final long maxBytes;
+        final long maxEncodeMs;
+
+        public Budget(long maxBytes, long maxEncodeMs) {
+            this.maxBytes = maxBytes;
+            this.maxEncodeMs = maxEncodeMs;
+        }
+
+        /**
+         * The attachment size limit and a minute of encoding
+         */
+        public static Budget forAttachment(int maxSizeMb) {
+            return new Budget(maxSizeMb * 1024L * 1024L, DEFAULT_ENCODE_BUDGET_MS);
+        }
+    }
+
+    /**
+     * The chosen encoding, with the size and encode time it is expected to produce
+     */
+    public static final class Plan {
+        final boolean remuxOnly;
+        final Encoder encoder;
+        final int shortSide;
+        final int fps;
+        final long videoBitrate;
+        final long audioBitrate;
+        final String preset;
+        final long predictedBytes;
+        final long predictedEncodeMs;
+
+        Plan(boolean remuxOnly, Encoder encoder, int shortSide, int fps, long videoBitrate, long audioBitrate,
+             String preset, long predictedBytes, long predictedEncodeMs) {
+            this.remuxOnly = remuxOnly;
+            this.encoder = encoder;
+            this.shortSide = shortSide;
+            this.fps = fps;
+            this.videoBitrate = videoBitrate;
+            this.audioBitrate = audioBitrate;
+            this.preset = preset;
+            this.predictedBytes = predictedBytes;
+            this.predictedEncodeMs = predictedEncodeMs;
+        }
+
+        public boolean isRemuxOnly() {
+            return remuxOnly;
+        }
+
+        public long getPredictedBytes() {
+            return predictedBytes;
+        }
+
+        public long getPredictedEncodeMs() {
+            return predictedEncodeMs;
+        }
+
+        /**
+         * FFmpeg commands for this plan, best first, each a fallback for the one before
+         *
+         * @param inputPath  Source file path
+         * @param outputPath MP4 output path
+         */
+        public String[] commands(String inputPath, String outputPath) {
+            String input = "-i \"" + inputPath + "\" ";
+            String output = " -movflags +faststart -y \"" + outputPath + "\"";
+            String remux = input + "-map 0:v:0 -map 0:a:0? -c copy" + output;
+            if (remuxOnly) {
+                return new String[] {remux};
+            }
+
+            List<String> commands = new ArrayList<>();
+            commands.add(input + videoArguments(encoder) + audioArguments() + output);
+            if (encoder != Encoder.MPEG4) {
+                commands.add(input + videoArguments(Encoder.MPEG4) + audioArguments() + output);
+            }
+            // Last resort: send the original streams unchanged
+            commands.add(remux);
+            return commands.toArray(new String[0]);
+        }
+
+        private String videoArguments(Encoder codec) {
+            // Scales the short side whatever the orientation, after FFmpeg applies the rotation
+            String arguments = String.format(Locale.US,
+                    "-vf \"scale=w='if(gt(iw,ih),-2,%1$d)':h='if(gt(iw,ih),%1$d,-2)'\" -r %2$d " +
+                    "-c:v %3$s -b:v %4$d -maxrate %5$d -bufsize %6$d -pix_fmt yuv420p",
+                    shortSide, fps, codec.codec, videoBitrate, videoBitrate * 3 / 2, videoBitrate * 2);
+            if (codec == Encoder.LIBX264) {
+                arguments += " -preset " + preset;
+            }
+            return arguments;
+        }
+
+        private String audioArguments() {
+            return audioBitrate > 0 ? " -c:a aac -b:a " + audioBitrate : " -an";
+        }
+
+        @Override
+        public String toString() {
+            if (remuxOnly) {
+                return "remux, predicted " + predictedBytes + " bytes";
+            }
+            return String.format(Locale.US, "%s %dp%d %dk+%dk%s, predicted %d bytes in %d ms",
+                    encoder.codec, shortSide, fps, videoBitrate / 1000, audioBitrate / 1000,
+                    preset != null ? " " + preset : "", predictedBytes, predictedEncodeMs);
+        }
+    }
+
+    /**
+     * Plan the compression of a source within a budget
+     *
+     * @param source  Probed source
+     * @param budget  Size and time limits
+     * @param encoder Best video encoder available in this FFmpeg build
+     * @return The plan
+     */
+    public static Plan plan(Source source, Budget budget, Encoder encoder) {
+        int sourceShortSide = Math.min(source.width, source.height);
+        if (fitsAsIs(source, budget)) {
+            return new Plan(true, null, sourceShortSide, 0, 0, 0, null, source.sizeBytes, 0);
+        }
+
+        double durationSeconds = Math.max(1.0, source.durationMs / 1000.0);
+        int fps = (int) Math.round(source.fps > 0 ? Math.min(source.fps, MAX_FPS) : MAX_FPS);
+        long totalBitrate = (long) (budget.maxBytes * 8 * CONTAINER_EFFICIENCY / durationSeconds);
+        long audioBitrate = audioBitrate(source, totalBitrate);
+        long videoBudget = Math.max(MIN_VIDEO_BITRATE, totalBitrate - audioBitrate);
+
+        if (sourceShortSide <= 0) {
+            sourceShortSide = DEFAULT_SHORT_SIDE;
+        }
+        // Keep the aspect ratio for the pixel count; the orientation does not matter here
+        double aspect = source.width > 0 && source.height > 0
+                ? (double) Math.max(source.width, source.height) / sourceShortSide : 16.0 / 9.0;
+
+        List<Integer> shortSides = new ArrayList<>();
+        for (int side : SHORT_SIDES) {
+            if (side <= sourceShortSide) {
+                shortSides.add(side);
+            }
+        }
+        if (shortSides.isEmpty()) {
+            shortSides.add(sourceShortSide);
+        }
+
+        for (int i = 0; i < shortSides.size(); i++) {
+            boolean last = i == shortSides.size() - 1;
+            int shortSide = shortSides.get(i);
+            double pixelsPerSecond = shortSide * (shortSide * aspect) * fps;
+
+            long videoBitrate = Math.min(videoBudget, (long) (pixelsPerSecond * encoder.maxBitsPerPixel));
+            if (source.videoBitrate > 0) {
+                videoBitrate = Math.min(videoBitrate, source.videoBitrate);
+            }
+            if (videoBitrate < pixelsPerSecond * encoder.minBitsPerPixel && !last) {
+                continue;
+            }
+
+            double pixels = pixelsPerSecond * durationSeconds;
+            String preset = null;
+            long encodeMs;
+            if (encoder == Encoder.LIBX264) {
+                int p = 0;
+                while (p < X264_PRESETS.length - 1 && pixels / X264_THROUGHPUT[p] * 1000 > budget.maxEncodeMs) {
+                    p++;
+                }
+                preset = X264_PRESETS[p];
+                encodeMs = (long) (pixels / X264_THROUGHPUT[p] * 1000);
+            } else {
+                encodeMs = (long) (pixels / encoder.throughput * 1000);
+            }
+            if (encodeMs > budget.maxEncodeMs && !last) {
+                continue;
+            }
+
+            long predictedBytes = (long) ((videoBitrate + audioBitrate) * durationSeconds / 8 / CONTAINER_EFFICIENCY);
+            return new Plan(false, encoder, shortSide, fps, videoBitrate, audioBitrate, preset,
+                    predictedBytes, encodeMs);
+        }
+        // Not reached: the last resolution is always accepted
+        throw new IllegalStateException("No resolution accepted");
+    }
+
+    /**
+     * Whether the source can be sent as is, apart from moving the index to the front
+     */
+    static boolean fitsAsIs(Source source, Budget budget) {
+        return source.sizeBytes > 0
+                && source.sizeBytes <= budget.maxBytes
+                && "h264".equals(source.videoCodec)
+                && (!source.hasAudio() || "aac".equals(source.audioCodec))
+                && Math.min(source.width, source.height) <= SHORT_SIDES[0]
+                && source.fps <= MAX_FPS + 1;
+    }
+
+    private static long audioBitrate(Source source, long totalBitrate) {
+        if (!source.hasAudio()) {
+            return 0;
+        }
+        long bitrate = totalBitrate >= 1_000_000 ? 128_000 : totalBitrate >= 400_000 ? 96_000 : 64_000;
+        if (source.audioBitrate > 0) {
+            // Re-encoding cannot add detail the source does not have
+            bitrate = Math.min(bitrate, Math.max(32_000, source.audioBitrate));
+        }
+        return bitrate;
+    }
+}
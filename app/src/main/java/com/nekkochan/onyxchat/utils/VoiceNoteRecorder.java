@@ -0,0 +1,384 @@
+package com.nekkochan.onyxchat.utils;
+
+import android.Manifest;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.RequiresPermission;
+
+import com.nekkochan.onyxchat.network.ApiClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Records a voice message and uploads it while it is being recorded.
+ * <p>
+ * Microphone audio is encoded to Opus in 20 ms frames as it is captured and packed into Ogg
+ * pages, or into ADTS AAC on devices without an Opus encoder (before Android 10). An upload
+ * thread sends the encoded bytes to a server media stream every 250 ms, so when recording
+ * stops only the last fraction of a second is left to upload. The stream URL is known as soon
+ * as recording starts, and the server serves the file to receivers while it is still growing.
+ */
+public final class VoiceNoteRecorder {
+    private static final String TAG = "VoiceNoteRecorder";
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int OPUS_BITRATE = 24_000;
+    private static final int AAC_BITRATE = 32_000;
+    // 20 ms of 16-bit mono PCM
+    private static final int FRAME_BYTES = SAMPLE_RATE / 50 * 2;
+    private static final long CODEC_TIMEOUT_US = 10_000;
+    private static final int UPLOAD_CHUNK_BYTES = 8 * 1024;
+    private static final long UPLOAD_INTERVAL_MS = 250;
+    private static final int MAX_UPLOAD_ATTEMPTS = 4;
+    // Shorter recordings are taken as an accidental tap
+    public static final long MIN_DURATION_MS = 500;
+
+    /**
+     * A finished recording
+     */
+    public static final class Result {
+        public final String url;
+        public final String filename;
+        public final String mimeType;
+        public final long durationMs;
+
+        Result(String url, String filename, String mimeType, long durationMs) {
+            this.url = url;
+            this.filename = filename;
+            this.mimeType = mimeType;
+            this.durationMs = durationMs;
+        }
+    }
+
+    private final ApiClient apiClient;
+    private final AudioRecord audioRecord;
+    private final MediaCodec encoder;
+    private final AudioFrameWriter writer;
+    private final String mimeType;
+
+    private final Object lock = new Object();
+    // Encoded bytes not uploaded yet, guarded by lock
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private boolean encoderDone = false;
+
+    private volatile boolean stopRequested = false;
+    private volatile boolean cancelled = false;
+    private volatile long samplesRecorded = 0;
+    private volatile Exception recordError;
+
+    private final CompletableFuture<ApiClient.MediaStreamResponse.StreamData> stream = new CompletableFuture<>();
+    private final CompletableFuture<Void> uploaded = new CompletableFuture<>();
+
+    private VoiceNoteRecorder(Context context, AudioRecord audioRecord, MediaCodec encoder,
+                              boolean opus) {
+        this.apiClient = ApiClient.getInstance(context);
+        this.audioRecord = audioRecord;
+        this.encoder = encoder;
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (lock) {
+                    pending.write(b, off, len);
+                    if (pending.size() >= UPLOAD_CHUNK_BYTES) {
+                        lock.notifyAll();
+                    }
+                }
+            }
+        };
+        if (opus) {
+            this.writer = new OggOpusWriter(sink, 1, SAMPLE_RATE, (int) System.nanoTime());
+            this.mimeType = OggOpusWriter.MIME_TYPE;
+        } else {
+            this.writer = new AdtsWriter(sink, SAMPLE_RATE, 1);
+            this.mimeType = AdtsWriter.MIME_TYPE;
+        }
+    }
+
+    /**
+     * Start recording and uploading
+     *
+     * @param context The context
+     * @return The running recorder
+     * @throws IOException If the microphone or the encoder cannot be opened
+     */
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    public static VoiceNoteRecorder start(Context context) throws IOException {
+        int bufferSize = Math.max(FRAME_BYTES * 4, AudioRecord.getMinBufferSize(SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT));
+        AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release();
+            throw new IOException("Microphone unavailable");
+        }
+
+        MediaCodec encoder = null;
+        boolean opus = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS);
+                MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, SAMPLE_RATE, 1);
+                format.setInteger(MediaFormat.KEY_BIT_RATE, OPUS_BITRATE);
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                opus = true;
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                Log.w(TAG, "Opus encoder unavailable, recording AAC", e);
+                if (encoder != null) {
+                    encoder.release();
+                    encoder = null;
+                }
+            }
+        }
+        try {
+            if (encoder == null) {
+                encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+                MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, SAMPLE_RATE, 1);
+                format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+                format.setInteger(MediaFormat.KEY_BIT_RATE, AAC_BITRATE);
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            audioRecord.release();
+            if (encoder != null) {
+                encoder.release();
+            }
+            throw new IOException("Audio encoder unavailable", e);
+        }
+
+        VoiceNoteRecorder recorder = new VoiceNoteRecorder(context, audioRecord, encoder, opus);
+        new Thread(recorder::record, "VoiceNoteRecord").start();
+        new Thread(recorder::upload, "VoiceNoteUpload").start();
+        return recorder;
+    }
+
+    /**
+     * @return Length of the recording so far
+     */
+    public long getDurationMs() {
+        return samplesRecorded * 1000 / SAMPLE_RATE;
+    }
+
+    /**
+     * Stop recording. The rest of the upload continues in the background; see
+     * {@link #getUploadFuture()}.
+     *
+     * @return CompletableFuture with the recording, completed as soon as the stream URL is
+     * known, which is normally right away. Fails if recording failed or was too short.
+     */
+    public CompletableFuture<Result> stop() {
+        long durationMs = getDurationMs();
+        if (durationMs < MIN_DURATION_MS) {
+            cancel();
+            CompletableFuture<Result> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("Recording too short"));
+            return future;
+        }
+        stopRequested = true;
+        return stream.thenApply(data -> {
+            if (recordError != null) {
+                throw new IllegalStateException("Recording failed", recordError);
+            }
+            return new Result(data.url, data.filename, mimeType, durationMs);
+        });
+    }
+
+    /**
+     * Stop recording and discard it, deleting what was already uploaded
+     */
+    public void cancel() {
+        cancelled = true;
+        stopRequested = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return CompletableFuture completed once the whole recording is on the server. Fails with
+     * a {@link CancellationException} once a cancelled recording has been discarded.
+     */
+    public CompletableFuture<Void> getUploadFuture() {
+        return uploaded;
+    }
+
+    private void record() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        byte[] pcm = new byte[FRAME_BYTES];
+        try {
+            audioRecord.startRecording();
+            encoder.start();
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inputIndex = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        ByteBuffer input = encoder.getInputBuffer(inputIndex);
+                        input.clear();
+                        int read = audioRecord.read(pcm, 0, Math.min(pcm.length, input.remaining()));
+                        long presentationTimeUs = samplesRecorded * 1_000_000L / SAMPLE_RATE;
+                        if (read > 0) {
+                            input.put(pcm, 0, read);
+                            samplesRecorded += read / 2;
+                        }
+                        inputDone = stopRequested;
+                        encoder.queueInputBuffer(inputIndex, 0, Math.max(read, 0), presentationTimeUs,
+                                inputDone ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                    }
+                }
+                outputDone = drainEncoder(info, inputDone);
+            }
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error recording voice message", e);
+            recordError = e;
+        } finally {
+            try {
+                audioRecord.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Error stopping microphone", e);
+            }
+            audioRecord.release();
+            encoder.release();
+            synchronized (lock) {
+                encoderDone = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Hand everything the encoder has produced to the writer
+     *
+     * @return Whether the end of the stream was reached
+     */
+    private boolean drainEncoder(MediaCodec.BufferInfo info, boolean waitForEnd) throws IOException {
+        while (true) {
+            int outputIndex = encoder.dequeueOutputBuffer(info, waitForEnd ? CODEC_TIMEOUT_US : 0);
+            if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // Some encoders report the codec config in the format instead of a buffer
+                ByteBuffer config = encoder.getOutputFormat().getByteBuffer("csd-0");
+                if (config != null) {
+                    byte[] bytes = new byte[config.remaining()];
+                    config.get(bytes);
+                    writer.writeConfig(bytes);
+                }
+                continue;
+            }
+            if (outputIndex < 0) {
+                return false;
+            }
+            ByteBuffer output = encoder.getOutputBuffer(outputIndex);
+            byte[] bytes = new byte[info.size];
+            output.position(info.offset);
+            output.get(bytes);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                writer.writeConfig(bytes);
+            } else if (bytes.length > 0) {
+                writer.writeFrame(bytes, info.presentationTimeUs);
+            }
+            encoder.releaseOutputBuffer(outputIndex, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return true;
+            }
+        }
+    }
+
+    private void upload() {
+        ApiClient.MediaStreamResponse.StreamData data = null;
+        try {
+            data = apiClient.startMediaStream(mimeType);
+            stream.complete(data);
+            long offset = 0;
+            while (!cancelled) {
+                byte[] chunk;
+                boolean last;
+                synchronized (lock) {
+                    long deadline = System.currentTimeMillis() + UPLOAD_INTERVAL_MS;
+                    long remaining = UPLOAD_INTERVAL_MS;
+                    while (!encoderDone && !cancelled && pending.size() < UPLOAD_CHUNK_BYTES && remaining > 0) {
+                        lock.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    chunk = pending.toByteArray();
+                    pending.reset();
+                    last = encoderDone;
+                }
+                if (chunk.length > 0 && !cancelled) {
+                    appendWithRetry(data.id, offset, chunk);
+                    offset += chunk.length;
+                }
+                if (last) {
+                    break;
+                }
+            }
+            if (cancelled) {
+                apiClient.discardMediaStream(data.id);
+                Log.d(TAG, "Voice message discarded after " + offset + " bytes");
+                uploaded.completeExceptionally(new CancellationException("Voice message discarded"));
+                return;
+            }
+            apiClient.finishMediaStream(data.id);
+            Log.d(TAG, "Voice message uploaded: " + offset + " bytes, " + getDurationMs() + " ms");
+            uploaded.complete(null);
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Error uploading voice message", e);
+            stream.completeExceptionally(e);
+            uploaded.completeExceptionally(e);
+            if (data != null) {
+                closeAfterError(data.id);
+            }
+        }
+    }
+
+    /**
+     * Discard the stream of a cancelled recording, or finish the stream of a failed upload so
+     * receivers see the end of what did arrive instead of waiting for more
+     */
+    private void closeAfterError(String id) {
+        try {
+            if (cancelled) {
+                apiClient.discardMediaStream(id);
+            } else {
+                apiClient.finishMediaStream(id);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing voice message stream", e);
+        }
+    }
+
+    private void appendWithRetry(String id, long offset, byte[] chunk) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                apiClient.appendMediaStream(id, offset, chunk);
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_UPLOAD_ATTEMPTS) {
+                    throw e;
+                }
+                Log.w(TAG, "Retrying voice message chunk at " + offset, e);
+                Thread.sleep(250L << attempt);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.nekkochan.onyxchat.crypto;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Incremental write, restore and tamper tests for the backup chunk store, run on the local JVM.
+ */
+public class ChunkArchiveTest {
+    private static final int CHUNK = ChunkArchive.CHUNK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsThroughSnapshot() throws IOException, GeneralSecurityException {
+        File root = folder.newFolder("archive");
+        byte[] key = randomBytes(1, ChunkArchive.KEY_SIZE);
+        ChunkArchive archive = new ChunkArchive(root, key, new BatchCrypto(4));
+        for (int size : new int[]{0, 1, CHUNK, 40 * CHUNK + 5}) {
+            byte[] data = randomBytes(size, size);
+            ChunkArchive.Entry entry = archive.writeEntry("file" + size, new ByteArrayInputStream(data), 42);
+            archive.writeSnapshot(new ChunkArchive.Snapshot(size + 1, Collections.singletonMap("k", "v"),
+                    Collections.singletonList(entry)));
+        }
+
+        ChunkArchive reopened = new ChunkArchive(root, key, new BatchCrypto(2));
+        assertEquals(4, reopened.listSnapshots().size());
+        ChunkArchive.Snapshot latest = reopened.latestSnapshot();
+        assertNotNull(latest);
+        assertEquals("v", latest.getProperties().get("k"));
+        ChunkArchive.Entry entry = latest.findEntry("file" + (40 * CHUNK + 5));
+        assertNotNull(entry);
+        assertEquals(42, entry.getLastModified());
+        assertArrayEquals(randomBytes(40 * CHUNK + 5, 40 * CHUNK + 5), read(reopened, entry));
+    }
+
+    @Test
+    public void laterBackupsOnlyWriteChangedChunks() throws IOException, GeneralSecurityException {
+        File root = folder.newFolder("archive");
+        byte[] key = randomBytes(2, ChunkArchive.KEY_SIZE);
+        byte[] database = randomBytes(3, 10 * CHUNK);
+
+        ChunkArchive first = new ChunkArchive(root, key, new BatchCrypto(4));
+        first.writeEntry("db", new ByteArrayInputStream(database), 1);
+        assertEquals(10, first.getChunksWritten());
+
+        // Change one page in the middle and append one
+        database[4 * CHUNK + 100] ^= 1;
+        byte[] grown = new byte[database.length + 4096];
+        System.arraycopy(database, 0, grown, 0, database.length);
+        ChunkArchive second = new ChunkArchive(root, key, new BatchCrypto(4));
+        ChunkArchive.Entry entry = second.writeEntry("db", new ByteArrayInputStream(grown), 2);
+        assertEquals(2, second.getChunksWritten());
+        assertEquals(9, second.getChunksReused());
+        assertArrayEquals(grown, read(second, entry));
+    }
+
+    @Test
+    public void pruneKeepsChunksOfNewestSnapshots() throws IOException, GeneralSecurityException {
+        File root = folder.newFolder("archive");
+        ChunkArchive archive = new ChunkArchive(root, randomBytes(4, ChunkArchive.KEY_SIZE), new BatchCrypto(1));
+        for (int i = 1; i <= 3; i++) {
+            ChunkArchive.Entry entry = archive.writeEntry("f", new ByteArrayInputStream(randomBytes(i, 2 * CHUNK)), i);
+            archive.writeSnapshot(new ChunkArchive.Snapshot(i, Collections.emptyMap(), Collections.singletonList(entry)));
+        }
+        assertEquals(2, archive.prune(2));
+        assertEquals(2, archive.listSnapshots().size());
+        ChunkArchive.Snapshot oldest = archive.readSnapshot(2);
+        assertArrayEquals(randomBytes(2, 2 * CHUNK), read(archive, oldest.getEntries().get(0)));
+    }
+
+    @Test
+    public void rejectsTamperingAndWrongKey() throws IOException, GeneralSecurityException {
+        File root = folder.newFolder("archive");
+        byte[] key = randomBytes(5, ChunkArchive.KEY_SIZE);
+        ChunkArchive archive = new ChunkArchive(root, key, new BatchCrypto(1));
+        ChunkArchive.Entry entry = archive.writeEntry("f", new ByteArrayInputStream(randomBytes(6, 100)), 0);
+        archive.writeSnapshot(new ChunkArchive.Snapshot(7, Collections.emptyMap(), Collections.singletonList(entry)));
+
+        try {
+            new ChunkArchive(root, randomBytes(8, ChunkArchive.KEY_SIZE), new BatchCrypto(1)).readSnapshot(7);
+            fail("Expected a snapshot under another key to be rejected");
+        } catch (IOException expected) {
+            // Expected
+        }
+
+        File[] shards = new File(root, "chunks").listFiles();
+        assertNotNull(shards);
+        File chunk = shards[0].listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(chunk, "rw")) {
+            file.seek(20);
+            int value = file.read();
+            file.seek(20);
+            file.write(value ^ 1);
+        }
+        try {
+            read(archive, entry);
+            fail("Expected a modified chunk to be rejected");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    private static byte[] read(ChunkArchive archive, ChunkArchive.Entry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.readEntry(entry, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
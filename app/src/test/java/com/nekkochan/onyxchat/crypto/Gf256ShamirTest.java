@@ -0,0 +1,168 @@
+package com.nekkochan.onyxchat.crypto;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip, threshold and share-format tests for the GF(256) engine, run on the local JVM.
+ */
+public class Gf256ShamirTest {
+
+    @Test
+    public void anyThresholdSubsetRecovers() {
+        byte[] secret = randomBytes(1, 1000);
+        byte[][] shares = Gf256Shamir.split(secret, 5, 3);
+        assertEquals(5, shares.length);
+        for (int a = 0; a < 5; a++) {
+            for (int b = a + 1; b < 5; b++) {
+                for (int c = b + 1; c < 5; c++) {
+                    byte[] recovered = Gf256Shamir.recover(new int[]{a + 1, b + 1, c + 1},
+                            new byte[][]{shares[a], shares[b], shares[c]});
+                    assertArrayEquals("Shares " + a + "," + b + "," + c, secret, recovered);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fewerThanThresholdDoesNotRecover() {
+        byte[] secret = randomBytes(2, 64);
+        byte[][] shares = Gf256Shamir.split(secret, 5, 3);
+        byte[] recovered = Gf256Shamir.recover(new int[]{1, 2}, new byte[][]{shares[0], shares[1]});
+        assertFalse(Arrays.equals(secret, recovered));
+    }
+
+    @Test
+    public void readsSharesInTheNativeFormat() {
+        // Shares built byte by byte the way pqc/shamir/shamir.cpp builds them
+        Random random = new Random(3);
+        byte[] secret = randomBytes(4, 257);
+        int threshold = 4;
+        byte[][] shares = new byte[6][secret.length + 1];
+        for (int i = 0; i < shares.length; i++) {
+            shares[i][0] = (byte) (i + 1);
+        }
+        int[] coefficients = new int[threshold];
+        for (int b = 0; b < secret.length; b++) {
+            coefficients[0] = secret[b] & 0xFF;
+            for (int d = 1; d < threshold; d++) {
+                coefficients[d] = random.nextInt(256);
+            }
+            for (int i = 0; i < shares.length; i++) {
+                shares[i][b + 1] = (byte) referenceEvaluate(coefficients, i + 1);
+            }
+        }
+        assertArrayEquals(secret, Gf256Shamir.recover(new int[]{6, 2, 4, 5},
+                new byte[][]{shares[5], shares[1], shares[3], shares[4]}));
+    }
+
+    @Test
+    public void writesSharesTheNativeCodeReads() {
+        byte[] secret = randomBytes(5, 300);
+        byte[][] shares = Gf256Shamir.split(secret, 4, 2);
+        for (int i = 0; i < shares.length; i++) {
+            assertEquals("x coordinate prefix", i + 1, shares[i][0]);
+        }
+        // Lagrange interpolation at zero as in pqc/shamir/shamir.cpp
+        int x1 = 2;
+        int x2 = 4;
+        for (int b = 0; b < secret.length; b++) {
+            int y1 = shares[1][b + 1] & 0xFF;
+            int y2 = shares[3][b + 1] & 0xFF;
+            int value = referenceMul(y1, referenceDiv(x2, x1 ^ x2)) ^ referenceMul(y2, referenceDiv(x1, x1 ^ x2));
+            assertEquals("Byte " + b, secret[b] & 0xFF, value);
+        }
+    }
+
+    @Test
+    public void streamingMatchesInMemoryFormat() throws IOException {
+        int size = 3 * Gf256Shamir.BLOCK_SIZE + 123;
+        byte[] secret = randomBytes(6, size);
+        ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[5];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = new ByteArrayOutputStream();
+        }
+        assertEquals(size, Gf256Shamir.split(new ByteArrayInputStream(secret), outputs, 3));
+
+        byte[][] shares = new byte[5][];
+        for (int i = 0; i < shares.length; i++) {
+            shares[i] = outputs[i].toByteArray();
+            assertEquals(size + 1, shares[i].length);
+        }
+        assertArrayEquals(secret, Gf256Shamir.recover(new int[]{1, 3, 5},
+                new byte[][]{shares[0], shares[2], shares[4]}));
+
+        ByteArrayOutputStream recovered = new ByteArrayOutputStream();
+        InputStream[] inputs = {
+                new ByteArrayInputStream(shares[4]),
+                new ByteArrayInputStream(shares[1]),
+                new ByteArrayInputStream(shares[2])
+        };
+        assertEquals(size, Gf256Shamir.recover(inputs, recovered));
+        assertArrayEquals(secret, recovered.toByteArray());
+    }
+
+    @Test
+    public void rejectsInvalidParametersAndShares() {
+        assertThrows(IllegalArgumentException.class, () -> Gf256Shamir.split(new byte[1], 2, 3));
+        assertThrows(IllegalArgumentException.class, () -> Gf256Shamir.split(new byte[1], 3, 1));
+        assertThrows(IllegalArgumentException.class, () -> Gf256Shamir.split(new byte[1], 256, 2));
+        byte[][] shares = Gf256Shamir.split(new byte[8], 3, 2);
+        assertThrows(IllegalArgumentException.class,
+                () -> Gf256Shamir.recover(new int[]{1, 1}, new byte[][]{shares[0], shares[0]}));
+        assertThrows(IllegalArgumentException.class,
+                () -> Gf256Shamir.recover(new int[]{1, 2}, new byte[][]{shares[0], new byte[4]}));
+        assertThrows(IOException.class, () -> Gf256Shamir.recover(new InputStream[]{
+                new ByteArrayInputStream(shares[0]),
+                new ByteArrayInputStream(Arrays.copyOf(shares[1], 5))
+        }, new ByteArrayOutputStream()));
+    }
+
+    private static int referenceEvaluate(int[] coefficients, int x) {
+        int result = 0;
+        int power = 1;
+        for (int coefficient : coefficients) {
+            result ^= referenceMul(coefficient, power);
+            power = referenceMul(power, x);
+        }
+        return result;
+    }
+
+    private static int referenceMul(int a, int b) {
+        int product = 0;
+        for (int i = 0; i < 8; i++) {
+            if ((b & 1) != 0) {
+                product ^= a;
+            }
+            boolean high = (a & 0x80) != 0;
+            a = (a << 1) & 0xFF;
+            if (high) {
+                a ^= 0x1B;
+            }
+            b >>= 1;
+        }
+        return product;
+    }
+
+    private static int referenceDiv(int a, int b) {
+        int inverse = 1;
+        for (int i = 0; i < 254; i++) {
+            inverse = referenceMul(inverse, b);
+        }
+        return referenceMul(a, inverse);
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
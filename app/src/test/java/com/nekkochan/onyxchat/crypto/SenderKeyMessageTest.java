@@ -0,0 +1,105 @@
+package com.nekkochan.onyxchat.crypto;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip, forgery and tamper tests for the group message format, run on the local JVM
+ */
+public class SenderKeyMessageTest {
+    private static final String GROUP = "7d3f1a52-3c1e-4e0b-9a64-0a2b9c8d1e2f";
+
+    private final PqcBackend backend = new BouncyCastlePqcBackend();
+
+    @Test
+    public void everyMemberDecryptsTheSameEnvelope() throws Exception {
+        PQCProvider.DilithiumKeyPair sender = backend.generateDilithiumKeyPair(PQCProvider.DILITHIUM_3);
+        byte[] chainKey = randomBytes(1, SymmetricRatchet.CHAIN_KEY_LENGTH);
+
+        // Sender advances its chain three times
+        byte[][] envelopes = new byte[3][];
+        byte[] sendChain = chainKey;
+        for (int counter = 0; counter < envelopes.length; counter++) {
+            envelopes[counter] = seal(sender, 42, counter, SymmetricRatchet.messageKey(sendChain), "hello " + counter);
+            sendChain = SymmetricRatchet.nextChainKey(sendChain);
+        }
+
+        // Two members holding the distributed chain key read the same bytes
+        for (int member = 0; member < 2; member++) {
+            byte[] receiveChain = chainKey;
+            for (int counter = 0; counter < envelopes.length; counter++) {
+                SenderKeyMessage message = SenderKeyMessage.parse(envelopes[counter]);
+                assertEquals(42, message.keyId);
+                assertEquals(counter, message.counter);
+                assertTrue(backend.verify(sender.getPublicKey(), message.signedData(GROUP), message.signature));
+                byte[] plaintext = message.decrypt(GROUP, SymmetricRatchet.messageKey(receiveChain));
+                assertEquals("hello " + counter, new String(plaintext, StandardCharsets.UTF_8));
+                receiveChain = SymmetricRatchet.nextChainKey(receiveChain);
+            }
+        }
+    }
+
+    @Test
+    public void memberCannotSignForAnotherSender() throws Exception {
+        PQCProvider.DilithiumKeyPair sender = backend.generateDilithiumKeyPair(PQCProvider.DILITHIUM_3);
+        PQCProvider.DilithiumKeyPair forger = backend.generateDilithiumKeyPair(PQCProvider.DILITHIUM_3);
+        byte[] messageKey = SymmetricRatchet.messageKey(randomBytes(2, SymmetricRatchet.CHAIN_KEY_LENGTH));
+
+        // The forger holds the sender's chain key but only their own identity key
+        SenderKeyMessage forged = SenderKeyMessage.parse(seal(forger, 1, 0, messageKey, "forged"));
+        assertFalse(backend.verify(sender.getPublicKey(), forged.signedData(GROUP), forged.signature));
+    }
+
+    @Test
+    public void rejectsTamperingAndOtherGroups() throws Exception {
+        PQCProvider.DilithiumKeyPair sender = backend.generateDilithiumKeyPair(PQCProvider.DILITHIUM_3);
+        byte[] messageKey = SymmetricRatchet.messageKey(randomBytes(3, SymmetricRatchet.CHAIN_KEY_LENGTH));
+        byte[] envelope = seal(sender, 7, 5, messageKey, "secret");
+
+        SenderKeyMessage message = SenderKeyMessage.parse(envelope);
+        assertFalse(backend.verify(sender.getPublicKey(), message.signedData("other-group"), message.signature));
+        try {
+            message.decrypt("other-group", messageKey);
+            fail("Expected a message replayed into another group to be rejected");
+        } catch (GeneralSecurityException expected) {
+            // Expected
+        }
+
+        byte[] tampered = envelope.clone();
+        tampered[SenderKeyMessage.HEADER_LENGTH + 4] ^= 1;
+        SenderKeyMessage modified = SenderKeyMessage.parse(tampered);
+        assertFalse(backend.verify(sender.getPublicKey(), modified.signedData(GROUP), modified.signature));
+        try {
+            modified.decrypt(GROUP, messageKey);
+            fail("Expected a modified ciphertext to be rejected");
+        } catch (GeneralSecurityException expected) {
+            // Expected
+        }
+
+        try {
+            SenderKeyMessage.parse(Arrays.copyOf(envelope, SenderKeyMessage.HEADER_LENGTH + 4));
+            fail("Expected a truncated message to be rejected");
+        } catch (GeneralSecurityException expected) {
+            // Expected
+        }
+    }
+
+    private byte[] seal(PQCProvider.DilithiumKeyPair sender, int keyId, int counter, byte[] messageKey, String text)
+            throws Exception {
+        SenderKeyMessage message = SenderKeyMessage.encrypt(GROUP, keyId, counter, messageKey,
+                text.getBytes(StandardCharsets.UTF_8));
+        return message.withSignature(backend.sign(sender.getPrivateKey(), message.signedData(GROUP))).serialize();
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
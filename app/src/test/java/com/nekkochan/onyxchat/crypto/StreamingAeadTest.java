@@ -0,0 +1,107 @@
+package com.nekkochan.onyxchat.crypto;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip and tamper tests for the chunked attachment format, run on the local JVM.
+ */
+public class StreamingAeadTest {
+    private static final int CHUNK = StreamingAead.CHUNK_SIZE;
+
+    @Test
+    public void roundTripsAcrossChunkBoundaries() throws IOException {
+        byte[] key = StreamingAead.generateKey();
+        for (int size : new int[]{0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 3 * CHUNK + 17}) {
+            byte[] plaintext = randomBytes(size, size);
+            byte[] ciphertext = encrypt(plaintext, key, 1000);
+            assertEquals("Encrypted size of " + size, StreamingAead.ciphertextSize(size), ciphertext.length);
+            assertEquals("Plaintext size of " + size, size, StreamingAead.plaintextSize(ciphertext.length));
+            assertArrayEquals("Round trip of " + size, plaintext, decrypt(ciphertext, key));
+        }
+    }
+
+    @Test
+    public void sameInputEncryptsDifferently() throws IOException {
+        byte[] key = StreamingAead.generateKey();
+        byte[] plaintext = randomBytes(1, 100);
+        assertFalse(Arrays.equals(encrypt(plaintext, key, 100), encrypt(plaintext, key, 100)));
+    }
+
+    @Test
+    public void rejectsTruncationAtChunkBoundary() throws IOException {
+        byte[] key = StreamingAead.generateKey();
+        byte[] ciphertext = encrypt(randomBytes(2, 2 * CHUNK + 10), key, CHUNK);
+        // Drop the final chunk: what is left looks like a stream of two full chunks
+        int withoutFinal = StreamingAead.HEADER_SIZE + 2 * (CHUNK + 16);
+        assertFails(Arrays.copyOf(ciphertext, withoutFinal), key);
+        // Drop the last full chunk and the final one: the second chunk is not flagged final
+        assertFails(Arrays.copyOf(ciphertext, withoutFinal - (CHUNK + 16)), key);
+    }
+
+    @Test
+    public void rejectsTamperingReorderingAndWrongKey() throws IOException {
+        byte[] key = StreamingAead.generateKey();
+        byte[] ciphertext = encrypt(randomBytes(3, 2 * CHUNK + 10), key, 4096);
+
+        byte[] flipped = ciphertext.clone();
+        flipped[StreamingAead.HEADER_SIZE + CHUNK + 100] ^= 1;
+        assertFails(flipped, key);
+
+        byte[] swapped = ciphertext.clone();
+        int sealedChunk = CHUNK + 16;
+        System.arraycopy(ciphertext, StreamingAead.HEADER_SIZE, swapped, StreamingAead.HEADER_SIZE + sealedChunk, sealedChunk);
+        System.arraycopy(ciphertext, StreamingAead.HEADER_SIZE + sealedChunk, swapped, StreamingAead.HEADER_SIZE, sealedChunk);
+        assertFails(swapped, key);
+
+        byte[] extended = Arrays.copyOf(ciphertext, ciphertext.length + 1);
+        assertFails(extended, key);
+
+        assertFails(ciphertext, StreamingAead.generateKey());
+    }
+
+    private static byte[] encrypt(byte[] plaintext, byte[] key, int writeSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StreamingAead.EncryptingOutputStream encrypting = new StreamingAead.EncryptingOutputStream(out, key)) {
+            for (int offset = 0; offset < plaintext.length; offset += writeSize) {
+                encrypting.write(plaintext, offset, Math.min(writeSize, plaintext.length - offset));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] ciphertext, byte[] key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new StreamingAead.DecryptingInputStream(new ByteArrayInputStream(ciphertext), key)) {
+            byte[] buffer = new byte[7000];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertFails(byte[] ciphertext, byte[] key) {
+        try {
+            decrypt(ciphertext, key);
+            fail("Expected a modified stream to be rejected");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,73 @@
+package com.nekkochan.onyxchat.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip and validation tests for BlurHash placeholders, run on the local JVM
+ */
+public class BlurHashTest {
+
+    @Test
+    public void placeholderKeepsTheOverallColours() {
+        // Left half red, right half blue
+        int width = 32;
+        int height = 24;
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = x < width / 2 ? 0xFFFF0000 : 0xFF0000FF;
+            }
+        }
+
+        String hash = BlurHash.encode(pixels, width, height, 4, 3);
+        assertEquals(4 + 2 * 4 * 3, hash.length());
+
+        int[] decoded = BlurHash.decode(hash, 8, 6, 1);
+        assertNotNull(decoded);
+        int left = decoded[3 * 8];
+        int right = decoded[3 * 8 + 7];
+        assertTrue("Left edge should stay red", red(left) > 200 && red(left) > blue(left) + 100);
+        assertTrue("Right edge should stay blue", blue(right) > 200 && blue(right) > red(right) + 100);
+    }
+
+    @Test
+    public void solidColourDecodesToTheSameColour() {
+        int[] pixels = new int[16 * 16];
+        java.util.Arrays.fill(pixels, 0xFF336699);
+
+        String hash = BlurHash.encode(pixels, 16, 16, 3, 3);
+        int[] decoded = BlurHash.decode(hash, 4, 4, 1);
+        // Quantised components ring a little at the corners, so compare the average
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        for (int pixel : decoded) {
+            red += red(pixel);
+            green += (pixel >> 8) & 255;
+            blue += blue(pixel);
+        }
+        assertEquals(0x33, red / decoded.length, 6);
+        assertEquals(0x66, green / decoded.length, 6);
+        assertEquals(0x99, blue / decoded.length, 6);
+    }
+
+    @Test
+    public void rejectsMalformedHashes() {
+        assertNull(BlurHash.decode(null, 4, 4, 1));
+        assertNull(BlurHash.decode("L", 4, 4, 1));
+        // Length does not match the component count in the first character
+        assertNull(BlurHash.decode("LEHV6nWB2yk8pyo0adR*.7kCMdn", 4, 4, 1));
+        assertNull(BlurHash.decode("LEHV6nWB2yk8pyo0adR*.7kCMd\"j", 4, 4, 1));
+        assertNotNull(BlurHash.decode("LEHV6nWB2yk8pyo0adR*.7kCMdnj", 4, 4, 1));
+    }
+
+    private static int red(int pixel) {
+        return (pixel >> 16) & 255;
+    }
+
+    private static int blue(int pixel) {
+        return pixel & 255;
+    }
+}
@@ -0,0 +1,48 @@
+package com.nekkochan.onyxchat.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sizing and quality-search tests for the photo pipeline, run on the local JVM
+ */
+public class ImageCompressorTest {
+
+    @Test
+    public void sampleSizeNeverDecodesBelowTheTarget() {
+        // 48 MP, 8000x6000: scaled to 1280x960, decoded at a quarter of each side
+        int[] target = ImageCompressor.targetSize(8000, 6000, ImageCompressor.MAX_DIMENSION);
+        assertArrayEquals(new int[] {1280, 960}, target);
+        int sampleSize = ImageCompressor.sampleSize(8000, 6000, target[0], target[1]);
+        assertEquals(4, sampleSize);
+        assertTrue(8000 / sampleSize >= target[0] && 6000 / sampleSize >= target[1]);
+
+        // Portrait and already small images
+        assertArrayEquals(new int[] {720, 1280}, ImageCompressor.targetSize(2160, 3840, 1280));
+        assertArrayEquals(new int[] {800, 600}, ImageCompressor.targetSize(800, 600, 1280));
+        assertEquals(1, ImageCompressor.sampleSize(800, 600, 800, 600));
+    }
+
+    @Test
+    public void qualityIsTheHighestThatFitsTheBudget() {
+        List<Integer> tried = new ArrayList<>();
+        // Encoded size grows by 10 KB per quality step
+        int quality = ImageCompressor.chooseQuality(q -> {
+            tried.add(q);
+            return q * 10_000L;
+        }, 725_000);
+
+        assertEquals(70, quality);
+        assertTrue("Expected a handful of encodes, not a linear scan", tried.size() <= 5);
+    }
+
+    @Test
+    public void qualityBoundsAreRespected() {
+        assertEquals(90, ImageCompressor.chooseQuality(q -> 1, 400_000));
+        assertEquals(50, ImageCompressor.chooseQuality(q -> 10_000_000L, 400_000));
+    }
+}
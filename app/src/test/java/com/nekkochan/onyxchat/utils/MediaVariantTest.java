@@ -0,0 +1,43 @@
+package com.nekkochan.onyxchat.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for choosing which resolution of a photo to download, run on the local JVM
+ */
+public class MediaVariantTest {
+
+    private static final List<MediaVariant> VARIANTS = Arrays.asList(
+            new MediaVariant(MediaVariant.ORIGINAL, "/o.jpg", 2560, 1920),
+            new MediaVariant(MediaVariant.SCREEN, "/s.jpg", 1280, 960),
+            new MediaVariant(MediaVariant.THUMBNAIL, "/t.jpg", 640, 480));
+
+    @Test
+    public void choosesTheSmallestVariantThatCoversTheView() {
+        assertEquals(MediaVariant.THUMBNAIL, MediaVariant.choose(VARIANTS, 600, 450).getName());
+        assertEquals(MediaVariant.SCREEN, MediaVariant.choose(VARIANTS, 641, 300).getName());
+        // A tall view needs the height covered as well
+        assertEquals(MediaVariant.SCREEN, MediaVariant.choose(VARIANTS, 600, 900).getName());
+    }
+
+    @Test
+    public void fallsBackToTheLargestVariant() {
+        assertEquals(MediaVariant.ORIGINAL, MediaVariant.choose(VARIANTS, 4000, 3000).getName());
+        assertNull(MediaVariant.choose(Collections.emptyList(), 100, 100));
+    }
+
+    @Test
+    public void keepsTheVariantWhenMovedToItsUrl() {
+        MediaVariant uploaded = VARIANTS.get(1).withLocation("/api/media/file/s.jpg");
+        assertEquals(MediaVariant.SCREEN, uploaded.getName());
+        assertEquals(1280, uploaded.getWidth());
+        assertEquals("/api/media/file/s.jpg", MediaVariant.find(Collections.singletonList(uploaded),
+                MediaVariant.SCREEN).getLocation());
+    }
+}
@@ -0,0 +1,105 @@
+package com.nekkochan.onyxchat.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Ogg pages of streamed voice messages, run on the local JVM
+ */
+public class OggOpusWriterTest {
+
+    // CELT fullband, 20 ms, one frame
+    private static final byte TOC_20_MS = (byte) 0xF8;
+
+    @Test
+    public void writesHeadersAudioAndEndOfStreamPages() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OggOpusWriter writer = new OggOpusWriter(out, 1, 48000, 1234);
+        // Identification header wrapped the way the platform encoder reports it
+        byte[] head = defaultHeadWithPreSkip(480);
+        byte[] config = new byte[head.length + 16];
+        System.arraycopy("AOPUSHDR".getBytes(StandardCharsets.US_ASCII), 0, config, 0, 8);
+        System.arraycopy(head, 0, config, 16, head.length);
+        writer.writeConfig(config);
+        for (int i = 0; i < 12; i++) {
+            writer.writeFrame(new byte[] {TOC_20_MS, (byte) i, 1, 2, 3}, i * 20_000L);
+        }
+        writer.finish();
+
+        List<byte[]> pages = pages(out.toByteArray());
+        // Identification, comments, a full page of 10 packets, and the last 2 with end of stream
+        assertEquals(4, pages.size());
+        assertEquals(0x02, pages.get(0)[5]);
+        assertArrayEquals(head, Arrays.copyOfRange(pages.get(0), 28, 28 + head.length));
+        assertEquals("OpusTags", new String(pages.get(1), 28, 8, StandardCharsets.US_ASCII));
+        assertEquals(10 * 960, granule(pages.get(2)));
+        assertEquals(0x04, pages.get(3)[5]);
+        assertEquals(12 * 960, granule(pages.get(3)));
+        for (int i = 0; i < pages.size(); i++) {
+            byte[] page = pages.get(i);
+            assertEquals(i, readInt(page, 18));
+            int crc = readInt(page, 22);
+            Arrays.fill(page, 22, 26, (byte) 0);
+            assertEquals("CRC of page " + i, OggOpusWriter.crc(page), crc);
+        }
+    }
+
+    @Test
+    public void readsPacketDurationFromTheTocByte() {
+        assertEquals(960, OggOpusWriter.packetSamples(new byte[] {TOC_20_MS}));
+        // SILK 60 ms
+        assertEquals(2880, OggOpusWriter.packetSamples(new byte[] {(byte) (3 << 3)}));
+        // Two 10 ms hybrid frames
+        assertEquals(960, OggOpusWriter.packetSamples(new byte[] {(byte) ((12 << 3) | 1)}));
+        // Code 3 with three 2.5 ms frames
+        assertEquals(360, OggOpusWriter.packetSamples(new byte[] {(byte) ((16 << 3) | 3), 3}));
+    }
+
+    private static byte[] defaultHeadWithPreSkip(int preSkip) {
+        byte[] head = new byte[19];
+        System.arraycopy("OpusHead".getBytes(StandardCharsets.US_ASCII), 0, head, 0, 8);
+        head[8] = 1;
+        head[9] = 1;
+        head[10] = (byte) preSkip;
+        head[11] = (byte) (preSkip >> 8);
+        head[12] = (byte) 0x80;
+        head[13] = (byte) 0xBB;
+        return head;
+    }
+
+    private static List<byte[]> pages(byte[] stream) {
+        List<byte[]> pages = new ArrayList<>();
+        int offset = 0;
+        while (offset < stream.length) {
+            assertEquals("OggS", new String(stream, offset, 4, StandardCharsets.US_ASCII));
+            int segments = stream[offset + 26] & 0xFF;
+            int length = 27 + segments;
+            for (int i = 0; i < segments; i++) {
+                length += stream[offset + 27 + i] & 0xFF;
+            }
+            pages.add(Arrays.copyOfRange(stream, offset, offset + length));
+            offset += length;
+        }
+        return pages;
+    }
+
+    private static long granule(byte[] page) {
+        long granule = 0;
+        for (int i = 7; i >= 0; i--) {
+            granule = (granule << 8) | (page[6 + i] & 0xFF);
+        }
+        return granule;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,74 @@
+package com.nekkochan.onyxchat.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Budget and fallback tests for video compression planning, run on the local JVM
+ */
+public class VideoCompressionPlannerTest {
+    private static final VideoCompressionPlanner.Budget BUDGET = VideoCompressionPlanner.Budget.forAttachment(15);
+    private static final long MB = 1024L * 1024L;
+
+    @Test
+    public void sourceThatAlreadyFitsIsOnlyRemuxed() {
+        VideoCompressionPlanner.Source source = new VideoCompressionPlanner.Source(
+                20_000, 1280, 720, 30, 3_000_000, 128_000, "h264", "aac", 8 * MB);
+        VideoCompressionPlanner.Plan plan = VideoCompressionPlanner.plan(source, BUDGET,
+                VideoCompressionPlanner.Encoder.LIBX264);
+
+        assertTrue(plan.isRemuxOnly());
+        assertEquals(8 * MB, plan.getPredictedBytes());
+        String[] commands = plan.commands("/in.mov", "/out.mp4");
+        assertEquals(1, commands.length);
+        assertTrue(commands[0].contains("-c copy"));
+    }
+
+    @Test
+    public void shortClipKeepsResolutionWithoutSpendingTheWholeBudget() {
+        // 10 s of 4K HEVC: re-encoded for compatibility, at 1080p, well under the budget
+        VideoCompressionPlanner.Source source = new VideoCompressionPlanner.Source(
+                10_000, 3840, 2160, 60, 40_000_000, 256_000, "hevc", "aac", 50 * MB);
+        VideoCompressionPlanner.Plan plan = VideoCompressionPlanner.plan(source, BUDGET,
+                VideoCompressionPlanner.Encoder.LIBX264);
+
+        assertFalse(plan.isRemuxOnly());
+        assertEquals(1080, plan.shortSide);
+        assertEquals(30, plan.fps);
+        assertTrue(plan.getPredictedBytes() < BUDGET.maxBytes);
+        assertTrue(plan.getPredictedEncodeMs() <= BUDGET.maxEncodeMs);
+    }
+
+    @Test
+    public void longClipDropsResolutionAndSpeedsUpToMeetBothBudgets() {
+        // 10 minutes of 1080p: the bitrate budget forces a lower resolution and a faster preset
+        VideoCompressionPlanner.Source source = new VideoCompressionPlanner.Source(
+                600_000, 1920, 1080, 30, 16_000_000, 192_000, "h264", "aac", 1200 * MB);
+        VideoCompressionPlanner.Plan plan = VideoCompressionPlanner.plan(source, BUDGET,
+                VideoCompressionPlanner.Encoder.LIBX264);
+
+        assertTrue(plan.shortSide < 720);
+        assertTrue(plan.getPredictedBytes() <= BUDGET.maxBytes);
+        assertNotEquals("medium", plan.preset);
+        assertEquals(64_000, plan.audioBitrate);
+    }
+
+    @Test
+    public void fallsBackToMpeg4AndThenToRemux() {
+        VideoCompressionPlanner.Source source = new VideoCompressionPlanner.Source(
+                30_000, 1920, 1080, 30, 12_000_000, 0, "h264", null, 45 * MB);
+
+        String[] x264 = VideoCompressionPlanner.plan(source, BUDGET, VideoCompressionPlanner.Encoder.LIBX264)
+                .commands("/in.mp4", "/out.mp4");
+        assertEquals(3, x264.length);
+        assertTrue(x264[0].contains("-c:v libx264") && x264[0].contains("-preset"));
+        assertTrue(x264[1].contains("-c:v mpeg4") && !x264[1].contains("-preset"));
+        assertTrue(x264[2].contains("-c copy"));
+        assertTrue(x264[0].contains("-an"));
+
+        String[] mpeg4 = VideoCompressionPlanner.plan(source, BUDGET, VideoCompressionPlanner.Encoder.MPEG4)
+                .commands("/in.mp4", "/out.mp4");
+        assertEquals(2, mpeg4.length);
+    }
+}
@@ -0,0 +1,54 @@
+package com.nekkochan.onyxchat.benchmark;
+
+import androidx.benchmark.macro.junit4.BaselineProfileRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import kotlin.Unit;
+
+/**
+ * Generates the baseline profile from the startup, chat open and scroll journeys.
+ * <p>
+ * Run on an API 28+ device or emulator:
+ * {@code ./gradlew :benchmark:connectedBenchmarkAndroidTest
+ * -Pandroid.testInstrumentationRunnerArguments.class=com.nekkochan.onyxchat.benchmark.BaselineProfileGenerator}
+ * and copy the generated {@code BaselineProfileGenerator_generate-baseline-prof.txt} from the
+ * benchmark output directory to {@code app/src/main/baseline-prof.txt}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BaselineProfileGenerator {
+
+    @Rule
+    public BaselineProfileRule baselineProfileRule = new BaselineProfileRule();
+
+    private final StandInServer server = new StandInServer();
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void generate() {
+        baselineProfileRule.collect(Benchmarks.PACKAGE_NAME, scope -> {
+            Benchmarks.startMain(scope);
+            Benchmarks.openChat(scope, StandInServer.TEXT_CONTACT_ID, StandInServer.TEXT_CONTACT_NAME);
+            Benchmarks.flingMessages(scope);
+            Benchmarks.openChat(scope, StandInServer.MEDIA_CONTACT_ID, StandInServer.MEDIA_CONTACT_NAME);
+            Benchmarks.flingMessages(scope);
+            return Unit.INSTANCE;
+        });
+    }
+}
@@ -0,0 +1,82 @@
+package com.nekkochan.onyxchat.benchmark;
+
+import android.content.Intent;
+
+import androidx.annotation.NonNull;
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.Direction;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+/**
+ * User journeys shared by the macrobenchmarks and the baseline profile generator
+ */
+final class Benchmarks {
+    static final String PACKAGE_NAME = "com.nekkochan.onyxchat";
+
+    private static final String CHAT_ACTIVITY = PACKAGE_NAME + ".ui.chat.ChatActivity";
+    private static final String EXTRA_CONTACT_ID = "contact_id";
+    private static final String EXTRA_CONTACT_NAME = "contact_name";
+
+    private static final long UI_TIMEOUT_MS = 10_000;
+    private static final int FLINGS = 6;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Launch the app from the launcher and wait for the conversation list.
+     * The launcher activity forwards to MainActivity for a logged-in session.
+     */
+    static void startMain(@NonNull MacrobenchmarkScope scope) {
+        scope.pressHome();
+        scope.startActivityAndWait();
+        UiDevice device = scope.getDevice();
+        device.wait(Until.hasObject(By.res(PACKAGE_NAME, "conversationsRecyclerView")), UI_TIMEOUT_MS);
+    }
+
+    /**
+     * Open a chat directly and wait until its messages are on screen
+     */
+    static void openChat(@NonNull MacrobenchmarkScope scope, String contactId, String contactName) {
+        Intent intent = new Intent()
+                .setClassName(PACKAGE_NAME, CHAT_ACTIVITY)
+                .putExtra(EXTRA_CONTACT_ID, contactId)
+                .putExtra(EXTRA_CONTACT_NAME, contactName)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+        scope.startActivityAndWait(intent);
+        waitForMessages(scope.getDevice());
+    }
+
+    /**
+     * Fling up through the message history and back down
+     */
+    static void flingMessages(@NonNull MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        UiObject2 list = waitForMessages(device);
+        if (list == null) {
+            throw new IllegalStateException("Message list not shown");
+        }
+        // Keep the gesture clear of the system navigation area
+        list.setGestureMargin(device.getDisplayWidth() / 5);
+        for (int i = 0; i < FLINGS; i++) {
+            list.fling(Direction.UP);
+            device.waitForIdle();
+        }
+        for (int i = 0; i < FLINGS; i++) {
+            list.fling(Direction.DOWN);
+            device.waitForIdle();
+        }
+    }
+
+    private static UiObject2 waitForMessages(UiDevice device) {
+        UiObject2 list = device.wait(Until.findObject(By.res(PACKAGE_NAME, "messagesRecyclerView")), UI_TIMEOUT_MS);
+        if (list != null) {
+            // Messages load over the network after the first frame
+            list.wait(Until.hasObject(By.res(PACKAGE_NAME, "messageCardView")), UI_TIMEOUT_MS);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,62 @@
+package com.nekkochan.onyxchat.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.FrameTimingMetric;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import kotlin.Unit;
+
+/**
+ * Measures opening ChatActivity on a conversation with
+ * {@link StandInServer#TEXT_MESSAGE_COUNT} messages, from a warm process,
+ * until the first page of messages is on screen.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChatOpenBenchmark {
+    private static final int ITERATIONS = 10;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    private final StandInServer server = new StandInServer();
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void openLargeChat() {
+        benchmarkRule.measureRepeated(
+                Benchmarks.PACKAGE_NAME,
+                Arrays.asList(new StartupTimingMetric(), new FrameTimingMetric()),
+                new CompilationMode.Partial(),
+                StartupMode.WARM,
+                ITERATIONS,
+                scope -> {
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    Benchmarks.openChat(scope, StandInServer.TEXT_CONTACT_ID, StandInServer.TEXT_CONTACT_NAME);
+                    return Unit.INSTANCE;
+                });
+    }
+}
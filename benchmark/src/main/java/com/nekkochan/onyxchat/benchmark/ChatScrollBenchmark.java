@@ -0,0 +1,70 @@
+package com.nekkochan.onyxchat.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.FrameTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * Measures frame timing while flinging through chat history: the large text
+ * conversation and the media-heavy conversation with images fetched from the
+ * stand-in server.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChatScrollBenchmark {
+    private static final int ITERATIONS = 5;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    private final StandInServer server = new StandInServer();
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void flingTextChat() {
+        measureFling(StandInServer.TEXT_CONTACT_ID, StandInServer.TEXT_CONTACT_NAME);
+    }
+
+    @Test
+    public void flingMediaChat() {
+        measureFling(StandInServer.MEDIA_CONTACT_ID, StandInServer.MEDIA_CONTACT_NAME);
+    }
+
+    private void measureFling(String contactId, String contactName) {
+        benchmarkRule.measureRepeated(
+                Benchmarks.PACKAGE_NAME,
+                Collections.singletonList(new FrameTimingMetric()),
+                new CompilationMode.Partial(),
+                null,
+                ITERATIONS,
+                scope -> {
+                    // Opening the chat is not part of the measurement
+                    Benchmarks.openChat(scope, contactId, contactName);
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    Benchmarks.flingMessages(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}
@@ -0,0 +1,282 @@
+package com.nekkochan.onyxchat.benchmark;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.UiDevice;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Local stand-in for the OnyxChat server.
+ * <p>
+ * Runs on localhost inside the benchmark process and serves a fixed data set: a text
+ * conversation with {@link #TEXT_MESSAGE_COUNT} messages and a media-heavy conversation
+ * whose images are served from {@code /api/media/file/}. The chat WebSocket is accepted
+ * and kept idle so the client does not churn through reconnects while being measured.
+ */
+public final class StandInServer {
+    private static final String TAG = "StandInServer";
+
+    public static final String USER_ID = "benchmark-user";
+    public static final String TEXT_CONTACT_ID = "benchmark-text-contact";
+    public static final String TEXT_CONTACT_NAME = "Benchmark Text";
+    public static final String MEDIA_CONTACT_ID = "benchmark-media-contact";
+    public static final String MEDIA_CONTACT_NAME = "Benchmark Media";
+
+    public static final int TEXT_MESSAGE_COUNT = 10_000;
+    public static final int MEDIA_MESSAGE_COUNT = 600;
+    // Distinct images; more than Glide's memory cache holds at this size
+    private static final int MEDIA_IMAGE_COUNT = 60;
+    private static final int MEDIA_IMAGE_WIDTH = 1280;
+    private static final int MEDIA_IMAGE_HEIGHT = 960;
+
+    private static final String SETUP_RECEIVER = ".service.BenchmarkSetupReceiver";
+    private static final String MEDIA_PATH = "/api/media/file/";
+
+    private final MockWebServer server = new MockWebServer();
+    private final SimpleDateFormat dateFormat;
+    private String baseUrl;
+    private String conversationsJson;
+    private String textMessagesJson;
+    private String mediaMessagesJson;
+    private byte[][] images;
+
+    public StandInServer() {
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Generate the data set, start listening on localhost and point the app at this server
+     * @throws IOException If the server cannot be started
+     */
+    public void start() throws IOException {
+        images = new byte[MEDIA_IMAGE_COUNT][];
+        for (int i = 0; i < MEDIA_IMAGE_COUNT; i++) {
+            images[i] = createImage(i);
+        }
+
+        server.setDispatcher(new StandInDispatcher());
+        server.start(InetAddress.getByName("localhost"), 0);
+        baseUrl = "http://localhost:" + server.getPort() + "/";
+
+        // Messages reference media by absolute URL, so build them once the port is known
+        long now = System.currentTimeMillis();
+        textMessagesJson = buildTextMessages(now);
+        mediaMessagesJson = buildMediaMessages(now);
+        conversationsJson = buildConversations(now);
+
+        configureApp();
+        Log.d(TAG, "Stand-in server listening on " + baseUrl);
+    }
+
+    /**
+     * Stop the server
+     */
+    public void shutdown() {
+        try {
+            server.shutdown();
+        } catch (IOException e) {
+            Log.e(TAG, "Error shutting down stand-in server", e);
+        }
+    }
+
+    /**
+     * Write the server URL and a logged-in session into the app's preferences.
+     * The app process this starts is killed again before each cold-start iteration.
+     */
+    private void configureApp() throws IOException {
+        UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        String output = device.executeShellCommand("am broadcast -n "
+                + Benchmarks.PACKAGE_NAME + "/" + SETUP_RECEIVER
+                + " --es server_url " + baseUrl
+                + " --es user_id " + USER_ID);
+        Log.d(TAG, "Setup broadcast: " + output.trim());
+    }
+
+    private String buildConversations(long now) {
+        JsonArray conversations = new JsonArray();
+        conversations.add(conversation(TEXT_CONTACT_ID, TEXT_CONTACT_NAME,
+                "Message " + (TEXT_MESSAGE_COUNT - 1), now));
+        conversations.add(conversation(MEDIA_CONTACT_ID, MEDIA_CONTACT_NAME,
+                "Photo " + (MEDIA_MESSAGE_COUNT - 1), now));
+        return conversations.toString();
+    }
+
+    private JsonObject conversation(String contactId, String name, String lastMessage, long now) {
+        JsonObject conversation = new JsonObject();
+        conversation.addProperty("user_id", contactId);
+        conversation.addProperty("username", contactId);
+        conversation.addProperty("display_name", name);
+        conversation.addProperty("email", contactId + "@benchmark.local");
+        conversation.addProperty("message_id", contactId + "-last");
+        conversation.addProperty("content", lastMessage);
+        conversation.addProperty("sender_id", contactId);
+        conversation.addProperty("recipient_id", USER_ID);
+        conversation.addProperty("created_at", formatDate(now));
+        conversation.addProperty("read", true);
+        conversation.addProperty("unread", false);
+        conversation.addProperty("unread_count", 0);
+        return conversation;
+    }
+
+    private String buildTextMessages(long now) {
+        JsonArray messages = new JsonArray();
+        for (int i = 0; i < TEXT_MESSAGE_COUNT; i++) {
+            // Vary the length so rows have different heights
+            StringBuilder content = new StringBuilder("Message ").append(i);
+            for (int words = 0; words < i % 7; words++) {
+                content.append(" lorem ipsum dolor");
+            }
+            messages.add(message(TEXT_CONTACT_ID, i, content.toString(),
+                    now - (TEXT_MESSAGE_COUNT - i) * 30_000L));
+        }
+        return messages.toString();
+    }
+
+    private String buildMediaMessages(long now) {
+        JsonArray messages = new JsonArray();
+        for (int i = 0; i < MEDIA_MESSAGE_COUNT; i++) {
+            String content;
+            if (i % 4 == 3) {
+                content = "Photo " + i;
+            } else {
+                JsonObject media = new JsonObject();
+                media.addProperty("type", "image");
+                media.addProperty("url", baseUrl + MEDIA_PATH.substring(1)
+                        + "img_" + (i % MEDIA_IMAGE_COUNT) + ".jpg");
+                media.addProperty("caption", i % 2 == 0 ? "" : "Photo " + i);
+                content = media.toString();
+            }
+            messages.add(message(MEDIA_CONTACT_ID, i, content,
+                    now - (MEDIA_MESSAGE_COUNT - i) * 60_000L));
+        }
+        return messages.toString();
+    }
+
+    private JsonObject message(String contactId, int index, String content, long timestamp) {
+        boolean outgoing = index % 3 == 0;
+        JsonObject message = new JsonObject();
+        message.addProperty("id", contactId + "-" + index);
+        message.addProperty("senderId", outgoing ? USER_ID : contactId);
+        message.addProperty("recipientId", outgoing ? contactId : USER_ID);
+        message.addProperty("content", content);
+        message.addProperty("encrypted", false);
+        message.addProperty("contentType", "text");
+        message.addProperty("createdAt", formatDate(timestamp));
+        message.addProperty("read", true);
+        return message;
+    }
+
+    private String formatDate(long timestamp) {
+        synchronized (dateFormat) {
+            return dateFormat.format(new Date(timestamp));
+        }
+    }
+
+    private static byte[] createImage(int index) {
+        Bitmap bitmap = Bitmap.createBitmap(MEDIA_IMAGE_WIDTH, MEDIA_IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        float hue = index * 360f / MEDIA_IMAGE_COUNT;
+        canvas.drawColor(Color.HSVToColor(new float[]{hue, 0.6f, 0.9f}));
+
+        // Stripes keep the JPEG from compressing down to nothing
+        Paint paint = new Paint();
+        for (int x = 0; x < MEDIA_IMAGE_WIDTH; x += 40) {
+            paint.setColor(Color.HSVToColor(new float[]{(hue + x) % 360, 0.8f, 0.6f}));
+            canvas.drawRect(x, 0, x + 20, MEDIA_IMAGE_HEIGHT, paint);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * Routes the endpoints the benchmarked screens call
+     */
+    private final class StandInDispatcher extends Dispatcher {
+        @NonNull
+        @Override
+        public MockResponse dispatch(@NonNull RecordedRequest request) {
+            String path = request.getPath() == null ? "" : request.getPath();
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+
+            if (path.startsWith("/ws")) {
+                return new MockResponse().withWebSocketUpgrade(new IdleWebSocketListener());
+            }
+            if (path.equals("/api/messages/conversations/list")) {
+                return json(conversationsJson);
+            }
+            if (path.equals("/api/messages/" + TEXT_CONTACT_ID)) {
+                return json(textMessagesJson);
+            }
+            if (path.equals("/api/messages/" + MEDIA_CONTACT_ID)) {
+                return json(mediaMessagesJson);
+            }
+            if (path.startsWith(MEDIA_PATH + "img_")) {
+                return image(path);
+            }
+            return new MockResponse().setResponseCode(404)
+                    .setHeader("Content-Type", "application/json")
+                    .setBody("{\"success\":false,\"message\":\"Not served by stand-in\"}");
+        }
+
+        private MockResponse json(String body) {
+            return new MockResponse()
+                    .setHeader("Content-Type", "application/json")
+                    .setBody(body);
+        }
+
+        private MockResponse image(String path) {
+            try {
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                int index = Integer.parseInt(name.substring(4, name.length() - 4));
+                return new MockResponse()
+                        .setHeader("Content-Type", "image/jpeg")
+                        .setHeader("Cache-Control", "public, max-age=31536000")
+                        .setBody(new Buffer().write(images[index % MEDIA_IMAGE_COUNT]));
+            } catch (RuntimeException e) {
+                return new MockResponse().setResponseCode(404);
+            }
+        }
+    }
+
+    /**
+     * Accepts the chat WebSocket and ignores everything sent on it
+     */
+    private static final class IdleWebSocketListener extends WebSocketListener {
+        @Override
+        public void onOpen(@NonNull WebSocket webSocket, @NonNull Response response) {
+            Log.d(TAG, "Chat WebSocket connected");
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.nekkochan.onyxchat.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * Measures cold and warm start into MainActivity.
+ * <p>
+ * timeToInitialDisplay is the regression guard for the startup initializer graph:
+ * anything that moves back onto the main thread before the first frame shows up here.
+ * Each mode runs without and with the baseline profile to show what the profile buys.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final int ITERATIONS = 10;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    private final StandInServer server = new StandInServer();
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void coldStartNoCompilation() {
+        measureStartup(StartupMode.COLD, new CompilationMode.None());
+    }
+
+    @Test
+    public void coldStartBaselineProfile() {
+        measureStartup(StartupMode.COLD, new CompilationMode.Partial());
+    }
+
+    @Test
+    public void warmStartNoCompilation() {
+        measureStartup(StartupMode.WARM, new CompilationMode.None());
+    }
+
+    @Test
+    public void warmStartBaselineProfile() {
+        measureStartup(StartupMode.WARM, new CompilationMode.Partial());
+    }
+
+    private void measureStartup(StartupMode startupMode, CompilationMode compilationMode) {
+        benchmarkRule.measureRepeated(
+                Benchmarks.PACKAGE_NAME,
+                Collections.singletonList(new StartupTimingMetric()),
+                compilationMode,
+                startupMode,
+                ITERATIONS,
+                scope -> {
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    Benchmarks.startMain(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}
@@ -65,7 +65,10 @@ const websocket = {
 const fileUpload = {
   maxSize: parseInt(process.env.MAX_FILE_SIZE || '209715200'), // 200MB in bytes (default)
   storagePath: process.env.FILE_STORAGE_PATH || './uploads',
-  allowedTypes: process.env.ALLOWED_FILE_TYPES || 'image/*,video/*,audio/*,application/pdf,application/msword,application/vnd.openxmlformats-officedocument.wordprocessingml.document,application/vnd.ms-excel,application/vnd.openxmlformats-officedocument.spreadsheetml.sheet,application/zip,application/x-zip-compressed',
+  allowedTypes: process.env.ALLOWED_FILE_TYPES || 'image/*,image/webp,video/*,audio/*,application/pdf,application/msword,application/vnd.openxmlformats-officedocument.wordprocessingml.document,application/vnd.ms-excel,application/vnd.openxmlformats-officedocument.spreadsheetml.sheet,application/zip,application/x-zip-compressed',
+  // End-to-end encrypted uploads only ever carry ciphertext
+  encryptedType: 'application/octet-stream',
+  encryptedExtension: '.enc',
 };
 
 // Redis configuration (if used)
@@ -58,7 +58,7 @@ const fileFilter = (req, file, cb) => {
   });
 
   // Additional security checks - expanded to include more video formats
-  const hasValidExtension = /\.(jpg|jpeg|png|gif|mp4|mov|avi|wmv|flv|mkv|webm|mp3|wav|pdf|doc|docx|xls|xlsx|zip)$/i.test(file.originalname);
+  const hasValidExtension = /\.(jpg|jpeg|png|gif|webp|mp4|mov|avi|wmv|flv|mkv|webm|mp3|wav|pdf|doc|docx|xls|xlsx|zip)$/i.test(file.originalname);
   
   // Log the file information
   logger.debug(`File upload attempt: ${file.originalname}, MIME: ${file.mimetype}, Valid extension: ${hasValidExtension}, Allowed type: ${isAllowed}`);
@@ -70,7 +70,22 @@ const fileFilter = (req, file, cb) => {
   }
 };
 
-// Create multer upload instance
+// Encrypted uploads are opaque ciphertext, so only the ciphertext type and extension are accepted
+const encryptedFileFilter = (req, file, cb) => {
+  const { encryptedType, encryptedExtension } = config.fileUpload;
+  const isAllowed = file.mimetype === encryptedType
+    && path.extname(file.originalname).toLowerCase() === encryptedExtension;
+
+  logger.debug(`Encrypted upload attempt: ${file.originalname}, MIME: ${file.mimetype}, Allowed: ${isAllowed}`);
+
+  if (isAllowed) {
+    cb(null, true);
+  } else {
+    cb(new Error(`Encrypted uploads must be ${encryptedType} named *${encryptedExtension}: ${file.mimetype} (${file.originalname})`), false);
+  }
+};
+
+// Create multer upload instances
 const upload = multer({
   storage,
   fileFilter,
@@ -79,6 +94,14 @@ const upload = multer({
   }
 });
 
+const encryptedUpload = multer({
+  storage,
+  fileFilter: encryptedFileFilter,
+  limits: {
+    fileSize: config.fileUpload.maxSize
+  }
+});
+
 // Error handling middleware
 const handleUploadError = (err, req, res, next) => {
   if (err instanceof multer.MulterError) {
@@ -131,6 +154,9 @@ const trackFileSize = (req, res, next) => {
 
 module.exports = {
   upload,
+  encryptedUpload,
+  fileFilter,
+  encryptedFileFilter,
   handleUploadError,
   cleanupOnError,
   trackFileSize
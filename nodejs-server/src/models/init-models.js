@@ -493,6 +493,204 @@ module.exports = (sequelize) => {
   User.hasOne(PasswordReset, { foreignKey: 'userId' });
   PasswordReset.belongsTo(User, { foreignKey: 'userId' });
 
+  // Group model: a conversation whose members share one sender key each
+  const Group = sequelize.define('Group', {
+    id: {
+      type: DataTypes.UUID,
+      defaultValue: DataTypes.UUIDV4,
+      primaryKey: true
+    },
+    name: {
+      type: DataTypes.STRING,
+      allowNull: false
+    },
+    createdBy: {
+      type: DataTypes.UUID,
+      allowNull: false,
+      references: {
+        model: 'users',
+        key: 'id'
+      }
+    },
+    createdAt: {
+      type: DataTypes.DATE,
+      defaultValue: DataTypes.NOW
+    },
+    updatedAt: {
+      type: DataTypes.DATE,
+      defaultValue: DataTypes.NOW
+    }
+  }, {
+    tableName: 'chat_groups',
+    timestamps: true
+  });
+
+  // GroupMember model
+  const GroupMember = sequelize.define('GroupMember', {
+    id: {
+      type: DataTypes.UUID,
+      defaultValue: DataTypes.UUIDV4,
+      primaryKey: true
+    },
+    groupId: {
+      type: DataTypes.UUID,
+      allowNull: false,
+      references: {
+        model: 'chat_groups',
+        key: 'id'
+      }
+    },
+    userId: {
+      type: DataTypes.UUID,
+      allowNull: false,
+      references: {
+        model: 'users',
+        key: 'id'
+      }
+    },
+    role: {
+      type: DataTypes.ENUM('admin', 'member'),
+      defaultValue: 'member'
+    },
+    createdAt: {
+      type: DataTypes.DATE,
+      defaultValue: DataTypes.NOW
+    },
+    updatedAt: {
+      type: DataTypes.DATE,
+      defaultValue: DataTypes.NOW
+    }
+  }, {
+    tableName: 'group_members',
+    timestamps: true,
+    indexes: [
+      {
+        unique: true,
+        fields: ['groupId', 'userId']
+      },
+      {
+        fields: ['userId']
+      }
+    ]
+  });
+
+  // GroupMessage model: stored once per group, not once per member
+  const GroupMessage = sequelize.define('GroupMessage', {
+    id: {
+      type: DataTypes.UUID,
+      defaultValue: DataTypes.UUIDV4,
+      primaryKey: true
+    },
+    groupId: {
+      type: DataTypes.UUID,
+      allowNull: false,
+      references: {
+        model: 'chat_groups',
+        key: 'id'
+      }
+    },
+    senderId: {
+      type: DataTypes.UUID,
+      allowNull: false,
+      references: {
+        model: 'users',
+        key: 'id'
+      }
+    },
+    content: {
+      type: DataTypes.TEXT,
+      allowNull: false
+    },
+    contentType: {
+      type: DataTypes.STRING,
+      defaultValue: 'text'
+    },
+    createdAt: {
+      type: DataTypes.DATE,
+      defaultValue: DataTypes.NOW
+    },
+    updatedAt: {
+      type: DataTypes.DATE,
+      defaultValue: DataTypes.NOW
+    }
+  }, {
+    tableName: 'group_messages',
+    timestamps: true,
+    indexes: [
+      {
+        fields: ['groupId', 'createdAt']
+      }
+    ]
+  });
+
+  // SenderKeyDistribution model: a sender key encrypted for one member, deleted once fetched
+  const SenderKeyDistribution = sequelize.define('SenderKeyDistribution', {
+    id: {
+      type: DataTypes.UUID,
+      defaultValue: DataTypes.UUIDV4,
+      primaryKey: true
+    },
+    groupId: {
+      type: DataTypes.UUID,
+      allowNull: false,
+      references: {
+        model: 'chat_groups',
+        key: 'id'
+      }
+    },
+    senderId: {
+      type: DataTypes.UUID,
+      allowNull: false,
+      references: {
+        model: 'users',
+        key: 'id'
+      }
+    },
+    recipientId: {
+      type: DataTypes.UUID,
+      allowNull: false,
+      references: {
+        model: 'users',
+        key: 'id'
+      }
+    },
+    keyId: {
+      type: DataTypes.INTEGER,
+      allowNull: false
+    },
+    content: {
+      type: DataTypes.TEXT,
+      allowNull: false
+    },
+    createdAt: {
+      type: DataTypes.DATE,
+      defaultValue: DataTypes.NOW
+    },
+    updatedAt: {
+      type: DataTypes.DATE,
+      defaultValue: DataTypes.NOW
+    }
+  }, {
+    tableName: 'sender_key_distributions',
+    timestamps: true,
+    indexes: [
+      {
+        fields: ['recipientId']
+      }
+    ]
+  });
+
+  // Add Group associations
+  Group.hasMany(GroupMember, { foreignKey: 'groupId', as: 'members' });
+  GroupMember.belongsTo(Group, { foreignKey: 'groupId' });
+  GroupMember.belongsTo(User, { foreignKey: 'userId' });
+  User.hasMany(GroupMember, { foreignKey: 'userId' });
+  Group.hasMany(GroupMessage, { foreignKey: 'groupId' });
+  GroupMessage.belongsTo(Group, { foreignKey: 'groupId' });
+  GroupMessage.belongsTo(User, { foreignKey: 'senderId', as: 'sender' });
+  Group.hasMany(SenderKeyDistribution, { foreignKey: 'groupId' });
+  SenderKeyDistribution.belongsTo(Group, { foreignKey: 'groupId' });
+
   return {
     User,
     Message,
@@ -502,6 +700,10 @@ module.exports = (sequelize) => {
     OneTimePreKey,
     Session,
     FriendRequest,
-    PasswordReset
+    PasswordReset,
+    Group,
+    GroupMember,
+    GroupMessage,
+    SenderKeyDistribution
   };
 }; 
\ No newline at end of file
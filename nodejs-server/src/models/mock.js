@@ -379,7 +379,8 @@ module.exports = {
   OneTimePreKey: {
     findOne: () => Promise.resolve(null),
     create: (data) => Promise.resolve({ id: uuidv4(), ...data }),
-    update: () => Promise.resolve(1)
+    update: () => Promise.resolve(1),
+    count: () => Promise.resolve(0)
   },
   Contact,
   sequelize: mockSequelize,
@@ -7,6 +7,16 @@ const { v4: uuidv4 } = require('uuid');
 
 const router = express.Router();
 
+// Owners are told to upload more one-time prekeys once fewer than this many are unused
+const PREKEY_LOW_WATERMARK = 20;
+
+/**
+ * Count a user's unused one-time prekeys
+ */
+const countUnusedPrekeys = (userId) => db.OneTimePreKey.count({
+  where: { userId, used: false }
+});
+
 /**
  * Validate request body
  */
@@ -39,6 +49,8 @@ router.post('/keys', authenticate, [
     });
     
     let userKey;
+    const keysChanged = existingKeys && (existingKeys.identityKey !== identityKey
+      || Number(existingKeys.signedPrekeyId) !== Number(signedPrekeyId));
     
     if (existingKeys) {
       // Update existing keys
@@ -59,6 +71,12 @@ router.post('/keys', authenticate, [
       });
     }
     
+    if (keysChanged) {
+      notifyKeysChanged(req.user.id, Number(signedPrekeyId)).catch(error => {
+        console.error('Failed to announce key change:', error);
+      });
+    }
+    
     res.status(existingKeys ? 200 : 201).json({
       status: 'success',
       message: existingKeys ? 'Keys updated successfully' : 'Keys registered successfully',
@@ -173,6 +191,8 @@ router.post('/prekeys', authenticate, [
       }
     }
     
+    const unusedCount = await countUnusedPrekeys(req.user.id);
+    
     res.status(201).json({
       status: 'success',
       message: 'Prekeys registered successfully',
@@ -181,7 +201,28 @@ router.post('/prekeys', authenticate, [
           id: pk.id,
           prekeyId: pk.prekeyId,
           used: pk.used
-        }))
+        })),
+        unusedCount
+      }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route GET /api/crypto/prekeys/count
+ * @desc Get the number of the current user's unused one-time prekeys
+ * @access Protected
+ */
+router.get('/prekeys/count', authenticate, async (req, res, next) => {
+  try {
+    const unusedCount = await countUnusedPrekeys(req.user.id);
+    
+    res.json({
+      status: 'success',
+      data: {
+        unusedCount
       }
     });
   } catch (error) {
@@ -223,6 +264,12 @@ router.get('/prekeys/:userId', authenticate, [
       usedAt: new Date()
     });
     
+    // Ask the owner to top up their pool when it runs low
+    const unusedCount = await countUnusedPrekeys(req.params.userId);
+    if (unusedCount < PREKEY_LOW_WATERMARK) {
+      notifyPrekeysLow(req.params.userId, unusedCount);
+    }
+    
     res.json({
       status: 'success',
       data: {
@@ -298,6 +345,46 @@ router.post('/sessions', authenticate, [
   }
 });
 
+/**
+ * @route GET /api/crypto/sessions/:otherUserId/incoming
+ * @desc Get the session handshake another user created with the current user
+ * @access Protected
+ */
+router.get('/sessions/:otherUserId/incoming', authenticate, [
+  param('otherUserId').isUUID().withMessage('Invalid other user ID'),
+  validate
+], async (req, res, next) => {
+  try {
+    // The initiator stores the handshake under its own user ID
+    const session = await db.Session.findOne({
+      where: {
+        userId: req.params.otherUserId,
+        otherUserId: req.user.id
+      }
+    });
+    
+    if (!session) {
+      return next(new NotFoundError('Session'));
+    }
+    
+    res.json({
+      status: 'success',
+      data: {
+        session: {
+          id: session.id,
+          userId: session.userId,
+          otherUserId: session.otherUserId,
+          sessionData: session.sessionData,
+          createdAt: session.createdAt,
+          updatedAt: session.updatedAt
+        }
+      }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
 /**
  * @route GET /api/crypto/sessions/:otherUserId
  * @desc Get encryption session with another user
@@ -338,4 +425,43 @@ router.get('/sessions/:otherUserId', authenticate, [
   }
 });
 
+/**
+ * Tell everyone who has the user as a contact that the user's key bundle changed,
+ * so cached copies are dropped before the next session
+ */
+const notifyKeysChanged = async (userId, signedPrekeyId) => {
+  const { clients } = require('../websocket');
+  const watchers = await db.Contact.findAll({ where: { contactId: userId } });
+  const message = JSON.stringify({
+    type: 'KEYS_CHANGED',
+    data: { userId, signedPrekeyId }
+  });
+  watchers.forEach(contact => {
+    (clients.get(contact.userId) || []).forEach(connection => {
+      if (connection.ws.readyState === 1) { // WebSocket.OPEN
+        connection.ws.send(message);
+      }
+    });
+  });
+};
+
+/**
+ * Send PREKEYS_LOW to every connection of a user
+ */
+const notifyPrekeysLow = (userId, unusedCount) => {
+  const { clients } = require('../websocket');
+  const connections = clients.get(userId);
+  if (!connections) {
+    return;
+  }
+  connections.forEach(connection => {
+    if (connection.ws.readyState === 1) { // WebSocket.OPEN
+      connection.ws.send(JSON.stringify({
+        type: 'PREKEYS_LOW',
+        data: { unusedCount }
+      }));
+    }
+  });
+};
+
 module.exports = router; 
\ No newline at end of file
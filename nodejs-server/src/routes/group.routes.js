@@ -0,0 +1,376 @@
+const express = require('express');
+const { body, param, query, validationResult } = require('express-validator');
+const { Op } = require('sequelize');
+const { authenticate } = require('../middleware/auth.middleware');
+const { ValidationError, NotFoundError, ForbiddenError } = require('../utils/error.utils');
+const db = require('../models');
+
+const router = express.Router();
+
+// Largest group the fan-out and the per-member sender key upload are sized for
+const MAX_GROUP_MEMBERS = 256;
+
+/**
+ * Validate request body
+ */
+const validate = (req, res, next) => {
+  const errors = validationResult(req);
+  if (!errors.isEmpty()) {
+    return next(new ValidationError('Validation error', errors.array()));
+  }
+  next();
+};
+
+/**
+ * Load a group with its members, failing unless the current user is one of them
+ */
+const findGroupForMember = async (groupId, userId) => {
+  const group = await db.Group.findByPk(groupId, {
+    include: [{ model: db.GroupMember, as: 'members', attributes: ['userId', 'role'] }]
+  });
+  if (!group) {
+    throw new NotFoundError('Group');
+  }
+  const member = group.members.find(m => m.userId === userId);
+  if (!member) {
+    throw new ForbiddenError('You are not a member of this group');
+  }
+  return { group, member };
+};
+
+const toGroupResponse = (group) => ({
+  id: group.id,
+  name: group.name,
+  createdBy: group.createdBy,
+  members: group.members.map(m => ({ userId: m.userId, role: m.role })),
+  createdAt: group.createdAt
+});
+
+/**
+ * @route POST /api/groups
+ * @desc Create a group with the current user as admin
+ * @access Protected
+ */
+router.post('/', authenticate, [
+  body('name').trim().notEmpty().withMessage('Group name is required'),
+  body('memberIds').isArray({ max: MAX_GROUP_MEMBERS - 1 }).withMessage('Member IDs must be an array'),
+  body('memberIds.*').isUUID().withMessage('Invalid member ID'),
+  validate
+], async (req, res, next) => {
+  try {
+    const memberIds = [...new Set(req.body.memberIds)].filter(id => id !== req.user.id);
+    const found = await db.User.count({ where: { id: { [Op.in]: memberIds } } });
+    if (found !== memberIds.length) {
+      return next(new NotFoundError('User'));
+    }
+
+    const group = await db.sequelize.transaction(async (transaction) => {
+      const created = await db.Group.create({
+        name: req.body.name,
+        createdBy: req.user.id
+      }, { transaction });
+      await db.GroupMember.bulkCreate([
+        { groupId: created.id, userId: req.user.id, role: 'admin' },
+        ...memberIds.map(userId => ({ groupId: created.id, userId, role: 'member' }))
+      ], { transaction });
+      return created;
+    });
+
+    const { group: loaded } = await findGroupForMember(group.id, req.user.id);
+    notifyMembersChanged(loaded.id, memberIds);
+
+    res.status(201).json({
+      status: 'success',
+      message: 'Group created successfully',
+      data: { group: toGroupResponse(loaded) }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route GET /api/groups
+ * @desc Get the groups the current user is a member of
+ * @access Protected
+ */
+router.get('/', authenticate, async (req, res, next) => {
+  try {
+    const memberships = await db.GroupMember.findAll({
+      where: { userId: req.user.id },
+      attributes: ['groupId']
+    });
+    const groups = await db.Group.findAll({
+      where: { id: { [Op.in]: memberships.map(m => m.groupId) } },
+      include: [{ model: db.GroupMember, as: 'members', attributes: ['userId', 'role'] }],
+      order: [['createdAt', 'DESC']]
+    });
+
+    res.json({
+      status: 'success',
+      data: { groups: groups.map(toGroupResponse) }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route GET /api/groups/sender-keys
+ * @desc Get the sender keys other members distributed to the current user. They stay
+ * pending until the client acknowledges them, so a lost response does not lose a key.
+ * @access Protected
+ */
+router.get('/sender-keys', authenticate, async (req, res, next) => {
+  try {
+    const distributions = await db.SenderKeyDistribution.findAll({
+      where: { recipientId: req.user.id },
+      order: [['createdAt', 'ASC']]
+    });
+
+    res.json({
+      status: 'success',
+      data: {
+        senderKeys: distributions.map(d => ({
+          id: d.id,
+          groupId: d.groupId,
+          senderId: d.senderId,
+          keyId: d.keyId,
+          content: d.content
+        }))
+      }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route DELETE /api/groups/sender-keys
+ * @desc Acknowledge sender keys the client has stored, deleting their distributions
+ * @access Protected
+ */
+router.delete('/sender-keys', authenticate, [
+  body('ids').isArray({ min: 1 }).withMessage('IDs must be a non-empty array'),
+  body('ids.*').isUUID().withMessage('Invalid distribution ID'),
+  validate
+], async (req, res, next) => {
+  try {
+    const deleted = await db.SenderKeyDistribution.destroy({
+      where: { id: { [Op.in]: req.body.ids }, recipientId: req.user.id }
+    });
+
+    res.json({
+      status: 'success',
+      data: { deleted }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route GET /api/groups/:groupId
+ * @desc Get a group and its members
+ * @access Protected
+ */
+router.get('/:groupId', authenticate, [
+  param('groupId').isUUID().withMessage('Invalid group ID'),
+  validate
+], async (req, res, next) => {
+  try {
+    const { group } = await findGroupForMember(req.params.groupId, req.user.id);
+    res.json({
+      status: 'success',
+      data: { group: toGroupResponse(group) }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route POST /api/groups/:groupId/members
+ * @desc Add a member to a group
+ * @access Protected (group admins)
+ */
+router.post('/:groupId/members', authenticate, [
+  param('groupId').isUUID().withMessage('Invalid group ID'),
+  body('userId').isUUID().withMessage('Invalid user ID'),
+  validate
+], async (req, res, next) => {
+  try {
+    const { group, member } = await findGroupForMember(req.params.groupId, req.user.id);
+    if (member.role !== 'admin') {
+      return next(new ForbiddenError('Only group admins can add members'));
+    }
+    if (group.members.length >= MAX_GROUP_MEMBERS) {
+      return next(new ValidationError(`Groups are limited to ${MAX_GROUP_MEMBERS} members`));
+    }
+    const user = await db.User.findByPk(req.body.userId);
+    if (!user) {
+      return next(new NotFoundError('User'));
+    }
+
+    const [, created] = await db.GroupMember.findOrCreate({
+      where: { groupId: group.id, userId: user.id },
+      defaults: { role: 'member' }
+    });
+    if (created) {
+      notifyMembersChanged(group.id, group.members.map(m => m.userId).concat(user.id));
+    }
+
+    res.status(created ? 201 : 200).json({
+      status: 'success',
+      message: created ? 'Member added successfully' : 'User is already a member'
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route DELETE /api/groups/:groupId/members/:userId
+ * @desc Remove a member from a group, or leave it
+ * @access Protected (group admins, or the member themselves)
+ */
+router.delete('/:groupId/members/:userId', authenticate, [
+  param('groupId').isUUID().withMessage('Invalid group ID'),
+  param('userId').isUUID().withMessage('Invalid user ID'),
+  validate
+], async (req, res, next) => {
+  try {
+    const { group, member } = await findGroupForMember(req.params.groupId, req.user.id);
+    if (req.params.userId !== req.user.id && member.role !== 'admin') {
+      return next(new ForbiddenError('Only group admins can remove members'));
+    }
+
+    const removed = await db.GroupMember.destroy({
+      where: { groupId: group.id, userId: req.params.userId }
+    });
+    if (!removed) {
+      return next(new NotFoundError('Group member'));
+    }
+    // Pending keys for the removed member must not be delivered after they left
+    await db.SenderKeyDistribution.destroy({
+      where: { groupId: group.id, recipientId: req.params.userId }
+    });
+    // The removed member is told too, so their client drops the group's keys
+    notifyMembersChanged(group.id, group.members.map(m => m.userId));
+
+    res.json({
+      status: 'success',
+      message: 'Member removed successfully'
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route POST /api/groups/:groupId/sender-keys
+ * @desc Distribute the current user's sender key, encrypted separately for each member
+ * @access Protected
+ */
+router.post('/:groupId/sender-keys', authenticate, [
+  param('groupId').isUUID().withMessage('Invalid group ID'),
+  body('keyId').isInt().withMessage('Key ID must be an integer'),
+  body('distributions').isArray({ max: MAX_GROUP_MEMBERS }).withMessage('Distributions must be an array'),
+  body('distributions.*.recipientId').isUUID().withMessage('Invalid recipient ID'),
+  body('distributions.*.content').notEmpty().withMessage('Distribution content is required'),
+  validate
+], async (req, res, next) => {
+  try {
+    const { group } = await findGroupForMember(req.params.groupId, req.user.id);
+    const memberIds = new Set(group.members.map(m => m.userId));
+    const distributions = req.body.distributions.filter(d => memberIds.has(d.recipientId)
+      && d.recipientId !== req.user.id);
+
+    await db.SenderKeyDistribution.bulkCreate(distributions.map(d => ({
+      groupId: group.id,
+      senderId: req.user.id,
+      recipientId: d.recipientId,
+      keyId: req.body.keyId,
+      content: d.content
+    })));
+
+    notifyMembers(distributions.map(d => d.recipientId), 'SENDER_KEYS_AVAILABLE', {
+      groupId: group.id,
+      senderId: req.user.id
+    });
+
+    res.status(201).json({
+      status: 'success',
+      data: { delivered: distributions.length }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * @route GET /api/groups/:groupId/messages
+ * @desc Get a page of group messages, newest first
+ * @access Protected
+ */
+router.get('/:groupId/messages', authenticate, [
+  param('groupId').isUUID().withMessage('Invalid group ID'),
+  query('before').optional().isISO8601().withMessage('Invalid before timestamp'),
+  query('limit').optional().isInt({ min: 1, max: 200 }).withMessage('Limit must be between 1 and 200'),
+  validate
+], async (req, res, next) => {
+  try {
+    await findGroupForMember(req.params.groupId, req.user.id);
+    const where = { groupId: req.params.groupId };
+    if (req.query.before) {
+      where.createdAt = { [Op.lt]: new Date(req.query.before) };
+    }
+    const messages = await db.GroupMessage.findAll({
+      where,
+      order: [['createdAt', 'DESC']],
+      limit: parseInt(req.query.limit, 10) || 50
+    });
+
+    res.json({
+      status: 'success',
+      data: {
+        messages: messages.map(m => ({
+          id: m.id,
+          groupId: m.groupId,
+          senderId: m.senderId,
+          content: m.content,
+          contentType: m.contentType,
+          timestamp: m.createdAt
+        }))
+      }
+    });
+  } catch (error) {
+    next(error);
+  }
+});
+
+/**
+ * Send one message to every connection of the given users
+ */
+const notifyMembers = (userIds, type, data) => {
+  const { clients } = require('../websocket');
+  const message = JSON.stringify({ type, data });
+  userIds.forEach(userId => {
+    (clients.get(userId) || []).forEach(connection => {
+      if (connection.ws.readyState === 1) { // WebSocket.OPEN
+        connection.ws.send(message);
+      }
+    });
+  });
+};
+
+/**
+ * Drop the cached membership and tell the affected users, so every member rotates
+ * their sender key before the next message
+ */
+const notifyMembersChanged = (groupId, userIds) => {
+  require('../websocket').invalidateGroupMembers(groupId);
+  notifyMembers(userIds, 'GROUP_MEMBERS_CHANGED', { groupId });
+};
+
+module.exports = router;
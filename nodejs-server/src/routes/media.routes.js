@@ -9,7 +9,9 @@ const router = express.Router();
 const path = require('path');
 const fs = require('fs').promises;
 const fsSync = require('fs');
-const { upload, handleUploadError } = require('../middlewares/fileUpload');
+const { EventEmitter, once } = require('events');
+const { v4: uuidv4 } = require('uuid');
+const { upload, encryptedUpload, handleUploadError } = require('../middlewares/fileUpload');
 const { authJwt } = require('../middlewares');
 const config = require('../config');
 const logger = require('../utils/logger');
@@ -31,12 +33,118 @@ logger.info(`Using uploads directory: ${uploadsDir}`);
 // Apply authentication middleware to upload routes only
 // Note: file retrieval does not require authentication
 router.use('/upload', authJwt.verifyToken);
+router.use('/stream', authJwt.verifyToken);
+
+/*
+ * Streams are files uploaded in chunks while they are still being recorded, such as
+ * voice messages. Readers of an open stream are sent each chunk as it arrives until
+ * the stream is finished, so playback can start before the upload ends.
+ */
+const STREAM_TYPES = {
+  'audio/ogg': '.ogg',
+  'audio/aac': '.aac'
+};
+const MAX_STREAM_CHUNK_SIZE = 1024 * 1024;
+// Streams the client abandoned are closed with whatever they received
+const STREAM_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+const activeStreams = new Map();
+const activeStreamsByFilename = new Map();
+
+const streamInfo = (stream) => ({
+  id: stream.id,
+  filename: stream.filename,
+  url: `/api/media/file/${stream.filename}`,
+  size: stream.size,
+  finished: stream.finished
+});
+
+const closeStream = (stream, reason) => {
+  clearTimeout(stream.idleTimer);
+  activeStreams.delete(stream.id);
+  activeStreamsByFilename.delete(stream.filename);
+  stream.finished = true;
+  stream.events.emit('finish');
+  logger.info(`Media stream ${stream.filename} closed (${reason}), ${Math.floor(stream.size / 1024)} KB`);
+};
+
+const touchStream = (stream) => {
+  clearTimeout(stream.idleTimer);
+  stream.idleTimer = setTimeout(() => closeStream(stream, 'idle'), STREAM_IDLE_TIMEOUT_MS);
+};
 
 /**
- * Upload a single media file
+ * Send a stream that is still being uploaded, following the file as chunks are
+ * appended. The length is unknown, so the response is sent chunked.
+ */
+const sendLiveStream = async (stream, res) => {
+  const handle = await fs.open(stream.filePath, 'r');
+  const buffer = Buffer.alloc(64 * 1024);
+  let position = 0;
+  let pumping = false;
+  let pending = false;
+  let done = false;
+
+  const end = async () => {
+    if (done) {
+      return;
+    }
+    done = true;
+    stream.events.off('data', pump);
+    stream.events.off('finish', pump);
+    await handle.close();
+    res.end();
+  };
+
+  async function pump() {
+    if (done) {
+      return;
+    }
+    // A chunk that arrives while reading is picked up by another pass
+    if (pumping) {
+      pending = true;
+      return;
+    }
+    pumping = true;
+    try {
+      do {
+        pending = false;
+        let bytesRead;
+        do {
+          ({ bytesRead } = await handle.read(buffer, 0, buffer.length, position));
+          if (bytesRead > 0) {
+            position += bytesRead;
+            if (!res.write(Buffer.from(buffer.subarray(0, bytesRead)))) {
+              await once(res, 'drain');
+            }
+          }
+        } while (bytesRead > 0 && !done);
+      } while (pending && !done);
+    } catch (error) {
+      logger.error(`Error sending media stream ${stream.filename}:`, error);
+      await end();
+      return;
+    } finally {
+      pumping = false;
+    }
+    if (stream.finished && position >= stream.size) {
+      await end();
+    }
+  }
+
+  res.status(200);
+  res.setHeader('Content-Type', stream.mimeType);
+  res.setHeader('Cache-Control', 'no-store');
+  stream.events.on('data', pump);
+  stream.events.on('finish', pump);
+  res.on('close', end);
+  await pump();
+};
+
+/**
+ * Respond to a finished single file upload
  * Returns the file URL and metadata
  */
-router.post('/upload', upload.single('file'), handleUploadError, async (req, res) => {
+const handleUpload = async (req, res) => {
   try {
     if (!req.file) {
       return res.status(400).json({ error: 'No file uploaded' });
@@ -63,7 +171,7 @@ router.post('/upload', upload.single('file'), handleUploadError, async (req, res
     };
 
     // Log the successful upload with more details
-    logger.info(`User ${req.userId} uploaded file: ${fileInfo.originalname} (${Math.floor(fileInfo.size / 1024)} KB) to ${fileInfo.path}`);
+    logger.info(`User ${req.user.id} uploaded file: ${fileInfo.originalname} (${Math.floor(fileInfo.size / 1024)} KB) to ${fileInfo.path}`);
 
     // Return file metadata
     return res.status(201).json({
@@ -74,10 +182,124 @@ router.post('/upload', upload.single('file'), handleUploadError, async (req, res
     logger.error('Error in file upload handler:', error);
     return res.status(500).json({ error: 'Upload processing failed', message: error.message });
   }
+};
+
+/**
+ * Upload a single media file
+ */
+router.post('/upload', upload.single('file'), handleUploadError, handleUpload);
+
+/**
+ * Upload a single end-to-end encrypted media file
+ * The server only sees ciphertext, so the part must be application/octet-stream named *.enc
+ */
+router.post('/upload/encrypted', encryptedUpload.single('file'), handleUploadError, handleUpload);
+
+/**
+ * Start a stream upload
+ * Body: { mimeType } - one of the STREAM_TYPES
+ */
+router.post('/stream', async (req, res) => {
+  try {
+    const mimeType = req.body && req.body.mimeType;
+    const extension = STREAM_TYPES[mimeType];
+    if (!extension) {
+      return res.status(400).json({ error: 'Unsupported stream type' });
+    }
+
+    const id = uuidv4();
+    const filename = `${id}${extension}`;
+    const filePath = path.join(uploadsDir, filename);
+    await fs.writeFile(filePath, Buffer.alloc(0));
+
+    const events = new EventEmitter();
+    events.setMaxListeners(0);
+    const stream = { id, filename, filePath, mimeType, userId: req.user.id, size: 0, finished: false, writing: false, events };
+    activeStreams.set(id, stream);
+    activeStreamsByFilename.set(filename, stream);
+    touchStream(stream);
+
+    logger.info(`User ${req.user.id} started media stream ${filename}`);
+    return res.status(201).json({ message: 'Stream started', stream: streamInfo(stream) });
+  } catch (error) {
+    logger.error('Error starting media stream:', error);
+    return res.status(500).json({ error: 'Could not start stream', message: error.message });
+  }
 });
 
 /**
- * Get a media file by filename
+ * Append a chunk to a stream
+ * Query: offset - byte offset of the chunk, which must equal the bytes received so far
+ * Body: the raw chunk
+ */
+router.put('/stream/:id', express.raw({ type: 'application/octet-stream', limit: MAX_STREAM_CHUNK_SIZE }), async (req, res) => {
+  const stream = activeStreams.get(req.params.id);
+  if (!stream || stream.userId !== req.user.id) {
+    return res.status(404).json({ error: 'Stream not found' });
+  }
+
+  const offset = Number(req.query.offset);
+  const chunk = Buffer.isBuffer(req.body) ? req.body : Buffer.alloc(0);
+  if (!Number.isInteger(offset) || offset < 0) {
+    return res.status(400).json({ error: 'Invalid offset' });
+  }
+  // A retried chunk that was already written is acknowledged again
+  if (offset + chunk.length <= stream.size) {
+    return res.status(200).json({ stream: streamInfo(stream) });
+  }
+  if (offset !== stream.size || stream.writing) {
+    return res.status(409).json({ error: 'Unexpected offset', stream: streamInfo(stream) });
+  }
+
+  stream.writing = true;
+  try {
+    await fs.appendFile(stream.filePath, chunk);
+    stream.size += chunk.length;
+    touchStream(stream);
+    stream.events.emit('data');
+    return res.status(200).json({ stream: streamInfo(stream) });
+  } catch (error) {
+    logger.error(`Error appending to media stream ${stream.filename}:`, error);
+    return res.status(500).json({ error: 'Could not append chunk', message: error.message });
+  } finally {
+    stream.writing = false;
+  }
+});
+
+/**
+ * Finish a stream; readers get the rest of the file and the file is served normally after
+ */
+router.post('/stream/:id/finish', (req, res) => {
+  const stream = activeStreams.get(req.params.id);
+  if (!stream || stream.userId !== req.user.id) {
+    return res.status(404).json({ error: 'Stream not found' });
+  }
+  closeStream(stream, 'finished');
+  return res.status(200).json({ message: 'Stream finished', stream: streamInfo(stream) });
+});
+
+/**
+ * Discard a stream, e.g. a cancelled recording; readers are ended and the partial file is deleted
+ */
+router.delete('/stream/:id', async (req, res) => {
+  const stream = activeStreams.get(req.params.id);
+  if (!stream || stream.userId !== req.user.id) {
+    return res.status(404).json({ error: 'Stream not found' });
+  }
+  closeStream(stream, 'discarded');
+  try {
+    await fs.unlink(stream.filePath);
+  } catch (error) {
+    if (error.code !== 'ENOENT') {
+      logger.error(`Error deleting discarded media stream ${stream.filename}:`, error);
+      return res.status(500).json({ error: 'Could not delete stream', message: error.message });
+    }
+  }
+  return res.status(200).json({ message: 'Stream discarded' });
+});
+
+/**
+ * Get a media file by filename, whole or as a byte range
  * Public endpoint - no authentication required
  */
 router.get('/file/:filename', async (req, res) => {
@@ -90,6 +312,12 @@ router.get('/file/:filename', async (req, res) => {
       return res.status(400).json({ error: 'Invalid filename' });
     }
     
+    const liveStream = activeStreamsByFilename.get(filename);
+    if (liveStream) {
+      logger.debug(`Serving media stream while it is uploaded: ${filename}`);
+      return await sendLiveStream(liveStream, res);
+    }
+    
     const filePath = path.join(uploadsDir, filename);
     logger.debug(`Attempting to serve file: ${filePath}`);
     
@@ -110,8 +338,14 @@ router.get('/file/:filename', async (req, res) => {
     // Set cache headers for media files
     res.setHeader('Cache-Control', 'public, max-age=86400'); // 24 hours
     
-    // Send the file
-    return res.sendFile(path.resolve(filePath));
+    // Send the file. Byte ranges let video players read the moov atom and the first
+    // seconds, or seek, without downloading the whole file: Range and If-Range requests
+    // are answered with 206 Partial Content, or 416 when the range is unsatisfiable.
+    return res.sendFile(path.resolve(filePath), {
+      acceptRanges: true,
+      lastModified: true,
+      cacheControl: false // keep the header set above
+    });
   } catch (error) {
     logger.error('Error serving file:', error);
     return res.status(500).json({ error: 'Error retrieving file', message: error.message });
@@ -143,7 +377,7 @@ router.delete('/file/:filename', authJwt.verifyToken, async (req, res) => {
     
     // Delete the file
     await fs.unlink(filePath);
-    logger.info(`User ${req.userId} deleted file: ${filename}`);
+    logger.info(`User ${req.user.id} deleted file: ${filename}`);
     
     return res.status(200).json({ message: 'File deleted successfully' });
   } catch (error) {
@@ -16,6 +16,7 @@ const cryptoRoutes = require('./routes/crypto.routes');
 const contactsRoutes = require('./routes/contacts.routes');
 const friendRequestsRoutes = require('./routes/friend-requests.routes');
 const mediaRoutes = require('./routes/media.routes');
+const groupRoutes = require('./routes/group.routes');
 
 // Initialize express app
 const app = express();
@@ -45,6 +46,7 @@ app.use('/api/crypto', cryptoRoutes);
 app.use('/api/contacts', contactsRoutes);
 app.use('/api/friend-requests', friendRequestsRoutes);
 app.use('/api/media', mediaRoutes);
+app.use('/api/groups', groupRoutes);
 
 // Add a route to handle WebSocket connections for better debugging
 app.get('/ws', (req, res) => {
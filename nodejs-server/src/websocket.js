@@ -5,6 +5,9 @@ const db = require('./models');
 // Store clients connections - modified to support multiple connections per user
 const clients = new Map();
 
+// Member IDs per group, loaded on first use and dropped when the membership changes
+const groupMembers = new Map();
+
 // Store active calls and their timeouts
 const activeCalls = new Map();
 const CALL_TIMEOUT = 30000; // 30 seconds timeout for unanswered calls
@@ -59,6 +62,25 @@ const authenticateWsConnection = (token) => {
   }
 };
 
+// Get the user IDs of a group's members, from the cache if possible
+const getGroupMembers = async (groupId) => {
+  let members = groupMembers.get(groupId);
+  if (!members) {
+    const rows = await db.GroupMember.findAll({
+      where: { groupId },
+      attributes: ['userId']
+    });
+    members = rows.map(row => row.userId);
+    groupMembers.set(groupId, members);
+  }
+  return members;
+};
+
+// Forget a group's cached members after they were added or removed
+const invalidateGroupMembers = (groupId) => {
+  groupMembers.delete(groupId);
+};
+
 // Handle incoming messages
 const handleMessage = async (userId, messageData, connectionId) => {
   try {
@@ -216,6 +238,60 @@ const handleMessage = async (userId, messageData, connectionId) => {
         }
         break;
 
+      case 'GROUP_MESSAGE':
+        // The content is encrypted once with the sender's sender key, so the same
+        // payload goes to every member instead of one ciphertext per member
+        try {
+          const members = await getGroupMembers(data.groupId);
+          if (!members.includes(userId)) {
+            const senderConnection = (clients.get(userId) || []).find(conn => conn.connectionId === connectionId);
+            if (senderConnection && senderConnection.ws.readyState === 1) {
+              senderConnection.ws.send(JSON.stringify({
+                type: 'ERROR',
+                data: {
+                  message: 'You are not a member of this group.',
+                  code: 'NOT_GROUP_MEMBER',
+                  groupId: data.groupId
+                }
+              }));
+            }
+            break;
+          }
+          
+          const groupMessage = await db.GroupMessage.create({
+            groupId: data.groupId,
+            senderId: userId,
+            content: data.content,
+            contentType: data.contentType || 'text'
+          });
+          
+          // Serialize once and fan out to every member's devices, including the sender's other devices
+          const payload = JSON.stringify({
+            type: 'NEW_GROUP_MESSAGE',
+            data: {
+              id: groupMessage.id,
+              groupId: data.groupId,
+              senderId: userId,
+              content: data.content,
+              contentType: groupMessage.contentType,
+              timestamp: groupMessage.createdAt
+            }
+          });
+          let delivered = 0;
+          members.forEach(memberId => {
+            (clients.get(memberId) || []).forEach(connection => {
+              if (connection.connectionId !== connectionId && connection.ws.readyState === 1) { // WebSocket.OPEN
+                connection.ws.send(payload);
+                delivered++;
+              }
+            });
+          });
+          console.log(`Group message ${groupMessage.id} fanned out to ${delivered} connections of ${members.length} members`);
+        } catch (error) {
+          console.error('Error processing group message:', error);
+        }
+        break;
+
       case 'call_request':
         // Handle incoming call request
         const { recipientId, isVideo } = data;
@@ -736,5 +812,7 @@ const isUserInCall = (userId) => {
 
 module.exports = {
   setupWebSocketServer,
-  clients
+  clients,
+  getGroupMembers,
+  invalidateGroupMembers
 }; 
\ No newline at end of file
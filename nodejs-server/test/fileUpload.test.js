@@ -0,0 +1,87 @@
+/**
+ * File Upload Middleware tests
+ *
+ * Sends multipart uploads through the multer instances over HTTP, so the file filters see
+ * the same part headers a client produces. Run with `node --test test/`.
+ */
+
+const { test, before, after } = require('node:test');
+const assert = require('node:assert');
+const http = require('http');
+const fs = require('fs');
+const os = require('os');
+const path = require('path');
+
+// The middleware creates its storage directory when it is loaded
+const storageDir = fs.mkdtempSync(path.join(os.tmpdir(), 'onyxchat-uploads-'));
+process.env.FILE_STORAGE_PATH = storageDir;
+
+const { upload, encryptedUpload } = require('../src/middlewares/fileUpload');
+
+let server;
+let baseUrl;
+
+before(async () => {
+  const routes = {
+    '/upload': upload.single('file'),
+    '/upload/encrypted': encryptedUpload.single('file')
+  };
+  server = http.createServer((req, res) => {
+    routes[req.url](req, res, (err) => {
+      res.statusCode = err ? 400 : 201;
+      res.end(JSON.stringify(err ? { error: err.message } : { filename: req.file.filename }));
+    });
+  });
+  await new Promise((resolve) => server.listen(0, '127.0.0.1', resolve));
+  baseUrl = `http://127.0.0.1:${server.address().port}`;
+});
+
+after(() => {
+  server.close();
+  fs.rmSync(storageDir, { recursive: true, force: true });
+});
+
+const send = async (route, filename, type) => {
+  const form = new FormData();
+  form.append('file', new Blob([Buffer.alloc(64, 7)], { type }), filename);
+  const response = await fetch(`${baseUrl}${route}`, { method: 'POST', body: form });
+  return { status: response.status, body: await response.json() };
+};
+
+test('encrypted endpoint accepts ciphertext as the app uploads it', async () => {
+  const { status, body } = await send('/upload/encrypted', 'photo.jpg.enc', 'application/octet-stream');
+
+  assert.strictEqual(status, 201);
+  assert.match(body.filename, /\.enc$/);
+  assert.ok(fs.existsSync(path.join(storageDir, body.filename)));
+});
+
+test('encrypted endpoint rejects plaintext media', async () => {
+  const { status } = await send('/upload/encrypted', 'photo.jpg', 'image/jpeg');
+
+  assert.strictEqual(status, 400);
+});
+
+test('encrypted endpoint rejects ciphertext without the .enc extension', async () => {
+  const { status } = await send('/upload/encrypted', 'photo.jpg', 'application/octet-stream');
+
+  assert.strictEqual(status, 400);
+});
+
+test('plain endpoint still rejects ciphertext', async () => {
+  const { status } = await send('/upload', 'photo.jpg.enc', 'application/octet-stream');
+
+  assert.strictEqual(status, 400);
+});
+
+test('plain endpoint accepts an image', async () => {
+  const { status } = await send('/upload', 'photo.jpg', 'image/jpeg');
+
+  assert.strictEqual(status, 201);
+});
+
+test('plain endpoint accepts a compressed WebP photo', async () => {
+  const { status } = await send('/upload', 'photo.webp', 'image/webp');
+
+  assert.strictEqual(status, 201);
+});